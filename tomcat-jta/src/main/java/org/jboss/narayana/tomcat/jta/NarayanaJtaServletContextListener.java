@@ -4,30 +4,17 @@
  */
 package org.jboss.narayana.tomcat.jta;
 
-import com.arjuna.ats.arjuna.common.CoreEnvironmentBeanException;
-import com.arjuna.ats.arjuna.common.arjPropertyManager;
-import com.arjuna.ats.arjuna.common.recoveryPropertyManager;
-import com.arjuna.ats.arjuna.coordinator.TransactionReaper;
-import com.arjuna.ats.arjuna.coordinator.TxControl;
-import com.arjuna.ats.arjuna.recovery.RecoveryManager;
 import com.arjuna.ats.internal.arjuna.recovery.AtomicActionRecoveryModule;
 import com.arjuna.ats.internal.arjuna.recovery.ExpiredTransactionStatusManagerScanner;
 import com.arjuna.ats.internal.jta.recovery.arjunacore.JTANodeNameXAResourceOrphanFilter;
 import com.arjuna.ats.internal.jta.recovery.arjunacore.JTATransactionLogXAResourceOrphanFilter;
 import com.arjuna.ats.internal.jta.recovery.arjunacore.XARecoveryModule;
-import com.arjuna.ats.jdbc.TransactionalDriver;
-import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.jboss.narayana.tomcat.jta.internal.BootstrapConfiguration;
+import org.jboss.narayana.tomcat.jta.internal.NarayanaBootstrap;
 
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  * Class responsible for configuring and initializing Narayana JTA services for the servlet container.
@@ -37,18 +24,81 @@ import java.util.logging.Logger;
 @WebListener
 public class NarayanaJtaServletContextListener implements ServletContextListener {
 
-    private static final Logger LOGGER = Logger.getLogger(NarayanaJtaServletContextListener.class.getSimpleName());
+    /**
+     * Name of the context parameter with the time, in milliseconds, the active transactions are given to complete when the
+     * transaction services are stopped by this context. Not waiting by default.
+     */
+    public static final String SHUTDOWN_DRAIN_TIMEOUT_PARAM = "org.jboss.narayana.tomcat.jta.shutdownDrainTimeout";
+
+    /**
+     * Name of the context parameter selecting the process identity, {@code socket} or {@code pid}. See
+     * {@link TransactionLifecycleListener#setProcessIdentity(String)}.
+     */
+    public static final String PROCESS_IDENTITY_PARAM = "org.jboss.narayana.tomcat.jta.processIdentity";
+
+    /**
+     * Name of the context parameter enabling or disabling the recovery listener socket. See
+     * {@link TransactionLifecycleListener#setRecoveryListener(boolean)}.
+     */
+    public static final String RECOVERY_LISTENER_PARAM = "org.jboss.narayana.tomcat.jta.recoveryListener";
+
+    /**
+     * Name of the context parameter selecting the object store engine, {@code file}, {@code hashed}, {@code journal},
+     * {@code jdbc}, {@code datasource} or {@code group-commit}. See
+     * {@link TransactionLifecycleListener#setObjectStoreType(String)}.
+     */
+    public static final String OBJECT_STORE_TYPE_PARAM = "org.jboss.narayana.tomcat.jta.objectStoreType";
+
+    /**
+     * Name of the context parameter with the object store directory.
+     */
+    public static final String OBJECT_STORE_DIR_PARAM = "org.jboss.narayana.tomcat.jta.objectStoreDir";
+
+    /**
+     * Name of the context parameter with the JDBC access of the {@code jdbc} object store.
+     */
+    public static final String OBJECT_STORE_JDBC_ACCESS_PARAM = "org.jboss.narayana.tomcat.jta.objectStoreJdbcAccess";
+
+    /**
+     * Name of the context parameter with the JNDI name of the pooled data source of the {@code datasource} object store,
+     * for example a {@code Resource} of the web application context.
+     */
+    public static final String OBJECT_STORE_DATA_SOURCE_PARAM = "org.jboss.narayana.tomcat.jta.objectStoreDataSource";
+
+    /**
+     * Name of the context parameter with the number of subdirectories of the {@code hashed} object store.
+     */
+    public static final String OBJECT_STORE_HASHED_DIRECTORIES_PARAM =
+            "org.jboss.narayana.tomcat.jta.objectStoreHashedDirectories";
+
+    /**
+     * Name of the context parameter enabling the background removal of the records of completed transactions.
+     */
+    public static final String OBJECT_STORE_ASYNC_REMOVAL_PARAM = "org.jboss.narayana.tomcat.jta.objectStoreAsyncRemoval";
 
-    private static final String DEFAULT_NODE_IDENTIFIER = "1";
+    /**
+     * Name of the context parameter allowing transactions to be marked as relaxed, see {@link TransactionDurability}.
+     */
+    public static final String OBJECT_STORE_RELAXED_DURABILITY_PARAM =
+            "org.jboss.narayana.tomcat.jta.objectStoreRelaxedDurability";
 
-    private static final List<String> DEFAULT_RECOVERY_MODULES = Arrays.asList(AtomicActionRecoveryModule.class.getName(),
-            XARecoveryModule.class.getName());
+    /**
+     * Name of the context parameter with the comma separated JNDI names of the commit markable data sources. See
+     * {@link TransactionLifecycleListener#setCommitMarkableResources(String)}.
+     */
+    public static final String COMMIT_MARKABLE_RESOURCES_PARAM = "org.jboss.narayana.tomcat.jta.commitMarkableResources";
 
-    private static final List<String> DEFAULT_ORPHAN_FILTERS = Arrays
-            .asList(JTATransactionLogXAResourceOrphanFilter.class.getName(), JTANodeNameXAResourceOrphanFilter.class.getName());
+    /**
+     * Name of the context parameter with the number of threads scanning the transactional data sources at once during a
+     * recovery pass. See {@link TransactionLifecycleListener#setParallelRecoveryThreads(int)}.
+     */
+    public static final String PARALLEL_RECOVERY_THREADS_PARAM = "org.jboss.narayana.tomcat.jta.parallelRecoveryThreads";
 
-    private static final List<String> DEFAULT_EXPIRY_SCANNERS = Arrays
-            .asList(ExpiredTransactionStatusManagerScanner.class.getName());
+    /**
+     * Name of the context parameter with the time, in milliseconds, the scan of a data source may take during a parallel
+     * recovery pass. See {@link TransactionLifecycleListener#setParallelRecoveryTimeout(long)}.
+     */
+    public static final String PARALLEL_RECOVERY_TIMEOUT_PARAM = "org.jboss.narayana.tomcat.jta.parallelRecoveryTimeout";
 
     /**
      * Initialize and start Narayana JTA services.
@@ -66,93 +116,83 @@ public class NarayanaJtaServletContextListener implements ServletContextListener
      * </ul>
      * <p>
      * After setup recovery manager, transaction status manager, and transaction reaper are started.
+     * <p>
+     * The {@link #PROCESS_IDENTITY_PARAM}, {@link #RECOVERY_LISTENER_PARAM}, parallel recovery and object store context
+     * parameters are taken into account if the services are started by this context.
+     * <p>
+     * The services are shared by all web applications and the {@link TransactionLifecycleListener}. If they are already
+     * running, this context only registers itself as one more user.
      *
      * @param servletContextEvent containing the ServletContext that is being initialized
      */
     @Override
     public void contextInitialized(ServletContextEvent servletContextEvent) {
-        LOGGER.fine("Initializing Narayana");
-        initNodeIdentifier();
-        initRecoveryModules();
-        initOrphanFilters();
-        initExpiryScanners();
-        RecoveryManager.manager().initialize();
-        TxControl.enable();
-        TransactionReaper.instantiate();
+        final BootstrapConfiguration configuration = new BootstrapConfiguration();
+        final String processIdentity = getInitParameter(servletContextEvent, PROCESS_IDENTITY_PARAM);
+        if (processIdentity != null) {
+            configuration.setProcessIdentity(BootstrapConfiguration.ProcessIdentity.fromString(processIdentity));
+        }
+        final String recoveryListener = getInitParameter(servletContextEvent, RECOVERY_LISTENER_PARAM);
+        if (recoveryListener != null) {
+            configuration.setRecoveryListener(Boolean.valueOf(recoveryListener.trim()));
+        }
+        final String objectStoreType = getInitParameter(servletContextEvent, OBJECT_STORE_TYPE_PARAM);
+        if (objectStoreType != null) {
+            configuration.setObjectStoreType(BootstrapConfiguration.ObjectStoreType.fromString(objectStoreType));
+        }
+        configuration.setObjectStoreDir(getInitParameter(servletContextEvent, OBJECT_STORE_DIR_PARAM));
+        configuration.setObjectStoreJdbcAccess(getInitParameter(servletContextEvent, OBJECT_STORE_JDBC_ACCESS_PARAM));
+        configuration.setObjectStoreDataSource(getInitParameter(servletContextEvent, OBJECT_STORE_DATA_SOURCE_PARAM));
+        final String hashedDirectories = getInitParameter(servletContextEvent, OBJECT_STORE_HASHED_DIRECTORIES_PARAM);
+        if (hashedDirectories != null) {
+            configuration.setObjectStoreHashedDirectories(Integer.parseInt(hashedDirectories.trim()));
+        }
+        final String asyncRemoval = getInitParameter(servletContextEvent, OBJECT_STORE_ASYNC_REMOVAL_PARAM);
+        if (asyncRemoval != null) {
+            configuration.setObjectStoreAsyncRemoval(Boolean.parseBoolean(asyncRemoval.trim()));
+        }
+        final String relaxedDurability = getInitParameter(servletContextEvent, OBJECT_STORE_RELAXED_DURABILITY_PARAM);
+        if (relaxedDurability != null) {
+            configuration.setObjectStoreRelaxedDurability(Boolean.parseBoolean(relaxedDurability.trim()));
+        }
+        configuration.setCommitMarkableResources(BootstrapConfiguration.parseList(
+                getInitParameter(servletContextEvent, COMMIT_MARKABLE_RESOURCES_PARAM)));
+        final String parallelRecoveryThreads = getInitParameter(servletContextEvent, PARALLEL_RECOVERY_THREADS_PARAM);
+        if (parallelRecoveryThreads != null) {
+            configuration.setParallelRecoveryThreads(Integer.parseInt(parallelRecoveryThreads.trim()));
+        }
+        final String parallelRecoveryTimeout = getInitParameter(servletContextEvent, PARALLEL_RECOVERY_TIMEOUT_PARAM);
+        if (parallelRecoveryTimeout != null) {
+            configuration.setParallelRecoveryTimeoutMillis(Long.parseLong(parallelRecoveryTimeout.trim()));
+        }
+        NarayanaBootstrap.acquire(this, configuration);
     }
 
     /**
-     * First, stop recovery manager, transaction status manager, and transaction reaper. Then, remove transactional driver from
-     * jdbc driver manager's list.
+     * If no other web application or {@link TransactionLifecycleListener} uses the transaction services, first stop recovery
+     * manager, transaction status manager, and transaction reaper. Then, remove transactional driver from jdbc driver
+     * manager's list.
+     * <p>
+     * If the {@link #SHUTDOWN_DRAIN_TIMEOUT_PARAM} context parameter is set, new transactions are refused and the active ones
+     * are given time to complete before the services are stopped.
      *
      * @param servletContextEvent containing the ServletContext that is being destroyed
      */
     @Override
     public void contextDestroyed(ServletContextEvent servletContextEvent) {
-        LOGGER.fine("Disabling Narayana");
-        TransactionReaper.terminate(false);
-        TxControl.disable(true);
-        RecoveryManager.manager().terminate();
-        Collections.list(DriverManager.getDrivers()).stream().filter(d -> d instanceof TransactionalDriver).forEach(d -> {
-            try {
-                DriverManager.deregisterDriver(d);
-            } catch (SQLException e) {
-                LOGGER.log(Level.WARNING, e.getMessage(), e);
-            }
-        });
-    }
-
-    /**
-     * If node identifier wasn't set by property manager, then set default {@link #DEFAULT_NODE_IDENTIFIER}.
-     */
-    private void initNodeIdentifier() {
-        if (arjPropertyManager.getCoreEnvironmentBean().getNodeIdentifier() == null) {
-            LOGGER.warning("Node identifier was not set. Setting it to the default value: " + DEFAULT_NODE_IDENTIFIER);
-            try {
-                arjPropertyManager.getCoreEnvironmentBean().setNodeIdentifier(DEFAULT_NODE_IDENTIFIER);
-            } catch (CoreEnvironmentBeanException e) {
-                LOGGER.log(Level.WARNING, e.getMessage(), e);
-            }
-        }
-
-        jtaPropertyManager.getJTAEnvironmentBean()
-                .setXaRecoveryNodes(Collections.singletonList(arjPropertyManager.getCoreEnvironmentBean().getNodeIdentifier()));
-    }
-
-    /**
-     * If recovery modules were not set by property manager, then set defaults {@link #DEFAULT_RECOVERY_MODULES}.
-     */
-    private void initRecoveryModules() {
-        if (!recoveryPropertyManager.getRecoveryEnvironmentBean().getRecoveryModuleClassNames().isEmpty()) {
-            return;
-        }
-
-        LOGGER.fine("Recovery modules were not enabled. Enabling default modules: " + DEFAULT_RECOVERY_MODULES);
-        recoveryPropertyManager.getRecoveryEnvironmentBean().setRecoveryModuleClassNames(DEFAULT_RECOVERY_MODULES);
+        NarayanaBootstrap.release(this, getShutdownDrainTimeout(servletContextEvent));
     }
 
-    /**
-     * If orphan filters were not set by property manager, then set defaults {@link #DEFAULT_ORPHAN_FILTERS}.
-     */
-    private void initOrphanFilters() {
-        if (!jtaPropertyManager.getJTAEnvironmentBean().getXaResourceOrphanFilterClassNames().isEmpty()) {
-            return;
-        }
-
-        LOGGER.fine("Orphan filters were not enabled. Enabling default filters: " + DEFAULT_ORPHAN_FILTERS);
-        jtaPropertyManager.getJTAEnvironmentBean().setXaResourceOrphanFilterClassNames(DEFAULT_ORPHAN_FILTERS);
+    private long getShutdownDrainTimeout(ServletContextEvent servletContextEvent) {
+        final String timeout = getInitParameter(servletContextEvent, SHUTDOWN_DRAIN_TIMEOUT_PARAM);
+        return timeout == null ? 0 : Long.parseLong(timeout.trim());
     }
 
-    /**
-     * If expiry scanners were not set by property manager, then set defaults {@link #DEFAULT_EXPIRY_SCANNERS}.
-     */
-    private void initExpiryScanners() {
-        if (!recoveryPropertyManager.getRecoveryEnvironmentBean().getExpiryScannerClassNames().isEmpty()) {
-            return;
+    private String getInitParameter(ServletContextEvent servletContextEvent, String name) {
+        if (servletContextEvent == null) {
+            return null;
         }
-
-        LOGGER.fine("Expiry scanners were not enabled. Enabling default scanners: " + DEFAULT_EXPIRY_SCANNERS);
-        recoveryPropertyManager.getRecoveryEnvironmentBean().setExpiryScannerClassNames(DEFAULT_EXPIRY_SCANNERS);
+        return servletContextEvent.getServletContext().getInitParameter(name);
     }
 
 }
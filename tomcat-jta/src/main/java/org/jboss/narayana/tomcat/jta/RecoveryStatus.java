@@ -0,0 +1,39 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta;
+
+import org.jboss.narayana.tomcat.jta.internal.RecoveryHelperRegistry;
+
+/**
+ * Exposes the state of the Narayana recovery manager, e.g. for application health checks.
+ */
+public final class RecoveryStatus {
+
+    private RecoveryStatus() {
+        throw new UnsupportedOperationException(RecoveryStatus.class.getSimpleName() + " should not be instantiated.");
+    }
+
+    /**
+     * When the recovery manager is started in the background (see {@link TransactionLifecycleListener#setAsyncRecoveryStart})
+     * the transactional data sources can be used before recovery is running. This method tells when the recovery manager
+     * is up and all data sources created so far were registered for recovery.
+     *
+     * @return {@code true} if the recovery manager is running
+     */
+    public static boolean isRecoveryReady() {
+        return RecoveryHelperRegistry.isRecoveryReady();
+    }
+
+    /**
+     * When the recovery manager is started in the background, a failure to start it is only logged. This method tells
+     * whether it failed, in which case the transactional data sources created from then on are refused.
+     *
+     * @return {@code true} if the recovery manager failed to start
+     */
+    public static boolean isRecoveryFailed() {
+        return RecoveryHelperRegistry.isRecoveryFailed();
+    }
+
+}
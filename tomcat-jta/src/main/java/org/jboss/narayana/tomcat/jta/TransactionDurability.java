@@ -0,0 +1,88 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import com.arjuna.ats.arjuna.common.Uid;
+import org.jboss.narayana.tomcat.jta.internal.DurabilityRoutingObjectStore;
+
+/**
+ * Per transaction durability of the transaction log.
+ * <p>
+ * By default the log records of a transaction are synced to the object store before its resources are committed. A
+ * transaction which can tolerate a rare manual clean up of its resources, after a crash of the machine, can be marked as
+ * {@link Durability#RELAXED}: its log records are then written without a sync. This requires the relaxed durability to be
+ * enabled, see {@link TransactionLifecycleListener#setObjectStoreRelaxedDurability(boolean)}.
+ * <p>
+ * The registry is the one created by {@link TransactionSynchronizationRegistryFactory}.
+ */
+public final class TransactionDurability {
+
+    /**
+     * Durability classes of a transaction.
+     */
+    public enum Durability {
+        /**
+         * The log records are synced before the resources are committed.
+         */
+        DURABLE,
+        /**
+         * The log records are written without a sync.
+         */
+        RELAXED
+    }
+
+    private static final String RESOURCE_KEY = TransactionDurability.class.getName();
+
+    private TransactionDurability() {
+        throw new UnsupportedOperationException(TransactionDurability.class.getSimpleName() + " should not be instantiated.");
+    }
+
+    /**
+     * Mark the current transaction as {@link Durability#RELAXED}. It must be called before the transaction commits.
+     *
+     * @param registry the transaction synchronization registry
+     * @return {@code false} if the relaxed durability is not enabled, the transaction stays durable
+     * @throws IllegalStateException if there is no active transaction
+     */
+    public static boolean relax(TransactionSynchronizationRegistry registry) {
+        if (registry.getTransactionStatus() != Status.STATUS_ACTIVE) {
+            throw new IllegalStateException("No active transaction to relax");
+        }
+        if (registry.getResource(RESOURCE_KEY) == Durability.RELAXED) {
+            return true;
+        }
+
+        final Uid uid = (Uid) registry.getTransactionKey();
+        if (!DurabilityRoutingObjectStore.relax(uid)) {
+            return false;
+        }
+        registry.putResource(RESOURCE_KEY, Durability.RELAXED);
+        registry.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                DurabilityRoutingObjectStore.complete(uid);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @param registry the transaction synchronization registry
+     * @return the durability of the current transaction
+     * @throws IllegalStateException if there is no transaction
+     */
+    public static Durability getDurability(TransactionSynchronizationRegistry registry) {
+        return registry.getResource(RESOURCE_KEY) == Durability.RELAXED ? Durability.RELAXED : Durability.DURABLE;
+    }
+
+}
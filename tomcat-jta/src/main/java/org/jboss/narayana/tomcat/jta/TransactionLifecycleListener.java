@@ -4,45 +4,302 @@
  */
 package org.jboss.narayana.tomcat.jta;
 
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Locale;
 
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleEvent;
 import org.apache.catalina.LifecycleListener;
 
-import com.arjuna.ats.arjuna.common.CoreEnvironmentBeanException;
-import com.arjuna.ats.arjuna.common.arjPropertyManager;
-import com.arjuna.ats.arjuna.common.recoveryPropertyManager;
-import com.arjuna.ats.arjuna.coordinator.TransactionReaper;
-import com.arjuna.ats.arjuna.coordinator.TxControl;
-import com.arjuna.ats.arjuna.recovery.RecoveryManager;
 import com.arjuna.ats.internal.arjuna.recovery.AtomicActionRecoveryModule;
 import com.arjuna.ats.internal.arjuna.recovery.ExpiredTransactionStatusManagerScanner;
 import com.arjuna.ats.internal.jta.recovery.arjunacore.JTANodeNameXAResourceOrphanFilter;
 import com.arjuna.ats.internal.jta.recovery.arjunacore.JTATransactionLogXAResourceOrphanFilter;
 import com.arjuna.ats.internal.jta.recovery.arjunacore.XARecoveryModule;
-import com.arjuna.ats.jdbc.TransactionalDriver;
-import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.jboss.narayana.tomcat.jta.internal.BootstrapConfiguration;
+import org.jboss.narayana.tomcat.jta.internal.NarayanaBootstrap;
 
 public class TransactionLifecycleListener implements LifecycleListener {
 
-  private static final Logger LOGGER = Logger.getLogger(TransactionLifecycleListener.class.getSimpleName());
+  private boolean asyncRecoveryStart;
 
-  private static final String DEFAULT_NODE_IDENTIFIER = "1";
+  private long shutdownDrainTimeout;
 
-  private static final List<String> DEFAULT_RECOVERY_MODULES = Arrays.asList(AtomicActionRecoveryModule.class.getName(),
-          XARecoveryModule.class.getName());
+  private BootstrapConfiguration.ProcessIdentity processIdentity;
 
-  private static final List<String> DEFAULT_ORPHAN_FILTERS = Arrays
-          .asList(JTATransactionLogXAResourceOrphanFilter.class.getName(), JTANodeNameXAResourceOrphanFilter.class.getName());
+  private Boolean recoveryListener;
 
-  private static final List<String> DEFAULT_EXPIRY_SCANNERS = Collections.singletonList(ExpiredTransactionStatusManagerScanner.class.getName());
+  private BootstrapConfiguration.ObjectStoreType objectStoreType;
+
+  private String objectStoreDir;
+
+  private String objectStoreJdbcAccess;
+
+  private String objectStoreDataSource;
+
+  private int objectStoreHashedDirectories;
+
+  private boolean objectStoreAsyncRemoval;
+
+  private boolean objectStoreRelaxedDurability;
+
+  private String commitMarkableResources;
+
+  private int parallelRecoveryThreads;
+
+  private long parallelRecoveryTimeout;
+
+  /**
+   * @return {@code true} if the recovery manager is started in the background
+   */
+  public boolean isAsyncRecoveryStart() {
+      return asyncRecoveryStart;
+  }
+
+  /**
+   * If set to {@code true}, the transaction manager and the transaction reaper are started on the Tomcat start up thread,
+   * but the recovery manager is started on a background thread. Transactional data sources created in the meantime are
+   * registered for recovery once the recovery manager is up, see {@link RecoveryStatus#isRecoveryReady()}.
+   *
+   * @param asyncRecoveryStart whether to start the recovery manager in the background, {@code false} by default
+   */
+  public void setAsyncRecoveryStart(boolean asyncRecoveryStart) {
+      this.asyncRecoveryStart = asyncRecoveryStart;
+  }
+
+  /**
+   * @return how long, in milliseconds, the active transactions are given to complete on shutdown
+   */
+  public long getShutdownDrainTimeout() {
+      return shutdownDrainTimeout;
+  }
+
+  /**
+   * If set to a positive value, new transactions are refused on Lifecycle.BEFORE_STOP_EVENT and the active ones are given up
+   * to this many milliseconds to complete before the transaction services are stopped. The number of transactions which
+   * committed, rolled back or were left in doubt is logged.
+   *
+   * @param shutdownDrainTimeout drain timeout in milliseconds, {@code 0} (the default) not to wait
+   */
+  public void setShutdownDrainTimeout(long shutdownDrainTimeout) {
+      this.shutdownDrainTimeout = shutdownDrainTimeout;
+  }
+
+  /**
+   * @return the process identity mode, {@code null} if the one from the configuration file is used
+   */
+  public String getProcessIdentity() {
+      return processIdentity == null ? null : processIdentity.name().toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Select how the transaction service identifies its process:
+   * <ul>
+   * <li>{@code socket}: bind a loopback socket, as configured by {@code CoreEnvironmentBean.socketProcessIdPort}
+   * <li>{@code pid}: use the operating system process id combined with the JVM start time, no socket is opened
+   * </ul>
+   *
+   * @param processIdentity {@code socket} or {@code pid}; if not set, the configuration file is used
+   */
+  public void setProcessIdentity(String processIdentity) {
+      this.processIdentity = BootstrapConfiguration.ProcessIdentity.fromString(processIdentity);
+  }
+
+  /**
+   * @return whether the recovery manager listens on {@code RecoveryEnvironmentBean.recoveryPort}, {@code null} if the
+   *         configuration file is used
+   */
+  public Boolean getRecoveryListener() {
+      return recoveryListener;
+  }
+
+  /**
+   * Enable or disable the socket the recovery manager listens on. It can be disabled when recovery is only driven from
+   * within this JVM.
+   *
+   * @param recoveryListener whether to open the recovery listener; if not set, the configuration file is used
+   */
+  public void setRecoveryListener(boolean recoveryListener) {
+      this.recoveryListener = recoveryListener;
+  }
+
+  /**
+   * @return the object store engine, {@code null} if the one from the configuration file is used
+   */
+  public String getObjectStoreType() {
+      return objectStoreType == null ? null : objectStoreType.name().replace('_', '-').toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Select the object store engine of the transaction log, with a tuning preset for it:
+   * <ul>
+   * <li>{@code file}: one file per record, synced on every write
+   * <li>{@code hashed}: as {@code file}, with the records of each type spread over
+   * {@link #setObjectStoreHashedDirectories(int)} subdirectories. Records of the {@code file} layout are moved on start up.
+   * <li>{@code journal}: an append only journal with synced writes and deletes, requires the Artemis journal on the class
+   * path
+   * <li>{@code jdbc}: a database, accessed as configured by {@link #setObjectStoreJdbcAccess(String)}
+   * <li>{@code datasource}: a database, accessed through the pooled data source set by
+   * {@link #setObjectStoreDataSource(String)}, with the log writes of concurrent transactions batched together
+   * <li>{@code group-commit}: a preallocated log file, the log writes of concurrent transactions share one fsync
+   * </ul>
+   * The settings are validated on start up and the effective ones are logged.
+   *
+   * @param objectStoreType {@code file}, {@code hashed}, {@code journal}, {@code jdbc}, {@code datasource} or
+   *        {@code group-commit}; if not set, the configuration file is used
+   */
+  public void setObjectStoreType(String objectStoreType) {
+      this.objectStoreType = BootstrapConfiguration.ObjectStoreType.fromString(objectStoreType);
+  }
+
+  /**
+   * @return the object store directory, {@code null} if the one from the configuration file is used
+   */
+  public String getObjectStoreDir() {
+      return objectStoreDir;
+  }
+
+  /**
+   * @param objectStoreDir directory of the file and journal object stores; if not set, the configuration file is used
+   */
+  public void setObjectStoreDir(String objectStoreDir) {
+      this.objectStoreDir = objectStoreDir;
+  }
+
+  /**
+   * @return the JDBC access of the {@code jdbc} object store
+   */
+  public String getObjectStoreJdbcAccess() {
+      return objectStoreJdbcAccess;
+  }
+
+  /**
+   * @param objectStoreJdbcAccess JDBC access of the {@code jdbc} object store, in the format of
+   *        {@code ObjectStoreEnvironmentBean.jdbcAccess}
+   */
+  public void setObjectStoreJdbcAccess(String objectStoreJdbcAccess) {
+      this.objectStoreJdbcAccess = objectStoreJdbcAccess;
+  }
+
+  /**
+   * @return the JNDI name of the data source of the {@code datasource} object store
+   */
+  public String getObjectStoreDataSource() {
+      return objectStoreDataSource;
+  }
+
+  /**
+   * The data source must be a pooled, non-XA one, bound in a JNDI context visible when Tomcat starts. Names without a
+   * {@code java:} scheme are also looked up under {@code java:comp/env}.
+   *
+   * @param objectStoreDataSource JNDI name of the data source of the {@code datasource} object store
+   */
+  public void setObjectStoreDataSource(String objectStoreDataSource) {
+      this.objectStoreDataSource = objectStoreDataSource;
+  }
+
+  /**
+   * @return number of subdirectories of the {@code hashed} object store, {@code 0} if the configuration file is used
+   */
+  public int getObjectStoreHashedDirectories() {
+      return objectStoreHashedDirectories;
+  }
+
+  /**
+   * @param objectStoreHashedDirectories number of subdirectories the records of each type are spread over by the
+   *        {@code hashed} object store; if not set, {@code ObjectStoreEnvironmentBean.hashedDirectories} is used
+   */
+  public void setObjectStoreHashedDirectories(int objectStoreHashedDirectories) {
+      this.objectStoreHashedDirectories = objectStoreHashedDirectories;
+  }
+
+  /**
+   * @return {@code true} if the records of completed transactions are removed in the background
+   */
+  public boolean isObjectStoreAsyncRemoval() {
+      return objectStoreAsyncRemoval;
+  }
+
+  /**
+   * Remove the records of completed transactions on a background thread instead of the thread completing the transaction.
+   * Until they are removed, the records are hidden from recovery. After a crash, the records still queued are recovered
+   * again, which completes their transactions a second time.
+   *
+   * @param objectStoreAsyncRemoval {@code true} to remove the transaction log records in the background
+   */
+  public void setObjectStoreAsyncRemoval(boolean objectStoreAsyncRemoval) {
+      this.objectStoreAsyncRemoval = objectStoreAsyncRemoval;
+  }
+
+  /**
+   * @return {@code true} if transactions can be marked as relaxed, see {@link TransactionDurability}
+   */
+  public boolean isObjectStoreRelaxedDurability() {
+      return objectStoreRelaxedDurability;
+  }
+
+  /**
+   * Keep the log records of the transactions marked as relaxed with {@link TransactionDurability} in a file store which is
+   * not synced, under the object store directory. The other transactions use the selected object store.
+   *
+   * @param objectStoreRelaxedDurability {@code true} to allow relaxed transactions
+   */
+  public void setObjectStoreRelaxedDurability(boolean objectStoreRelaxedDurability) {
+      this.objectStoreRelaxedDurability = objectStoreRelaxedDurability;
+  }
+
+  /**
+   * @return comma separated JNDI names of the commit markable data sources
+   */
+  public String getCommitMarkableResources() {
+      return commitMarkableResources;
+  }
+
+  /**
+   * Non-XA data sources created by {@link TransactionalDataSourceFactory} with the {@code javax.sql.DataSource} type take
+   * part in transactions as commit markable resources. Their JNDI names must be known before the first transaction, and
+   * they must be bound in a JNDI context the recovery manager can look them up in.
+   *
+   * @param commitMarkableResources comma separated JNDI names of the commit markable data sources
+   */
+  public void setCommitMarkableResources(String commitMarkableResources) {
+      this.commitMarkableResources = commitMarkableResources;
+  }
+
+  /**
+   * @return maximum number of transactional data sources scanned at once during a recovery pass, {@code 0} if they are
+   *         scanned one after the other
+   */
+  public int getParallelRecoveryThreads() {
+      return parallelRecoveryThreads;
+  }
+
+  /**
+   * If set to a positive value, the transactional data sources are scanned for in-doubt transactions by up to this many
+   * threads at once at the start of each recovery pass, so that a slow or unreachable database does not delay the recovery
+   * of the others. The durations of the recovery passes are published as the {@code RecoveryStatistics} MBean.
+   *
+   * @param parallelRecoveryThreads number of scan threads, {@code 0} (the default) to scan one data source after the other
+   */
+  public void setParallelRecoveryThreads(int parallelRecoveryThreads) {
+      this.parallelRecoveryThreads = parallelRecoveryThreads;
+  }
+
+  /**
+   * @return how long, in milliseconds, the scan of a data source may take during a parallel recovery pass
+   */
+  public long getParallelRecoveryTimeout() {
+      return parallelRecoveryTimeout;
+  }
+
+  /**
+   * A data source which could not be scanned in time is left out of the recovery pass, and scanned again on the next one.
+   *
+   * @param parallelRecoveryTimeout scan timeout of a data source in milliseconds, {@code 0} (the default) for the
+   *        {@code recoveryConnectTimeoutMillis} and {@code recoveryTimeoutMillis} of the data source only
+   */
+  public void setParallelRecoveryTimeout(long parallelRecoveryTimeout) {
+      this.parallelRecoveryTimeout = parallelRecoveryTimeout;
+  }
 
     /**
      * Lifecycle.BEFORE_START_EVENT:
@@ -61,11 +318,19 @@ public class TransactionLifecycleListener implements LifecycleListener {
      * <li>Expiry scanners: {@link ExpiredTransactionStatusManagerScanner}
      * </ul>
      * <p>
-     * After setup recovery manager, transaction status manager, and transaction reaper are started.
+     * After setup recovery manager, transaction status manager, and transaction reaper are started. If
+     * {@link #setAsyncRecoveryStart(boolean)} is enabled, the recovery manager is started on a background thread after the
+     * transaction status manager and the transaction reaper.
+     * <p>
+     * The services are shared with the {@link NarayanaJtaServletContextListener}s of the deployed web applications. If they
+     * are already running, this listener only registers itself as one more user.
      * <p>
      * Lifecycle.BEFORE_STOP_EVENT:
      * <p>
-     * Destroying Narayana JTA services.
+     * Destroying Narayana JTA services, unless they are still used by a web application.
+     * <p>
+     * If {@link #setShutdownDrainTimeout(long)} is set, new transactions are refused and the active ones are given time to
+     * complete.
      * <p>
      * First, stop recovery manager, transaction status manager, and transaction reaper. Then, remove transactional driver from
      * jdbc driver manager's list.
@@ -76,81 +341,24 @@ public class TransactionLifecycleListener implements LifecycleListener {
   @Override
   public void lifecycleEvent(LifecycleEvent event) {
       if (Lifecycle.BEFORE_START_EVENT.equals(event.getType())) {
-          LOGGER.fine("Initializing Narayana");
-          initNodeIdentifier();
-          initRecoveryModules();
-          initOrphanFilters();
-          initExpiryScanners();
-          RecoveryManager.manager();
-          TxControl.enable();
-          TransactionReaper.instantiate();
+          final BootstrapConfiguration configuration = new BootstrapConfiguration();
+          configuration.setAsyncRecoveryStart(asyncRecoveryStart);
+          configuration.setProcessIdentity(processIdentity);
+          configuration.setRecoveryListener(recoveryListener);
+          configuration.setObjectStoreType(objectStoreType);
+          configuration.setObjectStoreDir(objectStoreDir);
+          configuration.setObjectStoreJdbcAccess(objectStoreJdbcAccess);
+          configuration.setObjectStoreDataSource(objectStoreDataSource);
+          configuration.setObjectStoreHashedDirectories(objectStoreHashedDirectories);
+          configuration.setObjectStoreAsyncRemoval(objectStoreAsyncRemoval);
+          configuration.setObjectStoreRelaxedDurability(objectStoreRelaxedDurability);
+          configuration.setCommitMarkableResources(BootstrapConfiguration.parseList(commitMarkableResources));
+          configuration.setParallelRecoveryThreads(parallelRecoveryThreads);
+          configuration.setParallelRecoveryTimeoutMillis(parallelRecoveryTimeout);
+          NarayanaBootstrap.acquire(this, configuration);
       } else if (Lifecycle.BEFORE_STOP_EVENT.equals(event.getType())) {
-          LOGGER.fine("Disabling Narayana");
-          TransactionReaper.terminate(false);
-          TxControl.disable();
-          RecoveryManager.manager().terminate();
-          Collections.list(DriverManager.getDrivers()).stream().filter(d -> d instanceof TransactionalDriver)
-              .forEach(d -> {
-                  try {
-                      DriverManager.deregisterDriver(d);
-                  } catch (SQLException e) {
-                      LOGGER.log(Level.WARNING, e.getMessage(), e);
-                  }
-              });
-      }
-  }
-
-  /**
-   * If node identifier wasn't set by property manager, then set default {@link #DEFAULT_NODE_IDENTIFIER}.
-   */
-  private void initNodeIdentifier() {
-      if (arjPropertyManager.getCoreEnvironmentBean().getNodeIdentifier() == null) {
-          LOGGER.warning("Node identifier was not set. Setting it to the default value: " + DEFAULT_NODE_IDENTIFIER);
-          try {
-              arjPropertyManager.getCoreEnvironmentBean().setNodeIdentifier(DEFAULT_NODE_IDENTIFIER);
-          } catch (CoreEnvironmentBeanException e) {
-              LOGGER.log(Level.WARNING, e.getMessage(), e);
-          }
-      }
-
-      jtaPropertyManager.getJTAEnvironmentBean()
-              .setXaRecoveryNodes(Collections.singletonList(arjPropertyManager.getCoreEnvironmentBean().getNodeIdentifier()));
-  }
-
-  /**
-   * If recovery modules were not set by property manager, then set defaults {@link #DEFAULT_RECOVERY_MODULES}.
-   */
-  private void initRecoveryModules() {
-      if (!recoveryPropertyManager.getRecoveryEnvironmentBean().getRecoveryModuleClassNames().isEmpty()) {
-          return;
-      }
-
-      LOGGER.fine("Recovery modules were not enabled. Enabling default modules: " + DEFAULT_RECOVERY_MODULES);
-      recoveryPropertyManager.getRecoveryEnvironmentBean().setRecoveryModuleClassNames(DEFAULT_RECOVERY_MODULES);
-  }
-
-  /**
-   * If orphan filters were not set by property manager, then set defaults {@link #DEFAULT_ORPHAN_FILTERS}.
-   */
-  private void initOrphanFilters() {
-      if (!jtaPropertyManager.getJTAEnvironmentBean().getXaResourceOrphanFilterClassNames().isEmpty()) {
-          return;
+          NarayanaBootstrap.release(this, shutdownDrainTimeout);
       }
-
-      LOGGER.fine("Orphan filters were not enabled. Enabling default filters: " + DEFAULT_ORPHAN_FILTERS);
-      jtaPropertyManager.getJTAEnvironmentBean().setXaResourceOrphanFilterClassNames(DEFAULT_ORPHAN_FILTERS);
-  }
-
-  /**
-   * If expiry scanners were not set by property manager, then set defaults {@link #DEFAULT_EXPIRY_SCANNERS}.
-   */
-  private void initExpiryScanners() {
-      if (!recoveryPropertyManager.getRecoveryEnvironmentBean().getExpiryScannerClassNames().isEmpty()) {
-          return;
-      }
-
-      LOGGER.fine("Expiry scanners were not enabled. Enabling default scanners: " + DEFAULT_EXPIRY_SCANNERS);
-      recoveryPropertyManager.getRecoveryEnvironmentBean().setExpiryScannerClassNames(DEFAULT_EXPIRY_SCANNERS);
   }
 
 }
@@ -7,20 +7,35 @@ package org.jboss.narayana.tomcat.jta;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.jboss.narayana.tomcat.jta.internal.SharedDataSource;
 
 import javax.naming.Context;
 import javax.naming.Name;
 import javax.naming.RefAddr;
 import javax.naming.Reference;
 import javax.naming.spi.ObjectFactory;
+import javax.sql.DataSource;
 import javax.sql.XADataSource;
 import javax.transaction.TransactionManager;
 import javax.transaction.TransactionSynchronizationRegistry;
+import java.lang.ref.WeakReference;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
+ * Object factory of the transactional data sources.
+ * <p>
+ * The pooled data sources are shared: a reference with the same class and addresses as one already resolved in the same
+ * naming context gets the same pool instead of a new one. The pool is closed, and its recovery helper removed from the
+ * recovery manager, once it has been closed as many times as it was handed out.
+ *
  * @author <a href="mailto:zfeng@redhat.com">Zheng Feng</a>
  */
 public class TransactionalDataSourceFactory implements ObjectFactory {
@@ -29,8 +44,16 @@ public class TransactionalDataSourceFactory implements ObjectFactory {
 
     private static final String PROP_TRANSACTION_MANAGER = "transactionManager";
     private static final String PROP_XA_DATASOURCE = "xaDataSource";
+    private static final String PROP_DATASOURCE = "dataSource";
     private static final String PROP_TRANSACTION_SYNCHRONIZATION_REGISTRY = "transactionSynchronizationRegistry";
 
+    /**
+     * Pooled data sources created by the factory, until they are closed. A pool being created is mapped as soon as its
+     * creation starts, so that the same reference resolved meanwhile waits for it instead of creating another pool.
+     */
+    private static final ConcurrentMap<CacheKey, CompletableFuture<SharedDataSource>> DATA_SOURCES =
+            new ConcurrentHashMap<>();
+
     @Override
     public Object getObjectInstance(Object obj, Name name, Context context, Hashtable<?, ?> environment) throws Exception {
         if (obj == null || !(obj instanceof Reference)) {
@@ -38,8 +61,10 @@ public class TransactionalDataSourceFactory implements ObjectFactory {
         }
 
         final Reference ref = (Reference) obj;
-        if (!"javax.sql.XADataSource".equals(ref.getClassName())) {
-            log.fatal(String.format("The expected type of datasource was javax.sql.XADataSource and not %s.", ref.getClassName()));
+        final boolean commitMarkable = "javax.sql.DataSource".equals(ref.getClassName());
+        if (!commitMarkable && !"javax.sql.XADataSource".equals(ref.getClassName())) {
+            log.fatal(String.format("The expected type of datasource was javax.sql.XADataSource or javax.sql.DataSource and not %s.",
+                    ref.getClassName()));
             return null;
         }
 
@@ -54,10 +79,75 @@ public class TransactionalDataSourceFactory implements ObjectFactory {
         }
 
         final TransactionManager transactionManager = (TransactionManager) getReferenceObject(ref, context, PROP_TRANSACTION_MANAGER);
-        final XADataSource xaDataSource = (XADataSource) getReferenceObject(ref, context, PROP_XA_DATASOURCE);
         final TransactionSynchronizationRegistry tsr = (TransactionSynchronizationRegistry) getReferenceObject(ref, context, PROP_TRANSACTION_SYNCHRONIZATION_REGISTRY);
 
-        return PoolingDataSourceFactory.createPoolingDataSource(transactionManager, xaDataSource, tsr, properties);
+        if (commitMarkable) {
+            // a non-XA data source taking part in transactions as a commit markable resource
+            final DataSource dataSource = (DataSource) getReferenceObject(ref, context, PROP_DATASOURCE);
+            return PoolingDataSourceFactory.createCommitMarkableDataSource(transactionManager, dataSource, tsr, properties);
+        }
+
+        final XADataSource xaDataSource = (XADataSource) getReferenceObject(ref, context, PROP_XA_DATASOURCE);
+
+        final CacheKey key = new CacheKey(getCanonicalReference(ref), context);
+        while (true) {
+            final CompletableFuture<SharedDataSource> created = new CompletableFuture<>();
+            final CompletableFuture<SharedDataSource> cached = DATA_SOURCES.putIfAbsent(key, created);
+            if (cached == null) {
+                return createSharedDataSource(key, created, transactionManager, xaDataSource, tsr, properties);
+            }
+            final SharedDataSource shared;
+            try {
+                shared = cached.join();
+            } catch (CompletionException e) {
+                // the creation failed and was unmapped, try again
+                continue;
+            }
+            if (shared != null && shared.retain()) {
+                log.debug("Sharing the data source of " + key.reference);
+                return shared;
+            }
+            DATA_SOURCES.remove(key, cached);
+        }
+    }
+
+    /**
+     * Create the pooled data source of a reference, outside of any lock of the map, and complete its mapping.
+     */
+    private static DataSource createSharedDataSource(CacheKey key, CompletableFuture<SharedDataSource> created,
+            TransactionManager transactionManager, XADataSource xaDataSource, TransactionSynchronizationRegistry tsr,
+            Properties properties) {
+        final DataSource dataSource;
+        try {
+            dataSource = PoolingDataSourceFactory.createPoolingDataSource(transactionManager, xaDataSource, tsr,
+                    properties);
+        } catch (RuntimeException | Error e) {
+            DATA_SOURCES.remove(key, created);
+            created.completeExceptionally(e);
+            throw e;
+        }
+        if (!(dataSource instanceof SharedDataSource)) {
+            DATA_SOURCES.remove(key, created);
+            created.complete(null);
+            return dataSource;
+        }
+        final SharedDataSource shared = (SharedDataSource) dataSource;
+        shared.addCloseListener(() -> DATA_SOURCES.remove(key, created));
+        created.complete(shared);
+        return shared;
+    }
+
+    /**
+     * @return the canonical form of the reference, equal for references with the same class and addresses in any order
+     */
+    private static String getCanonicalReference(Reference ref) {
+        final Map<String, String> addresses = new TreeMap<>();
+        final Enumeration<RefAddr> iter = ref.getAll();
+        while (iter.hasMoreElements()) {
+            final RefAddr ra = iter.nextElement();
+            addresses.put(ra.getType(), String.valueOf(ra.getContent()));
+        }
+        return ref.getClassName() + addresses;
     }
 
     private Object getReferenceObject(Reference ref, Context context, String prop) throws Exception {
@@ -68,4 +158,45 @@ public class TransactionalDataSourceFactory implements ObjectFactory {
             return null;
         }
     }
+
+    /**
+     * Key of a pooled data source: the canonical reference, and the naming context its names are resolved in, compared
+     * by identity. The same names may be bound to other objects in another context, while the objects looked up in a
+     * context are not necessarily the same instances from one lookup to the next. The context is only weakly referenced,
+     * so that the key of a pool which is never closed does not keep the context, and the class loader of its web
+     * application, from being collected.
+     */
+    private static final class CacheKey {
+
+        private final String reference;
+
+        private final WeakReference<Context> context;
+
+        private final int hash;
+
+        CacheKey(String reference, Context context) {
+            this.reference = reference;
+            this.context = new WeakReference<>(context);
+            this.hash = reference.hashCode() * 31 + System.identityHashCode(context);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CacheKey)) {
+                return false;
+            }
+            final CacheKey other = (CacheKey) obj;
+            final Context resolvedIn = context.get();
+            return hash == other.hash && reference.equals(other.reference) && resolvedIn != null
+                    && resolvedIn == other.context.get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
 }
@@ -0,0 +1,36 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+/**
+ * Management interface of the {@link AsyncRemovalObjectStore}.
+ */
+public interface AsyncRemovalMXBean {
+
+    /**
+     * @return number of records waiting to be removed
+     */
+    int getQueueDepth();
+
+    /**
+     * @return largest number of records waiting to be removed so far
+     */
+    int getMaxQueueDepth();
+
+    /**
+     * @return number of records removed in the background
+     */
+    long getRemovedCount();
+
+    /**
+     * @return number of records removed on the calling thread because the queue was full
+     */
+    long getSynchronousRemovalCount();
+
+    /**
+     * @return number of background removals which failed, the records are left to recovery
+     */
+    long getFailedCount();
+}
@@ -0,0 +1,464 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.io.IOException;
+import java.io.SyncFailedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.exceptions.ObjectStoreException;
+import com.arjuna.ats.arjuna.objectstore.ObjectStoreAPI;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+import com.arjuna.ats.arjuna.objectstore.StateType;
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.arjuna.state.OutputObjectState;
+import com.arjuna.ats.internal.arjuna.common.UidHelper;
+import com.arjuna.ats.internal.arjuna.objectstore.ShadowNoFileLockStore;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Object store removing records on a background thread, in front of another object store.
+ * <p>
+ * A removal only records a tombstone for the record and queues it, so the thread completing a transaction does not wait
+ * for the delete. Until the record is actually deleted, the tombstone hides it from reads, state queries and recovery
+ * scans, so that a completed transaction is not seen again. Writing the record again cancels its pending removal. If the
+ * queue is full, records are removed on the calling thread.
+ * <p>
+ * The tombstones are only kept in memory: after a crash, the records which were still queued are found by recovery, which
+ * completes the already completed transactions a second time.
+ * <p>
+ * The queue depth is published as an {@link AsyncRemovalMXBean}.
+ */
+public class AsyncRemovalObjectStore implements ObjectStoreAPI, AsyncRemovalMXBean {
+
+    public static final String OBJECT_NAME_PREFIX = "org.jboss.narayana.tomcat:type=AsyncRemoval,name=";
+
+    public static final int MAX_QUEUE_DEPTH = 10000;
+
+    private static final Log log = LogFactory.getLog(AsyncRemovalObjectStore.class);
+
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private static volatile String delegateType = ShadowNoFileLockStore.class.getName();
+
+    private final ObjectStoreAPI delegate;
+
+    private final Map<String, Removal> tombstones = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<Removal> queue = new LinkedBlockingQueue<>();
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+    private final AtomicLong removedCount = new AtomicLong();
+
+    private final AtomicLong synchronousRemovalCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private volatile boolean running;
+
+    private Thread remover;
+
+    /**
+     * Create the store in front of a store of the type set with {@link #setDelegateType(String)}.
+     *
+     * @param environmentBean settings of the store, passed on to the delegate
+     * @throws ObjectStoreException if the delegate cannot be created
+     */
+    public AsyncRemovalObjectStore(ObjectStoreEnvironmentBean environmentBean) throws ObjectStoreException {
+        this(createDelegate(environmentBean));
+    }
+
+    /**
+     * @param delegate store keeping the records
+     */
+    public AsyncRemovalObjectStore(ObjectStoreAPI delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @param type class name of the object store created behind this one, {@link ShadowNoFileLockStore} by default
+     */
+    public static void setDelegateType(String type) {
+        delegateType = type;
+    }
+
+    /**
+     * @return class name of the object store created behind this one
+     */
+    public static String getDelegateType() {
+        return delegateType;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (remover != null) {
+            return;
+        }
+        delegate.start();
+        running = true;
+        remover = new Thread(this::removeLoop, "narayana-async-removal");
+        remover.setDaemon(true);
+        remover.start();
+        registerMBean();
+    }
+
+    /**
+     * Remove the queued records, then stop the delegate.
+     */
+    @Override
+    public synchronized void stop() {
+        if (remover == null) {
+            return;
+        }
+        running = false;
+        try {
+            remover.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        remover = null;
+        unregisterMBean();
+        delegate.stop();
+    }
+
+    @Override
+    public boolean fullCommitNeeded() {
+        return delegate.fullCommitNeeded();
+    }
+
+    @Override
+    public void sync() throws SyncFailedException, ObjectStoreException {
+        delegate.sync();
+    }
+
+    @Override
+    public String getStoreName() {
+        return delegate.getStoreName();
+    }
+
+    @Override
+    public boolean isType(Uid uid, String typeName, int stateType) throws ObjectStoreException {
+        return !isRemoved(uid, typeName, stateType) && delegate.isType(uid, typeName, stateType);
+    }
+
+    @Override
+    public int currentState(Uid uid, String typeName) throws ObjectStoreException {
+        final int state = delegate.currentState(uid, typeName);
+        final boolean committedRemoved = isRemoved(uid, typeName, StateType.OS_ORIGINAL);
+        final boolean uncommittedRemoved = isRemoved(uid, typeName, StateType.OS_SHADOW);
+        if (!committedRemoved && !uncommittedRemoved) {
+            return state;
+        }
+
+        final boolean hidden = state == StateStatus.OS_COMMITTED_HIDDEN || state == StateStatus.OS_UNCOMMITTED_HIDDEN;
+        if (!uncommittedRemoved && delegate.isType(uid, typeName, StateType.OS_SHADOW)) {
+            return hidden ? StateStatus.OS_UNCOMMITTED_HIDDEN : StateStatus.OS_UNCOMMITTED;
+        } else if (!committedRemoved && delegate.isType(uid, typeName, StateType.OS_ORIGINAL)) {
+            return hidden ? StateStatus.OS_COMMITTED_HIDDEN : StateStatus.OS_COMMITTED;
+        }
+        return StateStatus.OS_UNKNOWN;
+    }
+
+    @Override
+    public boolean commit_state(Uid uid, String typeName) throws ObjectStoreException {
+        if (isRemoved(uid, typeName, StateType.OS_SHADOW)) {
+            return false;
+        }
+        final String key = key(uid, typeName, StateType.OS_ORIGINAL);
+        final Removal cancelled = cancelRemoval(key);
+        try {
+            return delegate.commit_state(uid, typeName);
+        } finally {
+            if (cancelled != null) {
+                tombstones.remove(key, cancelled);
+            }
+        }
+    }
+
+    @Override
+    public boolean hide_state(Uid uid, String typeName) throws ObjectStoreException {
+        return delegate.hide_state(uid, typeName);
+    }
+
+    @Override
+    public boolean reveal_state(Uid uid, String typeName) throws ObjectStoreException {
+        return delegate.reveal_state(uid, typeName);
+    }
+
+    @Override
+    public InputObjectState read_committed(Uid uid, String typeName) throws ObjectStoreException {
+        return isRemoved(uid, typeName, StateType.OS_ORIGINAL) ? null : delegate.read_committed(uid, typeName);
+    }
+
+    @Override
+    public InputObjectState read_uncommitted(Uid uid, String typeName) throws ObjectStoreException {
+        return isRemoved(uid, typeName, StateType.OS_SHADOW) ? null : delegate.read_uncommitted(uid, typeName);
+    }
+
+    @Override
+    public boolean remove_committed(Uid uid, String typeName) throws ObjectStoreException {
+        return remove(uid, typeName, StateType.OS_ORIGINAL);
+    }
+
+    @Override
+    public boolean remove_uncommitted(Uid uid, String typeName) throws ObjectStoreException {
+        return remove(uid, typeName, StateType.OS_SHADOW);
+    }
+
+    @Override
+    public boolean write_committed(Uid uid, String typeName, OutputObjectState state) throws ObjectStoreException {
+        final String key = key(uid, typeName, StateType.OS_ORIGINAL);
+        final Removal cancelled = cancelRemoval(key);
+        try {
+            return delegate.write_committed(uid, typeName, state);
+        } finally {
+            if (cancelled != null) {
+                tombstones.remove(key, cancelled);
+            }
+        }
+    }
+
+    @Override
+    public boolean write_uncommitted(Uid uid, String typeName, OutputObjectState state) throws ObjectStoreException {
+        final String key = key(uid, typeName, StateType.OS_SHADOW);
+        final Removal cancelled = cancelRemoval(key);
+        try {
+            return delegate.write_uncommitted(uid, typeName, state);
+        } finally {
+            if (cancelled != null) {
+                tombstones.remove(key, cancelled);
+            }
+        }
+    }
+
+    @Override
+    public boolean allObjUids(String typeName, InputObjectState state) throws ObjectStoreException {
+        return allObjUids(typeName, state, StateStatus.OS_UNKNOWN);
+    }
+
+    @Override
+    public boolean allObjUids(String typeName, InputObjectState state, int match) throws ObjectStoreException {
+        final InputObjectState all = new InputObjectState();
+        if (!delegate.allObjUids(typeName, all, match)) {
+            return false;
+        }
+        if (tombstones.isEmpty()) {
+            state.copy(all);
+            return true;
+        }
+
+        final OutputObjectState visible = new OutputObjectState();
+        try {
+            for (Uid uid = UidHelper.unpackFrom(all); uid.notEquals(Uid.nullUid()); uid = UidHelper.unpackFrom(all)) {
+                if (isRemoved(uid, typeName, StateType.OS_ORIGINAL) || isRemoved(uid, typeName, StateType.OS_SHADOW)) {
+                    final int current = currentState(uid, typeName);
+                    if (current == StateStatus.OS_UNKNOWN || (match != StateStatus.OS_UNKNOWN && current != match)) {
+                        continue;
+                    }
+                }
+                UidHelper.packInto(uid, visible);
+            }
+            UidHelper.packInto(Uid.nullUid(), visible);
+        } catch (IOException e) {
+            throw new ObjectStoreException("Cannot filter the Uids of " + typeName, e);
+        }
+        state.setBuffer(visible.buffer());
+        return true;
+    }
+
+    @Override
+    public boolean allTypes(InputObjectState state) throws ObjectStoreException {
+        return delegate.allTypes(state);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    @Override
+    public long getRemovedCount() {
+        return removedCount.get();
+    }
+
+    @Override
+    public long getSynchronousRemovalCount() {
+        return synchronousRemovalCount.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Record a tombstone and queue the removal, or remove the record right away if the queue is full or the store is not
+     * running.
+     *
+     * @return {@code false} if the record is already waiting to be removed
+     */
+    private boolean remove(Uid uid, String typeName, int stateType) throws ObjectStoreException {
+        if (!running || queueDepth.get() >= MAX_QUEUE_DEPTH) {
+            synchronousRemovalCount.incrementAndGet();
+            return removeNow(uid, typeName, stateType);
+        }
+
+        final String key = key(uid, typeName, stateType);
+        final Removal removal = new Removal(uid, typeName, stateType);
+        final Removal existing = tombstones.putIfAbsent(key, removal);
+        // a cancelled removal belongs to a write in progress, the record written is removed again
+        if (existing != null && (existing.state.get() != Removal.CANCELLED || !tombstones.replace(key, existing, removal))) {
+            return false;
+        }
+        maxQueueDepth.accumulateAndGet(queueDepth.incrementAndGet(), Math::max);
+        queue.add(removal);
+        return true;
+    }
+
+    /**
+     * Cancel the pending removal of a record about to be written, waiting for it if the record is being removed. The
+     * tombstone is left in place, to hide the removed state until the caller has written the new one.
+     *
+     * @return the cancelled removal, to be dropped by the caller once the record is written
+     */
+    private Removal cancelRemoval(String key) throws ObjectStoreException {
+        Removal removal = tombstones.get(key);
+        while (removal != null && !removal.state.compareAndSet(Removal.QUEUED, Removal.CANCELLED)) {
+            if (removal.state.get() == Removal.CANCELLED) {
+                return removal;
+            }
+            try {
+                removal.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ObjectStoreException("Interrupted while waiting for the removal of " + removal.uid, e);
+            }
+            removal = tombstones.get(key);
+        }
+        return removal;
+    }
+
+    private boolean removeNow(Uid uid, String typeName, int stateType) throws ObjectStoreException {
+        return stateType == StateType.OS_SHADOW ? delegate.remove_uncommitted(uid, typeName)
+                : delegate.remove_committed(uid, typeName);
+    }
+
+    private void removeLoop() {
+        final List<Removal> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                final Removal first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                running = false;
+                continue;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+            for (Removal removal : batch) {
+                removeQueued(removal);
+                queueDepth.decrementAndGet();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Remove a queued record, unless it was written again since, and drop its tombstone.
+     */
+    private void removeQueued(Removal removal) {
+        if (!removal.state.compareAndSet(Removal.QUEUED, Removal.REMOVING)) {
+            return;
+        }
+        try {
+            if (!removeNow(removal.uid, removal.typeName, removal.stateType)) {
+                log.debug("The record " + removal.uid + " of " + removal.typeName + " was already removed");
+            }
+            removedCount.incrementAndGet();
+        } catch (ObjectStoreException | RuntimeException e) {
+            failedCount.incrementAndGet();
+            log.warn("Failed to remove the record " + removal.uid + " of " + removal.typeName
+                    + ", it is left to recovery", e);
+        } finally {
+            tombstones.remove(key(removal.uid, removal.typeName, removal.stateType), removal);
+            removal.done.countDown();
+        }
+    }
+
+    private boolean isRemoved(Uid uid, String typeName, int stateType) {
+        return !tombstones.isEmpty() && tombstones.containsKey(key(uid, typeName, stateType));
+    }
+
+    private static String key(Uid uid, String typeName, int stateType) {
+        return uid.stringForm() + '/' + stateType + (typeName.startsWith("/") ? "" : "/") + typeName;
+    }
+
+    private static ObjectStoreAPI createDelegate(ObjectStoreEnvironmentBean environmentBean) throws ObjectStoreException {
+        try {
+            return (ObjectStoreAPI) Class.forName(delegateType).getConstructor(ObjectStoreEnvironmentBean.class)
+                    .newInstance(environmentBean);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new ObjectStoreException("Cannot create the object store " + delegateType, e);
+        }
+    }
+
+    private void registerMBean() {
+        MBeanSupport.register(MBeanSupport.objectName(OBJECT_NAME_PREFIX, getStoreName()), this, AsyncRemovalMXBean.class);
+    }
+
+    private void unregisterMBean() {
+        MBeanSupport.unregister(MBeanSupport.objectName(OBJECT_NAME_PREFIX, getStoreName()));
+    }
+
+    /**
+     * Pending removal of a record, also its tombstone.
+     */
+    private static final class Removal {
+
+        static final int QUEUED = 0;
+
+        static final int REMOVING = 1;
+
+        static final int CANCELLED = 2;
+
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final Uid uid;
+
+        final String typeName;
+
+        final int stateType;
+
+        Removal(Uid uid, String typeName, int stateType) {
+            this.uid = uid;
+            this.typeName = typeName;
+            this.stateType = stateType;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.dbcp.dbcp2.PoolableConnection;
+import org.apache.tomcat.dbcp.dbcp2.PoolableConnectionFactory;
+import org.apache.tomcat.dbcp.pool2.ObjectPool;
+import org.apache.tomcat.dbcp.pool2.PooledObject;
+
+/**
+ * Pool of connections made by a DBCP {@link PoolableConnectionFactory}, keeping them in a {@link ConcurrentBag}.
+ * <p>
+ * Borrowing and giving back an idle connection take no lock. New connections are made by the borrowing threads when
+ * nothing is idle and the pool is not full. Threads waiting for a full pool check regularly whether a slot was freed by a
+ * connection being destroyed.
+ */
+final class BagConnectionPool implements ObjectPool<PoolableConnection> {
+
+    private static final Log log = LogFactory.getLog(BagConnectionPool.class);
+
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final ConcurrentBag<PooledObject<PoolableConnection>> bag = new ConcurrentBag<>();
+
+    private final Map<PoolableConnection, ConcurrentBag.Entry<PooledObject<PoolableConnection>>> entries =
+            new ConcurrentHashMap<>();
+
+    private final AtomicInteger totalCount = new AtomicInteger();
+
+    private final PoolableConnectionFactory factory;
+
+    private final int maxTotal;
+
+    private final long maxWaitNanos;
+
+    private final boolean testOnBorrow;
+
+    private volatile boolean closed;
+
+    /**
+     * @param factory factory of the pooled connections, whose pool is set to this one
+     * @param maxTotal maximum number of connections, negative for no limit
+     * @param maxWait maximum time to wait for a connection, negative to wait indefinitely
+     * @param testOnBorrow whether idle connections are validated before being lent
+     */
+    BagConnectionPool(PoolableConnectionFactory factory, int maxTotal, Duration maxWait, boolean testOnBorrow) {
+        this.factory = factory;
+        this.maxTotal = maxTotal < 0 ? Integer.MAX_VALUE : maxTotal;
+        this.maxWaitNanos = maxWait.isNegative() ? -1 : maxWait.toNanos();
+        this.testOnBorrow = testOnBorrow;
+        factory.setPool(this);
+    }
+
+    @Override
+    public PoolableConnection borrowObject() throws Exception {
+        final long deadline = System.nanoTime() + maxWaitNanos;
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("Pool not open");
+            }
+            ConcurrentBag.Entry<PooledObject<PoolableConnection>> entry = bag.borrow(0, TimeUnit.NANOSECONDS);
+            if (entry == null) {
+                entry = create(true);
+            }
+            if (entry == null) {
+                final long remaining = maxWaitNanos < 0 ? WAIT_SLICE_NANOS : deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new NoSuchElementException("Timeout waiting for idle object, borrowMaxWait: "
+                            + Duration.ofNanos(maxWaitNanos));
+                }
+                entry = bag.borrow(Math.min(remaining, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+                if (entry == null) {
+                    continue;
+                }
+            }
+            if (activate(entry)) {
+                return entry.getItem().getObject();
+            }
+        }
+    }
+
+    @Override
+    public void returnObject(PoolableConnection connection) throws Exception {
+        final ConcurrentBag.Entry<PooledObject<PoolableConnection>> entry = getEntry(connection);
+        if (closed) {
+            destroy(entry);
+            return;
+        }
+        try {
+            factory.passivateObject(entry.getItem());
+        } catch (Exception e) {
+            destroy(entry);
+            return;
+        }
+        entry.getItem().deallocate();
+        bag.requite(entry);
+    }
+
+    @Override
+    public void invalidateObject(PoolableConnection connection) throws Exception {
+        destroy(getEntry(connection));
+    }
+
+    @Override
+    public void addObject() throws Exception {
+        final ConcurrentBag.Entry<PooledObject<PoolableConnection>> entry = create(false);
+        if (entry == null) {
+            throw new IllegalStateException("The pool is full");
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (ConcurrentBag.Entry<PooledObject<PoolableConnection>> entry : bag.claimIdle()) {
+            destroy(entry);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        clear();
+    }
+
+    @Override
+    public int getNumActive() {
+        return totalCount.get() - bag.getIdleCount();
+    }
+
+    @Override
+    public int getNumIdle() {
+        return bag.getIdleCount();
+    }
+
+    /**
+     * @return number of threads waiting for a connection
+     */
+    int getNumWaiters() {
+        return bag.getWaitingThreadCount();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Make a connection if the pool is not full.
+     *
+     * @param inUse whether the connection is lent to the caller, rather than left idle
+     * @return the connection, {@code null} if the pool is full
+     */
+    private ConcurrentBag.Entry<PooledObject<PoolableConnection>> create(boolean inUse) throws Exception {
+        int count;
+        do {
+            count = totalCount.get();
+            if (count >= maxTotal) {
+                return null;
+            }
+        } while (!totalCount.compareAndSet(count, count + 1));
+
+        final PooledObject<PoolableConnection> pooledObject;
+        try {
+            pooledObject = factory.makeObject();
+        } catch (Exception e) {
+            totalCount.decrementAndGet();
+            throw e;
+        }
+        final ConcurrentBag.Entry<PooledObject<PoolableConnection>> entry = new ConcurrentBag.Entry<>(pooledObject, inUse);
+        entries.put(pooledObject.getObject(), entry);
+        bag.add(entry);
+        return entry;
+    }
+
+    /**
+     * Prepare a claimed connection for being lent, destroying it if it is not usable.
+     */
+    private boolean activate(ConcurrentBag.Entry<PooledObject<PoolableConnection>> entry) {
+        final PooledObject<PoolableConnection> pooledObject = entry.getItem();
+        try {
+            factory.activateObject(pooledObject);
+            if (testOnBorrow && !factory.validateObject(pooledObject)) {
+                destroy(entry);
+                return false;
+            }
+        } catch (Exception e) {
+            destroy(entry);
+            return false;
+        }
+        pooledObject.allocate();
+        return true;
+    }
+
+    private void destroy(ConcurrentBag.Entry<PooledObject<PoolableConnection>> entry) {
+        if (!bag.remove(entry)) {
+            return;
+        }
+        final PooledObject<PoolableConnection> pooledObject = entry.getItem();
+        entries.remove(pooledObject.getObject());
+        totalCount.decrementAndGet();
+        try {
+            factory.destroyObject(pooledObject);
+        } catch (Exception e) {
+            log.warn("Could not close a pooled connection", e);
+        }
+    }
+
+    private ConcurrentBag.Entry<PooledObject<PoolableConnection>> getEntry(PoolableConnection connection) {
+        final ConcurrentBag.Entry<PooledObject<PoolableConnection>> entry = entries.get(connection);
+        if (entry == null) {
+            throw new IllegalStateException("Object not currently part of this pool");
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.XADataSource;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.apache.tomcat.dbcp.dbcp2.BasicDataSource;
+import org.apache.tomcat.dbcp.dbcp2.PoolableConnection;
+import org.apache.tomcat.dbcp.dbcp2.managed.DataSourceXAConnectionFactory;
+import org.apache.tomcat.dbcp.dbcp2.managed.ManagedDataSource;
+import org.apache.tomcat.dbcp.dbcp2.managed.PoolableManagedConnectionFactory;
+
+/**
+ * Transactional data source pooling its connections in a {@link BagConnectionPool} rather than in the pool of DBCP,
+ * whose borrow and return contend on a lock shared by all threads.
+ * <p>
+ * The connections are made and enlisted in the transactions by the same DBCP classes as with a
+ * {@link org.apache.tomcat.dbcp.dbcp2.managed.BasicManagedDataSource}, so the connections of a transaction are shared
+ * the same way. The connection and pool settings are read from a {@link BasicDataSource} configured with the properties
+ * of the resource, except for the credentials, which are passed on their own. Eviction and abandoned connection
+ * settings are not supported.
+ */
+public final class BagPoolingDataSource implements SharedDataSource {
+
+    private final SharedDataSourceSupport shared = new SharedDataSourceSupport();
+
+    private final BagConnectionPool pool;
+
+    private final ManagedDataSource<PoolableConnection> dataSource;
+
+    /**
+     * @param transactionManager the transaction manager
+     * @param xaDataSource the data source of the XA connections to pool
+     * @param tsr the transaction synchronization registry
+     * @param configuration the connection and pool settings
+     * @param userName the user name of the connections, or {@code null} to use the one of the XA data source
+     * @param password the password of the connections
+     */
+    public BagPoolingDataSource(TransactionManager transactionManager, XADataSource xaDataSource,
+            TransactionSynchronizationRegistry tsr, BasicDataSource configuration, String userName, String password) {
+        final DataSourceXAConnectionFactory xaConnectionFactory = new DataSourceXAConnectionFactory(transactionManager,
+                xaDataSource, userName, password == null ? null : password.toCharArray(), tsr);
+
+        final PoolableManagedConnectionFactory factory = new PoolableManagedConnectionFactory(xaConnectionFactory, null);
+        factory.setValidationQuery(configuration.getValidationQuery());
+        factory.setValidationQueryTimeout(configuration.getValidationQueryTimeoutDuration());
+        factory.setConnectionInitSql(configuration.getConnectionInitSqls());
+        factory.setDefaultReadOnly(configuration.getDefaultReadOnly());
+        factory.setDefaultAutoCommit(configuration.getDefaultAutoCommit());
+        factory.setDefaultTransactionIsolation(configuration.getDefaultTransactionIsolation());
+        factory.setDefaultCatalog(configuration.getDefaultCatalog());
+        factory.setDefaultSchema(configuration.getDefaultSchema());
+        factory.setCacheState(configuration.getCacheState());
+        factory.setPoolStatements(configuration.isPoolPreparedStatements());
+        factory.setClearStatementPoolOnReturn(configuration.isClearStatementPoolOnReturn());
+        factory.setMaxOpenPreparedStatements(configuration.getMaxOpenPreparedStatements());
+        factory.setMaxConn(configuration.getMaxConnDuration());
+        factory.setRollbackOnReturn(configuration.getRollbackOnReturn());
+        factory.setAutoCommitOnReturn(configuration.getAutoCommitOnReturn());
+        factory.setDefaultQueryTimeout(configuration.getDefaultQueryTimeoutDuration());
+        factory.setFastFailValidation(configuration.getFastFailValidation());
+        factory.setDisconnectionSqlCodes(configuration.getDisconnectionSqlCodes());
+
+        pool = new BagConnectionPool(factory, configuration.getMaxTotal(), configuration.getMaxWaitDuration(),
+                configuration.getTestOnBorrow());
+        dataSource = new ManagedDataSource<>(pool, xaConnectionFactory.getTransactionRegistry());
+        dataSource.setAccessToUnderlyingConnectionAllowed(configuration.isAccessToUnderlyingConnectionAllowed());
+    }
+
+    /**
+     * Open connections until the pool holds the given number of them.
+     */
+    public void fill(int size) throws SQLException {
+        try {
+            while (pool.getNumActive() + pool.getNumIdle() < size) {
+                pool.addObject();
+            }
+        } catch (SQLException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException("Cannot fill the pool", e);
+        }
+    }
+
+    /**
+     * @return number of connections lent
+     */
+    public int getNumActive() {
+        return pool.getNumActive();
+    }
+
+    /**
+     * @return number of idle connections
+     */
+    public int getNumIdle() {
+        return pool.getNumIdle();
+    }
+
+    /**
+     * @return number of threads waiting for a connection
+     */
+    public int getNumWaiters() {
+        return pool.getNumWaiters();
+    }
+
+    /**
+     * @return whether the pool is closed
+     */
+    public boolean isClosed() {
+        return pool.isClosed();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return dataSource.getConnection(username, password);
+    }
+
+    @Override
+    public boolean retain() {
+        return shared.retain();
+    }
+
+    @Override
+    public void addCloseListener(Runnable listener) {
+        shared.addCloseListener(listener);
+    }
+
+    /**
+     * Close the idle connections and refuse new borrows, once each user of the data source has closed it. The connections
+     * lent are closed when they are given back.
+     */
+    @Override
+    public void close() {
+        if (shared.release()) {
+            pool.close();
+            shared.closed();
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> type) throws SQLException {
+        return type.isInstance(this) ? type.cast(this) : dataSource.unwrap(type);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> type) throws SQLException {
+        return type.isInstance(this) || dataSource.isWrapperFor(type);
+    }
+}
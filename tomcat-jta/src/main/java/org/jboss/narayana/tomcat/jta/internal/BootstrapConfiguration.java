@@ -0,0 +1,204 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Settings the listeners pass to {@link NarayanaBootstrap}. Settings left unset keep the values from the Narayana
+ * configuration file.
+ */
+public final class BootstrapConfiguration {
+
+    /**
+     * How the transaction service instance identifies its process.
+     */
+    public enum ProcessIdentity {
+        /**
+         * Bind a loopback socket, see {@code CoreEnvironmentBean.socketProcessIdPort}.
+         */
+        SOCKET,
+        /**
+         * Use the operating system process id and the JVM start time, see {@link PidProcessId}.
+         */
+        PID;
+
+        /**
+         * @param value name of the process identity, case insensitive
+         * @return the process identity
+         * @throws IllegalArgumentException if there is no such process identity
+         */
+        public static ProcessIdentity fromString(String value) {
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * Object store engine for the transaction log, see {@link ObjectStoreConfigurer}.
+     */
+    public enum ObjectStoreType {
+        FILE, HASHED, JOURNAL, JDBC, DATASOURCE, GROUP_COMMIT;
+
+        /**
+         * @param value name of the object store type, case insensitive, with {@code -} standing for {@code _}
+         * @return the object store type
+         * @throws IllegalArgumentException if there is no such object store type
+         */
+        public static ObjectStoreType fromString(String value) {
+            return valueOf(value.trim().replace('-', '_').toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    private boolean asyncRecoveryStart;
+
+    private ProcessIdentity processIdentity;
+
+    private Boolean recoveryListener;
+
+    private ObjectStoreType objectStoreType;
+
+    private String objectStoreDir;
+
+    private String objectStoreJdbcAccess;
+
+    private String objectStoreDataSource;
+
+    private int objectStoreHashedDirectories;
+
+    private boolean objectStoreAsyncRemoval;
+
+    private boolean objectStoreRelaxedDurability;
+
+    private List<String> commitMarkableResources = Collections.emptyList();
+
+    private int parallelRecoveryThreads;
+
+    private long parallelRecoveryTimeoutMillis;
+
+    public boolean isAsyncRecoveryStart() {
+        return asyncRecoveryStart;
+    }
+
+    public void setAsyncRecoveryStart(boolean asyncRecoveryStart) {
+        this.asyncRecoveryStart = asyncRecoveryStart;
+    }
+
+    public ProcessIdentity getProcessIdentity() {
+        return processIdentity;
+    }
+
+    public void setProcessIdentity(ProcessIdentity processIdentity) {
+        this.processIdentity = processIdentity;
+    }
+
+    public Boolean getRecoveryListener() {
+        return recoveryListener;
+    }
+
+    public void setRecoveryListener(Boolean recoveryListener) {
+        this.recoveryListener = recoveryListener;
+    }
+
+    public ObjectStoreType getObjectStoreType() {
+        return objectStoreType;
+    }
+
+    public void setObjectStoreType(ObjectStoreType objectStoreType) {
+        this.objectStoreType = objectStoreType;
+    }
+
+    public String getObjectStoreDir() {
+        return objectStoreDir;
+    }
+
+    public void setObjectStoreDir(String objectStoreDir) {
+        this.objectStoreDir = objectStoreDir;
+    }
+
+    public String getObjectStoreJdbcAccess() {
+        return objectStoreJdbcAccess;
+    }
+
+    public void setObjectStoreJdbcAccess(String objectStoreJdbcAccess) {
+        this.objectStoreJdbcAccess = objectStoreJdbcAccess;
+    }
+
+    public String getObjectStoreDataSource() {
+        return objectStoreDataSource;
+    }
+
+    public void setObjectStoreDataSource(String objectStoreDataSource) {
+        this.objectStoreDataSource = objectStoreDataSource;
+    }
+
+    public int getObjectStoreHashedDirectories() {
+        return objectStoreHashedDirectories;
+    }
+
+    public void setObjectStoreHashedDirectories(int objectStoreHashedDirectories) {
+        this.objectStoreHashedDirectories = objectStoreHashedDirectories;
+    }
+
+    public boolean isObjectStoreAsyncRemoval() {
+        return objectStoreAsyncRemoval;
+    }
+
+    public void setObjectStoreAsyncRemoval(boolean objectStoreAsyncRemoval) {
+        this.objectStoreAsyncRemoval = objectStoreAsyncRemoval;
+    }
+
+    public boolean isObjectStoreRelaxedDurability() {
+        return objectStoreRelaxedDurability;
+    }
+
+    public void setObjectStoreRelaxedDurability(boolean objectStoreRelaxedDurability) {
+        this.objectStoreRelaxedDurability = objectStoreRelaxedDurability;
+    }
+
+    public List<String> getCommitMarkableResources() {
+        return commitMarkableResources;
+    }
+
+    public void setCommitMarkableResources(List<String> commitMarkableResources) {
+        this.commitMarkableResources = commitMarkableResources == null ? Collections.emptyList()
+                : Collections.unmodifiableList(commitMarkableResources);
+    }
+
+    public int getParallelRecoveryThreads() {
+        return parallelRecoveryThreads;
+    }
+
+    public void setParallelRecoveryThreads(int parallelRecoveryThreads) {
+        this.parallelRecoveryThreads = parallelRecoveryThreads;
+    }
+
+    public long getParallelRecoveryTimeoutMillis() {
+        return parallelRecoveryTimeoutMillis;
+    }
+
+    public void setParallelRecoveryTimeoutMillis(long parallelRecoveryTimeoutMillis) {
+        this.parallelRecoveryTimeoutMillis = parallelRecoveryTimeoutMillis;
+    }
+
+    /**
+     * @param value comma separated list, {@code null} or blank for none
+     * @return the non-empty, trimmed elements of the list
+     */
+    public static List<String> parseList(String value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        final List<String> list = new ArrayList<>();
+        for (String element : value.split(",")) {
+            if (!element.trim().isEmpty()) {
+                list.add(element.trim());
+            }
+        }
+        return list;
+    }
+}
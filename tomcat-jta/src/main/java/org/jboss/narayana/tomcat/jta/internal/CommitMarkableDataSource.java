@@ -0,0 +1,163 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Non-XA data source taking part in JTA transactions as a commit markable resource.
+ * <p>
+ * Within a transaction, the first {@link #getConnection()} borrows a connection from the underlying data source and
+ * enlists its local transaction as a {@link CommitMarkableResource}. Further calls in the same transaction return handles on
+ * that connection. Outside of a transaction, the underlying data source is used as is.
+ */
+public final class CommitMarkableDataSource implements DataSource {
+
+    private final TransactionManager transactionManager;
+
+    private final TransactionSynchronizationRegistry tsr;
+
+    private final DataSource dataSource;
+
+    private final String jndiName;
+
+    /**
+     * Key of the enlisted resource in the {@link TransactionSynchronizationRegistry}.
+     */
+    private final Object resourceKey = new Object();
+
+    /**
+     * @param transactionManager the transaction manager
+     * @param tsr the transaction synchronization registry
+     * @param dataSource pooled, non-XA data source
+     * @param jndiName name the commit markable recovery module looks the data source up with
+     */
+    public CommitMarkableDataSource(TransactionManager transactionManager, TransactionSynchronizationRegistry tsr,
+            DataSource dataSource, String jndiName) {
+        this.transactionManager = transactionManager;
+        this.tsr = tsr;
+        this.dataSource = dataSource;
+        this.jndiName = jndiName;
+    }
+
+    /**
+     * @return name the commit markable recovery module looks the data source up with
+     */
+    public String getJndiName() {
+        return jndiName;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        final Transaction transaction = getTransaction();
+        if (transaction == null) {
+            return dataSource.getConnection();
+        }
+
+        CommitMarkableResource resource = (CommitMarkableResource) tsr.getResource(resourceKey);
+        if (resource == null) {
+            resource = enlist(transaction);
+        }
+        return resource.newHandle();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        if (getTransaction() != null) {
+            throw new SQLFeatureNotSupportedException("Connections of " + jndiName
+                    + " with other credentials cannot take part in a transaction");
+        }
+        return dataSource.getConnection(username, password);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> type) throws SQLException {
+        return type.isInstance(this) ? type.cast(this) : dataSource.unwrap(type);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> type) throws SQLException {
+        return type.isInstance(this) || dataSource.isWrapperFor(type);
+    }
+
+    /**
+     * @return the active transaction of the thread, {@code null} if there is none
+     * @throws SQLException if the transaction of the thread is not active
+     */
+    private Transaction getTransaction() throws SQLException {
+        try {
+            final Transaction transaction = transactionManager.getTransaction();
+            if (transaction == null || transaction.getStatus() == Status.STATUS_NO_TRANSACTION) {
+                return null;
+            }
+            if (transaction.getStatus() != Status.STATUS_ACTIVE) {
+                throw new SQLException("The transaction of the thread is not active: " + transaction);
+            }
+            return transaction;
+        } catch (SystemException e) {
+            throw new SQLException("Cannot get the transaction of the thread", e);
+        }
+    }
+
+    private CommitMarkableResource enlist(Transaction transaction) throws SQLException {
+        final Connection connection = dataSource.getConnection();
+        try {
+            final CommitMarkableResource resource = new CommitMarkableResource(connection, jndiName);
+            if (!transaction.enlistResource(resource)) {
+                throw new SQLException("Cannot enlist " + jndiName + " in " + transaction);
+            }
+            tsr.putResource(resourceKey, resource);
+            tsr.registerInterposedSynchronization(resource);
+            return resource;
+        } catch (SQLException | RollbackException | SystemException | RuntimeException e) {
+            try {
+                connection.close();
+            } catch (SQLException closeException) {
+                e.addSuppressed(closeException);
+            }
+            if (e instanceof SQLException) {
+                throw (SQLException) e;
+            }
+            throw new SQLException("Cannot enlist " + jndiName + " in " + transaction, e);
+        }
+    }
+}
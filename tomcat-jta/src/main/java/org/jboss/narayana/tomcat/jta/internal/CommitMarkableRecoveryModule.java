@@ -0,0 +1,126 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.InitialContext;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import com.arjuna.ats.arjuna.exceptions.ObjectStoreException;
+import com.arjuna.ats.internal.jta.recovery.arjunacore.CommitMarkableResourceRecordRecoveryModule;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * {@link CommitMarkableResourceRecordRecoveryModule} resolving the commit markable data sources without JNDI.
+ * <p>
+ * The Narayana module looks the data sources up with a new {@code InitialContext}, which has no naming context on the
+ * recovery thread of Tomcat. The data sources created by {@link PoolingDataSourceFactory#createCommitMarkableDataSource}
+ * are registered under their {@code jndiName} instead, and this module resolves the registered names before falling back
+ * to JNDI.
+ * <p>
+ * If a data source cannot be resolved, the Narayana module fails with a {@link RuntimeException}, which would stop
+ * periodic recovery for all the resources, and leaves its first pass marked as running, which would skip all the
+ * following ones. The pass is logged and retried on the next period instead.
+ */
+public class CommitMarkableRecoveryModule extends CommitMarkableResourceRecordRecoveryModule {
+
+    private static final Log log = LogFactory.getLog(CommitMarkableRecoveryModule.class);
+
+    /**
+     * Commit markable data sources by JNDI name. They are weakly referenced, so that a data source of an undeployed web
+     * application does not keep its class loader.
+     */
+    private static final Map<String, WeakReference<DataSource>> DATA_SOURCES = new ConcurrentHashMap<>();
+
+    public CommitMarkableRecoveryModule() throws NamingException, ObjectStoreException {
+        super();
+        try {
+            setSuperField("context", new RegisteredDataSourceContext());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Cannot resolve the commit markable data sources created by the factory, they are looked up in"
+                    + " JNDI from the recovery thread", e);
+        }
+    }
+
+    /**
+     * Register a commit markable data source, replacing the one registered under the same name before.
+     *
+     * @param jndiName the name listed in {@code JTAEnvironmentBean.commitMarkableResourceJNDINames}
+     * @param dataSource the data source the commit records are inserted with
+     */
+    static void register(String jndiName, DataSource dataSource) {
+        DATA_SOURCES.put(jndiName, new WeakReference<>(dataSource));
+    }
+
+    /**
+     * @return the data source registered under the name, {@code null} if there is none
+     */
+    static DataSource getRegistered(String jndiName) {
+        final WeakReference<DataSource> registered = DATA_SOURCES.get(jndiName);
+        return registered == null ? null : registered.get();
+    }
+
+    @Override
+    public synchronized void periodicWorkFirstPass() {
+        try {
+            super.periodicWorkFirstPass();
+        } catch (RuntimeException e) {
+            log.warn("Failed to query the commit markable resources, check that their JNDI names can be looked up from"
+                    + " the recovery thread", e);
+            // the Narayana module only clears the flag at the end of a pass, it would skip all the following ones
+            try {
+                setSuperField("inFirstPass", false);
+            } catch (ReflectiveOperationException | RuntimeException f) {
+                log.warn("Cannot reset the first pass of the commit markable resources", f);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void periodicWorkSecondPass() {
+        try {
+            super.periodicWorkSecondPass();
+        } catch (RuntimeException e) {
+            log.warn("Failed to clean up the commit markable resources", e);
+        }
+    }
+
+    private void setSuperField(String name, Object value) throws ReflectiveOperationException {
+        final Field field = CommitMarkableResourceRecordRecoveryModule.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(this, value);
+    }
+
+    /**
+     * Naming context of the Narayana module, answering the names of the registered data sources itself.
+     */
+    private static final class RegisteredDataSourceContext extends InitialContext {
+
+        RegisteredDataSourceContext() throws NamingException {
+            super();
+        }
+
+        @Override
+        public Object lookup(String name) throws NamingException {
+            final DataSource registered = getRegistered(name);
+            if (registered != null) {
+                return registered;
+            }
+            // the Narayana module fails on a null data source without finishing its pass
+            final Object bound = super.lookup(name);
+            if (bound == null) {
+                throw new NameNotFoundException(name);
+            }
+            return bound;
+        }
+    }
+}
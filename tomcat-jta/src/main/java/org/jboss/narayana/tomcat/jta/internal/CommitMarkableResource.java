@@ -0,0 +1,229 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+import javax.transaction.Synchronization;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import com.arjuna.ats.jta.resources.LastResourceCommitOptimisation;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.jboss.tm.ConnectableResource;
+import org.jboss.tm.XAResourceWrapper;
+
+/**
+ * Local transaction of a non-XA connection, enlisted as a commit markable resource.
+ * <p>
+ * Narayana commits it last, in one phase, after having inserted the commit record of the transaction into the commit
+ * markable table through {@link #getConnection()}, so that the record is committed together with the work of the
+ * connection. The recovery module finds the outcome of the transaction in that table.
+ * <p>
+ * The connection is returned to its pool once the transaction completes.
+ */
+final class CommitMarkableResource implements XAResourceWrapper, ConnectableResource, LastResourceCommitOptimisation,
+        Synchronization {
+
+    private static final Log log = LogFactory.getLog(CommitMarkableResource.class);
+
+    private final Connection connection;
+
+    private final String jndiName;
+
+    private final String productName;
+
+    private final String productVersion;
+
+    /**
+     * @param connection connection taking part in the transaction, its auto-commit is disabled until the transaction
+     *        completes
+     * @param jndiName name of the data source, as listed in {@code JTAEnvironmentBean.commitMarkableResourceJNDINames}
+     * @throws SQLException if the connection cannot be used
+     */
+    CommitMarkableResource(Connection connection, String jndiName) throws SQLException {
+        final DatabaseMetaData metaData = connection.getMetaData();
+        this.connection = connection;
+        this.jndiName = jndiName;
+        this.productName = metaData.getDatabaseProductName();
+        this.productVersion = metaData.getDatabaseProductVersion();
+        connection.setAutoCommit(false);
+    }
+
+    /**
+     * @return a handle on the connection for the application, closing it does not end the local transaction
+     */
+    Connection newHandle() {
+        return (Connection) Proxy.newProxyInstance(CommitMarkableResource.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, new Handle());
+    }
+
+    @Override
+    public Object getConnection() {
+        return connection;
+    }
+
+    @Override
+    public XAResource getResource() {
+        return this;
+    }
+
+    @Override
+    public String getProductName() {
+        return productName;
+    }
+
+    @Override
+    public String getProductVersion() {
+        return productVersion;
+    }
+
+    @Override
+    public String getJndiName() {
+        return jndiName;
+    }
+
+    @Override
+    public void start(Xid xid, int flags) {
+    }
+
+    @Override
+    public void end(Xid xid, int flags) {
+    }
+
+    @Override
+    public int prepare(Xid xid) throws XAException {
+        throw new XAException(XAException.XAER_PROTO);
+    }
+
+    /**
+     * Commit the local transaction. Narayana does not prepare a commit markable resource, so the flag is not relevant.
+     */
+    @Override
+    public void commit(Xid xid, boolean onePhase) throws XAException {
+        try {
+            connection.commit();
+        } catch (SQLException e) {
+            log.warn("Failed to commit the local transaction of " + jndiName, e);
+            final XAException xaException = new XAException(XAException.XAER_RMFAIL);
+            xaException.initCause(e);
+            throw xaException;
+        }
+    }
+
+    @Override
+    public void rollback(Xid xid) throws XAException {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            log.warn("Failed to roll back the local transaction of " + jndiName, e);
+            final XAException xaException = new XAException(XAException.XAER_RMFAIL);
+            xaException.initCause(e);
+            throw xaException;
+        }
+    }
+
+    @Override
+    public void forget(Xid xid) {
+    }
+
+    @Override
+    public Xid[] recover(int flag) {
+        return new Xid[0];
+    }
+
+    @Override
+    public boolean isSameRM(XAResource resource) {
+        return resource == this;
+    }
+
+    @Override
+    public int getTransactionTimeout() {
+        return 0;
+    }
+
+    @Override
+    public boolean setTransactionTimeout(int seconds) {
+        return false;
+    }
+
+    @Override
+    public void beforeCompletion() {
+    }
+
+    /**
+     * Give the connection back to its pool.
+     */
+    @Override
+    public void afterCompletion(int status) {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            log.debug("Could not restore the auto-commit of a connection of " + jndiName, e);
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.warn("Could not close a connection of " + jndiName, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CommitMarkableResource[" + jndiName + "]";
+    }
+
+    /**
+     * Connection handle of the application. The transaction is committed or rolled back by the transaction manager only.
+     */
+    private final class Handle implements InvocationHandler {
+
+        private boolean closed;
+
+        @Override
+        @SuppressWarnings("fallthrough")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    closed = true;
+                    return null;
+                case "isClosed":
+                    return closed || connection.isClosed();
+                case "rollback":
+                    // rolling back to a savepoint is allowed, the full rollback falls through
+                    if (args != null) {
+                        break;
+                    }
+                case "commit":
+                case "setAutoCommit":
+                    throw new SQLException(method.getName() + " is not allowed on a connection of " + jndiName
+                            + " enlisted in a transaction");
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Handle[" + connection + "]";
+                default:
+            }
+            if (closed) {
+                throw new SQLException("The connection handle of " + jndiName + " is closed");
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
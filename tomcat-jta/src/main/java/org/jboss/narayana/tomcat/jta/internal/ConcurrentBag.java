@@ -0,0 +1,216 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock free collection of pooled items, each either in use or idle.
+ * <p>
+ * A borrowing thread first looks at the items it gave back recently, which are likely to be idle and still warm in its
+ * cache, then scans the items shared by all threads. Both lookups claim an item with a compare and set of its state,
+ * without any lock. A thread finding nothing idle first yields a few times, letting the threads holding items give one
+ * back, then parks. A thread giving an item back leaves it in the bag and wakes one parked thread, which looks for an
+ * idle item again: as with DBCP, a running thread may claim the item first, which saves a context switch per borrow when
+ * more threads than items compete.
+ */
+final class ConcurrentBag<T> {
+
+    private static final int MAX_THREAD_LOCAL_ITEMS = 16;
+
+    private static final int YIELDS_BEFORE_WAITING = 16;
+
+    private final CopyOnWriteArrayList<Entry<T>> shared = new CopyOnWriteArrayList<>();
+
+    private final ThreadLocal<List<WeakReference<Entry<T>>>> threadLocal = ThreadLocal.withInitial(ArrayList::new);
+
+    private final ConcurrentLinkedQueue<Thread> parked = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /**
+     * Claim an idle item, waiting at most the given time for one to be given back.
+     *
+     * @return the claimed item, {@code null} if none became idle in time
+     */
+    Entry<T> borrow(long timeout, TimeUnit unit) throws InterruptedException {
+        final List<WeakReference<Entry<T>>> recent = threadLocal.get();
+        for (int i = recent.size() - 1; i >= 0; i--) {
+            final Entry<T> entry = recent.remove(i).get();
+            if (entry != null && entry.claim()) {
+                return entry;
+            }
+        }
+
+        Entry<T> claimed = claimShared();
+        if (claimed != null || timeout <= 0) {
+            return claimed;
+        }
+
+        // let the threads holding the items run and give one back before parking, waking up costs a context switch
+        for (int i = 0; i < YIELDS_BEFORE_WAITING; i++) {
+            Thread.yield();
+            claimed = claimShared();
+            if (claimed != null) {
+                return claimed;
+            }
+        }
+
+        final Thread current = Thread.currentThread();
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiters.incrementAndGet();
+        try {
+            while (true) {
+                parked.add(current);
+                // look again once queued, an item given back before was not signalled to this thread
+                claimed = claimShared();
+                final long remaining = deadline - System.nanoTime();
+                if (claimed != null || remaining <= 0) {
+                    leave(current);
+                    return claimed;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    leave(current);
+                    throw new InterruptedException();
+                }
+                parked.remove(current);
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    private Entry<T> claimShared() {
+        for (Entry<T> entry : shared) {
+            if (entry.claim()) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stop waiting. A thread which was woken up meanwhile passes the wake up on if an item is still idle, as it may have
+     * been meant for another one.
+     */
+    private void leave(Thread current) {
+        if (!parked.remove(current) && getIdleCount() > 0) {
+            wakeUp();
+        }
+    }
+
+    private void wakeUp() {
+        final Thread waiter = parked.poll();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Give a claimed item back, waking up a waiting thread if there is one.
+     */
+    void requite(Entry<T> entry) {
+        entry.state.set(Entry.IDLE);
+        if (waiters.get() > 0) {
+            wakeUp();
+        }
+        final List<WeakReference<Entry<T>>> recent = threadLocal.get();
+        if (recent.size() < MAX_THREAD_LOCAL_ITEMS) {
+            recent.add(new WeakReference<>(entry));
+        }
+    }
+
+    /**
+     * Add a new item, idle or already claimed by the caller.
+     */
+    void add(Entry<T> entry) {
+        shared.add(entry);
+        if (waiters.get() > 0 && entry.state.get() == Entry.IDLE) {
+            wakeUp();
+        }
+    }
+
+    /**
+     * Remove an item claimed by the caller, or idle.
+     *
+     * @return whether the item was removed by this call
+     */
+    boolean remove(Entry<T> entry) {
+        if (!entry.state.compareAndSet(Entry.IN_USE, Entry.REMOVED)
+                && !entry.state.compareAndSet(Entry.IDLE, Entry.REMOVED)) {
+            return false;
+        }
+        shared.remove(entry);
+        return true;
+    }
+
+    /**
+     * @return the idle items, claimed for the caller which must remove them or give them back
+     */
+    List<Entry<T>> claimIdle() {
+        final List<Entry<T>> idle = new ArrayList<>();
+        for (Entry<T> entry : shared) {
+            if (entry.claim()) {
+                idle.add(entry);
+            }
+        }
+        return idle;
+    }
+
+    int getIdleCount() {
+        int count = 0;
+        for (Entry<T> entry : shared) {
+            if (entry.state.get() == Entry.IDLE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int getWaitingThreadCount() {
+        return waiters.get();
+    }
+
+    /**
+     * Item of the bag.
+     */
+    static final class Entry<T> {
+
+        static final int IDLE = 0;
+
+        static final int IN_USE = 1;
+
+        static final int REMOVED = -1;
+
+        private final AtomicInteger state;
+
+        private final T item;
+
+        /**
+         * @param item the pooled item
+         * @param inUse whether the item is claimed by the caller, rather than idle
+         */
+        Entry(T item, boolean inUse) {
+            this.item = item;
+            this.state = new AtomicInteger(inUse ? IN_USE : IDLE);
+        }
+
+        T getItem() {
+            return item;
+        }
+
+        private boolean claim() {
+            return state.compareAndSet(IDLE, IN_USE);
+        }
+    }
+}
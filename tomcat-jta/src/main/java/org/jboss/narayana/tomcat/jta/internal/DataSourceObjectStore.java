@@ -0,0 +1,668 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.io.IOException;
+import java.io.SyncFailedException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.exceptions.ObjectStoreException;
+import com.arjuna.ats.arjuna.objectstore.ObjectStoreAPI;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+import com.arjuna.ats.arjuna.objectstore.StateType;
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.arjuna.state.OutputObjectState;
+import com.arjuna.ats.internal.arjuna.common.UidHelper;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Object store keeping the records in a database table, accessed through a pooled, non-XA {@link DataSource} found by its
+ * JNDI name. The name is taken from {@link ObjectStoreEnvironmentBean#getJdbcAccess()} and the table name is
+ * {@link ObjectStoreEnvironmentBean#getTablePrefix()} followed by {@value #DEFAULT_TABLE_NAME}.
+ * <p>
+ * Writes and removals are group committed: while one thread runs a batch, the updates of the other threads are queued and
+ * then written together by the next one, with one statement batch per kind of update and a single database commit. The
+ * primary key of the table starts with the Uid, so that recovery reads a record with a single index lookup.
+ * <p>
+ * The data source must not be a transactional one, otherwise the log writes would be enlisted in the transactions they
+ * record.
+ */
+public class DataSourceObjectStore implements ObjectStoreAPI {
+
+    public static final String DEFAULT_TABLE_NAME = "JBossTSTxTable";
+
+    private static final Log log = LogFactory.getLog(DataSourceObjectStore.class);
+
+    private static final String JAVA_COMP_ENV = "java:comp/env/";
+
+    private static final Map<String, DataSource> dataSources = new ConcurrentHashMap<>();
+
+    private final String dataSourceName;
+
+    private final DataSource dataSource;
+
+    private final String tableName;
+
+    private final Object batchLock = new Object();
+
+    private List<Update> pending = new ArrayList<>();
+
+    private boolean flushing;
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private final AtomicLong updateCount = new AtomicLong();
+
+    private volatile boolean updateCountsUnknown;
+
+    public DataSourceObjectStore(ObjectStoreEnvironmentBean environmentBean) throws ObjectStoreException {
+        dataSourceName = environmentBean.getJdbcAccess();
+        if (dataSourceName == null || dataSourceName.isEmpty()) {
+            throw new ObjectStoreException("The JNDI name of the object store data source is not configured");
+        }
+        try {
+            dataSource = getDataSource(dataSourceName);
+        } catch (NamingException e) {
+            throw new ObjectStoreException("Cannot find the object store data source " + dataSourceName, e);
+        }
+        tableName = (environmentBean.getTablePrefix() == null ? "" : environmentBean.getTablePrefix()) + DEFAULT_TABLE_NAME;
+
+        try (Connection connection = dataSource.getConnection()) {
+            if (environmentBean.getDropTable()) {
+                dropTable(connection);
+            }
+            if (environmentBean.getCreateTable() && !tableExists(connection)) {
+                createTable(connection);
+            }
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Cannot prepare the object store table " + tableName, e);
+        }
+    }
+
+    /**
+     * Make a data source available to the object store under the given name, in place of a JNDI lookup.
+     *
+     * @param name name used as the JDBC access of the object store
+     * @param dataSource the data source
+     */
+    public static void registerDataSource(String name, DataSource dataSource) {
+        dataSources.put(name, dataSource);
+    }
+
+    /**
+     * Find the data source with the given name, registered with {@link #registerDataSource(String, DataSource)} or bound in
+     * JNDI. Names without a {@code java:} scheme are also looked up in the {@value #JAVA_COMP_ENV} context.
+     *
+     * @param name name of the data source
+     * @return the data source
+     * @throws NamingException if there is no such data source
+     */
+    public static DataSource getDataSource(String name) throws NamingException {
+        final DataSource registered = dataSources.get(name);
+        if (registered != null) {
+            return registered;
+        }
+
+        final InitialContext context = new InitialContext();
+        try {
+            return (DataSource) context.lookup(name);
+        } catch (NamingException e) {
+            if (name.startsWith("java:")) {
+                throw e;
+            }
+            return (DataSource) context.lookup(JAVA_COMP_ENV + name);
+        } finally {
+            context.close();
+        }
+    }
+
+    /**
+     * @return number of statement batches written
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return number of writes and removals, the average batch size is this divided by {@link #getBatchCount()}
+     */
+    public long getUpdateCount() {
+        return updateCount.get();
+    }
+
+    @Override
+    public void start() {
+    }
+
+    /**
+     * Forget the data source registered under the name of this store, so that it does not keep the class loader of the
+     * web application it was found in reachable.
+     */
+    @Override
+    public void stop() {
+        dataSources.remove(dataSourceName, dataSource);
+    }
+
+    @Override
+    public boolean fullCommitNeeded() {
+        return true;
+    }
+
+    @Override
+    public void sync() throws SyncFailedException, ObjectStoreException {
+    }
+
+    @Override
+    public String getStoreName() {
+        return getClass().getSimpleName() + ":" + dataSourceName + ":" + tableName;
+    }
+
+    @Override
+    public boolean isType(Uid uid, String typeName, int stateType) throws ObjectStoreException {
+        final String sql = "SELECT Hidden FROM " + tableName + " WHERE UidString = ? AND TypeName = ? AND StateType = ?";
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, uid.stringForm());
+            statement.setString(2, normalize(typeName));
+            statement.setInt(3, stateType);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Cannot read the object store table " + tableName, e);
+        }
+    }
+
+    @Override
+    public int currentState(Uid uid, String typeName) throws ObjectStoreException {
+        final String sql = "SELECT StateType, Hidden FROM " + tableName + " WHERE UidString = ? AND TypeName = ?";
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, uid.stringForm());
+            statement.setString(2, normalize(typeName));
+            final RecordStatus status = new RecordStatus();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    status.add(resultSet.getInt(1), resultSet.getInt(2));
+                }
+            }
+            return status.get();
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Cannot read the object store table " + tableName, e);
+        }
+    }
+
+    @Override
+    public boolean commit_state(Uid uid, String typeName) throws ObjectStoreException {
+        final String delete = "DELETE FROM " + tableName + " WHERE UidString = ? AND TypeName = ? AND StateType = ?";
+        final String update = "UPDATE " + tableName + " SET StateType = ? WHERE UidString = ? AND TypeName = ? AND StateType = ?";
+        try (Connection connection = dataSource.getConnection()) {
+            return inTransaction(connection, () -> {
+                try (PreparedStatement deleteStatement = connection.prepareStatement(delete);
+                        PreparedStatement updateStatement = connection.prepareStatement(update)) {
+                    deleteStatement.setString(1, uid.stringForm());
+                    deleteStatement.setString(2, normalize(typeName));
+                    deleteStatement.setInt(3, StateType.OS_ORIGINAL);
+                    deleteStatement.executeUpdate();
+                    updateStatement.setInt(1, StateType.OS_ORIGINAL);
+                    updateStatement.setString(2, uid.stringForm());
+                    updateStatement.setString(3, normalize(typeName));
+                    updateStatement.setInt(4, StateType.OS_SHADOW);
+                    return updateStatement.executeUpdate() > 0;
+                }
+            });
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Cannot commit the state of " + uid + " in " + tableName, e);
+        }
+    }
+
+    @Override
+    public boolean hide_state(Uid uid, String typeName) throws ObjectStoreException {
+        return setHidden(uid, typeName, true);
+    }
+
+    @Override
+    public boolean reveal_state(Uid uid, String typeName) throws ObjectStoreException {
+        return setHidden(uid, typeName, false);
+    }
+
+    @Override
+    public InputObjectState read_committed(Uid uid, String typeName) throws ObjectStoreException {
+        return read(uid, typeName, StateType.OS_ORIGINAL);
+    }
+
+    @Override
+    public InputObjectState read_uncommitted(Uid uid, String typeName) throws ObjectStoreException {
+        return read(uid, typeName, StateType.OS_SHADOW);
+    }
+
+    @Override
+    public boolean remove_committed(Uid uid, String typeName) throws ObjectStoreException {
+        return update(new Update(uid, typeName, StateType.OS_ORIGINAL, null));
+    }
+
+    @Override
+    public boolean remove_uncommitted(Uid uid, String typeName) throws ObjectStoreException {
+        return update(new Update(uid, typeName, StateType.OS_SHADOW, null));
+    }
+
+    @Override
+    public boolean write_committed(Uid uid, String typeName, OutputObjectState state) throws ObjectStoreException {
+        return update(new Update(uid, typeName, StateType.OS_ORIGINAL, state.buffer()));
+    }
+
+    @Override
+    public boolean write_uncommitted(Uid uid, String typeName, OutputObjectState state) throws ObjectStoreException {
+        return update(new Update(uid, typeName, StateType.OS_SHADOW, state.buffer()));
+    }
+
+    @Override
+    public boolean allObjUids(String typeName, InputObjectState state) throws ObjectStoreException {
+        return allObjUids(typeName, state, StateStatus.OS_UNKNOWN);
+    }
+
+    @Override
+    public boolean allObjUids(String typeName, InputObjectState state, int match) throws ObjectStoreException {
+        final String sql = "SELECT UidString, StateType, Hidden FROM " + tableName + " WHERE TypeName = ?";
+        final Map<String, RecordStatus> records = new LinkedHashMap<>();
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, normalize(typeName));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    records.computeIfAbsent(resultSet.getString(1), uid -> new RecordStatus())
+                            .add(resultSet.getInt(2), resultSet.getInt(3));
+                }
+            }
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Cannot read the object store table " + tableName, e);
+        }
+
+        try {
+            final OutputObjectState uids = new OutputObjectState();
+            for (Map.Entry<String, RecordStatus> record : records.entrySet()) {
+                if (match == StateStatus.OS_UNKNOWN || record.getValue().get() == match) {
+                    UidHelper.packInto(new Uid(record.getKey()), uids);
+                }
+            }
+            UidHelper.packInto(Uid.nullUid(), uids);
+            state.setBuffer(uids.buffer());
+        } catch (IOException e) {
+            throw new ObjectStoreException("Cannot pack the Uids of " + typeName, e);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean allTypes(InputObjectState state) throws ObjectStoreException {
+        final OutputObjectState types = new OutputObjectState();
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT DISTINCT TypeName FROM " + tableName)) {
+            while (resultSet.next()) {
+                types.packString(resultSet.getString(1));
+            }
+            types.packString("");
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Cannot read the object store table " + tableName, e);
+        } catch (IOException e) {
+            throw new ObjectStoreException("Cannot pack the type names", e);
+        }
+        state.setBuffer(types.buffer());
+        return true;
+    }
+
+    private InputObjectState read(Uid uid, String typeName, int stateType) throws ObjectStoreException {
+        final String sql = "SELECT ObjectState FROM " + tableName + " WHERE UidString = ? AND TypeName = ? AND StateType = ?";
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, uid.stringForm());
+            statement.setString(2, normalize(typeName));
+            statement.setInt(3, stateType);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? new InputObjectState(uid, typeName, resultSet.getBytes(1)) : null;
+            }
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Cannot read the state of " + uid + " from " + tableName, e);
+        }
+    }
+
+    private boolean setHidden(Uid uid, String typeName, boolean hidden) throws ObjectStoreException {
+        final String sql = "UPDATE " + tableName + " SET Hidden = ? WHERE UidString = ? AND TypeName = ?";
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setInt(1, hidden ? 1 : 0);
+            statement.setString(2, uid.stringForm());
+            statement.setString(3, normalize(typeName));
+            return statement.executeUpdate() > 0;
+        } catch (SQLException e) {
+            throw new ObjectStoreException("Cannot update the state of " + uid + " in " + tableName, e);
+        }
+    }
+
+    /**
+     * Queue the update and wait until it is written. If no batch is running, the calling thread writes all the queued
+     * updates, including the ones queued by other threads.
+     */
+    private boolean update(Update update) throws ObjectStoreException {
+        synchronized (batchLock) {
+            pending.add(update);
+        }
+
+        boolean interrupted = false;
+        try {
+            while (true) {
+                final List<Update> batch;
+                synchronized (batchLock) {
+                    if (update.done) {
+                        break;
+                    }
+                    if (flushing) {
+                        try {
+                            batchLock.wait();
+                        } catch (InterruptedException e) {
+                            // the update may already be written, it cannot be abandoned
+                            interrupted = true;
+                        }
+                        continue;
+                    }
+                    flushing = true;
+                    batch = pending;
+                    pending = new ArrayList<>();
+                }
+                try {
+                    flush(batch);
+                } finally {
+                    synchronized (batchLock) {
+                        flushing = false;
+                        batchLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (update.failure != null) {
+            throw new ObjectStoreException("Cannot update the state of " + update.uid + " in " + tableName, update.failure);
+        }
+        return update.result;
+    }
+
+    /**
+     * Write a batch of updates in one database transaction. Only the last update of each record is written; removals
+     * following a write of the same record in the batch succeed without a database lookup.
+     */
+    private void flush(List<Update> batch) {
+        final Map<String, Update> last = new LinkedHashMap<>();
+        final Set<String> counted = new HashSet<>();
+        for (Update update : batch) {
+            final Update previous = last.put(update.key(), update);
+            if (update.state != null) {
+                update.result = true;
+                update.resolved = true;
+            } else if (previous != null) {
+                update.result = previous.state != null;
+                update.resolved = true;
+            } else {
+                counted.add(update.key());
+            }
+        }
+
+        try (Connection connection = dataSource.getConnection()) {
+            Map<String, Boolean> existed;
+            try {
+                existed = inTransaction(connection, () -> write(connection, last.values(), counted));
+            } catch (UpdateCountUnknownException e) {
+                log.debug("The driver of " + dataSourceName + " does not report batch update counts, deleting the"
+                        + " removed records one by one");
+                existed = inTransaction(connection, () -> write(connection, last.values(), counted));
+            }
+            for (Update update : batch) {
+                if (!update.resolved) {
+                    update.result = existed.get(update.key());
+                }
+            }
+            batchCount.incrementAndGet();
+            updateCount.addAndGet(batch.size());
+        } catch (SQLException | RuntimeException e) {
+            log.warn("Failed to write a batch of " + batch.size() + " object store updates to " + tableName, e);
+            batch.forEach(update -> update.failure = e);
+        } finally {
+            batch.forEach(update -> update.done = true);
+        }
+    }
+
+    /**
+     * Delete the records of the updates and insert the written ones.
+     * <p>
+     * Drivers may answer a batch with {@link Statement#SUCCESS_NO_INFO} instead of the number of deleted rows. Once one
+     * did, the removals which have to report whether the record existed are deleted one by one, and the batch in which the
+     * driver first did is rolled back to be written again.
+     *
+     * @param counted keys of the records whose removal has to report whether they existed
+     * @return whether a row was deleted, for the keys in {@code counted}
+     * @throws UpdateCountUnknownException if the driver did not report the number of rows deleted for a counted key
+     */
+    private Map<String, Boolean> write(Connection connection, Collection<Update> updates, Set<String> counted)
+            throws SQLException {
+        final String delete = "DELETE FROM " + tableName + " WHERE UidString = ? AND TypeName = ? AND StateType = ?";
+        final String insert = "INSERT INTO " + tableName
+                + " (UidString, TypeName, StateType, Hidden, ObjectState) VALUES (?, ?, ?, 0, ?)";
+        final Map<String, Boolean> existed = new HashMap<>();
+        try (PreparedStatement deleteStatement = connection.prepareStatement(delete);
+                PreparedStatement insertStatement = connection.prepareStatement(insert)) {
+            final boolean deleteOneByOne = updateCountsUnknown;
+            final List<String> batched = new ArrayList<>();
+            boolean inserts = false;
+            for (Update update : updates) {
+                if (deleteOneByOne && counted.contains(update.key())) {
+                    setKey(deleteStatement, update);
+                    existed.put(update.key(), deleteStatement.executeUpdate() > 0);
+                }
+            }
+            for (Update update : updates) {
+                if (!deleteOneByOne || !counted.contains(update.key())) {
+                    setKey(deleteStatement, update);
+                    deleteStatement.addBatch();
+                    batched.add(update.key());
+                }
+                if (update.state != null) {
+                    setKey(insertStatement, update);
+                    insertStatement.setBytes(4, update.state);
+                    insertStatement.addBatch();
+                    inserts = true;
+                }
+            }
+            if (!batched.isEmpty()) {
+                final int[] deleted = deleteStatement.executeBatch();
+                for (int i = 0; i < batched.size(); i++) {
+                    final String key = batched.get(i);
+                    if (!counted.contains(key)) {
+                        continue;
+                    }
+                    if (deleted[i] == Statement.SUCCESS_NO_INFO) {
+                        updateCountsUnknown = true;
+                        throw new UpdateCountUnknownException();
+                    }
+                    existed.put(key, deleted[i] > 0);
+                }
+            }
+            if (inserts) {
+                insertStatement.executeBatch();
+            }
+        }
+        return existed;
+    }
+
+    private static void setKey(PreparedStatement statement, Update update) throws SQLException {
+        statement.setString(1, update.uid);
+        statement.setString(2, update.typeName);
+        statement.setInt(3, update.stateType);
+    }
+
+    private <T> T inTransaction(Connection connection, SqlWork<T> work) throws SQLException {
+        final boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            final T result = work.run();
+            connection.commit();
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    private boolean tableExists(Connection connection) {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeQuery("SELECT StateType FROM " + tableName + " WHERE 1 = 0").close();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void dropTable(Connection connection) {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DROP TABLE " + tableName);
+        } catch (SQLException e) {
+            log.debug("Object store table " + tableName + " not dropped: " + e.getMessage());
+        }
+    }
+
+    private void createTable(Connection connection) throws SQLException {
+        log.info("Creating the object store table " + tableName);
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE " + tableName + " (UidString VARCHAR(255) NOT NULL,"
+                    + " TypeName VARCHAR(255) NOT NULL, StateType INTEGER NOT NULL, Hidden INTEGER NOT NULL, ObjectState "
+                    + getBinaryType(connection.getMetaData()) + ", PRIMARY KEY (UidString, TypeName, StateType))");
+            statement.executeUpdate("CREATE INDEX " + tableName + "_T ON " + tableName + " (TypeName)");
+        }
+    }
+
+    private static String getBinaryType(DatabaseMetaData metaData) throws SQLException {
+        final String product = metaData.getDatabaseProductName().toLowerCase(Locale.ENGLISH);
+        if (product.contains("postgres")) {
+            return "BYTEA";
+        } else if (product.contains("sql server")) {
+            return "VARBINARY(MAX)";
+        } else if (product.contains("mysql") || product.contains("mariadb")) {
+            return "LONGBLOB";
+        }
+        return "BLOB";
+    }
+
+    private static String normalize(String typeName) {
+        return typeName.startsWith("/") ? typeName.substring(1) : typeName;
+    }
+
+    @FunctionalInterface
+    private interface SqlWork<T> {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Status of a record, combined from its committed and uncommitted rows.
+     */
+    private static final class RecordStatus {
+
+        private boolean committed;
+
+        private boolean uncommitted;
+
+        private boolean hidden;
+
+        void add(int stateType, int hidden) {
+            if (stateType == StateType.OS_SHADOW) {
+                uncommitted = true;
+            } else if (stateType == StateType.OS_ORIGINAL) {
+                committed = true;
+            }
+            this.hidden |= hidden != 0;
+        }
+
+        int get() {
+            if (uncommitted) {
+                return hidden ? StateStatus.OS_UNCOMMITTED_HIDDEN : StateStatus.OS_UNCOMMITTED;
+            } else if (committed) {
+                return hidden ? StateStatus.OS_COMMITTED_HIDDEN : StateStatus.OS_COMMITTED;
+            }
+            return StateStatus.OS_UNKNOWN;
+        }
+    }
+
+    /**
+     * Write, or removal if there is no state, of one record.
+     */
+    private static final class Update {
+
+        final String uid;
+
+        final String typeName;
+
+        final int stateType;
+
+        final byte[] state;
+
+        boolean done;
+
+        boolean resolved;
+
+        boolean result;
+
+        Exception failure;
+
+        Update(Uid uid, String typeName, int stateType, byte[] state) {
+            this.uid = uid.stringForm();
+            this.typeName = normalize(typeName);
+            this.stateType = stateType;
+            this.state = state;
+        }
+
+        String key() {
+            return uid + '/' + stateType + '/' + typeName;
+        }
+    }
+
+    /**
+     * The driver did not report how many rows a batched delete removed.
+     */
+    private static final class UpdateCountUnknownException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        UpdateCountUnknownException() {
+            super(null, null, false, false);
+        }
+    }
+}
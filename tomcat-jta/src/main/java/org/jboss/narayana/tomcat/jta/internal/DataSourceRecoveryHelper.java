@@ -0,0 +1,478 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import com.arjuna.ats.jta.recovery.XAResourceRecoveryHelper;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * {@link XAResourceRecoveryHelper} of a transactional data source which only holds a database connection for the length
+ * of a recovery pass.
+ * <p>
+ * The connection is opened when the {@code XARecoveryModule} asks for the resources at the start of a pass, and closed by
+ * {@link RecoveryPassModule} once all the recovery modules are done with their second pass. Opening the connection and
+ * scanning the resource for in-doubt transactions are given up after a timeout, so that an unreachable database does not
+ * block the recovery thread.
+ * <p>
+ * With parallel recovery, {@link RecoveryScanModule} calls {@link #scan(long)} on all the helpers at once before the
+ * {@code XARecoveryModule} pass. The module then gets the in-doubt transactions found by the scan, and a data source which
+ * could not be scanned hands no resource over for the rest of the pass.
+ * <p>
+ * A data source failing to be recovered pass after pass is skipped for a while, see {@link RecoveryCircuitBreaker}.
+ */
+public final class DataSourceRecoveryHelper implements XAResourceRecoveryHelper {
+
+    private static final Log log = LogFactory.getLog(DataSourceRecoveryHelper.class);
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(task -> {
+        final Thread thread = new Thread(task, "narayana-recovery-connection-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String name;
+
+    private final XADataSource xaDataSource;
+
+    private final String user;
+
+    private final String password;
+
+    private final long connectTimeoutMillis;
+
+    private final long recoverTimeoutMillis;
+
+    private final RecoveryCircuitBreaker circuitBreaker;
+
+    private final RecoveryXAResource recoveryResource = new RecoveryXAResource();
+
+    private XAConnection connection;
+
+    private XAResource passResource;
+
+    private Xid[] scannedXids;
+
+    private boolean scanServed;
+
+    private boolean passStarted;
+
+    private boolean leftOut;
+
+    /**
+     * @param name name of the data source, used in the log messages
+     * @param xaDataSource data source to open the recovery connections with
+     * @param user user to open the recovery connections with, {@code null} for the data source default
+     * @param password password of the user
+     * @param connectTimeoutMillis time after which opening a connection is given up, {@code 0} for no limit
+     * @param recoverTimeoutMillis time after which a scan for in-doubt transactions is given up, {@code 0} for no limit
+     */
+    public DataSourceRecoveryHelper(String name, XADataSource xaDataSource, String user, String password,
+            long connectTimeoutMillis, long recoverTimeoutMillis) {
+        this(name, xaDataSource, user, password, connectTimeoutMillis, recoverTimeoutMillis,
+                new RecoveryCircuitBreaker(name, 0, 0, 0, 0));
+    }
+
+    /**
+     * @param name name of the data source, used in the log messages
+     * @param xaDataSource data source to open the recovery connections with
+     * @param user user to open the recovery connections with, {@code null} for the data source default
+     * @param password password of the user
+     * @param connectTimeoutMillis time after which opening a connection is given up, {@code 0} for no limit
+     * @param recoverTimeoutMillis time after which a scan for in-doubt transactions is given up, {@code 0} for no limit
+     * @param circuitBreaker decides whether the data source is skipped by a recovery pass
+     */
+    public DataSourceRecoveryHelper(String name, XADataSource xaDataSource, String user, String password,
+            long connectTimeoutMillis, long recoverTimeoutMillis, RecoveryCircuitBreaker circuitBreaker) {
+        this.name = name;
+        this.xaDataSource = xaDataSource;
+        this.user = user;
+        this.password = password;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.recoverTimeoutMillis = recoverTimeoutMillis;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @Override
+    public boolean initialise(String p) throws Exception {
+        return true;
+    }
+
+    /**
+     * Open the connection of this recovery pass, unless it is open already, and hand its resource over.
+     * <p>
+     * The resource handed over is the same from one pass to the next, delegating to the connection of the current pass, so
+     * that the {@code XARecoveryModule} keeps track of the in-doubt transactions it has already seen.
+     */
+    @Override
+    public synchronized XAResource[] getXAResources() throws Exception {
+        if (!startPass()) {
+            return new XAResource[0];
+        }
+        if (connection == null) {
+            try {
+                openPassConnection(connectTimeoutMillis);
+            } catch (SQLException e) {
+                leftOut = true;
+                return new XAResource[0];
+            }
+        }
+        try {
+            passResource = connection.getXAResource();
+            return new XAResource[] {recoveryResource};
+        } catch (SQLException e) {
+            failed("Could not get the recovery resource of " + name, e);
+            leftOut = true;
+            abandonConnection();
+            return new XAResource[0];
+        }
+    }
+
+    /**
+     * Open the connection of this recovery pass and scan it for in-doubt transactions, which are handed over to the
+     * {@code XARecoveryModule} in place of its own scan.
+     *
+     * @param timeoutMillis time after which opening the connection and scanning it are given up, {@code 0} for no limit
+     *        but the connect and recover timeouts of the helper
+     * @return whether the data source could be scanned; if not, it is left out of the rest of the pass
+     */
+    public synchronized boolean scan(long timeoutMillis) {
+        if (!startPass()) {
+            return false;
+        }
+        final long deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+        try {
+            if (connection == null) {
+                openPassConnection(remainingMillis(deadline, connectTimeoutMillis));
+            }
+            scannedXids = recover(connection.getXAResource(), XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN,
+                    remainingMillis(deadline, recoverTimeoutMillis));
+            return true;
+        } catch (SQLException | XAException e) {
+            leftOut = true;
+            abandonConnection();
+            return false;
+        }
+    }
+
+    /**
+     * Decide whether the data source takes part in the current recovery pass, which it does unless its circuit breaker is
+     * open or it already failed in this pass.
+     *
+     * @return {@code false} if the data source is left out of the pass
+     */
+    public synchronized boolean startPass() {
+        if (!passStarted) {
+            passStarted = true;
+            leftOut = !circuitBreaker.allowAttempt();
+            RecoveryPassModule.passStarted(this);
+        }
+        return !leftOut;
+    }
+
+    /**
+     * Close the connection of the current recovery pass, if any, and forget the outcome of its scan.
+     */
+    public synchronized void endPass() {
+        scannedXids = null;
+        scanServed = false;
+        passStarted = false;
+        leftOut = false;
+        passResource = null;
+        if (connection == null) {
+            return;
+        }
+        closeQuietly(connection);
+        connection = null;
+    }
+
+    /**
+     * @return the circuit breaker deciding whether the data source is skipped by a recovery pass
+     */
+    public RecoveryCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return whether a recovery connection is currently open
+     */
+    public synchronized boolean isConnected() {
+        return connection != null;
+    }
+
+    @Override
+    public String toString() {
+        return DataSourceRecoveryHelper.class.getSimpleName() + "[" + name + "]";
+    }
+
+    private void openPassConnection(long timeoutMillis) throws SQLException {
+        try {
+            connection = connect(circuitBreaker.getConnectTimeoutMillis(timeoutMillis));
+        } catch (SQLException e) {
+            failed("Could not open a recovery connection to " + name, e);
+            throw e;
+        }
+    }
+
+    private XAConnection connect(long timeoutMillis) throws SQLException {
+        final Connect connect = new Connect();
+        if (timeoutMillis <= 0) {
+            return connect.call();
+        }
+        final Future<XAConnection> future = executor.submit(connect);
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            final XAConnection late = connect.abandon();
+            if (late != null) {
+                return late;
+            }
+            future.cancel(true);
+            throw new SQLTimeoutException("Could not open a recovery connection to " + name + " within "
+                    + timeoutMillis + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            connect.abandon();
+            throw new SQLException("Interrupted while opening a recovery connection to " + name, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Could not open a recovery connection to " + name, e.getCause());
+        }
+    }
+
+    private Xid[] recover(XAResource xaResource, int flag, long timeoutMillis) throws XAException {
+        try {
+            final Xid[] xids = timedRecover(xaResource, flag, timeoutMillis);
+            circuitBreaker.recordSuccess();
+            return xids;
+        } catch (XAException e) {
+            failed("Could not scan " + name + " for in-doubt transactions", e);
+            throw e;
+        }
+    }
+
+    private Xid[] timedRecover(XAResource xaResource, int flag, long timeoutMillis) throws XAException {
+        if (timeoutMillis <= 0) {
+            return xaResource.recover(flag);
+        }
+        final Future<Xid[]> future = executor.submit(() -> xaResource.recover(flag));
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            abandonConnection();
+            final XAException xaException = new XAException("Timed out after " + timeoutMillis + " ms");
+            xaException.errorCode = XAException.XAER_RMFAIL;
+            throw xaException;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XAException(XAException.XAER_RMFAIL);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof XAException) {
+                throw (XAException) e.getCause();
+            }
+            final XAException xaException = new XAException(XAException.XAER_RMERR);
+            xaException.initCause(e.getCause());
+            throw xaException;
+        }
+    }
+
+    /**
+     * Record a failed recovery attempt, with a warning unless the data source was already known to fail.
+     */
+    private void failed(String message, Exception e) {
+        if (circuitBreaker.recordFailure()) {
+            log.warn(message, e);
+        } else if (log.isDebugEnabled()) {
+            log.debug(message, e);
+        }
+    }
+
+    /**
+     * @return the smaller of the time left before the deadline and the limit, at least one millisecond
+     */
+    private static long remainingMillis(long deadline, long limitMillis) {
+        if (deadline == 0) {
+            return limitMillis;
+        }
+        final long remaining = Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        return limitMillis > 0 ? Math.min(limitMillis, remaining) : remaining;
+    }
+
+    private XAConnection openConnection() throws SQLException {
+        if (user != null && password != null) {
+            return xaDataSource.getXAConnection(user, password);
+        }
+        return xaDataSource.getXAConnection();
+    }
+
+    /**
+     * Close the connection of the current recovery pass in the background, as closing a connection whose database does
+     * not answer may block as well.
+     */
+    private void abandonConnection() {
+        final XAConnection abandoned;
+        synchronized (this) {
+            abandoned = connection;
+            connection = null;
+            passResource = null;
+        }
+        if (abandoned != null) {
+            executor.execute(() -> closeQuietly(abandoned));
+        }
+    }
+
+    private void closeQuietly(XAConnection xaConnection) {
+        try {
+            xaConnection.close();
+        } catch (SQLException e) {
+            log.warn("Could not close the recovery connection of " + name, e);
+        }
+    }
+
+    /**
+     * Opens a connection, and closes it straight away if it comes after the caller gave up waiting for it.
+     */
+    private final class Connect implements Callable<XAConnection> {
+
+        private boolean abandoned;
+
+        private XAConnection opened;
+
+        @Override
+        public XAConnection call() throws SQLException {
+            final XAConnection xaConnection = openConnection();
+            synchronized (this) {
+                if (!abandoned) {
+                    opened = xaConnection;
+                    return xaConnection;
+                }
+            }
+            closeQuietly(xaConnection);
+            return null;
+        }
+
+        /**
+         * @return the connection if it was opened in the meantime, in which case the caller keeps it
+         */
+        synchronized XAConnection abandon() {
+            abandoned = true;
+            return opened;
+        }
+    }
+
+    /**
+     * Resource of the recovery connections, delegating to the connection of the current pass. Its scan for in-doubt
+     * transactions is given up after a timeout, and the connection is dropped then, as the database may still be busy
+     * answering.
+     */
+    private final class RecoveryXAResource implements XAResource {
+
+        /**
+         * @return the resource of the connection of the current pass
+         * @throws XAException if the helper holds no connection
+         */
+        private XAResource delegate() throws XAException {
+            synchronized (DataSourceRecoveryHelper.this) {
+                if (passResource == null) {
+                    throw new XAException(XAException.XAER_RMFAIL);
+                }
+                return passResource;
+            }
+        }
+
+        @Override
+        public Xid[] recover(int flag) throws XAException {
+            synchronized (DataSourceRecoveryHelper.this) {
+                if ((flag & XAResource.TMSTARTRSCAN) != 0 && scannedXids != null) {
+                    final Xid[] xids = scannedXids;
+                    scannedXids = null;
+                    scanServed = true;
+                    return xids;
+                }
+                if (flag == XAResource.TMENDRSCAN && scanServed) {
+                    return new Xid[0];
+                }
+            }
+            return DataSourceRecoveryHelper.this.recover(delegate(), flag, recoverTimeoutMillis);
+        }
+
+        @Override
+        public void commit(Xid xid, boolean onePhase) throws XAException {
+            delegate().commit(xid, onePhase);
+        }
+
+        @Override
+        public void rollback(Xid xid) throws XAException {
+            delegate().rollback(xid);
+        }
+
+        @Override
+        public void forget(Xid xid) throws XAException {
+            delegate().forget(xid);
+        }
+
+        @Override
+        public void start(Xid xid, int flags) throws XAException {
+            delegate().start(xid, flags);
+        }
+
+        @Override
+        public void end(Xid xid, int flags) throws XAException {
+            delegate().end(xid, flags);
+        }
+
+        @Override
+        public int prepare(Xid xid) throws XAException {
+            return delegate().prepare(xid);
+        }
+
+        /**
+         * The resource is the same resource manager as itself in any pass, without asking the database. Other resources
+         * are compared by the connection of the current pass.
+         */
+        @Override
+        public boolean isSameRM(XAResource xaResource) throws XAException {
+            if (xaResource == this) {
+                return true;
+            }
+            if (xaResource instanceof RecoveryXAResource) {
+                return delegate().isSameRM(((RecoveryXAResource) xaResource).delegate());
+            }
+            return delegate().isSameRM(xaResource);
+        }
+
+        @Override
+        public int getTransactionTimeout() throws XAException {
+            return delegate().getTransactionTimeout();
+        }
+
+        @Override
+        public boolean setTransactionTimeout(int seconds) throws XAException {
+            return delegate().setTransactionTimeout(seconds);
+        }
+    }
+}
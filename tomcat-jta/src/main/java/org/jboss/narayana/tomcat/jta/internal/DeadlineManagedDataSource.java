@@ -0,0 +1,374 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import com.arjuna.ats.internal.arjuna.coordinator.ReaperWorkerThread;
+import com.arjuna.ats.internal.jta.transaction.arjunacore.TransactionImple;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.dbcp.dbcp2.ConnectionFactory;
+import org.apache.tomcat.dbcp.dbcp2.DelegatingConnection;
+import org.apache.tomcat.dbcp.dbcp2.PoolableConnection;
+import org.apache.tomcat.dbcp.dbcp2.PoolableConnectionFactory;
+import org.apache.tomcat.dbcp.dbcp2.PoolingDataSource;
+import org.apache.tomcat.dbcp.dbcp2.managed.BasicManagedDataSource;
+import org.apache.tomcat.dbcp.dbcp2.managed.ManagedDataSource;
+import org.apache.tomcat.dbcp.dbcp2.managed.TransactionRegistry;
+import org.apache.tomcat.dbcp.dbcp2.managed.XAConnectionFactory;
+import org.apache.tomcat.dbcp.pool2.impl.AbandonedConfig;
+import org.apache.tomcat.dbcp.pool2.impl.GenericObjectPool;
+import org.apache.tomcat.dbcp.pool2.impl.GenericObjectPoolConfig;
+
+/**
+ * Managed data source bounding the work of a transaction by the time it has left before the reaper rolls it back.
+ * <p>
+ * When {@link #setTransactionDeadline(boolean) enabled}, a thread running a transaction with a timeout waits for a pooled
+ * connection at most until the transaction times out, and the statements of the connections it gets have a query timeout
+ * no longer than the time left when the connection was handed out. A thread whose transaction has already timed out gets
+ * no connection at all. Under overload, threads then fail fast instead of queuing behind transactions which are going to
+ * be rolled back anyway.
+ * <p>
+ * When {@link #enableReaperAbort(String) enabled}, the pooled connections borrowed in a transaction are aborted and
+ * removed from the pool if the reaper times the transaction out while they are still in use. A thread stuck in a driver
+ * call then gets an error, and the pool replaces the connection without waiting for that thread to close its handle.
+ * <p>
+ * The initial connections of the pool can be {@link #prewarm(String, int, long, Runnable) opened} from several threads.
+ */
+public class DeadlineManagedDataSource extends BasicManagedDataSource implements ReaperAbortMXBean, SharedDataSource {
+
+    private static final Log log = LogFactory.getLog(DeadlineManagedDataSource.class);
+
+    private static final String OBJECT_NAME_PREFIX = "org.jboss.narayana.tomcat:type=ReaperAbort,name=";
+
+    /**
+     * Runs the clean up of an aborted connection away from the reaper.
+     */
+    private static final Executor ABORT_EXECUTOR = command -> {
+        final Thread thread = new Thread(command, "narayana-connection-abort");
+        thread.setDaemon(true);
+        thread.start();
+    };
+
+    private final SharedDataSourceSupport shared = new SharedDataSourceSupport();
+
+    private final Object abortKey = new Object();
+
+    private final AtomicLong abortedConnectionCount = new AtomicLong();
+
+    private final AtomicLong abortFailureCount = new AtomicLong();
+
+    private volatile boolean transactionDeadline;
+
+    private volatile String reaperAbortName;
+
+    private volatile PoolPrewarm prewarm;
+
+    private volatile XAConnectionFactory xaConnectionFactory;
+
+    /**
+     * Connection opened by a prewarm thread, handed to the pool factory when that thread adds it to the pool.
+     */
+    private final ThreadLocal<Connection> prewarmedConnection = new ThreadLocal<>();
+
+    /**
+     * @return whether the time left in the transaction of the thread bounds the borrow wait and the query timeout
+     */
+    public boolean isTransactionDeadline() {
+        return transactionDeadline;
+    }
+
+    /**
+     * @param transactionDeadline whether the time left in the transaction of the thread bounds the borrow wait and the
+     *        query timeout
+     */
+    public void setTransactionDeadline(boolean transactionDeadline) {
+        this.transactionDeadline = transactionDeadline;
+    }
+
+    /**
+     * Abort the connections still in use by transactions the reaper times out, and register the management interface.
+     *
+     * @param name name of the data source in the management interface
+     */
+    public void enableReaperAbort(String name) {
+        reaperAbortName = name;
+        MBeanSupport.register(MBeanSupport.objectName(OBJECT_NAME_PREFIX, name), this, ReaperAbortMXBean.class);
+    }
+
+    /**
+     * Create the pool and start opening its initial connections from several threads, see {@link PoolPrewarm}.
+     *
+     * @param name name of the data source in the management interface
+     * @param concurrency maximum number of connections being opened at once
+     * @param timeoutMillis time after which no connection is opened anymore, {@code 0} for no deadline
+     * @param onComplete run once the opening of connections has ended
+     * @return the progress of the opening of connections
+     */
+    public synchronized PoolPrewarm prewarm(String name, int concurrency, long timeoutMillis, Runnable onComplete)
+            throws SQLException {
+        // the initial connections would be opened one after the other by the creation of the pool
+        final int initialSize = getInitialSize();
+        setInitialSize(0);
+        try {
+            start();
+        } finally {
+            setInitialSize(initialSize);
+        }
+        prewarm = new PoolPrewarm(name, this::addPrewarmedConnection, initialSize, concurrency, timeoutMillis);
+        prewarm.start(onComplete);
+        return prewarm;
+    }
+
+    /**
+     * Open a connection and add it to the pool. The pool factory creates its connections one at a time, so the connection
+     * is opened beforehand and only handed to it.
+     */
+    private void addPrewarmedConnection() throws Exception {
+        prewarmedConnection.set(xaConnectionFactory.createConnection());
+        try {
+            getConnectionPool().addObject();
+        } finally {
+            final Connection unused = prewarmedConnection.get();
+            if (unused != null) {
+                // the pool is full
+                prewarmedConnection.remove();
+                unused.close();
+            }
+        }
+    }
+
+    /**
+     * @return the progress of the opening of the initial connections, {@code null} if they are opened by the creation of
+     *         the pool
+     */
+    public PoolPrewarm getPrewarm() {
+        return prewarm;
+    }
+
+    @Override
+    public long getAbortedConnectionCount() {
+        return abortedConnectionCount.get();
+    }
+
+    @Override
+    public long getAbortFailureCount() {
+        return abortFailureCount.get();
+    }
+
+    @Override
+    public boolean retain() {
+        return shared.retain();
+    }
+
+    @Override
+    public void addCloseListener(Runnable listener) {
+        shared.addCloseListener(listener);
+    }
+
+    /**
+     * Close the pool and unregister the management interfaces, once each user of the data source has closed it.
+     */
+    @Override
+    public synchronized void close() throws SQLException {
+        if (!shared.release()) {
+            return;
+        }
+        if (prewarm != null) {
+            prewarm.stop();
+        }
+        final String name = reaperAbortName;
+        if (name != null) {
+            MBeanSupport.unregister(MBeanSupport.objectName(OBJECT_NAME_PREFIX, name));
+        }
+        try {
+            super.close();
+        } finally {
+            shared.closed();
+        }
+    }
+
+    /**
+     * Replace the pool, without counting as a user closing the data source.
+     */
+    @Override
+    public synchronized void restart() throws SQLException {
+        super.close();
+        start();
+    }
+
+    @Override
+    protected ConnectionFactory createConnectionFactory() throws SQLException {
+        final XAConnectionFactory factory = (XAConnectionFactory) super.createConnectionFactory();
+        xaConnectionFactory = factory;
+        return new XAConnectionFactory() {
+            @Override
+            public Connection createConnection() throws SQLException {
+                final Connection connection = prewarmedConnection.get();
+                if (connection != null) {
+                    prewarmedConnection.remove();
+                    return connection;
+                }
+                return factory.createConnection();
+            }
+
+            @Override
+            public TransactionRegistry getTransactionRegistry() {
+                return factory.getTransactionRegistry();
+            }
+        };
+    }
+
+    @Override
+    protected GenericObjectPool<PoolableConnection> createObjectPool(PoolableConnectionFactory factory,
+            GenericObjectPoolConfig<PoolableConnection> poolConfig, AbandonedConfig abandonedConfig) {
+        final boolean removeAbandoned = abandonedConfig != null && (abandonedConfig.getRemoveAbandonedOnBorrow()
+                || abandonedConfig.getRemoveAbandonedOnMaintenance());
+        return new DeadlinePool(factory, poolConfig, removeAbandoned ? abandonedConfig : null);
+    }
+
+    @Override
+    protected DataSource createDataSourceInstance() throws SQLException {
+        final PoolingDataSource<?> dataSource = new ManagedDataSource<PoolableConnection>(getConnectionPool(),
+                getTransactionRegistry()) {
+            @Override
+            public Connection getConnection() throws SQLException {
+                final Connection connection = super.getConnection();
+                final long remaining = getRemainingMillis();
+                if (remaining > 0) {
+                    final Duration queryTimeout = Duration.ofSeconds((remaining + 999) / 1000);
+                    final Duration configured = getDefaultQueryTimeoutDuration();
+                    if (configured == null || configured.isZero() || configured.compareTo(queryTimeout) > 0) {
+                        ((DelegatingConnection<?>) connection).setDefaultQueryTimeout(queryTimeout);
+                    }
+                }
+                return connection;
+            }
+        };
+        dataSource.setAccessToUnderlyingConnectionAllowed(isAccessToUnderlyingConnectionAllowed());
+        return dataSource;
+    }
+
+    /**
+     * @return milliseconds left before the transaction of the thread times out, {@code 0} if the feature is disabled or
+     *         the thread has no transaction with a timeout, a negative value if the transaction has timed out
+     */
+    long getRemainingMillis() throws SQLException {
+        if (!transactionDeadline) {
+            return 0;
+        }
+        try {
+            final Transaction transaction = getTransactionManager().getTransaction();
+            if (transaction instanceof TransactionImple) {
+                final long remaining = ((TransactionImple) transaction).getRemainingTimeoutMills();
+                // the reaper reports an expired but not yet reaped transaction as 0 left
+                return remaining == 0 && ((TransactionImple) transaction).getTimeout() > 0 ? -1 : remaining;
+            }
+            return 0;
+        } catch (SystemException e) {
+            throw new SQLException("Cannot get the transaction of the thread", e);
+        }
+    }
+
+    /**
+     * Remember a connection borrowed in the transaction of the thread, to abort it if the reaper times the transaction out.
+     */
+    private void trackForAbort(PoolableConnection connection) {
+        final TransactionSynchronizationRegistry tsr = getTransactionSynchronizationRegistry();
+        if (reaperAbortName == null || tsr == null || tsr.getTransactionKey() == null) {
+            return;
+        }
+        try {
+            @SuppressWarnings("unchecked")
+            List<PoolableConnection> connections = (List<PoolableConnection>) tsr.getResource(abortKey);
+            if (connections == null) {
+                final List<PoolableConnection> borrowed = new CopyOnWriteArrayList<>();
+                tsr.registerInterposedSynchronization(new Synchronization() {
+                    @Override
+                    public void beforeCompletion() {
+                    }
+
+                    @Override
+                    public void afterCompletion(int status) {
+                        // the reaper cancels timed out transactions from its worker thread
+                        if (status == Status.STATUS_ROLLEDBACK && Thread.currentThread() instanceof ReaperWorkerThread) {
+                            abort(borrowed);
+                        }
+                    }
+                });
+                tsr.putResource(abortKey, borrowed);
+                connections = borrowed;
+            }
+            connections.add(connection);
+        } catch (IllegalStateException e) {
+            // the transaction is no longer active, enlisting the connection is going to fail anyway
+        }
+    }
+
+    private void abort(List<PoolableConnection> connections) {
+        for (PoolableConnection connection : connections) {
+            try {
+                if (connection.isClosed()) {
+                    // already given back to the pool
+                    continue;
+                }
+                connection.getInnermostDelegateInternal().abort(ABORT_EXECUTOR);
+                getConnectionPool().invalidateObject(connection);
+                abortedConnectionCount.incrementAndGet();
+            } catch (Exception e) {
+                abortFailureCount.incrementAndGet();
+                log.warn("Could not abort a connection of " + reaperAbortName + " after its transaction timed out", e);
+            }
+        }
+    }
+
+    /**
+     * Pool capping the wait of a borrow at the time left in the transaction of the thread.
+     */
+    private final class DeadlinePool extends GenericObjectPool<PoolableConnection> {
+
+        DeadlinePool(PoolableConnectionFactory factory, GenericObjectPoolConfig<PoolableConnection> poolConfig,
+                AbandonedConfig abandonedConfig) {
+            super(factory, poolConfig, abandonedConfig);
+        }
+
+        @Override
+        public PoolableConnection borrowObject() throws Exception {
+            final PoolableConnection connection = borrowWithinDeadline();
+            trackForAbort(connection);
+            return connection;
+        }
+
+        private PoolableConnection borrowWithinDeadline() throws Exception {
+            final long remaining = getRemainingMillis();
+            if (remaining == 0) {
+                return super.borrowObject();
+            }
+            if (remaining < 0) {
+                throw new NoSuchElementException("The transaction of the thread has timed out");
+            }
+            final Duration maxWait = getMaxWaitDuration();
+            if (maxWait.isNegative() || maxWait.toMillis() > remaining) {
+                return super.borrowObject(Duration.ofMillis(remaining));
+            }
+            return super.borrowObject();
+        }
+    }
+}
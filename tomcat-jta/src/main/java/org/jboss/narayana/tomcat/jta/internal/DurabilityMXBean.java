@@ -0,0 +1,31 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+/**
+ * Management interface of the {@link DurabilityRoutingObjectStore}.
+ */
+public interface DurabilityMXBean {
+
+    /**
+     * @return number of transactions marked as relaxed
+     */
+    long getRelaxedTransactionCount();
+
+    /**
+     * @return number of relaxed transactions which are not completed yet
+     */
+    int getActiveRelaxedTransactionCount();
+
+    /**
+     * @return number of records written to the durable store
+     */
+    long getDurableWriteCount();
+
+    /**
+     * @return number of records written to the relaxed store, without a sync
+     */
+    long getRelaxedWriteCount();
+}
@@ -0,0 +1,383 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.io.IOException;
+import java.io.SyncFailedException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.exceptions.ObjectStoreException;
+import com.arjuna.ats.arjuna.objectstore.ObjectStoreAPI;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.arjuna.state.OutputObjectState;
+import com.arjuna.ats.internal.arjuna.common.UidHelper;
+import com.arjuna.ats.internal.arjuna.objectstore.ShadowNoFileLockStore;
+
+/**
+ * Object store keeping the records of relaxed transactions apart from the durable ones.
+ * <p>
+ * The records of the transactions marked as relaxed with {@link #relax(Uid)} are written to a file store which is not
+ * synced, the page cache of the operating system writes them out lazily. The records of the other transactions go to the
+ * durable store, created from {@link #setDelegateType(String)}. A crash of the machine, not only of the JVM, may lose
+ * the records of relaxed transactions, which then need a manual clean up of their resources.
+ * <p>
+ * Recovery sees the records of both stores. Records of transactions which are not relaxed, or not any more, are looked up
+ * in the durable store first, then in the relaxed one.
+ * <p>
+ * The counters of both durability classes are published as a {@link DurabilityMXBean}.
+ */
+public class DurabilityRoutingObjectStore implements ObjectStoreAPI, DurabilityMXBean {
+
+    public static final String OBJECT_NAME_PREFIX = "org.jboss.narayana.tomcat:type=Durability,name=";
+
+    /**
+     * Appended to {@code ObjectStoreEnvironmentBean.localOSRoot} for the root of the relaxed store.
+     */
+    public static final String RELAXED_ROOT_SUFFIX = "Relaxed";
+
+    private static final Set<Uid> relaxedTransactions = ConcurrentHashMap.newKeySet();
+
+    private static final AtomicLong relaxedTransactionCount = new AtomicLong();
+
+    private static volatile boolean enabled;
+
+    private static volatile String delegateType = ShadowNoFileLockStore.class.getName();
+
+    private final ObjectStoreAPI durable;
+
+    private final ObjectStoreAPI relaxed;
+
+    private final AtomicLong durableWriteCount = new AtomicLong();
+
+    private final AtomicLong relaxedWriteCount = new AtomicLong();
+
+    /**
+     * Create the store with a durable store of the type set with {@link #setDelegateType(String)}, and a relaxed
+     * {@link ShadowNoFileLockStore} in the same object store directory.
+     *
+     * @param environmentBean settings of the store, passed on to the durable store
+     * @throws ObjectStoreException if a store cannot be created
+     */
+    public DurabilityRoutingObjectStore(ObjectStoreEnvironmentBean environmentBean) throws ObjectStoreException {
+        this(createDelegate(environmentBean), new ShadowNoFileLockStore(createRelaxedEnvironmentBean(environmentBean)));
+    }
+
+    /**
+     * @param durable store of the records of durable transactions
+     * @param relaxed store of the records of relaxed transactions
+     */
+    public DurabilityRoutingObjectStore(ObjectStoreAPI durable, ObjectStoreAPI relaxed) {
+        this.durable = durable;
+        this.relaxed = relaxed;
+    }
+
+    /**
+     * @param type class name of the durable object store, {@link ShadowNoFileLockStore} by default
+     */
+    public static void setDelegateType(String type) {
+        delegateType = type;
+    }
+
+    /**
+     * @return class name of the durable object store
+     */
+    public static String getDelegateType() {
+        return delegateType;
+    }
+
+    /**
+     * @param enabled {@code true} if the transaction log is kept by this store, so that transactions can be relaxed
+     */
+    public static void setEnabled(boolean enabled) {
+        DurabilityRoutingObjectStore.enabled = enabled;
+    }
+
+    /**
+     * @return {@code true} if transactions can be relaxed
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Write the records of a transaction to the relaxed store from now on, until {@link #complete(Uid)}.
+     *
+     * @param uid the transaction
+     * @return {@code false} if relaxed transactions are not enabled
+     */
+    public static boolean relax(Uid uid) {
+        if (!enabled) {
+            return false;
+        }
+        if (relaxedTransactions.add(uid)) {
+            relaxedTransactionCount.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Forget a completed transaction. Its remaining records, if any, are still found in the relaxed store.
+     *
+     * @param uid the transaction
+     */
+    public static void complete(Uid uid) {
+        relaxedTransactions.remove(uid);
+    }
+
+    /**
+     * @param uid the transaction
+     * @return {@code true} if the transaction is relaxed and not completed
+     */
+    public static boolean isRelaxed(Uid uid) {
+        return relaxedTransactions.contains(uid);
+    }
+
+    @Override
+    public void start() {
+        durable.start();
+        relaxed.start();
+        registerMBean();
+    }
+
+    @Override
+    public void stop() {
+        unregisterMBean();
+        relaxed.stop();
+        durable.stop();
+    }
+
+    @Override
+    public boolean fullCommitNeeded() {
+        return durable.fullCommitNeeded();
+    }
+
+    @Override
+    public void sync() throws SyncFailedException, ObjectStoreException {
+        durable.sync();
+        relaxed.sync();
+    }
+
+    @Override
+    public String getStoreName() {
+        return durable.getStoreName();
+    }
+
+    @Override
+    public boolean isType(Uid uid, String typeName, int stateType) throws ObjectStoreException {
+        if (isRelaxed(uid)) {
+            return relaxed.isType(uid, typeName, stateType);
+        }
+        return durable.isType(uid, typeName, stateType) || relaxed.isType(uid, typeName, stateType);
+    }
+
+    @Override
+    public int currentState(Uid uid, String typeName) throws ObjectStoreException {
+        if (isRelaxed(uid)) {
+            return relaxed.currentState(uid, typeName);
+        }
+        final int state = durable.currentState(uid, typeName);
+        return state != StateStatus.OS_UNKNOWN ? state : relaxed.currentState(uid, typeName);
+    }
+
+    @Override
+    public boolean commit_state(Uid uid, String typeName) throws ObjectStoreException {
+        return storeOf(uid, typeName).commit_state(uid, typeName);
+    }
+
+    @Override
+    public boolean hide_state(Uid uid, String typeName) throws ObjectStoreException {
+        return storeOf(uid, typeName).hide_state(uid, typeName);
+    }
+
+    @Override
+    public boolean reveal_state(Uid uid, String typeName) throws ObjectStoreException {
+        return storeOf(uid, typeName).reveal_state(uid, typeName);
+    }
+
+    @Override
+    public InputObjectState read_committed(Uid uid, String typeName) throws ObjectStoreException {
+        if (isRelaxed(uid)) {
+            return relaxed.read_committed(uid, typeName);
+        }
+        final InputObjectState state = durable.read_committed(uid, typeName);
+        return state != null ? state : relaxed.read_committed(uid, typeName);
+    }
+
+    @Override
+    public InputObjectState read_uncommitted(Uid uid, String typeName) throws ObjectStoreException {
+        if (isRelaxed(uid)) {
+            return relaxed.read_uncommitted(uid, typeName);
+        }
+        final InputObjectState state = durable.read_uncommitted(uid, typeName);
+        return state != null ? state : relaxed.read_uncommitted(uid, typeName);
+    }
+
+    @Override
+    public boolean remove_committed(Uid uid, String typeName) throws ObjectStoreException {
+        return storeOf(uid, typeName).remove_committed(uid, typeName);
+    }
+
+    @Override
+    public boolean remove_uncommitted(Uid uid, String typeName) throws ObjectStoreException {
+        return storeOf(uid, typeName).remove_uncommitted(uid, typeName);
+    }
+
+    @Override
+    public boolean write_committed(Uid uid, String typeName, OutputObjectState state) throws ObjectStoreException {
+        if (isRelaxed(uid)) {
+            relaxedWriteCount.incrementAndGet();
+            return relaxed.write_committed(uid, typeName, state);
+        }
+        durableWriteCount.incrementAndGet();
+        return durable.write_committed(uid, typeName, state);
+    }
+
+    @Override
+    public boolean write_uncommitted(Uid uid, String typeName, OutputObjectState state) throws ObjectStoreException {
+        if (isRelaxed(uid)) {
+            relaxedWriteCount.incrementAndGet();
+            return relaxed.write_uncommitted(uid, typeName, state);
+        }
+        durableWriteCount.incrementAndGet();
+        return durable.write_uncommitted(uid, typeName, state);
+    }
+
+    @Override
+    public boolean allObjUids(String typeName, InputObjectState state) throws ObjectStoreException {
+        return allObjUids(typeName, state, StateStatus.OS_UNKNOWN);
+    }
+
+    @Override
+    public boolean allObjUids(String typeName, InputObjectState state, int match) throws ObjectStoreException {
+        final InputObjectState durableUids = new InputObjectState();
+        final InputObjectState relaxedUids = new InputObjectState();
+        if (!durable.allObjUids(typeName, durableUids, match) | !relaxed.allObjUids(typeName, relaxedUids, match)) {
+            return false;
+        }
+
+        final Set<Uid> uids = new LinkedHashSet<>();
+        final OutputObjectState all = new OutputObjectState();
+        try {
+            for (InputObjectState store : new InputObjectState[] {durableUids, relaxedUids}) {
+                for (Uid uid = UidHelper.unpackFrom(store); uid.notEquals(Uid.nullUid()); uid = UidHelper.unpackFrom(store)) {
+                    uids.add(uid);
+                }
+            }
+            for (Uid uid : uids) {
+                UidHelper.packInto(uid, all);
+            }
+            UidHelper.packInto(Uid.nullUid(), all);
+        } catch (IOException e) {
+            throw new ObjectStoreException("Cannot merge the Uids of " + typeName, e);
+        }
+        state.setBuffer(all.buffer());
+        return true;
+    }
+
+    @Override
+    public boolean allTypes(InputObjectState state) throws ObjectStoreException {
+        final InputObjectState durableTypes = new InputObjectState();
+        final InputObjectState relaxedTypes = new InputObjectState();
+        if (!durable.allTypes(durableTypes) | !relaxed.allTypes(relaxedTypes)) {
+            return false;
+        }
+
+        final Set<String> types = new LinkedHashSet<>();
+        final OutputObjectState all = new OutputObjectState();
+        try {
+            for (InputObjectState store : new InputObjectState[] {durableTypes, relaxedTypes}) {
+                for (String type = unpackType(store); !type.isEmpty(); type = unpackType(store)) {
+                    types.add(type);
+                }
+            }
+            for (String type : types) {
+                all.packString(type);
+            }
+            all.packString("");
+        } catch (IOException e) {
+            throw new ObjectStoreException("Cannot merge the types of the object stores", e);
+        }
+        state.setBuffer(all.buffer());
+        return true;
+    }
+
+    @Override
+    public long getRelaxedTransactionCount() {
+        return relaxedTransactionCount.get();
+    }
+
+    @Override
+    public int getActiveRelaxedTransactionCount() {
+        return relaxedTransactions.size();
+    }
+
+    @Override
+    public long getDurableWriteCount() {
+        return durableWriteCount.get();
+    }
+
+    @Override
+    public long getRelaxedWriteCount() {
+        return relaxedWriteCount.get();
+    }
+
+    /**
+     * @return the store holding the record: the relaxed store for relaxed transactions, otherwise the durable one unless
+     *         only the relaxed store has it
+     */
+    private ObjectStoreAPI storeOf(Uid uid, String typeName) throws ObjectStoreException {
+        if (isRelaxed(uid)) {
+            return relaxed;
+        }
+        if (durable.currentState(uid, typeName) == StateStatus.OS_UNKNOWN
+                && relaxed.currentState(uid, typeName) != StateStatus.OS_UNKNOWN) {
+            return relaxed;
+        }
+        return durable;
+    }
+
+    /**
+     * @return the next type of the list, or an empty string at its end or if the store did not pack any list
+     */
+    private static String unpackType(InputObjectState state) throws IOException {
+        if (state.length() == 0) {
+            return "";
+        }
+        final String type = state.unpackString();
+        return type == null ? "" : type;
+    }
+
+    private static ObjectStoreEnvironmentBean createRelaxedEnvironmentBean(ObjectStoreEnvironmentBean environmentBean) {
+        final ObjectStoreEnvironmentBean relaxedBean = new ObjectStoreEnvironmentBean();
+        relaxedBean.setObjectStoreDir(environmentBean.getObjectStoreDir());
+        relaxedBean.setLocalOSRoot(environmentBean.getLocalOSRoot() + RELAXED_ROOT_SUFFIX);
+        relaxedBean.setObjectStoreSync(false);
+        relaxedBean.setTransactionSync(false);
+        return relaxedBean;
+    }
+
+    private static ObjectStoreAPI createDelegate(ObjectStoreEnvironmentBean environmentBean) throws ObjectStoreException {
+        try {
+            return (ObjectStoreAPI) Class.forName(delegateType).getConstructor(ObjectStoreEnvironmentBean.class)
+                    .newInstance(environmentBean);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new ObjectStoreException("Cannot create the object store " + delegateType, e);
+        }
+    }
+
+    private void registerMBean() {
+        MBeanSupport.register(MBeanSupport.objectName(OBJECT_NAME_PREFIX, getStoreName()), this, DurabilityMXBean.class);
+    }
+
+    private void unregisterMBean() {
+        MBeanSupport.unregister(MBeanSupport.objectName(OBJECT_NAME_PREFIX, getStoreName()));
+    }
+}
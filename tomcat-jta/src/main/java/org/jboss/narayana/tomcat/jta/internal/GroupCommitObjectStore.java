@@ -0,0 +1,880 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.SyncFailedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.exceptions.ObjectStoreException;
+import com.arjuna.ats.arjuna.objectstore.ObjectStoreAPI;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+import com.arjuna.ats.arjuna.objectstore.StateType;
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.arjuna.state.OutputObjectState;
+import com.arjuna.ats.internal.arjuna.common.UidHelper;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Object store appending its records to a preallocated log file, with group commit.
+ * <p>
+ * The updates of all threads are queued to a single writer thread, which appends everything queued since its last write
+ * and makes it durable with one fsync, so concurrent transactions share the cost of the disk flush. The updates queued
+ * while an fsync is running form the next batch. When the last fsync was shared, the writer also waits, for at most half
+ * an fsync, until as many updates as it made durable are queued again; a lone update is written at once.
+ * <p>
+ * Removals are acknowledged as soon as they are written, without waiting for an fsync: they are made durable by the next
+ * one, and a removal lost in a crash only makes recovery look at a transaction which had already completed.
+ * <p>
+ * The live records are kept in memory and served from there. When the log file is full, the live records are copied to a
+ * new log file, which replaces the old one. On start up the log is replayed up to the last complete record.
+ * <p>
+ * Batch sizes and fsync latencies are published as a {@link GroupCommitStoreMXBean}.
+ */
+public class GroupCommitObjectStore implements ObjectStoreAPI, GroupCommitStoreMXBean {
+
+    public static final String STORE_DIR = "GroupCommitStore";
+
+    public static final String OBJECT_NAME_PREFIX = "org.jboss.narayana.tomcat:type=GroupCommitStore,name=";
+
+    public static final long DEFAULT_LOG_FILE_SIZE = 16 * 1024 * 1024;
+
+    private static final Log log = LogFactory.getLog(GroupCommitObjectStore.class);
+
+    private static final long MAX_FLUSH_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long AWAIT_POLL_MILLIS = 100;
+
+    private static final String LOG_FILE_PREFIX = "log.";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+    private static final int ZEROES_SIZE = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final byte PUT = 1;
+
+    private static final byte DELETE = 2;
+
+    private static final byte HIDE = 3;
+
+    private static final byte REVEAL = 4;
+
+    private static final byte COMMIT = 5;
+
+    private final File directory;
+
+    private final Map<String, Map<String, Record>> records = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    private final AtomicLong batchCount = new AtomicLong();
+
+    private final AtomicLong recordCount = new AtomicLong();
+
+    private final AtomicLong maxBatchSize = new AtomicLong();
+
+    private final AtomicLong fsyncNanos = new AtomicLong();
+
+    private final AtomicLong maxFsyncNanos = new AtomicLong();
+
+    private volatile long flushWindowNanos;
+
+    private int expectedBatchSize = 1;
+
+    private final LogBuffer buffer = new LogBuffer();
+
+    private final Object submitLock = new Object();
+
+    private volatile boolean running;
+
+    private volatile Thread writer;
+
+    private FileChannel channel;
+
+    private long sequence;
+
+    private long position;
+
+    private long fileSize;
+
+    public GroupCommitObjectStore(ObjectStoreEnvironmentBean environmentBean) throws ObjectStoreException {
+        this(environmentBean, DEFAULT_LOG_FILE_SIZE);
+    }
+
+    /**
+     * @param environmentBean settings of the store, the log is kept under its object store directory
+     * @param logFileSize initial size of the log file in bytes
+     * @throws ObjectStoreException if the log cannot be opened or replayed
+     */
+    public GroupCommitObjectStore(ObjectStoreEnvironmentBean environmentBean, long logFileSize) throws ObjectStoreException {
+        directory = new File(new File(environmentBean.getObjectStoreDir(), STORE_DIR), environmentBean.getLocalOSRoot());
+        fileSize = logFileSize;
+        try {
+            open();
+        } catch (IOException e) {
+            throw new ObjectStoreException("Cannot open the transaction log in " + directory, e);
+        }
+    }
+
+    /**
+     * Start the writer thread, reopening the log file if the store was stopped before.
+     */
+    @Override
+    public synchronized void start() {
+        if (writer != null) {
+            return;
+        }
+        if (!channel.isOpen()) {
+            try {
+                channel = FileChannel.open(logFile(sequence).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                log.warn("Cannot reopen the transaction log in " + directory, e);
+                return;
+            }
+        }
+        final Thread started = new Thread(this::writeLoop, "narayana-group-commit");
+        started.setDaemon(true);
+        writer = started;
+        running = true;
+        started.start();
+        registerMBean();
+    }
+
+    /**
+     * Stop the writer thread once it has appended the batch it is working on, fail the updates still queued and close the
+     * log file.
+     */
+    @Override
+    public synchronized void stop() {
+        final Thread stopped = writer;
+        if (stopped == null) {
+            return;
+        }
+        synchronized (submitLock) {
+            running = false;
+        }
+        stopped.interrupt();
+        boolean interrupted = false;
+        while (stopped.isAlive()) {
+            try {
+                stopped.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        failQueued();
+        writer = null;
+        unregisterMBean();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Failed to close the transaction log in " + directory, e);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean fullCommitNeeded() {
+        return true;
+    }
+
+    @Override
+    public void sync() throws SyncFailedException, ObjectStoreException {
+        // every acknowledged update is already on disk
+    }
+
+    @Override
+    public String getStoreName() {
+        return getClass().getSimpleName() + ":" + directory.getPath();
+    }
+
+    @Override
+    public boolean isType(Uid uid, String typeName, int stateType) throws ObjectStoreException {
+        final Record record = get(uid, typeName);
+        if (record == null) {
+            return false;
+        }
+        return stateType == StateType.OS_ORIGINAL ? record.original != null
+                : stateType == StateType.OS_SHADOW && record.shadow != null;
+    }
+
+    @Override
+    public int currentState(Uid uid, String typeName) throws ObjectStoreException {
+        final Record record = get(uid, typeName);
+        return record == null ? StateStatus.OS_UNKNOWN : record.status();
+    }
+
+    @Override
+    public boolean commit_state(Uid uid, String typeName) throws ObjectStoreException {
+        return submit(new Request(COMMIT, typeName, uid.stringForm(), 0, null));
+    }
+
+    @Override
+    public boolean hide_state(Uid uid, String typeName) throws ObjectStoreException {
+        return submit(new Request(HIDE, typeName, uid.stringForm(), 0, null));
+    }
+
+    @Override
+    public boolean reveal_state(Uid uid, String typeName) throws ObjectStoreException {
+        return submit(new Request(REVEAL, typeName, uid.stringForm(), 0, null));
+    }
+
+    @Override
+    public InputObjectState read_committed(Uid uid, String typeName) throws ObjectStoreException {
+        final Record record = get(uid, typeName);
+        return record == null || record.original == null ? null : new InputObjectState(uid, typeName, record.original);
+    }
+
+    @Override
+    public InputObjectState read_uncommitted(Uid uid, String typeName) throws ObjectStoreException {
+        final Record record = get(uid, typeName);
+        return record == null || record.shadow == null ? null : new InputObjectState(uid, typeName, record.shadow);
+    }
+
+    @Override
+    public boolean remove_committed(Uid uid, String typeName) throws ObjectStoreException {
+        return submit(new Request(DELETE, typeName, uid.stringForm(), StateType.OS_ORIGINAL, null));
+    }
+
+    @Override
+    public boolean remove_uncommitted(Uid uid, String typeName) throws ObjectStoreException {
+        return submit(new Request(DELETE, typeName, uid.stringForm(), StateType.OS_SHADOW, null));
+    }
+
+    @Override
+    public boolean write_committed(Uid uid, String typeName, OutputObjectState state) throws ObjectStoreException {
+        return submit(new Request(PUT, typeName, uid.stringForm(), StateType.OS_ORIGINAL, state.buffer()));
+    }
+
+    @Override
+    public boolean write_uncommitted(Uid uid, String typeName, OutputObjectState state) throws ObjectStoreException {
+        return submit(new Request(PUT, typeName, uid.stringForm(), StateType.OS_SHADOW, state.buffer()));
+    }
+
+    @Override
+    public boolean allObjUids(String typeName, InputObjectState state) throws ObjectStoreException {
+        return allObjUids(typeName, state, StateStatus.OS_UNKNOWN);
+    }
+
+    @Override
+    public boolean allObjUids(String typeName, InputObjectState state, int match) throws ObjectStoreException {
+        final OutputObjectState uids = new OutputObjectState();
+        try {
+            final Map<String, Record> ofType = records.get(normalize(typeName));
+            if (ofType != null) {
+                for (Map.Entry<String, Record> record : ofType.entrySet()) {
+                    if (match == StateStatus.OS_UNKNOWN || record.getValue().status() == match) {
+                        UidHelper.packInto(new Uid(record.getKey()), uids);
+                    }
+                }
+            }
+            UidHelper.packInto(Uid.nullUid(), uids);
+        } catch (IOException e) {
+            throw new ObjectStoreException("Cannot pack the Uids of " + typeName, e);
+        }
+        state.setBuffer(uids.buffer());
+        return true;
+    }
+
+    @Override
+    public boolean allTypes(InputObjectState state) throws ObjectStoreException {
+        final OutputObjectState types = new OutputObjectState();
+        try {
+            for (Map.Entry<String, Map<String, Record>> ofType : records.entrySet()) {
+                if (!ofType.getValue().isEmpty()) {
+                    types.packString(ofType.getKey());
+                }
+            }
+            types.packString("");
+        } catch (IOException e) {
+            throw new ObjectStoreException("Cannot pack the type names", e);
+        }
+        state.setBuffer(types.buffer());
+        return true;
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @Override
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    @Override
+    public double getAverageBatchSize() {
+        final long batches = batchCount.get();
+        return batches == 0 ? 0 : (double) recordCount.get() / batches;
+    }
+
+    @Override
+    public long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    @Override
+    public long getAverageFsyncMicros() {
+        final long batches = batchCount.get();
+        return batches == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(fsyncNanos.get() / batches);
+    }
+
+    @Override
+    public long getMaxFsyncMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxFsyncNanos.get());
+    }
+
+    @Override
+    public long getFlushWindowMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(flushWindowNanos);
+    }
+
+    @Override
+    public int getLiveRecordCount() {
+        return records.values().stream().mapToInt(Map::size).sum();
+    }
+
+    private Record get(Uid uid, String typeName) {
+        final Map<String, Record> ofType = records.get(normalize(typeName));
+        return ofType == null ? null : ofType.get(uid.stringForm());
+    }
+
+    /**
+     * Queue the update for the writer thread and wait until it is on disk.
+     * <p>
+     * The update is queued under the same lock {@link #stop()} clears {@code running} with, so every update queued is
+     * either appended by the writer thread or failed once it has ended.
+     */
+    private boolean submit(Request request) throws ObjectStoreException {
+        final Thread currentWriter;
+        synchronized (submitLock) {
+            if (!running) {
+                throw new ObjectStoreException("The transaction log in " + directory + " is not running");
+            }
+            currentWriter = writer;
+            queue.add(request);
+        }
+        try {
+            return await(request, currentWriter);
+        } catch (ExecutionException e) {
+            throw new ObjectStoreException("Cannot write to the transaction log in " + directory, e.getCause());
+        }
+    }
+
+    /**
+     * Wait for the update to be written, or for the writer thread which was to write it to end without doing so.
+     */
+    private boolean await(Request request, Thread currentWriter) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return request.future.get(AWAIT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    if (!currentWriter.isAlive() && !running) {
+                        request.future.completeExceptionally(new ObjectStoreException(
+                                "The transaction log in " + directory + " was stopped"));
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Fail the updates left in the queue once the writer thread has ended.
+     */
+    private void failQueued() {
+        final List<Request> left = new ArrayList<>();
+        queue.drainTo(left);
+        final ObjectStoreException stopped = new ObjectStoreException("The transaction log in " + directory + " was stopped");
+        left.forEach(request -> request.future.completeExceptionally(stopped));
+    }
+
+    private void writeLoop() {
+        final List<Request> batch = new ArrayList<>();
+        while (running) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                awaitExpected(batch);
+            } catch (InterruptedException e) {
+                // stop() clears running before it interrupts
+            }
+            if (!batch.isEmpty()) {
+                append(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Wait, for at most the flush window, until the batch holds as many updates to force as the last fsync made durable.
+     * A batch without any update to force is written at once, its removals do not wait for an fsync.
+     */
+    private void awaitExpected(List<Request> batch) throws InterruptedException {
+        int forced = countForced(batch, 0);
+        if (forced == 0 || forced >= expectedBatchSize) {
+            return;
+        }
+        final long window = flushWindowNanos;
+        final long deadline = System.nanoTime() + window;
+        for (long remaining = window; remaining > 0; remaining = deadline - System.nanoTime()) {
+            final Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            final int from = batch.size();
+            batch.add(next);
+            queue.drainTo(batch);
+            forced += countForced(batch, from);
+            if (forced >= expectedBatchSize) {
+                return;
+            }
+        }
+    }
+
+    private static int countForced(List<Request> batch, int from) {
+        int forced = 0;
+        for (int i = from; i < batch.size(); i++) {
+            if (batch.get(i).operation != DELETE) {
+                forced++;
+            }
+        }
+        return forced;
+    }
+
+    /**
+     * Append the batch to the log with a single fsync, then apply it to the live records and release the waiting threads.
+     * <p>
+     * Removals of records which no earlier update of the batch touches are applied and released as soon as the batch is
+     * written; a batch of such removals only is not forced at all. The other updates are applied, in order, once the fsync
+     * has completed.
+     */
+    private void append(List<Request> batch) {
+        final int size;
+        try {
+            buffer.recycle();
+            for (Request request : batch) {
+                buffer.encode(request);
+            }
+            size = buffer.size();
+            if (position + size > fileSize) {
+                roll(size);
+            }
+            write(channel, buffer.toByteBuffer(), position);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to append " + batch.size() + " records to the transaction log in " + directory, e);
+            batch.forEach(request -> request.future.completeExceptionally(e));
+            return;
+        }
+
+        final Set<String> touched = new HashSet<>();
+        final List<Request> durable = new ArrayList<>(batch.size());
+        for (Request request : batch) {
+            final String key = request.typeName + '/' + request.uid;
+            if (request.operation == DELETE && !touched.contains(key)) {
+                request.future.complete(apply(request));
+            } else {
+                touched.add(key);
+                durable.add(request);
+            }
+        }
+        if (durable.isEmpty()) {
+            position += size;
+            return;
+        }
+
+        try {
+            final long start = System.nanoTime();
+            channel.force(false);
+            final long fsync = System.nanoTime() - start;
+            position += size;
+            updateMetrics(durable.size(), fsync);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to append " + durable.size() + " records to the transaction log in " + directory, e);
+            durable.forEach(request -> request.future.completeExceptionally(e));
+            return;
+        }
+        durable.forEach(request -> request.future.complete(apply(request)));
+    }
+
+    /**
+     * Move the flush window towards half an fsync and expect the next batch to be as large as this one.
+     */
+    private void updateMetrics(int size, long fsync) {
+        batchCount.incrementAndGet();
+        recordCount.addAndGet(size);
+        maxBatchSize.accumulateAndGet(size, Math::max);
+        fsyncNanos.addAndGet(fsync);
+        maxFsyncNanos.accumulateAndGet(fsync, Math::max);
+        flushWindowNanos = Math.min(MAX_FLUSH_WINDOW_NANOS, (flushWindowNanos + fsync / 2) / 2);
+        expectedBatchSize = size;
+    }
+
+    /**
+     * Apply an update to the live records.
+     *
+     * @return whether the update found the state it applies to
+     */
+    private boolean apply(Request request) {
+        final Map<String, Record> ofType = records.computeIfAbsent(request.typeName, typeName -> new ConcurrentHashMap<>());
+        final Record record = ofType.get(request.uid);
+        final Record updated;
+        switch (request.operation) {
+            case PUT:
+                updated = (record == null ? Record.EMPTY : record).with(request.stateType, request.state);
+                break;
+            case DELETE:
+                if (record == null || record.get(request.stateType) == null) {
+                    return false;
+                }
+                updated = record.with(request.stateType, null);
+                break;
+            case HIDE:
+            case REVEAL:
+                if (record == null) {
+                    return false;
+                }
+                updated = new Record(record.original, record.shadow, request.operation == HIDE);
+                break;
+            case COMMIT:
+                if (record == null || record.shadow == null) {
+                    return false;
+                }
+                updated = new Record(record.shadow, null, record.hidden);
+                break;
+            default:
+                throw new IllegalStateException("Unknown transaction log operation " + request.operation);
+        }
+        if (updated.original == null && updated.shadow == null) {
+            ofType.remove(request.uid);
+        } else {
+            ofType.put(request.uid, updated);
+        }
+        return true;
+    }
+
+    /**
+     * Open the latest log file and replay it, or create the first one.
+     */
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the directory " + directory);
+        }
+        File latest = null;
+        for (File file : listFiles()) {
+            if (file.getName().endsWith(TEMPORARY_SUFFIX)) {
+                Files.delete(file.toPath());
+            } else if (latest == null || sequenceOf(file) > sequenceOf(latest)) {
+                latest = file;
+            }
+        }
+
+        if (latest == null) {
+            sequence = 0;
+            latest = logFile(sequence);
+            preallocate(latest, fileSize);
+        } else {
+            sequence = sequenceOf(latest);
+        }
+        channel = FileChannel.open(latest.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileSize = Math.max(fileSize, channel.size());
+        position = replay(channel);
+
+        for (File file : listFiles()) {
+            if (!file.equals(latest)) {
+                Files.delete(file.toPath());
+            }
+        }
+        log.debug("Replayed " + getLiveRecordCount() + " records from " + latest);
+    }
+
+    /**
+     * @return position after the last complete record
+     */
+    private long replay(FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // read the whole file
+        }
+        buffer.flip();
+
+        final CRC32 crc = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int start = buffer.position();
+            final int length = buffer.getInt();
+            final long checksum = buffer.getLong();
+            if (length <= 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            final byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if (crc.getValue() != checksum) {
+                buffer.position(start);
+                break;
+            }
+            apply(decode(payload));
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Copy the live records to a new, larger if need be, log file and switch to it.
+     */
+    private void roll(int pending) throws IOException {
+        final LogBuffer snapshot = new LogBuffer();
+        for (Map.Entry<String, Map<String, Record>> ofType : records.entrySet()) {
+            for (Map.Entry<String, Record> entry : ofType.getValue().entrySet()) {
+                final Record record = entry.getValue();
+                if (record.original != null) {
+                    snapshot.encode(new Request(PUT, ofType.getKey(), entry.getKey(), StateType.OS_ORIGINAL, record.original));
+                }
+                if (record.shadow != null) {
+                    snapshot.encode(new Request(PUT, ofType.getKey(), entry.getKey(), StateType.OS_SHADOW, record.shadow));
+                }
+                if (record.hidden) {
+                    snapshot.encode(new Request(HIDE, ofType.getKey(), entry.getKey(), 0, null));
+                }
+            }
+        }
+
+        final long newSize = Math.max(fileSize, 2L * (snapshot.size() + pending));
+        final File previous = logFile(sequence);
+        final File next = logFile(sequence + 1);
+        final File temporary = new File(directory, next.getName() + TEMPORARY_SUFFIX);
+        preallocate(temporary, newSize);
+        try (FileChannel snapshotChannel = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE)) {
+            write(snapshotChannel, snapshot.toByteBuffer(), 0);
+            snapshotChannel.force(true);
+        }
+        Files.move(temporary.toPath(), next.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        channel.close();
+        channel = FileChannel.open(next.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Files.delete(previous.toPath());
+        sequence++;
+        position = snapshot.size();
+        fileSize = newSize;
+        log.debug("Rolled the transaction log over to " + next + ", " + getLiveRecordCount() + " live records");
+    }
+
+    private File[] listFiles() {
+        final File[] files = directory.listFiles((dir, name) -> name.startsWith(LOG_FILE_PREFIX));
+        return files == null ? new File[0] : files;
+    }
+
+    private File logFile(long sequence) {
+        return new File(directory, LOG_FILE_PREFIX + sequence);
+    }
+
+    private static long sequenceOf(File file) {
+        return Long.parseLong(file.getName().substring(LOG_FILE_PREFIX.length()));
+    }
+
+    /**
+     * Fill the file with zeroes, so that appending does not change its size and an fsync only flushes the data.
+     */
+    private static void preallocate(File file, long size) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final byte[] zeroes = new byte[(int) Math.min(ZEROES_SIZE, size)];
+            for (long written = 0; written < size; ) {
+                final int length = (int) Math.min(zeroes.length, size - written);
+                write(fileChannel, ByteBuffer.wrap(zeroes, 0, length), written);
+                written += length;
+            }
+            fileChannel.force(true);
+        }
+    }
+
+    private static void write(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            offset += fileChannel.write(buffer, offset);
+        }
+    }
+
+    private static Request decode(byte[] payload) throws IOException {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload))) {
+            final byte operation = input.readByte();
+            final String typeName = input.readUTF();
+            final String uid = input.readUTF();
+            final int stateType = input.readInt();
+            final int length = input.readInt();
+            byte[] state = null;
+            if (length >= 0) {
+                state = new byte[length];
+                input.readFully(state);
+            }
+            return new Request(operation, typeName, uid, stateType, state);
+        }
+    }
+
+    private void registerMBean() {
+        MBeanSupport.register(MBeanSupport.objectName(OBJECT_NAME_PREFIX, directory.getPath()), this, GroupCommitStoreMXBean.class);
+    }
+
+    private void unregisterMBean() {
+        MBeanSupport.unregister(MBeanSupport.objectName(OBJECT_NAME_PREFIX, directory.getPath()));
+    }
+
+    private static String normalize(String typeName) {
+        return typeName.startsWith("/") ? typeName.substring(1) : typeName;
+    }
+
+    /**
+     * Committed and uncommitted state of one object.
+     */
+    private static final class Record {
+
+        static final Record EMPTY = new Record(null, null, false);
+
+        final byte[] original;
+
+        final byte[] shadow;
+
+        final boolean hidden;
+
+        Record(byte[] original, byte[] shadow, boolean hidden) {
+            this.original = original;
+            this.shadow = shadow;
+            this.hidden = hidden;
+        }
+
+        byte[] get(int stateType) {
+            return stateType == StateType.OS_SHADOW ? shadow : original;
+        }
+
+        Record with(int stateType, byte[] state) {
+            return stateType == StateType.OS_SHADOW ? new Record(original, state, hidden) : new Record(state, shadow, hidden);
+        }
+
+        int status() {
+            if (shadow != null) {
+                return hidden ? StateStatus.OS_UNCOMMITTED_HIDDEN : StateStatus.OS_UNCOMMITTED;
+            } else if (original != null) {
+                return hidden ? StateStatus.OS_COMMITTED_HIDDEN : StateStatus.OS_COMMITTED;
+            }
+            return StateStatus.OS_UNKNOWN;
+        }
+    }
+
+    /**
+     * Records encoded for the log: each one is its payload preceded by its length and checksum. The writer thread reuses
+     * one buffer for all its batches.
+     */
+    private static final class LogBuffer extends ByteArrayOutputStream {
+
+        private final DataOutputStream output = new DataOutputStream(this);
+
+        private final CRC32 crc = new CRC32();
+
+        LogBuffer() {
+            super(BUFFER_SIZE);
+        }
+
+        void encode(Request request) throws IOException {
+            final int start = count;
+            output.writeInt(0);
+            output.writeLong(0);
+            output.writeByte(request.operation);
+            output.writeUTF(request.typeName);
+            output.writeUTF(request.uid);
+            output.writeInt(request.stateType);
+            output.writeInt(request.state == null ? -1 : request.state.length);
+            if (request.state != null) {
+                output.write(request.state);
+            }
+            final int length = count - start - HEADER_SIZE;
+            crc.reset();
+            crc.update(buf, start + HEADER_SIZE, length);
+            ByteBuffer.wrap(buf).putInt(start, length).putLong(start + Integer.BYTES, crc.getValue());
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        /**
+         * Empty the buffer, giving up the memory a large batch made it grow to.
+         */
+        void recycle() {
+            if (buf.length > MAX_RETAINED_BUFFER_SIZE) {
+                buf = new byte[BUFFER_SIZE];
+            }
+            reset();
+        }
+    }
+
+    /**
+     * One update of the log, completed by the writer thread once it is on disk.
+     */
+    private static final class Request {
+
+        final byte operation;
+
+        final String typeName;
+
+        final String uid;
+
+        final int stateType;
+
+        final byte[] state;
+
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        Request(byte operation, String typeName, String uid, int stateType, byte[] state) {
+            this.operation = operation;
+            this.typeName = normalize(typeName);
+            this.uid = uid;
+            this.stateType = stateType;
+            this.state = state;
+        }
+    }
+}
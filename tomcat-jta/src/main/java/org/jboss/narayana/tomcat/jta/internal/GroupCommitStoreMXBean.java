@@ -0,0 +1,51 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+/**
+ * Management interface of the {@link GroupCommitObjectStore}.
+ */
+public interface GroupCommitStoreMXBean {
+
+    /**
+     * @return number of batches appended to the log with an fsync, batches of removals only are appended without one
+     */
+    long getBatchCount();
+
+    /**
+     * @return number of records made durable by the fsync of a batch, removals released before the fsync are not counted
+     */
+    long getRecordCount();
+
+    /**
+     * @return average number of records per batch
+     */
+    double getAverageBatchSize();
+
+    /**
+     * @return largest number of records in a batch
+     */
+    long getMaxBatchSize();
+
+    /**
+     * @return average duration of an fsync in microseconds
+     */
+    long getAverageFsyncMicros();
+
+    /**
+     * @return longest fsync in microseconds
+     */
+    long getMaxFsyncMicros();
+
+    /**
+     * @return how long, in microseconds, the writer currently waits at most for more records before it appends a batch
+     */
+    long getFlushWindowMicros();
+
+    /**
+     * @return number of records in the live set of the log
+     */
+    int getLiveRecordCount();
+}
@@ -0,0 +1,382 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+
+import org.apache.tomcat.dbcp.dbcp2.BasicDataSource;
+import org.apache.tomcat.dbcp.dbcp2.managed.BasicManagedDataSource;
+
+/**
+ * Pooled data source handing out connection handles which borrow a pooled connection, and enlist it in the transaction of
+ * the thread, only when a statement is first created or the connection is otherwise used to talk to the database.
+ * <p>
+ * Frameworks often get a connection speculatively and look at its state before they use it. With this data source, a
+ * handle closed without having run a statement costs neither a pool slot nor a round trip to the database. The settings
+ * made on a handle before it is used are applied to the pooled connection once it is borrowed, and the state getters of
+ * an unused handle are answered from those settings and the defaults of the pool. The database metadata of an unused
+ * handle borrows the pooled connection only when one of its methods is called.
+ */
+public final class LazyEnlistmentDataSource implements SharedDataSource, LazyEnlistmentMXBean {
+
+    private static final String OBJECT_NAME_PREFIX = "org.jboss.narayana.tomcat:type=LazyEnlistment,name=";
+
+    /**
+     * Settings recorded on an unused handle and applied to the pooled connection when it is borrowed.
+     */
+    private static final Set<String> DEFERRED_METHODS = new HashSet<>(Arrays.asList("setAutoCommit", "setReadOnly",
+            "setTransactionIsolation", "setHoldability", "setCatalog", "setSchema", "setTypeMap", "setClientInfo"));
+
+    /**
+     * Answer of {@link Handle#answerUnborrowed} for the calls which need the pooled connection.
+     */
+    private static final Object BORROW = new Object();
+
+    private final SharedDataSourceSupport shared = new SharedDataSourceSupport();
+
+    private final BasicDataSource dataSource;
+
+    private final String name;
+
+    private final AtomicLong handleCount = new AtomicLong();
+
+    private final AtomicLong acquiredCount = new AtomicLong();
+
+    private final AtomicLong avoidedCount = new AtomicLong();
+
+    /**
+     * @param dataSource pooled data source, enlisting its connections when they are borrowed
+     * @param name name of the data source in the management interface
+     */
+    public LazyEnlistmentDataSource(BasicDataSource dataSource, String name) {
+        this.dataSource = dataSource;
+        this.name = name;
+        registerMBean();
+    }
+
+    /**
+     * @return the pooled data source
+     */
+    public BasicDataSource getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    public long getHandleCount() {
+        return handleCount.get();
+    }
+
+    @Override
+    public long getAcquiredCount() {
+        return acquiredCount.get();
+    }
+
+    @Override
+    public long getAvoidedCount() {
+        return avoidedCount.get();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (dataSource.isClosed()) {
+            throw new SQLException("Data source " + name + " is closed");
+        }
+        handleCount.incrementAndGet();
+        return (Connection) Proxy.newProxyInstance(LazyEnlistmentDataSource.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, new Handle());
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return dataSource.getConnection(username, password);
+    }
+
+    @Override
+    public boolean retain() {
+        return shared.retain();
+    }
+
+    @Override
+    public void addCloseListener(Runnable listener) {
+        shared.addCloseListener(listener);
+    }
+
+    /**
+     * Close the pool and unregister the management interface, once each user of the data source has closed it.
+     */
+    @Override
+    public void close() throws SQLException {
+        if (!shared.release()) {
+            return;
+        }
+        unregisterMBean();
+        try {
+            dataSource.close();
+        } finally {
+            shared.closed();
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> type) throws SQLException {
+        if (type.isInstance(this)) {
+            return type.cast(this);
+        }
+        return type.isInstance(dataSource) ? type.cast(dataSource) : dataSource.unwrap(type);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> type) throws SQLException {
+        return type.isInstance(this) || type.isInstance(dataSource) || dataSource.isWrapperFor(type);
+    }
+
+    private void registerMBean() {
+        MBeanSupport.register(MBeanSupport.objectName(OBJECT_NAME_PREFIX, name), this, LazyEnlistmentMXBean.class);
+    }
+
+    private void unregisterMBean() {
+        MBeanSupport.unregister(MBeanSupport.objectName(OBJECT_NAME_PREFIX, name));
+    }
+
+    /**
+     * Connection handle borrowing the pooled connection on first use.
+     */
+    private final class Handle implements InvocationHandler {
+
+        private final List<Object[]> deferred = new ArrayList<>();
+
+        private Connection connection;
+
+        private boolean closed;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    close();
+                    return null;
+                case "isClosed":
+                    return closed || connection != null && connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "LazyConnection[" + (connection == null ? name : connection) + "]";
+                case "abort":
+                    if (connection == null) {
+                        close();
+                        return null;
+                    }
+                    break;
+                case "unwrap":
+                case "isWrapperFor":
+                    if (((Class<?>) args[0]).isInstance(proxy)) {
+                        return method.getName().equals("unwrap") ? proxy : Boolean.TRUE;
+                    }
+                    break;
+                default:
+            }
+            if (closed) {
+                throw new SQLException("The connection handle of " + name + " is closed");
+            }
+            if (connection == null) {
+                if (DEFERRED_METHODS.contains(method.getName())) {
+                    deferred.add(new Object[] {method, args});
+                    return null;
+                }
+                final Object answer = answerUnborrowed(proxy, method);
+                if (answer != BORROW) {
+                    return answer;
+                }
+            }
+            try {
+                return method.invoke(getPhysicalConnection(), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Answer a call on an unused handle from the settings recorded on it and the defaults of the pool.
+         *
+         * @return the answer, or {@link #BORROW} if the call needs the pooled connection
+         */
+        private Object answerUnborrowed(Object proxy, Method method) throws SQLException {
+            switch (method.getName()) {
+                case "getAutoCommit":
+                    return deferredValue("setAutoCommit", isInTransaction() ? Boolean.FALSE
+                            : dataSource.getDefaultAutoCommit() == null ? Boolean.TRUE : dataSource.getDefaultAutoCommit());
+                case "isReadOnly":
+                    return deferredValue("setReadOnly",
+                            dataSource.getDefaultReadOnly() == null ? Boolean.FALSE : dataSource.getDefaultReadOnly());
+                case "getTransactionIsolation":
+                    final int isolation = dataSource.getDefaultTransactionIsolation();
+                    return deferredValue("setTransactionIsolation", isolation < 0 ? BORROW : isolation);
+                case "getCatalog":
+                    return deferredValue("setCatalog",
+                            dataSource.getDefaultCatalog() == null ? BORROW : dataSource.getDefaultCatalog());
+                case "getSchema":
+                    return deferredValue("setSchema",
+                            dataSource.getDefaultSchema() == null ? BORROW : dataSource.getDefaultSchema());
+                case "getHoldability":
+                    return deferredValue("setHoldability", BORROW);
+                case "getWarnings":
+                case "clearWarnings":
+                    return null;
+                case "commit":
+                case "rollback":
+                    // nothing was done on the handle, but a managed connection refuses both within a transaction
+                    if (method.getParameterCount() > 0) {
+                        return BORROW;
+                    }
+                    if (isInTransaction()) {
+                        throw new SQLException("Commit can not be set while enrolled in a transaction");
+                    }
+                    return null;
+                case "getMetaData":
+                    return Proxy.newProxyInstance(LazyEnlistmentDataSource.class.getClassLoader(),
+                            new Class<?>[] {DatabaseMetaData.class}, new MetaData(proxy));
+                default:
+                    return BORROW;
+            }
+        }
+
+        /**
+         * @return the value of the last call of the setter recorded on the handle, or the default if there is none
+         */
+        private Object deferredValue(String setter, Object defaultValue) {
+            for (int i = deferred.size() - 1; i >= 0; i--) {
+                final Object[] call = deferred.get(i);
+                if (((Method) call[0]).getName().equals(setter)) {
+                    return ((Object[]) call[1])[0];
+                }
+            }
+            return defaultValue;
+        }
+
+        private boolean isInTransaction() throws SQLException {
+            if (!(dataSource instanceof BasicManagedDataSource)) {
+                return false;
+            }
+            try {
+                final TransactionManager transactionManager = ((BasicManagedDataSource) dataSource).getTransactionManager();
+                return transactionManager != null && transactionManager.getStatus() != Status.STATUS_NO_TRANSACTION;
+            } catch (SystemException e) {
+                throw new SQLException("Cannot get the transaction status for " + name, e);
+            }
+        }
+
+        private Connection getPhysicalConnection() throws Throwable {
+            if (connection != null) {
+                return connection;
+            }
+            final Connection borrowed = dataSource.getConnection();
+            try {
+                for (Object[] call : deferred) {
+                    ((Method) call[0]).invoke(borrowed, (Object[]) call[1]);
+                }
+            } catch (InvocationTargetException e) {
+                borrowed.close();
+                throw e.getCause();
+            }
+            deferred.clear();
+            acquiredCount.incrementAndGet();
+            connection = borrowed;
+            return connection;
+        }
+
+        private void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (connection == null) {
+                avoidedCount.incrementAndGet();
+            } else {
+                connection.close();
+            }
+        }
+
+        /**
+         * Database metadata of a handle, borrowing the pooled connection when one of its methods is called.
+         */
+        private final class MetaData implements InvocationHandler {
+
+            private final Object handle;
+
+            MetaData(Object handle) {
+                this.handle = handle;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "getConnection":
+                        return handle;
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "LazyDatabaseMetaData[" + name + "]";
+                    default:
+                }
+                if (closed) {
+                    throw new SQLException("The connection handle of " + name + " is closed");
+                }
+                try {
+                    return method.invoke(getPhysicalConnection().getMetaData(), args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+/**
+ * Management interface of the {@link LazyEnlistmentDataSource}.
+ */
+public interface LazyEnlistmentMXBean {
+
+    /**
+     * @return number of connection handles given to the application
+     */
+    long getHandleCount();
+
+    /**
+     * @return number of handles which borrowed a pooled connection, and enlisted it if there was a transaction
+     */
+    long getAcquiredCount();
+
+    /**
+     * @return number of handles closed without having borrowed a pooled connection
+     */
+    long getAvoidedCount();
+}
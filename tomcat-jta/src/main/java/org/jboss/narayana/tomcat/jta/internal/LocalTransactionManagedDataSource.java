@@ -0,0 +1,212 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.transaction.xa.XAResource;
+
+import com.arjuna.ats.internal.jta.transaction.arjunacore.TransactionImple;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.dbcp.dbcp2.ConnectionFactory;
+import org.apache.tomcat.dbcp.dbcp2.managed.TransactionRegistry;
+import org.apache.tomcat.dbcp.dbcp2.managed.XAConnectionFactory;
+
+/**
+ * Managed data source enlisting the local transaction of its connections instead of their XA branch when they are the
+ * first resource of a transaction, see {@link LocalTransactionXAResource}.
+ * <p>
+ * Transactions touching a single data source then run without any XA round trip to the database. Work already done in a
+ * local transaction cannot be moved to an XA branch, so the local transaction cannot take part in a two phase commit. A
+ * connection of this data source enlisted once the local transaction is, is therefore refused and the transaction is
+ * marked rollback-only, as is a transaction in which any other resource was enlisted by the time it completes.
+ * <p>
+ * With {@link #setLastResource(boolean) lastResource}, the other resources are enlisted instead and prepared first, and
+ * the local transaction is committed last, as a last resource. Nothing is logged for the local transaction: a crash
+ * between the prepare of the other resources and its commit leaves an outcome recovery cannot determine.
+ */
+public class LocalTransactionManagedDataSource extends DeadlineManagedDataSource {
+
+    private static final Log log = LogFactory.getLog(LocalTransactionManagedDataSource.class);
+
+    private final AtomicLong localTransactionCount = new AtomicLong();
+
+    private final AtomicLong xaTransactionCount = new AtomicLong();
+
+    private TransactionRegistry localTransactionRegistry;
+
+    private volatile boolean lastResource;
+
+    /**
+     * @return number of enlistments as a local transaction
+     */
+    public long getLocalTransactionCount() {
+        return localTransactionCount.get();
+    }
+
+    /**
+     * @return number of enlistments as an XA branch
+     */
+    public long getXaTransactionCount() {
+        return xaTransactionCount.get();
+    }
+
+    /**
+     * @return whether the local transaction is committed as a last resource when other resources join the transaction
+     */
+    public boolean isLastResource() {
+        return lastResource;
+    }
+
+    /**
+     * @param lastResource {@code true} to commit the local transaction as a last resource when other resources join the
+     *        transaction, rather than refusing them
+     */
+    public void setLastResource(boolean lastResource) {
+        this.lastResource = lastResource;
+    }
+
+    @Override
+    protected ConnectionFactory createConnectionFactory() throws SQLException {
+        final XAConnectionFactory xaConnectionFactory = (XAConnectionFactory) super.createConnectionFactory();
+        localTransactionRegistry = new LocalTransactionRegistry(getTransactionManager(),
+                getTransactionSynchronizationRegistry(), xaConnectionFactory.getTransactionRegistry());
+        return new XAConnectionFactory() {
+            @Override
+            public Connection createConnection() throws SQLException {
+                return xaConnectionFactory.createConnection();
+            }
+
+            @Override
+            public TransactionRegistry getTransactionRegistry() {
+                return localTransactionRegistry;
+            }
+        };
+    }
+
+    @Override
+    protected synchronized TransactionRegistry getTransactionRegistry() {
+        return localTransactionRegistry;
+    }
+
+    /**
+     * Registry of the XA resources of the pooled connections, handing out the local transaction of the connection instead
+     * when nothing else is enlisted in the transaction yet.
+     */
+    private final class LocalTransactionRegistry extends TransactionRegistry {
+
+        private final TransactionManager transactionManager;
+
+        private final TransactionSynchronizationRegistry tsr;
+
+        private final TransactionRegistry xaRegistry;
+
+        LocalTransactionRegistry(TransactionManager transactionManager, TransactionSynchronizationRegistry tsr,
+                TransactionRegistry xaRegistry) {
+            super(transactionManager, tsr);
+            this.transactionManager = transactionManager;
+            this.tsr = tsr;
+            this.xaRegistry = xaRegistry;
+        }
+
+        @Override
+        public XAResource getXAResource(Connection connection) throws SQLException {
+            final XAResource xaResource = xaRegistry.getXAResource(connection);
+            final TransactionImple transaction = getTransaction();
+            if (transaction == null) {
+                xaTransactionCount.incrementAndGet();
+                return xaResource;
+            }
+            if (transaction.getResources().isEmpty()) {
+                if (!lastResource) {
+                    tsr.registerInterposedSynchronization(new SingleResourceCheck(transaction));
+                }
+                localTransactionCount.incrementAndGet();
+                return new LocalTransactionXAResource(connection);
+            }
+            if (!lastResource && holdsLocalTransaction(transaction)) {
+                final String message = "A connection of " + getUrlOrName() + " cannot join " + transaction
+                        + ", whose first resource is a local transaction which cannot take part in a two phase"
+                        + " commit. The transaction is marked rollback-only.";
+                setRollbackOnly(transaction);
+                throw new SQLException(message);
+            }
+            xaTransactionCount.incrementAndGet();
+            return xaResource;
+        }
+
+        @Override
+        public void registerConnection(Connection connection, XAResource xaResource) {
+            xaRegistry.registerConnection(connection, xaResource);
+        }
+
+        @Override
+        public void unregisterConnection(Connection connection) {
+            xaRegistry.unregisterConnection(connection);
+        }
+
+        /**
+         * @return the transaction of the thread, {@code null} if it is not a Narayana transaction
+         */
+        private TransactionImple getTransaction() throws SQLException {
+            try {
+                final Transaction transaction = transactionManager.getTransaction();
+                return transaction instanceof TransactionImple ? (TransactionImple) transaction : null;
+            } catch (SystemException e) {
+                throw new SQLException("Cannot get the transaction of the thread", e);
+            }
+        }
+
+        private boolean holdsLocalTransaction(TransactionImple transaction) {
+            return transaction.getResources().keySet().stream().anyMatch(LocalTransactionXAResource.class::isInstance);
+        }
+    }
+
+    private String getUrlOrName() {
+        return getUrl() == null ? String.valueOf(getXaDataSourceInstance()) : getUrl();
+    }
+
+    private static void setRollbackOnly(TransactionImple transaction) {
+        try {
+            transaction.setRollbackOnly();
+        } catch (IllegalStateException | SystemException e) {
+            log.warn("Could not mark " + transaction + " rollback-only", e);
+        }
+    }
+
+    /**
+     * Rolls back a transaction whose first resource is a local transaction if other resources joined it.
+     */
+    private static final class SingleResourceCheck implements Synchronization {
+
+        private final TransactionImple transaction;
+
+        SingleResourceCheck(TransactionImple transaction) {
+            this.transaction = transaction;
+        }
+
+        @Override
+        public void beforeCompletion() {
+            final int resources = transaction.getResources().size();
+            if (resources > 1) {
+                log.error(transaction + " has " + resources + " resources, its first one is a local transaction which"
+                        + " cannot take part in a two phase commit. It is rolled back.");
+                setRollbackOnly(transaction);
+            }
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import com.arjuna.ats.jta.resources.LastResourceCommitOptimisation;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Local transaction of a pooled XA connection, enlisted instead of its XA branch when it is the first resource of the
+ * transaction. See {@link LocalTransactionManagedDataSource}.
+ * <p>
+ * Narayana commits it in one phase with {@link Connection#commit()} when it is the only resource. Other resources may only
+ * join the transaction if the data source commits it as a last resource: they are then prepared first and this one is
+ * committed last.
+ */
+final class LocalTransactionXAResource implements XAResource, LastResourceCommitOptimisation {
+
+    private static final Log log = LogFactory.getLog(LocalTransactionXAResource.class);
+
+    private final Connection connection;
+
+    private boolean autoCommit;
+
+    /**
+     * @param connection pooled connection, used outside of any XA branch
+     */
+    LocalTransactionXAResource(Connection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void start(Xid xid, int flags) throws XAException {
+        if (flags != TMNOFLAGS) {
+            return;
+        }
+        try {
+            autoCommit = connection.getAutoCommit();
+            if (autoCommit) {
+                connection.setAutoCommit(false);
+            }
+        } catch (SQLException e) {
+            throw toXAException("Failed to begin the local transaction", e);
+        }
+    }
+
+    @Override
+    public void end(Xid xid, int flags) {
+    }
+
+    @Override
+    public int prepare(Xid xid) throws XAException {
+        throw new XAException(XAException.XAER_PROTO);
+    }
+
+    /**
+     * Commit the local transaction. Narayana does not prepare a last resource, so the flag is not relevant.
+     */
+    @Override
+    public void commit(Xid xid, boolean onePhase) throws XAException {
+        try {
+            connection.commit();
+        } catch (SQLException e) {
+            throw toXAException("Failed to commit the local transaction", e);
+        } finally {
+            restoreAutoCommit();
+        }
+    }
+
+    @Override
+    public void rollback(Xid xid) throws XAException {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            throw toXAException("Failed to roll back the local transaction", e);
+        } finally {
+            restoreAutoCommit();
+        }
+    }
+
+    @Override
+    public void forget(Xid xid) {
+    }
+
+    @Override
+    public Xid[] recover(int flag) {
+        return new Xid[0];
+    }
+
+    /**
+     * Never join another branch, it would be started with the branch of this local transaction.
+     */
+    @Override
+    public boolean isSameRM(XAResource resource) {
+        return resource == this;
+    }
+
+    @Override
+    public int getTransactionTimeout() {
+        return 0;
+    }
+
+    @Override
+    public boolean setTransactionTimeout(int seconds) {
+        return false;
+    }
+
+    private void restoreAutoCommit() {
+        if (!autoCommit) {
+            return;
+        }
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            log.debug("Could not restore the auto-commit of " + connection, e);
+        }
+    }
+
+    private XAException toXAException(String message, SQLException e) {
+        log.warn(message + " of " + connection, e);
+        final XAException xaException = new XAException(XAException.XAER_RMFAIL);
+        xaException.initCause(e);
+        return xaException;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalTransactionXAResource[" + connection + "]";
+    }
+}
@@ -0,0 +1,73 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Registers the management interfaces of the integration with the platform MBean server. Failures are logged, the
+ * management interfaces are not required for the transaction services to work.
+ */
+final class MBeanSupport {
+
+    private static final Log log = LogFactory.getLog(MBeanSupport.class);
+
+    private MBeanSupport() {
+        throw new UnsupportedOperationException(MBeanSupport.class.getSimpleName() + " should not be instantiated.");
+    }
+
+    /**
+     * @param prefix object name up to the {@code name} key, e.g. {@code org.jboss.narayana.tomcat:type=X,name=}
+     * @param name value of the {@code name} key, quoted by this method
+     * @return the object name
+     */
+    static String objectName(String prefix, String name) {
+        return prefix + ObjectName.quote(name);
+    }
+
+    /**
+     * Register the MBean, unless an MBean is registered under its name already.
+     *
+     * @param objectName object name of the MBean
+     * @param implementation object implementing the management interface
+     * @param mxBeanInterface management interface, exposed with the MXBean type mapping
+     */
+    static <T> void register(String objectName, T implementation, Class<T> mxBeanInterface) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(objectName);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new StandardMBean(implementation, mxBeanInterface, true), name);
+            }
+        } catch (JMException e) {
+            log.warn("Could not register the " + objectName + " MBean", e);
+        }
+    }
+
+    /**
+     * Remove the MBean, if it is registered.
+     *
+     * @param objectName object name of the MBean
+     */
+    static void unregister(String objectName) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Could not unregister the " + objectName + " MBean", e);
+        }
+    }
+}
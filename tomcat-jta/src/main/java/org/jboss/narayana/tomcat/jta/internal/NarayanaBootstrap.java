@@ -0,0 +1,380 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import com.arjuna.ats.arjuna.common.CoreEnvironmentBeanException;
+import com.arjuna.ats.arjuna.common.arjPropertyManager;
+import com.arjuna.ats.arjuna.common.recoveryPropertyManager;
+import com.arjuna.ats.arjuna.coordinator.TransactionReaper;
+import com.arjuna.ats.arjuna.coordinator.TxControl;
+import com.arjuna.ats.arjuna.objectstore.StoreManager;
+import com.arjuna.ats.arjuna.recovery.RecoveryManager;
+import com.arjuna.ats.internal.arjuna.recovery.AtomicActionRecoveryModule;
+import com.arjuna.ats.internal.arjuna.recovery.ExpiredTransactionStatusManagerScanner;
+import com.arjuna.ats.internal.jta.recovery.arjunacore.JTANodeNameXAResourceOrphanFilter;
+import com.arjuna.ats.internal.jta.recovery.arjunacore.JTATransactionLogXAResourceOrphanFilter;
+import com.arjuna.ats.internal.jta.recovery.arjunacore.XARecoveryModule;
+import com.arjuna.ats.jdbc.TransactionalDriver;
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * JVM-wide, reference counted start up and shut down of the Narayana JTA services.
+ * <p>
+ * Every component that needs the transaction services (the Tomcat lifecycle listener, the servlet context listener of each
+ * web application) acquires them with its own owner object. The services are configured and started by the first owner
+ * and stopped when the last owner releases them, so undeploying one web application does not disable the transaction
+ * manager for the others. Acquiring or releasing twice with the same owner has no effect.
+ */
+public final class NarayanaBootstrap {
+
+    private static final Log log = LogFactory.getLog(NarayanaBootstrap.class);
+
+    private static final String DEFAULT_NODE_IDENTIFIER = "1";
+
+    private static final List<String> DEFAULT_RECOVERY_MODULES = Arrays.asList(AtomicActionRecoveryModule.class.getName(),
+            XARecoveryModule.class.getName());
+
+    private static final List<String> DEFAULT_ORPHAN_FILTERS = Arrays
+            .asList(JTATransactionLogXAResourceOrphanFilter.class.getName(), JTANodeNameXAResourceOrphanFilter.class.getName());
+
+    private static final List<String> DEFAULT_EXPIRY_SCANNERS = Collections
+            .singletonList(ExpiredTransactionStatusManagerScanner.class.getName());
+
+    private static final Set<Object> owners = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private static Thread recoveryStartThread;
+
+    private static long drainTimeoutMillis;
+
+    private NarayanaBootstrap() {
+        throw new UnsupportedOperationException(NarayanaBootstrap.class.getSimpleName() + " should not be instantiated.");
+    }
+
+    /**
+     * Register the owner with the transaction services. The first owner configures and starts them.
+     *
+     * @param owner component using the transaction services
+     * @param configuration settings of the owner, only taken into account when the services are started by this call
+     * @return {@code true} if the services were started by this call
+     */
+    public static synchronized boolean acquire(Object owner, BootstrapConfiguration configuration) {
+        if (!owners.add(owner)) {
+            return false;
+        }
+        if (owners.size() > 1) {
+            log.debug("Narayana is already running, " + owners.size() + " owners registered");
+            return false;
+        }
+
+        log.debug("Initializing Narayana");
+        try {
+            start(configuration);
+        } catch (RuntimeException e) {
+            owners.remove(owner);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Deregister the owner from the transaction services. The last owner stops them without waiting for the active
+     * transactions.
+     *
+     * @param owner component which no longer uses the transaction services
+     * @return {@code true} if the services were stopped by this call
+     */
+    public static boolean release(Object owner) {
+        return release(owner, 0);
+    }
+
+    /**
+     * Deregister the owner from the transaction services. The last owner stops them.
+     * <p>
+     * If a drain timeout is positive, new transactions are refused first and the active ones are given up to the timeout
+     * to complete before the reaper and the recovery manager are stopped. The owners released before the last one keep
+     * their timeout for the final release, which drains for the longest timeout asked for, so that the timeout of the
+     * server-wide listener still applies when a web application releasing later asks for none.
+     *
+     * @param owner component which no longer uses the transaction services
+     * @param drainTimeoutMillis how long to wait for the active transactions to complete, {@code 0} not to wait
+     * @return {@code true} if the services were stopped by this call
+     */
+    public static synchronized boolean release(Object owner, long drainTimeoutMillis) {
+        if (!owners.remove(owner)) {
+            return false;
+        }
+        NarayanaBootstrap.drainTimeoutMillis = Math.max(NarayanaBootstrap.drainTimeoutMillis, drainTimeoutMillis);
+        if (!owners.isEmpty()) {
+            log.debug("Narayana is still used by " + owners.size() + " owners");
+            return false;
+        }
+
+        log.debug("Disabling Narayana");
+        final long timeoutMillis = NarayanaBootstrap.drainTimeoutMillis;
+        NarayanaBootstrap.drainTimeoutMillis = 0;
+        if (timeoutMillis > 0) {
+            final TransactionDrainer.Result result = TransactionDrainer.drain(timeoutMillis);
+            if (result.getInDoubt() > 0) {
+                log.warn("Transactions left in doubt by the shutdown drain: " + result);
+            } else {
+                log.info("Transactions drained on shutdown: " + result);
+            }
+        }
+        stop();
+        return true;
+    }
+
+    /**
+     * @return number of owners currently using the transaction services
+     */
+    public static synchronized int getOwnerCount() {
+        return owners.size();
+    }
+
+    private static void start(BootstrapConfiguration configuration) {
+        final StartupProfile profile = StartupProfile.getInstance();
+        profile.reset();
+        profile.register();
+        RecoveryStatistics.getInstance().register();
+        profile.time("loadProperties", NarayanaBootstrap::loadProperties);
+        profile.time("objectStore", () -> ObjectStoreConfigurer.configure(configuration));
+        profile.time("processIdentity", () -> initProcessIdentity(configuration));
+        profile.time("nodeIdentifier", NarayanaBootstrap::initNodeIdentifier);
+        profile.time("recoveryConfiguration", () -> {
+            initRecoveryModules();
+            initCommitMarkableResources(configuration);
+            initRecoveryPassModules(configuration);
+            initOrphanFilters();
+            initExpiryScanners();
+            initRecoveryListener(configuration);
+        });
+        if (configuration.isAsyncRecoveryStart()) {
+            profile.time("transactionStatusManager", TxControl::enable);
+            profile.time("transactionReaper", TransactionReaper::instantiate);
+            startRecoveryManagerInBackground();
+        } else {
+            profile.time("recoveryManager", () -> RecoveryManager.manager().initialize());
+            RecoveryHelperRegistry.recoveryStarted();
+            profile.time("transactionStatusManager", TxControl::enable);
+            profile.time("transactionReaper", TransactionReaper::instantiate);
+        }
+        profile.logSummary("Narayana started");
+    }
+
+    /**
+     * First, stop recovery manager, transaction status manager, and transaction reaper, then the object stores. Then, remove
+     * transactional driver from jdbc driver manager's list.
+     */
+    private static void stop() {
+        awaitRecoveryManagerStart();
+        TransactionReaper.terminate(false);
+        TxControl.disable(true);
+        terminateRecoveryManager();
+        StoreManager.shutdown();
+        RecoveryHelperRegistry.recoveryStopped();
+        RecoveryScanModule.shutdown();
+        RecoveryStatistics.getInstance().unregister();
+        StartupProfile.getInstance().unregister();
+        Collections.list(DriverManager.getDrivers()).stream().filter(d -> d instanceof TransactionalDriver).forEach(d -> {
+            try {
+                DriverManager.deregisterDriver(d);
+            } catch (SQLException e) {
+                log.warn(e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Start the recovery manager on a daemon thread. Recovery helpers of the transactional data sources are queued until it
+     * is up.
+     */
+    private static void startRecoveryManagerInBackground() {
+        RecoveryHelperRegistry.recoveryStarting();
+        recoveryStartThread = new Thread(() -> {
+            try {
+                StartupProfile.getInstance().time("recoveryManager", () -> RecoveryManager.manager().initialize());
+                RecoveryHelperRegistry.recoveryStarted();
+                StartupProfile.getInstance().logSummary("Narayana recovery manager started");
+            } catch (RuntimeException e) {
+                RecoveryHelperRegistry.recoveryFailed();
+                log.error("Failed to start the recovery manager", e);
+            }
+        }, "narayana-recovery-start");
+        recoveryStartThread.setDaemon(true);
+        recoveryStartThread.start();
+    }
+
+    /**
+     * Terminate the recovery manager. If it failed to start, getting it tries to create it once more, which is expected
+     * to fail again.
+     */
+    private static void terminateRecoveryManager() {
+        try {
+            RecoveryManager.manager().terminate();
+        } catch (RuntimeException e) {
+            if (!RecoveryHelperRegistry.isRecoveryFailed()) {
+                throw e;
+            }
+            log.debug("The recovery manager which failed to start could not be terminated", e);
+        }
+    }
+
+    /**
+     * Wait for the background start of the recovery manager, if any, so that it is not terminated half way through.
+     */
+    private static void awaitRecoveryManagerStart() {
+        if (recoveryStartThread == null) {
+            return;
+        }
+        try {
+            recoveryStartThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting for the recovery manager to start", e);
+        }
+        recoveryStartThread = null;
+    }
+
+    /**
+     * Load the configuration file into the environment beans.
+     */
+    private static void loadProperties() {
+        arjPropertyManager.getCoreEnvironmentBean();
+        recoveryPropertyManager.getRecoveryEnvironmentBean();
+        jtaPropertyManager.getJTAEnvironmentBean();
+    }
+
+    /**
+     * Replace the socket based process identity with {@link PidProcessId} if requested.
+     */
+    private static void initProcessIdentity(BootstrapConfiguration configuration) {
+        if (configuration.getProcessIdentity() != BootstrapConfiguration.ProcessIdentity.PID) {
+            return;
+        }
+
+        log.debug("Using the operating system process id as the process identity");
+        arjPropertyManager.getCoreEnvironmentBean().setProcessImplementation(new PidProcessId());
+    }
+
+    /**
+     * Enable or disable the socket the recovery manager listens on, if requested.
+     */
+    private static void initRecoveryListener(BootstrapConfiguration configuration) {
+        if (configuration.getRecoveryListener() == null) {
+            return;
+        }
+
+        log.debug("Setting the recovery listener enabled to " + configuration.getRecoveryListener());
+        recoveryPropertyManager.getRecoveryEnvironmentBean().setRecoveryListener(configuration.getRecoveryListener());
+    }
+
+    /**
+     * If node identifier wasn't set by property manager, then set default {@link #DEFAULT_NODE_IDENTIFIER}.
+     */
+    private static void initNodeIdentifier() {
+        if (arjPropertyManager.getCoreEnvironmentBean().getNodeIdentifier() == null) {
+            log.warn("Node identifier was not set. Setting it to the default value: " + DEFAULT_NODE_IDENTIFIER);
+            try {
+                arjPropertyManager.getCoreEnvironmentBean().setNodeIdentifier(DEFAULT_NODE_IDENTIFIER);
+            } catch (CoreEnvironmentBeanException e) {
+                log.warn(e.getMessage(), e);
+            }
+        }
+
+        jtaPropertyManager.getJTAEnvironmentBean()
+                .setXaRecoveryNodes(Collections.singletonList(arjPropertyManager.getCoreEnvironmentBean().getNodeIdentifier()));
+    }
+
+    /**
+     * If recovery modules were not set by property manager, then set defaults {@link #DEFAULT_RECOVERY_MODULES}.
+     */
+    private static void initRecoveryModules() {
+        if (!recoveryPropertyManager.getRecoveryEnvironmentBean().getRecoveryModuleClassNames().isEmpty()) {
+            return;
+        }
+
+        log.debug("Recovery modules were not enabled. Enabling default modules: " + DEFAULT_RECOVERY_MODULES);
+        recoveryPropertyManager.getRecoveryEnvironmentBean().setRecoveryModuleClassNames(DEFAULT_RECOVERY_MODULES);
+    }
+
+    /**
+     * Add the configured commit markable data sources to {@code JTAEnvironmentBean.commitMarkableResourceJNDINames}. If
+     * there are any, make sure {@link CommitMarkableRecoveryModule} runs before the other recovery modules, it has to find
+     * the committed transactions before {@link AtomicActionRecoveryModule} and {@link XARecoveryModule} do.
+     */
+    private static void initCommitMarkableResources(BootstrapConfiguration configuration) {
+        final List<String> jndiNames = jtaPropertyManager.getJTAEnvironmentBean().getCommitMarkableResourceJNDINames();
+        for (String jndiName : configuration.getCommitMarkableResources()) {
+            if (!jndiNames.contains(jndiName)) {
+                jndiNames.add(jndiName);
+            }
+        }
+        jtaPropertyManager.getJTAEnvironmentBean().setCommitMarkableResourceJNDINames(jndiNames);
+        if (jndiNames.isEmpty()) {
+            return;
+        }
+
+        final List<String> modules = new ArrayList<>(
+                recoveryPropertyManager.getRecoveryEnvironmentBean().getRecoveryModuleClassNames());
+        modules.remove(CommitMarkableRecoveryModule.class.getName());
+        modules.remove(CommitMarkableRecoveryModule.class.getSuperclass().getName());
+        modules.add(0, CommitMarkableRecoveryModule.class.getName());
+        log.debug("Commit markable resources " + jndiNames + " enabled, recovery modules: " + modules);
+        recoveryPropertyManager.getRecoveryEnvironmentBean().setRecoveryModuleClassNames(modules);
+    }
+
+    /**
+     * Make sure {@link RecoveryScanModule} runs just before {@link XARecoveryModule}, it scans the data sources for it when
+     * parallel recovery is enabled, and {@link RecoveryPassModule} after all the other recovery modules, it closes the
+     * connections they used during the pass.
+     */
+    private static void initRecoveryPassModules(BootstrapConfiguration configuration) {
+        final List<String> modules = new ArrayList<>(
+                recoveryPropertyManager.getRecoveryEnvironmentBean().getRecoveryModuleClassNames());
+        modules.remove(RecoveryScanModule.class.getName());
+        modules.remove(RecoveryPassModule.class.getName());
+        final int xaRecoveryModule = modules.indexOf(XARecoveryModule.class.getName());
+        modules.add(xaRecoveryModule < 0 ? modules.size() : xaRecoveryModule, RecoveryScanModule.class.getName());
+        modules.add(RecoveryPassModule.class.getName());
+        recoveryPropertyManager.getRecoveryEnvironmentBean().setRecoveryModuleClassNames(modules);
+        RecoveryScanModule.configure(configuration.getParallelRecoveryThreads(),
+                configuration.getParallelRecoveryTimeoutMillis());
+    }
+
+    /**
+     * If orphan filters were not set by property manager, then set defaults {@link #DEFAULT_ORPHAN_FILTERS}.
+     */
+    private static void initOrphanFilters() {
+        if (!jtaPropertyManager.getJTAEnvironmentBean().getXaResourceOrphanFilterClassNames().isEmpty()) {
+            return;
+        }
+
+        log.debug("Orphan filters were not enabled. Enabling default filters: " + DEFAULT_ORPHAN_FILTERS);
+        jtaPropertyManager.getJTAEnvironmentBean().setXaResourceOrphanFilterClassNames(DEFAULT_ORPHAN_FILTERS);
+    }
+
+    /**
+     * If expiry scanners were not set by property manager, then set defaults {@link #DEFAULT_EXPIRY_SCANNERS}.
+     */
+    private static void initExpiryScanners() {
+        if (!recoveryPropertyManager.getRecoveryEnvironmentBean().getExpiryScannerClassNames().isEmpty()) {
+            return;
+        }
+
+        log.debug("Expiry scanners were not enabled. Enabling default scanners: " + DEFAULT_EXPIRY_SCANNERS);
+        recoveryPropertyManager.getRecoveryEnvironmentBean().setExpiryScannerClassNames(DEFAULT_EXPIRY_SCANNERS);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.io.File;
+
+import javax.naming.NamingException;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.internal.arjuna.objectstore.ShadowNoFileLockStore;
+import com.arjuna.ats.internal.arjuna.objectstore.hornetq.HornetqJournalEnvironmentBean;
+import com.arjuna.ats.internal.arjuna.objectstore.hornetq.HornetqJournalStore;
+import com.arjuna.ats.internal.arjuna.objectstore.hornetq.HornetqObjectStoreAdaptor;
+import com.arjuna.ats.internal.arjuna.objectstore.jdbc.JDBCStore;
+import com.arjuna.common.internal.util.propertyservice.BeanPopulator;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Applies the object store engine selected on the listeners to the Narayana environment beans, together with a tuning
+ * preset for that engine.
+ * <ul>
+ * <li>{@link BootstrapConfiguration.ObjectStoreType#FILE}: {@link ShadowNoFileLockStore}, one file per record, synced on
+ * every write
+ * <li>{@link BootstrapConfiguration.ObjectStoreType#HASHED}: {@link ShardedFileStore}, as the file store but with the
+ * records of each type spread over hashed subdirectories
+ * <li>{@link BootstrapConfiguration.ObjectStoreType#JOURNAL}: {@link HornetqObjectStoreAdaptor} for the transaction log,
+ * an append only journal with synced writes and deletes. The Artemis journal must be on the class path.
+ * <li>{@link BootstrapConfiguration.ObjectStoreType#JDBC}: {@link JDBCStore} for all stores, with a table prefix per store
+ * and the tables created if missing
+ * <li>{@link BootstrapConfiguration.ObjectStoreType#DATASOURCE}: {@link DataSourceObjectStore} for all stores, on a pooled
+ * data source found by its JNDI name, with the same table layout as the JDBC preset
+ * <li>{@link BootstrapConfiguration.ObjectStoreType#GROUP_COMMIT}: {@link GroupCommitObjectStore} for the transaction log,
+ * a preallocated log file where concurrent writes share one fsync
+ * </ul>
+ * Independently of the engine, the removal of the transaction log records can be moved to a background thread by an
+ * {@link AsyncRemovalObjectStore} in front of the selected store, and the records of relaxed transactions can be kept
+ * apart, without a sync, by a {@link DurabilityRoutingObjectStore}.
+ * <p>
+ * The settings are validated before they are applied, and the effective settings are logged.
+ */
+final class ObjectStoreConfigurer {
+
+    private static final Log log = LogFactory.getLog(ObjectStoreConfigurer.class);
+
+    static final String COMMUNICATION_STORE = "communicationStore";
+
+    static final String STATE_STORE = "stateStore";
+
+    private static final String JOURNAL_CLASS = "org.apache.activemq.artemis.core.journal.Journal";
+
+    private static final String JOURNAL_DIR = "HornetqObjectStore";
+
+    private static final int JOURNAL_FILE_SIZE = 10 * 1024 * 1024;
+
+    private static final int JOURNAL_MIN_FILES = 4;
+
+    private static final int JOURNAL_COMPACT_MIN_FILES = 10;
+
+    private static final int JOURNAL_COMPACT_PERCENTAGE = 30;
+
+    private ObjectStoreConfigurer() {
+        throw new UnsupportedOperationException(ObjectStoreConfigurer.class.getSimpleName() + " should not be instantiated.");
+    }
+
+    /**
+     * Validate and apply the object store settings. Nothing is changed if no object store type was selected and the
+     * asynchronous removal is not enabled.
+     *
+     * @param configuration settings of the listener starting the transaction services
+     * @throws IllegalStateException if the selected object store cannot be used
+     */
+    static void configure(BootstrapConfiguration configuration) {
+        final BootstrapConfiguration.ObjectStoreType type = configuration.getObjectStoreType();
+        DurabilityRoutingObjectStore.setEnabled(configuration.isObjectStoreRelaxedDurability());
+        if (type == null && !configuration.isObjectStoreAsyncRemoval() && !configuration.isObjectStoreRelaxedDurability()) {
+            return;
+        }
+
+        final ObjectStoreEnvironmentBean actionStore = BeanPopulator.getDefaultInstance(ObjectStoreEnvironmentBean.class);
+        if (type != null) {
+            configureType(configuration, type, actionStore);
+        }
+        if (configuration.isObjectStoreRelaxedDurability() && !isWrapped(actionStore)) {
+            DurabilityRoutingObjectStore.setDelegateType(actionStore.getObjectStoreType());
+            actionStore.setObjectStoreType(DurabilityRoutingObjectStore.class.getName());
+        }
+        if (configuration.isObjectStoreAsyncRemoval()
+                && !AsyncRemovalObjectStore.class.getName().equals(actionStore.getObjectStoreType())) {
+            AsyncRemovalObjectStore.setDelegateType(actionStore.getObjectStoreType());
+            actionStore.setObjectStoreType(AsyncRemovalObjectStore.class.getName());
+        }
+
+        logSettings(type, actionStore);
+    }
+
+    /**
+     * @return {@code true} if the action store is already one of the wrappers, from a previous start in the same JVM
+     */
+    private static boolean isWrapped(ObjectStoreEnvironmentBean actionStore) {
+        return AsyncRemovalObjectStore.class.getName().equals(actionStore.getObjectStoreType())
+                || DurabilityRoutingObjectStore.class.getName().equals(actionStore.getObjectStoreType());
+    }
+
+    private static void configureType(BootstrapConfiguration configuration, BootstrapConfiguration.ObjectStoreType type,
+            ObjectStoreEnvironmentBean actionStore) {
+        final ObjectStoreEnvironmentBean communicationStore = BeanPopulator
+                .getNamedInstance(ObjectStoreEnvironmentBean.class, COMMUNICATION_STORE);
+        final ObjectStoreEnvironmentBean stateStore = BeanPopulator
+                .getNamedInstance(ObjectStoreEnvironmentBean.class, STATE_STORE);
+        final String objectStoreDir = configuration.getObjectStoreDir() != null ? configuration.getObjectStoreDir()
+                : actionStore.getObjectStoreDir();
+
+        validate(configuration, objectStoreDir);
+
+        for (ObjectStoreEnvironmentBean bean : new ObjectStoreEnvironmentBean[] {actionStore, communicationStore, stateStore}) {
+            bean.setObjectStoreDir(objectStoreDir);
+        }
+
+        switch (type) {
+            case FILE:
+                actionStore.setObjectStoreType(ShadowNoFileLockStore.class.getName());
+                actionStore.setTransactionSync(true);
+                break;
+            case HASHED:
+                // read once, when the hashed store class is initialized
+                if (configuration.getObjectStoreHashedDirectories() > 0) {
+                    actionStore.setHashedDirectories(configuration.getObjectStoreHashedDirectories());
+                }
+                actionStore.setObjectStoreType(ShardedFileStore.class.getName());
+                actionStore.setTransactionSync(true);
+                break;
+            case JOURNAL:
+                final HornetqJournalEnvironmentBean journal = BeanPopulator
+                        .getDefaultInstance(HornetqJournalEnvironmentBean.class);
+                journal.setStoreDir(new File(objectStoreDir, JOURNAL_DIR).getPath());
+                journal.setSyncWrites(true);
+                journal.setSyncDeletes(true);
+                journal.setFileSize(JOURNAL_FILE_SIZE);
+                journal.setMinFiles(JOURNAL_MIN_FILES);
+                journal.setCompactMinFiles(JOURNAL_COMPACT_MIN_FILES);
+                journal.setCompactPercentage(JOURNAL_COMPACT_PERCENTAGE);
+                actionStore.setObjectStoreType(HornetqObjectStoreAdaptor.class.getName());
+                break;
+            case GROUP_COMMIT:
+                actionStore.setObjectStoreType(GroupCommitObjectStore.class.getName());
+                break;
+            case JDBC:
+                configureJdbc(actionStore, JDBCStore.class, configuration.getObjectStoreJdbcAccess(), "action_");
+                configureJdbc(communicationStore, JDBCStore.class, configuration.getObjectStoreJdbcAccess(), "communication_");
+                configureJdbc(stateStore, JDBCStore.class, configuration.getObjectStoreJdbcAccess(), "state_");
+                break;
+            case DATASOURCE:
+                final String dataSource = configuration.getObjectStoreDataSource();
+                configureJdbc(actionStore, DataSourceObjectStore.class, dataSource, "action_");
+                configureJdbc(communicationStore, DataSourceObjectStore.class, dataSource, "communication_");
+                configureJdbc(stateStore, DataSourceObjectStore.class, dataSource, "state_");
+                break;
+            default:
+                throw new IllegalStateException("Unsupported object store type " + type);
+        }
+    }
+
+    private static void configureJdbc(ObjectStoreEnvironmentBean bean, Class<?> storeType, String jdbcAccess,
+            String tablePrefix) {
+        bean.setObjectStoreType(storeType.getName());
+        bean.setJdbcAccess(jdbcAccess);
+        bean.setTablePrefix(tablePrefix);
+        bean.setCreateTable(true);
+        bean.setDropTable(false);
+    }
+
+    private static void validate(BootstrapConfiguration configuration, String objectStoreDir) {
+        switch (configuration.getObjectStoreType()) {
+            case JOURNAL:
+                try {
+                    Class.forName(JOURNAL_CLASS, false, HornetqJournalStore.class.getClassLoader());
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException("The journal object store requires the Artemis journal ("
+                            + JOURNAL_CLASS + ") on the class path", e);
+                }
+                validateDirectory(objectStoreDir);
+                break;
+            case JDBC:
+                if (configuration.getObjectStoreJdbcAccess() == null || configuration.getObjectStoreJdbcAccess().isEmpty()) {
+                    throw new IllegalStateException("The JDBC object store requires the JDBC access to be configured");
+                }
+                break;
+            case DATASOURCE:
+                validateDataSource(configuration.getObjectStoreDataSource());
+                break;
+            default:
+                validateDirectory(objectStoreDir);
+        }
+    }
+
+    /**
+     * Look the data source up on the starting thread, which sees the JNDI context of the web application, and register it
+     * for the object stores, which may be created later on a thread of the transaction services.
+     */
+    private static void validateDataSource(String name) {
+        if (name == null || name.isEmpty()) {
+            throw new IllegalStateException("The data source object store requires the JNDI name of the data source");
+        }
+        try {
+            DataSourceObjectStore.registerDataSource(name, DataSourceObjectStore.getDataSource(name));
+        } catch (NamingException | ClassCastException e) {
+            throw new IllegalStateException("Cannot find the object store data source " + name, e);
+        }
+    }
+
+    private static void validateDirectory(String objectStoreDir) {
+        if (objectStoreDir == null) {
+            throw new IllegalStateException("The object store directory is not configured");
+        }
+        final File dir = new File(objectStoreDir);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Cannot create the object store directory " + dir.getAbsolutePath());
+        }
+        if (!dir.canWrite()) {
+            throw new IllegalStateException("The object store directory " + dir.getAbsolutePath() + " is not writable");
+        }
+    }
+
+    private static void logSettings(BootstrapConfiguration.ObjectStoreType type, ObjectStoreEnvironmentBean actionStore) {
+        final StringBuilder settings = new StringBuilder("Object store: engine=").append(type)
+                .append(", type=").append(actionStore.getObjectStoreType())
+                .append(AsyncRemovalObjectStore.class.getName().equals(actionStore.getObjectStoreType())
+                        ? ", asyncRemoval=" + AsyncRemovalObjectStore.getDelegateType() : "")
+                .append(DurabilityRoutingObjectStore.isEnabled()
+                        ? ", relaxedDurability=" + DurabilityRoutingObjectStore.getDelegateType() : "")
+                .append(", dir=").append(new File(actionStore.getObjectStoreDir()).getAbsolutePath());
+        if (type == BootstrapConfiguration.ObjectStoreType.JOURNAL) {
+            final HornetqJournalEnvironmentBean journal = BeanPopulator.getDefaultInstance(HornetqJournalEnvironmentBean.class);
+            settings.append(", journalDir=").append(journal.getStoreDir())
+                    .append(", syncWrites=").append(journal.isSyncWrites())
+                    .append(", syncDeletes=").append(journal.isSyncDeletes())
+                    .append(", fileSize=").append(journal.getFileSize())
+                    .append(", minFiles=").append(journal.getMinFiles());
+        } else if (type == BootstrapConfiguration.ObjectStoreType.HASHED) {
+            settings.append(", hashedDirectories=").append(actionStore.getHashedDirectories())
+                    .append(", transactionSync=").append(actionStore.isTransactionSync());
+        } else if (type == BootstrapConfiguration.ObjectStoreType.GROUP_COMMIT) {
+            settings.append(", logDir=").append(new File(actionStore.getObjectStoreDir(), GroupCommitObjectStore.STORE_DIR)
+                    .getAbsolutePath()).append(", logFileSize=").append(GroupCommitObjectStore.DEFAULT_LOG_FILE_SIZE);
+        } else if (type == BootstrapConfiguration.ObjectStoreType.DATASOURCE) {
+            settings.append(", dataSource=").append(actionStore.getJdbcAccess())
+                    .append(", tablePrefix=").append(actionStore.getTablePrefix());
+        } else if (type == BootstrapConfiguration.ObjectStoreType.JDBC) {
+            // only the accessor class, the rest of the JDBC access string may hold credentials
+            settings.append(", jdbcAccess=").append(actionStore.getJdbcAccess().split(";")[0])
+                    .append(", tablePrefix=").append(actionStore.getTablePrefix());
+        } else {
+            settings.append(", transactionSync=").append(actionStore.isTransactionSync());
+        }
+        log.info(settings);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+
+import com.arjuna.ats.arjuna.utils.Process;
+
+/**
+ * Process identity built from the operating system process id and the JVM start time, without binding a socket as
+ * {@link com.arjuna.ats.internal.arjuna.utils.SocketProcessId} does.
+ * <p>
+ * The lower {@value #PID_BITS} bits hold the operating system process id, which is unique among the processes running on
+ * the host at the same time. The upper bits hold a nonce derived from the JVM start time, so that a process id reused by a
+ * later JVM still yields a different identity.
+ */
+public class PidProcessId implements Process {
+
+    private static final int PID_BITS = 22;
+
+    private static final int PID_MASK = (1 << PID_BITS) - 1;
+
+    private final int pid;
+
+    public PidProcessId() {
+        final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+        final long startTime = runtime.getStartTime();
+        final int nonce = (int) (startTime ^ (startTime >>> 32));
+        pid = (parsePid(runtime.getName()) & PID_MASK) | (nonce << PID_BITS);
+    }
+
+    @Override
+    public int getpid() {
+        return pid;
+    }
+
+    /**
+     * @param runtimeName JVM name in the usual {@code pid@hostname} form
+     * @return the operating system process id
+     * @throws IllegalStateException if the JVM name does not start with the process id
+     */
+    private static int parsePid(String runtimeName) {
+        final int at = runtimeName.indexOf('@');
+        try {
+            return Integer.parseInt(at > 0 ? runtimeName.substring(0, at) : runtimeName);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Cannot determine the process id from the JVM name " + runtimeName, e);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Opens the initial connections of a pool from several threads at once, instead of one after the other on the thread
+ * creating the data source.
+ * <p>
+ * At most {@code concurrency} connections are being opened at any time. No connection is opened past the deadline, and a
+ * thread stops opening connections after its first failure, as the next ones would most likely fail the same way. The
+ * progress is reported through the management interface under {@code type=PoolPrewarm}, so that a pool warmed in the
+ * background can be checked for readiness.
+ */
+public final class PoolPrewarm implements PoolPrewarmMXBean {
+
+    private static final Log log = LogFactory.getLog(PoolPrewarm.class);
+
+    private static final String OBJECT_NAME_PREFIX = "org.jboss.narayana.tomcat:type=PoolPrewarm,name=";
+
+    private final String name;
+
+    private final ConnectionAdder connectionAdder;
+
+    private final int targetSize;
+
+    private final int concurrency;
+
+    private final long deadline;
+
+    private final AtomicInteger claimed = new AtomicInteger();
+
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private final AtomicInteger running;
+
+    private final AtomicBoolean expired = new AtomicBoolean();
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile Runnable onComplete = () -> { };
+
+    /**
+     * @param name name of the data source in the management interface
+     * @param connectionAdder opens a connection and adds it to the pool
+     * @param targetSize number of connections to open
+     * @param concurrency maximum number of connections being opened at once
+     * @param timeoutMillis time after which no connection is opened anymore, {@code 0} for no deadline
+     */
+    public PoolPrewarm(String name, ConnectionAdder connectionAdder, int targetSize, int concurrency, long timeoutMillis) {
+        this.name = name;
+        this.connectionAdder = connectionAdder;
+        this.targetSize = targetSize;
+        this.concurrency = Math.max(1, Math.min(concurrency, targetSize));
+        this.deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+        this.running = new AtomicInteger(this.concurrency);
+    }
+
+    /**
+     * Register the management interface and start opening the connections in the background.
+     *
+     * @param onComplete run once the opening of connections has ended
+     */
+    public void start(Runnable onComplete) {
+        this.onComplete = onComplete;
+        MBeanSupport.register(MBeanSupport.objectName(OBJECT_NAME_PREFIX, name), this, PoolPrewarmMXBean.class);
+        for (int i = 0; i < concurrency; i++) {
+            final Thread thread = new Thread(this::openConnections, "narayana-pool-prewarm-" + name + "-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Wait for the opening of connections to end.
+     *
+     * @param timeout maximum time to wait, {@code 0} to wait until the end
+     * @return whether the opening of connections has ended
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        if (timeout <= 0) {
+            done.await();
+            return true;
+        }
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * Stop opening connections and unregister the management interface.
+     */
+    public void stop() {
+        claimed.set(targetSize);
+        MBeanSupport.unregister(MBeanSupport.objectName(OBJECT_NAME_PREFIX, name));
+    }
+
+    @Override
+    public int getTargetSize() {
+        return targetSize;
+    }
+
+    @Override
+    public int getOpenedCount() {
+        return opened.get();
+    }
+
+    @Override
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public boolean isComplete() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public boolean isReady() {
+        return opened.get() >= targetSize;
+    }
+
+    private void openConnections() {
+        try {
+            while (claimed.getAndIncrement() < targetSize) {
+                if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                    if (expired.compareAndSet(false, true)) {
+                        log.warn("Opened " + opened.get() + " of the " + targetSize + " initial connections of " + name
+                                + " before the deadline");
+                    }
+                    claimed.set(targetSize);
+                    return;
+                }
+                try {
+                    connectionAdder.addConnection();
+                    opened.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    log.warn("Could not open an initial connection of " + name, e);
+                    return;
+                }
+            }
+        } finally {
+            if (running.decrementAndGet() == 0) {
+                try {
+                    onComplete.run();
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a connection and adds it to the pool.
+     */
+    @FunctionalInterface
+    public interface ConnectionAdder {
+
+        void addConnection() throws Exception;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+/**
+ * Management interface of the opening of the initial connections of a pool, see {@link PoolPrewarm}.
+ */
+public interface PoolPrewarmMXBean {
+
+    /**
+     * @return number of connections to open
+     */
+    int getTargetSize();
+
+    /**
+     * @return number of connections opened so far
+     */
+    int getOpenedCount();
+
+    /**
+     * @return number of connections which could not be opened
+     */
+    int getFailedCount();
+
+    /**
+     * @return whether the opening of connections has ended, whether or not all of them were opened
+     */
+    boolean isComplete();
+
+    /**
+     * @return whether all the initial connections were opened
+     */
+    boolean isReady();
+}
@@ -4,27 +4,30 @@
  */
 package org.jboss.narayana.tomcat.jta.internal;
 
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
-import javax.sql.ConnectionEvent;
-import javax.sql.ConnectionEventListener;
 import javax.sql.DataSource;
-import javax.sql.XAConnection;
 import javax.sql.XADataSource;
 import javax.transaction.TransactionManager;
 import javax.transaction.TransactionSynchronizationRegistry;
-import javax.transaction.xa.XAResource;
 
-import com.arjuna.ats.internal.jta.recovery.arjunacore.XARecoveryModule;
-import com.arjuna.ats.jta.recovery.XAResourceRecoveryHelper;
+import com.arjuna.ats.jta.common.JTAEnvironmentBean;
+import com.arjuna.ats.jta.common.jtaPropertyManager;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 import org.apache.tomcat.dbcp.dbcp2.BasicDataSource;
-import org.apache.tomcat.dbcp.dbcp2.BasicDataSourceFactory;
-import org.apache.tomcat.dbcp.dbcp2.managed.BasicManagedDataSource;
+import org.apache.tomcat.jdbc.pool.DataSourceFactory;
+import org.apache.tomcat.jdbc.pool.PoolConfiguration;
 
 public final class PoolingDataSourceFactory {
 
@@ -32,125 +35,388 @@ public final class PoolingDataSourceFactory {
 
     private static final String PROP_USERNAME = "username";
     private static final String PROP_PASSWORD = "password";
+    private static final String PROP_UNIQUE_NAME = "uniqueName";
+    private static final String PROP_JNDI_NAME = "jndiName";
+    private static final String PROP_LOCAL_TRANSACTION_FAST_PATH = "localTransactionFastPath";
+    private static final String PROP_LOCAL_TRANSACTION_LAST_RESOURCE = "localTransactionLastResource";
+    private static final String PROP_LAZY_ENLISTMENT = "lazyEnlistment";
+    private static final String PROP_RESOURCE_MANAGER_ID = "resourceManagerId";
+    private static final String PROP_TRANSACTION_DEADLINE = "transactionDeadline";
+    private static final String PROP_REAPER_ABORT = "reaperAbort";
+    private static final String PROP_POOL_IMPLEMENTATION = "poolImplementation";
+    private static final String PROP_PREWARM_CONCURRENCY = "prewarmConcurrency";
+    private static final String PROP_PREWARM_TIMEOUT_MILLIS = "prewarmTimeoutMillis";
+    private static final String PROP_PREWARM_ASYNC = "prewarmAsync";
+    private static final String PROP_RECOVERY_CONNECT_TIMEOUT_MILLIS = "recoveryConnectTimeoutMillis";
+    private static final String PROP_RECOVERY_TIMEOUT_MILLIS = "recoveryTimeoutMillis";
+    private static final String PROP_RECOVERY_FAILURE_THRESHOLD = "recoveryFailureThreshold";
+    private static final String PROP_RECOVERY_BACKOFF_MILLIS = "recoveryBackoffMillis";
+    private static final String PROP_RECOVERY_MAX_BACKOFF_MILLIS = "recoveryMaxBackoffMillis";
+    private static final String PROP_RECOVERY_PROBE_TIMEOUT_MILLIS = "recoveryProbeTimeoutMillis";
 
-    static XAResourceRecoveryHelper getXAResourceRecoveryHelper(XADataSource xaDataSource, Properties properties) {
-        return new XAResourceRecoveryHelper() {
-            private final Object lock = new Object();
-            private XAConnection connection;
+    private static final long DEFAULT_RECOVERY_TIMEOUT_MILLIS = 30000;
+    private static final int DEFAULT_RECOVERY_FAILURE_THRESHOLD = 3;
+    private static final long DEFAULT_RECOVERY_BACKOFF_MILLIS = 60000;
+    private static final long DEFAULT_RECOVERY_MAX_BACKOFF_MILLIS = 1800000;
+    private static final long DEFAULT_RECOVERY_PROBE_TIMEOUT_MILLIS = 5000;
 
-            @Override
-            public boolean initialise(String p) throws Exception {
-                return true;
-            }
+    private static final String POOL_IMPLEMENTATION_DBCP = "dbcp";
+    private static final String POOL_IMPLEMENTATION_BAG = "bag";
+    private static final String POOL_IMPLEMENTATION_TOMCAT_JDBC = "tomcat-jdbc";
 
-            @Override
-            public synchronized XAResource[] getXAResources() throws Exception {
-                synchronized (lock) {
-                    initialiseConnection();
-                    try {
-                        return new XAResource[]{connection.getXAResource()};
-                    } catch (SQLException ex) {
-                        return new XAResource[0];
-                    }
-                }
-            }
+    /**
+     * Options of the DBCP pool which the other pool implementations do not support.
+     */
+    private static final List<String> DBCP_OPTIONS = Arrays.asList(PROP_LOCAL_TRANSACTION_FAST_PATH,
+            PROP_LOCAL_TRANSACTION_LAST_RESOURCE, PROP_LAZY_ENLISTMENT, PROP_TRANSACTION_DEADLINE, PROP_REAPER_ABORT,
+            PROP_PREWARM_CONCURRENCY, PROP_PREWARM_TIMEOUT_MILLIS, PROP_PREWARM_ASYNC);
 
-            private void initialiseConnection() throws SQLException {
-                // This will allow us to ensure that each recovery cycle gets a fresh connection
-                // It might be better to close at the end of the recovery pass to free up the connection but
-                // we don't have a hook
-                if (connection == null) {
-                    final String user = properties.getProperty(PROP_USERNAME);
-                    final String password = properties.getProperty(PROP_PASSWORD);
-
-                    if (user != null && password != null) {
-                        connection = xaDataSource.getXAConnection(user, password);
-                    } else {
-                        connection = xaDataSource.getXAConnection();
-                    }
-                    connection.addConnectionEventListener(new ConnectionEventListener() {
-                        @Override
-                        public void connectionClosed(ConnectionEvent event) {
-                            log.warn("The connection was closed: " + connection);
-                            synchronized (lock) {
-                                connection = null;
-                            }
-                        }
-
-                        @Override
-                        public void connectionErrorOccurred(ConnectionEvent event) {
-                            log.warn("A connection error occurred: " + connection);
-                            synchronized (lock) {
-                                try {
-                                    connection.close();
-                                } catch (SQLException e) {
-                                    // Ignore
-                                    log.warn("Could not close failing connection: " + connection);
-                                }
-                                connection = null;
-                            }
-                        }
-                    });
-                }
+    /**
+     * Create the recovery helper of a pooled data source, which opens a connection with the {@code username} and
+     * {@code password} properties for each recovery pass. Opening it is given up after
+     * {@code recoveryConnectTimeoutMillis}, and scanning it for in-doubt transactions after {@code recoveryTimeoutMillis},
+     * both {@value #DEFAULT_RECOVERY_TIMEOUT_MILLIS} ms by default.
+     * <p>
+     * After {@code recoveryFailureThreshold} failed recovery attempts in a row, the data source is skipped by recovery for
+     * {@code recoveryBackoffMillis}, doubled after each failed probe up to {@code recoveryMaxBackoffMillis}. Probes give
+     * up opening a connection after {@code recoveryProbeTimeoutMillis}. See {@link RecoveryCircuitBreaker}.
+     */
+    static DataSourceRecoveryHelper getXAResourceRecoveryHelper(String dataSourceName, XADataSource xaDataSource,
+            Properties properties) {
+        final String connectTimeoutMillis = (String) properties.remove(PROP_RECOVERY_CONNECT_TIMEOUT_MILLIS);
+        final String recoverTimeoutMillis = (String) properties.remove(PROP_RECOVERY_TIMEOUT_MILLIS);
+        final String failureThreshold = (String) properties.remove(PROP_RECOVERY_FAILURE_THRESHOLD);
+        final String backoffMillis = (String) properties.remove(PROP_RECOVERY_BACKOFF_MILLIS);
+        final String maxBackoffMillis = (String) properties.remove(PROP_RECOVERY_MAX_BACKOFF_MILLIS);
+        final String probeTimeoutMillis = (String) properties.remove(PROP_RECOVERY_PROBE_TIMEOUT_MILLIS);
+        final RecoveryCircuitBreaker circuitBreaker = new RecoveryCircuitBreaker(dataSourceName,
+                failureThreshold == null ? DEFAULT_RECOVERY_FAILURE_THRESHOLD : Integer.parseInt(failureThreshold),
+                backoffMillis == null ? DEFAULT_RECOVERY_BACKOFF_MILLIS : Long.parseLong(backoffMillis),
+                maxBackoffMillis == null ? DEFAULT_RECOVERY_MAX_BACKOFF_MILLIS : Long.parseLong(maxBackoffMillis),
+                probeTimeoutMillis == null ? DEFAULT_RECOVERY_PROBE_TIMEOUT_MILLIS : Long.parseLong(probeTimeoutMillis));
+        return new DataSourceRecoveryHelper(dataSourceName, xaDataSource, properties.getProperty(PROP_USERNAME),
+                properties.getProperty(PROP_PASSWORD),
+                connectTimeoutMillis == null ? DEFAULT_RECOVERY_TIMEOUT_MILLIS : Long.parseLong(connectTimeoutMillis),
+                recoverTimeoutMillis == null ? DEFAULT_RECOVERY_TIMEOUT_MILLIS : Long.parseLong(recoverTimeoutMillis),
+                circuitBreaker);
+    }
+
+    /**
+     * Register the recovery helper of a pooled data source until the pool is closed. The registration is queued until the
+     * recovery manager is up if it is being started in the background.
+     */
+    private static void registerForRecovery(SharedDataSource pool, DataSourceRecoveryHelper helper) {
+        RecoveryHelperRegistry.register(helper);
+        helper.getCircuitBreaker().register();
+        pool.addCloseListener(() -> {
+            RecoveryHelperRegistry.deregister(helper);
+            helper.getCircuitBreaker().unregister();
+            helper.endPass();
+        });
+    }
+
+    /**
+     * Refuse the options of the DBCP pool set for another pool implementation, as an unknown pool implementation is
+     * refused, rather than silently running without them. An option set to {@code false} is accepted.
+     */
+    private static void checkDbcpOptions(String poolImplementation, String dataSourceName, Properties properties) {
+        final List<String> unsupported = new ArrayList<>();
+        for (String option : DBCP_OPTIONS) {
+            final String value = properties.getProperty(option);
+            if (value != null && !"false".equalsIgnoreCase(value)) {
+                unsupported.add(option);
             }
-        };
+        }
+        if (!unsupported.isEmpty()) {
+            throw new IllegalArgumentException("The " + unsupported + " properties of " + dataSourceName
+                    + " are not supported by the " + poolImplementation + " " + PROP_POOL_IMPLEMENTATION);
+        }
     }
 
+    private static String getDataSourceName(XADataSource xaDataSource, Properties properties) {
+        final String uniqueName = properties.getProperty(PROP_UNIQUE_NAME);
+        if (uniqueName != null) {
+            return uniqueName;
+        }
+        return xaDataSource.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(xaDataSource));
+    }
+
+    /**
+     * Create a pooled data source enlisting the XA branches of its connections in the transactions.
+     * <p>
+     * If the {@code localTransactionFastPath} property is {@code true}, the first resource of a transaction is enlisted as a
+     * local transaction instead, see {@link LocalTransactionManagedDataSource}. Other resources joining such a transaction
+     * are refused, unless the {@code localTransactionLastResource} property is {@code true}, which commits the local
+     * transaction as a last resource. If the {@code lazyEnlistment} property is
+     * {@code true}, the pooled data source is wrapped in a {@link LazyEnlistmentDataSource}.
+     * <p>
+     * Data sources with the same {@code resourceManagerId} property join a single branch when they are used in the same
+     * transaction, see {@link ResourceManagerXAResource}. The database must support joining a branch from another
+     * connection.
+     * <p>
+     * If the {@code transactionDeadline} property is {@code true}, the time left in the transaction of the thread bounds
+     * the wait for a pooled connection and the query timeout of its statements. If the {@code reaperAbort} property is
+     * {@code true}, the connections of a transaction timed out by the reaper are aborted, see
+     * {@link DeadlineManagedDataSource}.
+     * <p>
+     * The connections are pooled by DBCP unless the {@code poolImplementation} property is {@code bag}, which selects a
+     * pool without lock on the borrow path, see {@link BagPoolingDataSource}, or {@code tomcat-jdbc}, which selects the
+     * tomcat-jdbc pool configured with its own properties, see {@link TomcatJdbcPoolingDataSource}. These pools support
+     * none of the options above but the {@code resourceManagerId} property, and refuse them with an
+     * {@link IllegalArgumentException}. The {@code bag} pool is opt-in.
+     * <p>
+     * The {@code initialSize} connections of a DBCP pool are opened one after the other while the data source is created,
+     * unless one of the {@code prewarmConcurrency}, {@code prewarmTimeoutMillis} or {@code prewarmAsync} properties is
+     * set. They are then opened by up to {@code prewarmConcurrency} threads at once, with no connection opened after
+     * {@code prewarmTimeoutMillis}. If {@code prewarmAsync} is {@code true}, the data source is returned without waiting
+     * for them, and whether the pool is ready is reported through JMX, see {@link PoolPrewarm}.
+     * <p>
+     * Recovery only holds a connection to the database during a recovery pass, and skips a database failing pass after
+     * pass for a while, see {@link DataSourceRecoveryHelper}.
+     */
     public static DataSource createPoolingDataSource(final TransactionManager transactionManager,
                                               final XADataSource xaDataSource,
                                               final TransactionSynchronizationRegistry tsr,
                                               final Properties properties) {
         if (transactionManager != null && xaDataSource != null) {
+            final long start = System.nanoTime();
+            final String dataSourceName = getDataSourceName(xaDataSource, properties);
+            final String profileStep = "dataSource[" + dataSourceName + "]";
+            final String poolImplementation = (String) properties.remove(PROP_POOL_IMPLEMENTATION);
+            if (POOL_IMPLEMENTATION_BAG.equals(poolImplementation)
+                    || POOL_IMPLEMENTATION_TOMCAT_JDBC.equals(poolImplementation)) {
+                checkDbcpOptions(poolImplementation, dataSourceName, properties);
+            }
             /*
              * There is a trick to fix DBCP-215 so we have to remove the "initialSize" that
-             * the BasicDataSourceFactory.createDataSource(properties) will not create the connections in the pool.
+             * the connections are not created in the pool while the data source is being configured.
              * And it will create the connections with the BasicManagedDataSource later if the initialSize > 0.
              */
             String initialSize = properties.getProperty("initialSize");
             properties.remove("initialSize");
-            BasicManagedDataSource mds = new BasicManagedDataSource();
-
-            try {
-                BasicDataSource ds = BasicDataSourceFactory.createDataSource(properties);
+            final boolean localTransactionFastPath = Boolean.parseBoolean(
+                    (String) properties.remove(PROP_LOCAL_TRANSACTION_FAST_PATH));
+            final boolean localTransactionLastResource = Boolean.parseBoolean(
+                    (String) properties.remove(PROP_LOCAL_TRANSACTION_LAST_RESOURCE));
+            final boolean lazyEnlistment = Boolean.parseBoolean((String) properties.remove(PROP_LAZY_ENLISTMENT));
+            final String resourceManagerId = (String) properties.remove(PROP_RESOURCE_MANAGER_ID);
+            final boolean transactionDeadline = Boolean.parseBoolean(
+                    (String) properties.remove(PROP_TRANSACTION_DEADLINE));
+            final boolean reaperAbort = Boolean.parseBoolean((String) properties.remove(PROP_REAPER_ABORT));
+            final String prewarmConcurrency = (String) properties.remove(PROP_PREWARM_CONCURRENCY);
+            final String prewarmTimeoutMillis = (String) properties.remove(PROP_PREWARM_TIMEOUT_MILLIS);
+            final boolean prewarmAsync = Boolean.parseBoolean((String) properties.remove(PROP_PREWARM_ASYNC));
+            final DataSourceRecoveryHelper recoveryHelper = getXAResourceRecoveryHelper(dataSourceName, xaDataSource,
+                    properties);
+            final XADataSource pooledXaDataSource = resourceManagerId == null ? xaDataSource
+                    : new ResourceManagerXADataSource(xaDataSource, resourceManagerId);
 
-                for (Field field : ds.getClass().getDeclaredFields()) {
-                    field.setAccessible(true);
-                    if (field.get(ds) == null || Modifier.isFinal(field.getModifiers())) {
-                        continue;
-                    }
-                    field.set(mds, field.get(ds));
-                }
+            if (POOL_IMPLEMENTATION_BAG.equals(poolImplementation)
+                    || POOL_IMPLEMENTATION_TOMCAT_JDBC.equals(poolImplementation)) {
+                final SharedDataSource pooled = POOL_IMPLEMENTATION_BAG.equals(poolImplementation)
+                        ? createBagPoolingDataSource(transactionManager, pooledXaDataSource, tsr, properties,
+                                initialSize, profileStep)
+                        : createTomcatJdbcPoolingDataSource(transactionManager, pooledXaDataSource, tsr, properties,
+                                initialSize, profileStep);
+                registerForRecovery(pooled, recoveryHelper);
+                StartupProfile.getInstance().record(profileStep, System.nanoTime() - start);
+                return pooled;
+            } else if (poolImplementation != null && !POOL_IMPLEMENTATION_DBCP.equals(poolImplementation)) {
+                throw new IllegalArgumentException("Unknown " + PROP_POOL_IMPLEMENTATION + " " + poolImplementation
+                        + " of " + dataSourceName + ", expected " + POOL_IMPLEMENTATION_DBCP + ", "
+                        + POOL_IMPLEMENTATION_BAG + " or " + POOL_IMPLEMENTATION_TOMCAT_JDBC);
+            }
+            final DeadlineManagedDataSource mds;
+            if (localTransactionFastPath) {
+                final LocalTransactionManagedDataSource localTransactionDataSource = new LocalTransactionManagedDataSource();
+                localTransactionDataSource.setLastResource(localTransactionLastResource);
+                mds = localTransactionDataSource;
+            } else {
+                mds = new DeadlineManagedDataSource();
+            }
 
+            try {
+                PropertyBinder.forClass(mds.getClass()).bind(mds, properties);
                 mds.setTransactionManager(transactionManager);
-                mds.setXaDataSourceInstance(xaDataSource);
+                mds.setXaDataSourceInstance(pooledXaDataSource);
                 mds.setTransactionSynchronizationRegistry(tsr);
+                mds.setTransactionDeadline(transactionDeadline);
+                if (reaperAbort) {
+                    mds.enableReaperAbort(dataSourceName);
+                }
 
                 if (initialSize != null) {
                     mds.setInitialSize(Integer.parseInt(initialSize));
-                    if (mds.getInitialSize() > 0) {
-                        mds.getLogWriter();
+                    if (mds.getInitialSize() > 0
+                            && (prewarmConcurrency != null || prewarmTimeoutMillis != null || prewarmAsync)) {
+                        prewarm(mds, dataSourceName, profileStep,
+                                prewarmConcurrency == null ? 1 : Integer.parseInt(prewarmConcurrency),
+                                prewarmTimeoutMillis == null ? 0 : Long.parseLong(prewarmTimeoutMillis), prewarmAsync);
+                    } else if (mds.getInitialSize() > 0) {
+                        StartupProfile.getInstance().time(profileStep + ".initialFill", () -> {
+                            try {
+                                mds.getLogWriter();
+                            } catch (SQLException e) {
+                                throw new RuntimeException(e);
+                            }
+                        });
                     }
                 }
             } catch (Exception ex) {
                 throw new RuntimeException(ex);
             }
-            // Register for recovery
-            XARecoveryModule xaRecoveryModule = getXARecoveryModule();
-            if (xaRecoveryModule != null) {
-                xaRecoveryModule.addXAResourceRecoveryHelper(getXAResourceRecoveryHelper(xaDataSource, properties));
-            }
+            registerForRecovery(mds, recoveryHelper);
 
-            return mds;
+            StartupProfile.getInstance().record(profileStep, System.nanoTime() - start);
+            return lazyEnlistment ? new LazyEnlistmentDataSource(mds, dataSourceName) : mds;
         } else {
             return null;
         }
     }
 
-    private static XARecoveryModule getXARecoveryModule() {
-        final XARecoveryModule xaRecoveryModule = XARecoveryModule.getRegisteredXARecoveryModule();
-        if (xaRecoveryModule != null) {
-            return xaRecoveryModule;
+    /**
+     * Open the initial connections of the pool from several threads, waiting for them unless asynchronous.
+     */
+    private static void prewarm(DeadlineManagedDataSource mds, String dataSourceName, String profileStep,
+            int concurrency, long timeoutMillis, boolean async) throws SQLException, InterruptedException {
+        final long start = System.nanoTime();
+        final PoolPrewarm prewarm = mds.prewarm(dataSourceName, concurrency, timeoutMillis, () -> {
+            StartupProfile.getInstance().record(profileStep + ".initialFill", System.nanoTime() - start);
+            if (async) {
+                final PoolPrewarm completed = mds.getPrewarm();
+                log.info("Opened " + completed.getOpenedCount() + " of the " + completed.getTargetSize()
+                        + " initial connections of " + dataSourceName);
+            }
+        });
+        if (!async && !prewarm.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            log.warn("Opened " + prewarm.getOpenedCount() + " of the " + prewarm.getTargetSize()
+                    + " initial connections of " + dataSourceName + " within " + PROP_PREWARM_TIMEOUT_MILLIS);
+        }
+    }
+
+    private static BagPoolingDataSource createBagPoolingDataSource(TransactionManager transactionManager,
+            XADataSource xaDataSource, TransactionSynchronizationRegistry tsr, Properties properties, String initialSize,
+            String profileStep) {
+        try {
+            final BasicDataSource configuration = new BasicDataSource();
+            PropertyBinder.forClass(BasicDataSource.class).bind(configuration, properties);
+            final BagPoolingDataSource dataSource = new BagPoolingDataSource(transactionManager, xaDataSource, tsr,
+                    configuration, properties.getProperty(PROP_USERNAME), properties.getProperty(PROP_PASSWORD));
+            if (initialSize != null && Integer.parseInt(initialSize) > 0) {
+                StartupProfile.getInstance().time(profileStep + ".initialFill", () -> {
+                    try {
+                        dataSource.fill(Integer.parseInt(initialSize));
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            }
+            return dataSource;
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static TomcatJdbcPoolingDataSource createTomcatJdbcPoolingDataSource(TransactionManager transactionManager,
+            XADataSource xaDataSource, TransactionSynchronizationRegistry tsr, Properties properties, String initialSize,
+            String profileStep) {
+        final PoolConfiguration configuration = DataSourceFactory.parsePoolProperties(properties);
+        configuration.setDataSource(xaDataSource);
+        if (initialSize != null) {
+            configuration.setInitialSize(Integer.parseInt(initialSize));
+        }
+        final TomcatJdbcPoolingDataSource dataSource = new TomcatJdbcPoolingDataSource(transactionManager, tsr,
+                configuration);
+        StartupProfile.getInstance().time(profileStep + ".initialFill", () -> {
+            try {
+                dataSource.getPool().createPool();
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        return dataSource;
+    }
+
+    /**
+     * Create a data source taking part in transactions as a commit markable resource, see {@link CommitMarkableDataSource}.
+     * <p>
+     * The {@code jndiName} property is the name the commit markable recovery module looks the data source up with. It must
+     * be listed in {@code JTAEnvironmentBean.commitMarkableResourceJNDINames} before the first transaction, e.g. through
+     * the {@code commitMarkableResources} attribute of the listener. The data source is registered under that name with
+     * the {@link CommitMarkableRecoveryModule}, which resolves it without JNDI. The commit markable table is created if
+     * missing.
+     */
+    public static DataSource createCommitMarkableDataSource(final TransactionManager transactionManager,
+                                                            final DataSource dataSource,
+                                                            final TransactionSynchronizationRegistry tsr,
+                                                            final Properties properties) {
+        if (transactionManager == null || dataSource == null) {
+            return null;
+        }
+        final String jndiName = properties.getProperty(PROP_JNDI_NAME);
+        if (jndiName == null || jndiName.isEmpty()) {
+            throw new IllegalArgumentException("A commit markable data source requires the " + PROP_JNDI_NAME
+                    + " property, the name the recovery module looks it up with");
+        }
+
+        final long start = System.nanoTime();
+        final JTAEnvironmentBean jtaEnvironmentBean = jtaPropertyManager.getJTAEnvironmentBean();
+        final List<String> jndiNames = jtaEnvironmentBean.getCommitMarkableResourceJNDINames();
+        if (!jndiNames.contains(jndiName)) {
+            log.warn("The commit markable data source " + jndiName + " is not listed in the commit markable resources"
+                    + " of the transaction manager, its transactions may not be recoverable");
+            jndiNames.add(jndiName);
+            jtaEnvironmentBean.setCommitMarkableResourceJNDINames(jndiNames);
+        }
+
+        final String tableName = jtaEnvironmentBean.getCommitMarkableResourceTableNameMap().getOrDefault(jndiName,
+                jtaEnvironmentBean.getDefaultCommitMarkableTableName());
+        try {
+            createCommitMarkableTable(dataSource, tableName);
+        } catch (SQLException e) {
+            throw new RuntimeException("Cannot create the commit markable table " + tableName + " of " + jndiName, e);
+        }
+
+        final CommitMarkableDataSource commitMarkableDataSource = new CommitMarkableDataSource(transactionManager, tsr,
+                dataSource, jndiName);
+        CommitMarkableRecoveryModule.register(jndiName, commitMarkableDataSource);
+        StartupProfile.getInstance().record("dataSource[" + jndiName + "]", System.nanoTime() - start);
+        return commitMarkableDataSource;
+    }
+
+    /**
+     * Create the table the commit records are inserted into, with the layout expected by Narayana.
+     */
+    private static void createCommitMarkableTable(DataSource dataSource, String tableName) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            final DatabaseMetaData metaData = connection.getMetaData();
+            for (String name : new String[] {tableName, tableName.toUpperCase(Locale.ENGLISH),
+                    tableName.toLowerCase(Locale.ENGLISH)}) {
+                try (ResultSet tables = metaData.getTables(null, null, name, null)) {
+                    if (tables.next()) {
+                        return;
+                    }
+                }
+            }
+
+            final String product = metaData.getDatabaseProductName().toLowerCase(Locale.ENGLISH);
+            final String binary;
+            if (product.contains("postgres")) {
+                binary = "BYTEA";
+            } else if (product.contains("oracle")) {
+                binary = "RAW(255)";
+            } else {
+                binary = "VARBINARY(255)";
+            }
+            log.info("Creating the commit markable table " + tableName);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE " + tableName + " (xid " + binary
+                        + ", transactionManagerID VARCHAR(255), actionuid " + binary + ")");
+                statement.execute("CREATE UNIQUE INDEX " + tableName + "_xid ON " + tableName + " (xid)");
+            }
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
         }
-        throw new IllegalStateException("XARecoveryModule is not registered with recovery manager");
     }
 }
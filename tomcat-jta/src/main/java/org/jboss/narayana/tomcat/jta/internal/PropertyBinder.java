@@ -0,0 +1,225 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.function.Function;
+
+import javax.sql.CommonDataSource;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+import org.apache.tomcat.dbcp.dbcp2.BasicDataSource;
+
+/**
+ * Applies the properties of a resource to the settings of a {@link BasicDataSource} or of a subclass, as
+ * {@link org.apache.tomcat.dbcp.dbcp2.BasicDataSourceFactory} does, but without building a throwaway data source.
+ * <p>
+ * The setters declared by {@link BasicDataSource} are looked up once per class, each with the conversion of its string
+ * value, and invoked through method handles. Properties without a setter are ignored. Where a setter is overloaded the
+ * numeric one is used, so that the durations are given in the units of the property names, e.g. milliseconds for
+ * {@code maxWaitMillis} and seconds for {@code validationQueryTimeout}.
+ */
+final class PropertyBinder {
+
+    private static final Log log = LogFactory.getLog(PropertyBinder.class);
+
+    /**
+     * Isolation left to the driver, as in {@code PoolableConnectionFactory}.
+     */
+    private static final int UNKNOWN_TRANSACTION_ISOLATION = -1;
+
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private static final ClassValue<PropertyBinder> BINDERS = new ClassValue<PropertyBinder>() {
+        @Override
+        protected PropertyBinder computeValue(Class<?> type) {
+            return new PropertyBinder(type);
+        }
+    };
+
+    /**
+     * Parameter types in order of preference between the overloads of a setter, with the conversion of the value.
+     */
+    private static final List<Map.Entry<Class<?>, Function<String, Object>>> CONVERSIONS = Arrays.asList(
+            conversion(String.class, value -> value),
+            conversion(boolean.class, Boolean::valueOf),
+            conversion(Boolean.class, Boolean::valueOf),
+            conversion(int.class, Integer::valueOf),
+            conversion(Integer.class, Integer::valueOf),
+            conversion(long.class, Long::valueOf),
+            conversion(Long.class, Long::valueOf));
+
+    /**
+     * Properties whose value is not converted by the type of the setter, with the overload to use.
+     */
+    private static final Map<String, Map.Entry<Class<?>, Function<String, Object>>> PROPERTY_CONVERSIONS =
+            new HashMap<>();
+
+    static {
+        PROPERTY_CONVERSIONS.put("defaultTransactionIsolation",
+                conversion(int.class, PropertyBinder::parseTransactionIsolation));
+        PROPERTY_CONVERSIONS.put("connectionInitSqls", conversion(Collection.class, value -> parseList(value, ";")));
+        PROPERTY_CONVERSIONS.put("disconnectionSqlCodes", conversion(Collection.class, value -> parseList(value, ",")));
+    }
+
+    private final Map<String, Setter> setters = new HashMap<>();
+
+    private PropertyBinder(Class<?> type) {
+        if (!BasicDataSource.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException(type + " is not a " + BasicDataSource.class.getName());
+        }
+        final Map<String, Integer> ranks = new HashMap<>();
+        for (Method method : BasicDataSource.class.getDeclaredMethods()) {
+            if (!isSetter(method)) {
+                continue;
+            }
+            final String property = Character.toLowerCase(method.getName().charAt(3)) + method.getName().substring(4);
+            final Class<?> parameterType = method.getParameterTypes()[0];
+            final Map.Entry<Class<?>, Function<String, Object>> special = PROPERTY_CONVERSIONS.get(property);
+            final int rank = special == null ? indexOf(parameterType) : special.getKey() == parameterType ? 0 : -1;
+            if (rank < 0 || ranks.getOrDefault(property, Integer.MAX_VALUE) <= rank) {
+                continue;
+            }
+            final Function<String, Object> conversion = special == null ? CONVERSIONS.get(rank).getValue()
+                    : special.getValue();
+            try {
+                final MethodHandle handle = MethodHandles.publicLookup()
+                        .findVirtual(type, method.getName(), MethodType.methodType(void.class, parameterType))
+                        .asType(SETTER_TYPE);
+                setters.put(property, new Setter(handle, conversion));
+                ranks.put(property, rank);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot access " + method, e);
+            }
+        }
+    }
+
+    /**
+     * @return the binder of the given subclass of {@link BasicDataSource}, computed on first use
+     */
+    static PropertyBinder forClass(Class<? extends BasicDataSource> type) {
+        return BINDERS.get(type);
+    }
+
+    /**
+     * Set the properties which have a setter on the given data source.
+     *
+     * @throws IllegalArgumentException if the value of a property is invalid
+     */
+    void bind(BasicDataSource dataSource, Properties properties) {
+        for (String name : properties.stringPropertyNames()) {
+            final Setter setter = setters.get(name);
+            if (setter == null) {
+                if (log.isDebugEnabled()) {
+                    log.debug("No setting " + name + " on " + dataSource.getClass().getName());
+                }
+                continue;
+            }
+            final String value = properties.getProperty(name);
+            final Object converted;
+            try {
+                converted = setter.conversion.apply(value);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Invalid value " + value + " of the property " + name, e);
+            }
+            try {
+                setter.handle.invokeExact((Object) dataSource, converted);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new IllegalStateException("Cannot set the property " + name, t);
+            }
+        }
+    }
+
+    private static boolean isSetter(Method method) {
+        if (!Modifier.isPublic(method.getModifiers()) || Modifier.isStatic(method.getModifiers())
+                || !method.getName().startsWith("set") || method.getName().length() < 4
+                || method.getParameterCount() != 1) {
+            return false;
+        }
+        // the log writer and login timeout of the DataSource interface are not settings of the pool
+        try {
+            CommonDataSource.class.getMethod(method.getName(), method.getParameterTypes());
+            return false;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    private static int indexOf(Class<?> parameterType) {
+        for (int i = 0; i < CONVERSIONS.size(); i++) {
+            if (CONVERSIONS.get(i).getKey() == parameterType) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Map.Entry<Class<?>, Function<String, Object>> conversion(Class<?> type,
+            Function<String, Object> conversion) {
+        return new AbstractMap.SimpleImmutableEntry<>(type, conversion);
+    }
+
+    private static Object parseTransactionIsolation(String value) {
+        switch (value.toUpperCase(Locale.ROOT)) {
+            case "NONE":
+                return Connection.TRANSACTION_NONE;
+            case "READ_COMMITTED":
+                return Connection.TRANSACTION_READ_COMMITTED;
+            case "READ_UNCOMMITTED":
+                return Connection.TRANSACTION_READ_UNCOMMITTED;
+            case "REPEATABLE_READ":
+                return Connection.TRANSACTION_REPEATABLE_READ;
+            case "SERIALIZABLE":
+                return Connection.TRANSACTION_SERIALIZABLE;
+            default:
+                try {
+                    return Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    log.warn("Could not parse defaultTransactionIsolation " + value
+                            + ", using the default of the database driver");
+                    return UNKNOWN_TRANSACTION_ISOLATION;
+                }
+        }
+    }
+
+    private static Object parseList(String value, String delimiters) {
+        final StringTokenizer tokenizer = new StringTokenizer(value, delimiters);
+        final List<String> list = new ArrayList<>(tokenizer.countTokens());
+        while (tokenizer.hasMoreTokens()) {
+            list.add(tokenizer.nextToken());
+        }
+        return list;
+    }
+
+    private static final class Setter {
+
+        private final MethodHandle handle;
+
+        private final Function<String, Object> conversion;
+
+        Setter(MethodHandle handle, Function<String, Object> conversion) {
+            this.handle = handle;
+            this.conversion = conversion;
+        }
+    }
+}
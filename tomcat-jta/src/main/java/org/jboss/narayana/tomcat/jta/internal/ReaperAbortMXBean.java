@@ -0,0 +1,22 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+/**
+ * Management interface of the connections aborted by a {@link DeadlineManagedDataSource} when the transaction reaper
+ * times their transaction out.
+ */
+public interface ReaperAbortMXBean {
+
+    /**
+     * @return number of pooled connections aborted and removed from the pool after their transaction timed out
+     */
+    long getAbortedConnectionCount();
+
+    /**
+     * @return number of pooled connections which could not be aborted
+     */
+    long getAbortFailureCount();
+}
@@ -0,0 +1,178 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Keeps the recovery of a transactional data source whose database is unreachable from blocking every recovery pass.
+ * <p>
+ * After {@code failureThreshold} recovery attempts failed in a row, the breaker opens and the data source is skipped by
+ * the recovery passes for {@code backoffMillis}. Once the back off is over, the breaker is half open and the next pass
+ * probes the data source with a single, short connection attempt. If the probe fails the breaker opens again, for twice
+ * as long each time up to {@code maxBackoffMillis}. If it succeeds the breaker closes and the data source is recovered on
+ * every pass again.
+ * <p>
+ * The state is reported through the management interface under {@code type=RecoveryCircuitBreaker}.
+ */
+public final class RecoveryCircuitBreaker implements RecoveryCircuitBreakerMXBean {
+
+    private static final Log log = LogFactory.getLog(RecoveryCircuitBreaker.class);
+
+    private static final String OBJECT_NAME_PREFIX = "org.jboss.narayana.tomcat:type=RecoveryCircuitBreaker,name=";
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+
+    private final int failureThreshold;
+
+    private final long backoffMillis;
+
+    private final long maxBackoffMillis;
+
+    private final long probeTimeoutMillis;
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures;
+
+    private long failureCount;
+
+    private long skipCount;
+
+    private long openUntil;
+
+    /**
+     * @param name name of the data source in the log messages and the management interface
+     * @param failureThreshold number of failures in a row opening the breaker, {@code 0} never to open it
+     * @param backoffMillis time the data source is first skipped for
+     * @param maxBackoffMillis longest time the data source is skipped for
+     * @param probeTimeoutMillis time after which opening a connection to probe the data source is given up
+     */
+    public RecoveryCircuitBreaker(String name, int failureThreshold, long backoffMillis, long maxBackoffMillis,
+            long probeTimeoutMillis) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = Math.max(backoffMillis, maxBackoffMillis);
+        this.probeTimeoutMillis = probeTimeoutMillis;
+    }
+
+    /**
+     * Decide whether the data source is to be recovered in the current pass. Skipped passes are counted.
+     *
+     * @return {@code false} if the breaker is open
+     */
+    public synchronized boolean allowAttempt() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openUntil < 0) {
+                skipCount++;
+                return false;
+            }
+            state = State.HALF_OPEN;
+            log.debug("Probing " + name + " for recovery");
+        }
+        return true;
+    }
+
+    /**
+     * @param connectTimeoutMillis time after which opening a connection is given up, {@code 0} for no limit
+     * @return the connect timeout of the current attempt, shortened to the probe timeout if it is a probe
+     */
+    public synchronized long getConnectTimeoutMillis(long connectTimeoutMillis) {
+        if (state != State.HALF_OPEN || probeTimeoutMillis <= 0) {
+            return connectTimeoutMillis;
+        }
+        return connectTimeoutMillis > 0 ? Math.min(connectTimeoutMillis, probeTimeoutMillis) : probeTimeoutMillis;
+    }
+
+    /**
+     * Record a successful recovery attempt, which closes the breaker.
+     */
+    public synchronized void recordSuccess() {
+        if (state != State.CLOSED) {
+            log.info("Recovery of " + name + " succeeded again after " + consecutiveFailures + " failure(s)");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+    }
+
+    /**
+     * Record a failed recovery attempt, which opens the breaker after {@code failureThreshold} of them in a row or if it
+     * was a probe.
+     *
+     * @return whether the failure is worth a warning, that is unless the data source was already known to fail
+     */
+    public synchronized boolean recordFailure() {
+        failureCount++;
+        consecutiveFailures++;
+        if (failureThreshold <= 0 || (state == State.CLOSED && consecutiveFailures < failureThreshold)) {
+            return true;
+        }
+        final boolean opening = state == State.CLOSED;
+        final int shift = Math.min(consecutiveFailures - failureThreshold, 30);
+        final long backoff = Math.min(maxBackoffMillis, backoffMillis << shift);
+        state = State.OPEN;
+        openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+        if (opening) {
+            log.warn("Recovery of " + name + " failed " + consecutiveFailures + " times in a row, skipping it for "
+                    + backoff + " ms");
+        } else {
+            log.debug("Probe of " + name + " failed, skipping it for " + backoff + " ms");
+        }
+        return opening;
+    }
+
+    @Override
+    public synchronized String getState() {
+        return state.name();
+    }
+
+    @Override
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    @Override
+    public synchronized long getFailureCount() {
+        return failureCount;
+    }
+
+    @Override
+    public synchronized long getSkipCount() {
+        return skipCount;
+    }
+
+    @Override
+    public synchronized long getRemainingBackoffMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openUntil - System.nanoTime()));
+    }
+
+    /**
+     * Register the management interface, unless the breaker never opens.
+     */
+    public void register() {
+        if (failureThreshold > 0) {
+            MBeanSupport.register(MBeanSupport.objectName(OBJECT_NAME_PREFIX, name), this,
+                    RecoveryCircuitBreakerMXBean.class);
+        }
+    }
+
+    /**
+     * Unregister the management interface.
+     */
+    public void unregister() {
+        MBeanSupport.unregister(MBeanSupport.objectName(OBJECT_NAME_PREFIX, name));
+    }
+}
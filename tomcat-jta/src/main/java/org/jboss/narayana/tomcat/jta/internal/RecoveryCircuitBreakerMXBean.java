@@ -0,0 +1,37 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+/**
+ * Management interface of the recovery circuit breaker of a transactional data source, see {@link RecoveryCircuitBreaker}.
+ */
+public interface RecoveryCircuitBreakerMXBean {
+
+    /**
+     * @return {@code CLOSED} while the data source is recovered on every pass, {@code OPEN} while it is skipped, or
+     *         {@code HALF_OPEN} while it is being probed
+     */
+    String getState();
+
+    /**
+     * @return number of recovery attempts which failed in a row
+     */
+    int getConsecutiveFailures();
+
+    /**
+     * @return number of recovery attempts which failed since the data source was created
+     */
+    long getFailureCount();
+
+    /**
+     * @return number of recovery passes the data source was skipped in since it was created
+     */
+    long getSkipCount();
+
+    /**
+     * @return time left before the data source is probed again in milliseconds, {@code 0} unless the breaker is open
+     */
+    long getRemainingBackoffMillis();
+}
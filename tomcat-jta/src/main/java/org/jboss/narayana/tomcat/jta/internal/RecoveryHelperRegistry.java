@@ -0,0 +1,185 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.stream.Collectors;
+
+import com.arjuna.ats.internal.jta.recovery.arjunacore.XARecoveryModule;
+import com.arjuna.ats.jta.recovery.XAResourceRecoveryHelper;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Keeps track of the recovery manager start up and hands {@link XAResourceRecoveryHelper}s over to the
+ * {@link XARecoveryModule} once it is available.
+ * <p>
+ * While the recovery manager is being started in the background, helpers registered by the transactional data sources are
+ * queued and added to the module as soon as the recovery manager is up. If no start up was announced at all, helpers are
+ * registered straight away, which lets the recovery manager be created on demand as before. If the recovery manager fails
+ * to start, helpers are refused until it is stopped.
+ */
+public final class RecoveryHelperRegistry {
+
+    private static final Log log = LogFactory.getLog(RecoveryHelperRegistry.class);
+
+    private enum State {
+        STOPPED, STARTING, READY, FAILED
+    }
+
+    private static final List<XAResourceRecoveryHelper> pendingHelpers = new ArrayList<>();
+
+    private static final Set<XAResourceRecoveryHelper> registeredHelpers = new CopyOnWriteArraySet<>();
+
+    private static volatile State state = State.STOPPED;
+
+    private RecoveryHelperRegistry() {
+        throw new UnsupportedOperationException(RecoveryHelperRegistry.class.getSimpleName() + " should not be instantiated.");
+    }
+
+    /**
+     * Registers the helper with the {@link XARecoveryModule}, or queues it if the recovery manager is still starting.
+     *
+     * @param helper recovery helper of a transactional data source
+     * @throws IllegalStateException if the recovery manager is running without the {@link XARecoveryModule}, or failed
+     *         to start
+     */
+    public static void register(XAResourceRecoveryHelper helper) {
+        synchronized (pendingHelpers) {
+            if (state == State.FAILED) {
+                throw notRegistered();
+            }
+            if (state == State.STARTING) {
+                log.debug("Recovery manager is starting, queueing recovery helper " + helper);
+                pendingHelpers.add(helper);
+                return;
+            }
+        }
+        getXARecoveryModule().addXAResourceRecoveryHelper(helper);
+        registeredHelpers.add(helper);
+    }
+
+    /**
+     * Removes the helper from the {@link XARecoveryModule}, or from the queue if it was not handed over yet.
+     *
+     * @param helper recovery helper of a closed transactional data source
+     */
+    public static void deregister(XAResourceRecoveryHelper helper) {
+        synchronized (pendingHelpers) {
+            if (pendingHelpers.remove(helper)) {
+                return;
+            }
+        }
+        registeredHelpers.remove(helper);
+        final XARecoveryModule xaRecoveryModule = XARecoveryModule.getRegisteredXARecoveryModule();
+        if (xaRecoveryModule != null) {
+            xaRecoveryModule.removeXAResourceRecoveryHelper(helper);
+        }
+    }
+
+    /**
+     * Announces that the recovery manager is being started in the background. Helpers registered from now on are queued
+     * until {@link #recoveryStarted()} is called.
+     */
+    public static void recoveryStarting() {
+        synchronized (pendingHelpers) {
+            state = State.STARTING;
+        }
+    }
+
+    /**
+     * Hands all queued helpers over to the {@link XARecoveryModule} and marks the recovery manager as running.
+     * <p>
+     * The helpers are handed over while holding the queue lock, so that a concurrent {@link #deregister} either removes
+     * a helper from the queue or finds it registered with the module, and {@link #isRecoveryReady()} only returns
+     * {@code true} once they all are. If the hand over fails, the helpers not handed over yet stay queued and the
+     * recovery manager is not marked as running.
+     *
+     * @throws IllegalStateException if the recovery manager is running without the {@link XARecoveryModule}
+     */
+    public static void recoveryStarted() {
+        synchronized (pendingHelpers) {
+            if (!pendingHelpers.isEmpty()) {
+                final XARecoveryModule xaRecoveryModule = getXARecoveryModule();
+                log.debug("Registering " + pendingHelpers.size() + " queued recovery helper(s)");
+                for (Iterator<XAResourceRecoveryHelper> iter = pendingHelpers.iterator(); iter.hasNext();) {
+                    final XAResourceRecoveryHelper helper = iter.next();
+                    xaRecoveryModule.addXAResourceRecoveryHelper(helper);
+                    registeredHelpers.add(helper);
+                    iter.remove();
+                }
+            }
+            state = State.READY;
+        }
+    }
+
+    /**
+     * Marks the recovery manager as failed to start. Helpers still waiting in the queue are dropped, and helpers registered
+     * from now on are refused until {@link #recoveryStopped()} is called.
+     */
+    public static void recoveryFailed() {
+        synchronized (pendingHelpers) {
+            if (!pendingHelpers.isEmpty()) {
+                log.error("Recovery manager failed to start, " + pendingHelpers.size()
+                        + " queued recovery helper(s) are not registered");
+            }
+            pendingHelpers.clear();
+            state = State.FAILED;
+        }
+    }
+
+    /**
+     * Marks the recovery manager as stopped. Helpers still waiting in the queue are dropped.
+     */
+    public static void recoveryStopped() {
+        synchronized (pendingHelpers) {
+            if (!pendingHelpers.isEmpty()) {
+                log.warn("Recovery manager stopped before " + pendingHelpers.size()
+                        + " queued recovery helper(s) could be registered");
+            }
+            pendingHelpers.clear();
+            registeredHelpers.clear();
+            state = State.STOPPED;
+        }
+    }
+
+    /**
+     * @return {@code true} once the recovery manager has been started and all queued helpers were registered
+     */
+    public static boolean isRecoveryReady() {
+        return state == State.READY;
+    }
+
+    /**
+     * @return {@code true} if the recovery manager failed to start, until it is stopped
+     */
+    public static boolean isRecoveryFailed() {
+        return state == State.FAILED;
+    }
+
+    /**
+     * @return the recovery helpers of the pooled data sources currently registered with the {@link XARecoveryModule}
+     */
+    static List<DataSourceRecoveryHelper> getDataSourceHelpers() {
+        return registeredHelpers.stream().filter(DataSourceRecoveryHelper.class::isInstance)
+                .map(DataSourceRecoveryHelper.class::cast).collect(Collectors.toList());
+    }
+
+    private static XARecoveryModule getXARecoveryModule() {
+        final XARecoveryModule xaRecoveryModule = XARecoveryModule.getRegisteredXARecoveryModule();
+        if (xaRecoveryModule != null) {
+            return xaRecoveryModule;
+        }
+        throw notRegistered();
+    }
+
+    private static IllegalStateException notRegistered() {
+        return new IllegalStateException("XARecoveryModule is not registered with recovery manager");
+    }
+}
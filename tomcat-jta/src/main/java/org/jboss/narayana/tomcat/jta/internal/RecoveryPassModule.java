@@ -0,0 +1,57 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.arjuna.ats.arjuna.recovery.RecoveryModule;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Recovery module closing the connections opened by the {@link DataSourceRecoveryHelper}s during a recovery pass.
+ * <p>
+ * {@code XAResourceRecoveryHelper} has no hook for the end of a pass, and the resources it hands over are used until the
+ * second pass of the other modules is over. This module is therefore registered after all the others, and its second
+ * pass closes the connections, so that no database session is held between two recovery passes.
+ */
+public class RecoveryPassModule implements RecoveryModule {
+
+    private static final Log log = LogFactory.getLog(RecoveryPassModule.class);
+
+    private static final Set<DataSourceRecoveryHelper> passHelpers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Record that the helper takes part in the pass, so that its connection is closed and its state reset at the end.
+     */
+    static void passStarted(DataSourceRecoveryHelper helper) {
+        passHelpers.add(helper);
+    }
+
+    @Override
+    public void periodicWorkFirstPass() {
+    }
+
+    @Override
+    public void periodicWorkSecondPass() {
+        endPass();
+        RecoveryStatistics.getInstance().passEnded();
+    }
+
+    /**
+     * Close the connections opened by the recovery helpers since the previous call.
+     */
+    public static void endPass() {
+        final List<DataSourceRecoveryHelper> helpers = new ArrayList<>(passHelpers);
+        passHelpers.removeAll(helpers);
+        if (!helpers.isEmpty()) {
+            log.debug("Ending the recovery pass of " + helpers);
+        }
+        helpers.forEach(DataSourceRecoveryHelper::endPass);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.arjuna.ats.arjuna.recovery.RecoveryModule;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Recovery module running just before the {@code XARecoveryModule}, which marks the start of the recovery pass in the
+ * {@link RecoveryStatistics} and, if parallel recovery is enabled, scans the transactional data sources for in-doubt
+ * transactions concurrently.
+ * <p>
+ * The {@code XARecoveryModule} asks the recovery helpers for their resources and scans them one after the other, so an
+ * unreachable database delays the recovery of all the others. With parallel recovery, the data sources are scanned by up
+ * to {@link #configure(int, long) threads} at once, each within its own timeout, see
+ * {@link DataSourceRecoveryHelper#scan(long)}. The {@code XARecoveryModule} pass then runs as usual on the recovery thread
+ * with the transactions found, so orphan filtering and the matching against the transaction log are unchanged. Data
+ * sources whose {@link RecoveryCircuitBreaker} is open are not scanned at all.
+ */
+public class RecoveryScanModule implements RecoveryModule {
+
+    private static final Log log = LogFactory.getLog(RecoveryScanModule.class);
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static volatile ExecutorService executor;
+
+    private static volatile long resourceTimeoutMillis;
+
+    /**
+     * Enable or disable parallel recovery.
+     *
+     * @param threads maximum number of data sources scanned at once, {@code 0} to let the {@code XARecoveryModule} scan
+     *        them one after the other
+     * @param timeoutMillis time after which the scan of a data source is given up, {@code 0} for the connect and recover
+     *        timeouts of its recovery helper only
+     */
+    static synchronized void configure(int threads, long timeoutMillis) {
+        shutdown();
+        resourceTimeoutMillis = timeoutMillis;
+        if (threads > 0) {
+            executor = Executors.newFixedThreadPool(threads, task -> {
+                final Thread thread = new Thread(task, "narayana-recovery-scan-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Disable parallel recovery and stop its threads.
+     */
+    static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public void periodicWorkFirstPass() {
+        RecoveryStatistics.getInstance().passStarted();
+        final ExecutorService scanExecutor = executor;
+        if (scanExecutor == null) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final long timeoutMillis = resourceTimeoutMillis;
+        final List<Future<Boolean>> scans = new ArrayList<>();
+        int skipped = 0;
+        for (DataSourceRecoveryHelper helper : RecoveryHelperRegistry.getDataSourceHelpers()) {
+            if (!helper.startPass()) {
+                skipped++;
+                continue;
+            }
+            scans.add(scanExecutor.submit(() -> helper.scan(timeoutMillis)));
+        }
+        int failed = 0;
+        for (Future<Boolean> scan : scans) {
+            try {
+                if (!scan.get()) {
+                    failed++;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                log.warn("Failed to scan a data source for in-doubt transactions", e.getCause());
+                failed++;
+            }
+        }
+        RecoveryStatistics.getInstance().scanEnded(System.nanoTime() - start, scans.size(), failed, skipped);
+        if (log.isDebugEnabled()) {
+            log.debug("Scanned " + scans.size() + " data source(s) in parallel, " + failed + " failed, " + skipped
+                    + " skipped by their circuit breaker");
+        }
+    }
+
+    @Override
+    public void periodicWorkSecondPass() {
+    }
+}
@@ -0,0 +1,130 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how long the recovery passes of the transactional data sources take, and publishes the figures as the
+ * {@value #OBJECT_NAME} MBean.
+ * <p>
+ * A pass starts when {@link RecoveryScanModule} runs, before the {@code XARecoveryModule}, and ends when
+ * {@link RecoveryPassModule} has closed the recovery connections at the end of the second pass.
+ */
+public final class RecoveryStatistics implements RecoveryStatisticsMXBean {
+
+    public static final String OBJECT_NAME = "org.jboss.narayana.tomcat:type=RecoveryStatistics";
+
+    private static final RecoveryStatistics INSTANCE = new RecoveryStatistics();
+
+    private final AtomicLong passCount = new AtomicLong();
+
+    private final AtomicLong failedScanCount = new AtomicLong();
+
+    private volatile long passStart;
+
+    private volatile long lastPassNanos;
+
+    private volatile long lastScanNanos;
+
+    private volatile int lastScannedCount;
+
+    private volatile int lastFailedCount;
+
+    private volatile int lastSkippedCount;
+
+    private RecoveryStatistics() {
+    }
+
+    public static RecoveryStatistics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Mark the start of a recovery pass.
+     */
+    void passStarted() {
+        passStart = System.nanoTime();
+    }
+
+    /**
+     * Record the outcome of the parallel scan of the data sources.
+     *
+     * @param nanos duration of the scan in nanoseconds
+     * @param scanned number of data sources scanned
+     * @param failed number of data sources which could not be scanned
+     * @param skipped number of data sources left out by their circuit breaker
+     */
+    void scanEnded(long nanos, int scanned, int failed, int skipped) {
+        lastScanNanos = nanos;
+        lastScannedCount = scanned;
+        lastFailedCount = failed;
+        lastSkippedCount = skipped;
+        failedScanCount.addAndGet(failed);
+    }
+
+    /**
+     * Mark the end of a recovery pass, unless no start was recorded.
+     */
+    void passEnded() {
+        final long start = passStart;
+        if (start == 0) {
+            return;
+        }
+        passStart = 0;
+        lastPassNanos = System.nanoTime() - start;
+        passCount.incrementAndGet();
+    }
+
+    @Override
+    public long getPassCount() {
+        return passCount.get();
+    }
+
+    @Override
+    public long getLastPassDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastPassNanos);
+    }
+
+    @Override
+    public long getLastScanDurationMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastScanNanos);
+    }
+
+    @Override
+    public int getLastScannedCount() {
+        return lastScannedCount;
+    }
+
+    @Override
+    public int getLastFailedCount() {
+        return lastFailedCount;
+    }
+
+    @Override
+    public int getLastSkippedCount() {
+        return lastSkippedCount;
+    }
+
+    @Override
+    public long getFailedScanCount() {
+        return failedScanCount.get();
+    }
+
+    /**
+     * Register the MBean with the platform MBean server, unless it is registered already.
+     */
+    void register() {
+        MBeanSupport.register(OBJECT_NAME, this, RecoveryStatisticsMXBean.class);
+    }
+
+    /**
+     * Remove the MBean from the platform MBean server.
+     */
+    void unregister() {
+        MBeanSupport.unregister(OBJECT_NAME);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+/**
+ * Management interface of the {@link RecoveryStatistics}.
+ */
+public interface RecoveryStatisticsMXBean {
+
+    /**
+     * @return number of recovery passes completed since the recovery manager was started
+     */
+    long getPassCount();
+
+    /**
+     * @return time the last recovery pass took from the scan of the data sources to the end of its second pass, in
+     *         milliseconds, including the back off period between the two passes
+     */
+    long getLastPassDurationMillis();
+
+    /**
+     * @return time the parallel scan of the data sources took in the last recovery pass, in milliseconds, {@code 0} if
+     *         parallel recovery is disabled
+     */
+    long getLastScanDurationMillis();
+
+    /**
+     * @return number of data sources scanned in parallel in the last recovery pass
+     */
+    int getLastScannedCount();
+
+    /**
+     * @return number of data sources which could not be scanned in the last recovery pass
+     */
+    int getLastFailedCount();
+
+    /**
+     * @return number of data sources left out of the last recovery pass because their circuit breaker was open, see
+     *         {@link RecoveryCircuitBreaker}
+     */
+    int getLastSkippedCount();
+
+    /**
+     * @return number of data source scans which failed or timed out since the recovery manager was started
+     */
+    long getFailedScanCount();
+}
@@ -0,0 +1,116 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.ConnectionEventListener;
+import javax.sql.StatementEventListener;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.xa.XAResource;
+
+/**
+ * XA data source handing out connections whose XA resource is a {@link ResourceManagerXAResource}.
+ */
+final class ResourceManagerXADataSource implements XADataSource {
+
+    private final XADataSource xaDataSource;
+
+    private final String resourceManagerId;
+
+    ResourceManagerXADataSource(XADataSource xaDataSource, String resourceManagerId) {
+        this.xaDataSource = xaDataSource;
+        this.resourceManagerId = resourceManagerId;
+    }
+
+    @Override
+    public XAConnection getXAConnection() throws SQLException {
+        return new ResourceManagerXAConnection(xaDataSource.getXAConnection());
+    }
+
+    @Override
+    public XAConnection getXAConnection(String user, String password) throws SQLException {
+        return new ResourceManagerXAConnection(xaDataSource.getXAConnection(user, password));
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return xaDataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        xaDataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        xaDataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return xaDataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return xaDataSource.getParentLogger();
+    }
+
+    private final class ResourceManagerXAConnection implements XAConnection {
+
+        private final XAConnection xaConnection;
+
+        private XAResource xaResource;
+
+        ResourceManagerXAConnection(XAConnection xaConnection) {
+            this.xaConnection = xaConnection;
+        }
+
+        @Override
+        public synchronized XAResource getXAResource() throws SQLException {
+            if (xaResource == null) {
+                xaResource = new ResourceManagerXAResource(resourceManagerId, xaConnection.getXAResource());
+            }
+            return xaResource;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return xaConnection.getConnection();
+        }
+
+        @Override
+        public void close() throws SQLException {
+            xaConnection.close();
+        }
+
+        @Override
+        public void addConnectionEventListener(ConnectionEventListener listener) {
+            xaConnection.addConnectionEventListener(listener);
+        }
+
+        @Override
+        public void removeConnectionEventListener(ConnectionEventListener listener) {
+            xaConnection.removeConnectionEventListener(listener);
+        }
+
+        @Override
+        public void addStatementEventListener(StatementEventListener listener) {
+            xaConnection.addStatementEventListener(listener);
+        }
+
+        @Override
+        public void removeStatementEventListener(StatementEventListener listener) {
+            xaConnection.removeStatementEventListener(listener);
+        }
+    }
+}
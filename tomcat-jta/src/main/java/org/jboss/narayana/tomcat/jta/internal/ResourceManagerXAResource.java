@@ -0,0 +1,119 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+/**
+ * XA resource of a pooled connection, aware of the resource manager it belongs to.
+ * <p>
+ * Resources with the same resource manager identity are reported as the same resource manager without asking the
+ * driver, so Narayana starts the second one with {@link XAResource#TMJOIN} on the branch of the first. A transaction
+ * touching several data sources of the same database then keeps a single branch, which is committed in one phase. Other
+ * comparisons are delegated to the driver, and their results are cached per pair of resources.
+ */
+public final class ResourceManagerXAResource implements XAResource {
+
+    private final String resourceManagerId;
+
+    private final XAResource xaResource;
+
+    private final Map<XAResource, Boolean> sameRMCache = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * @param resourceManagerId identity of the resource manager, {@code null} to ask the driver
+     * @param xaResource XA resource of the driver
+     */
+    public ResourceManagerXAResource(String resourceManagerId, XAResource xaResource) {
+        this.resourceManagerId = resourceManagerId;
+        this.xaResource = xaResource;
+    }
+
+    /**
+     * @return identity of the resource manager, {@code null} if not set
+     */
+    public String getResourceManagerId() {
+        return resourceManagerId;
+    }
+
+    @Override
+    public boolean isSameRM(XAResource resource) throws XAException {
+        if (resource == this) {
+            return true;
+        }
+        XAResource other = resource;
+        if (resource instanceof ResourceManagerXAResource) {
+            final ResourceManagerXAResource rmResource = (ResourceManagerXAResource) resource;
+            if (resourceManagerId != null && rmResource.resourceManagerId != null) {
+                return resourceManagerId.equals(rmResource.resourceManagerId);
+            }
+            other = rmResource.xaResource;
+        }
+
+        final Boolean cached = sameRMCache.get(other);
+        if (cached != null) {
+            return cached;
+        }
+        final boolean sameRM = xaResource.isSameRM(other);
+        sameRMCache.put(other, sameRM);
+        return sameRM;
+    }
+
+    @Override
+    public void start(Xid xid, int flags) throws XAException {
+        xaResource.start(xid, flags);
+    }
+
+    @Override
+    public void end(Xid xid, int flags) throws XAException {
+        xaResource.end(xid, flags);
+    }
+
+    @Override
+    public int prepare(Xid xid) throws XAException {
+        return xaResource.prepare(xid);
+    }
+
+    @Override
+    public void commit(Xid xid, boolean onePhase) throws XAException {
+        xaResource.commit(xid, onePhase);
+    }
+
+    @Override
+    public void rollback(Xid xid) throws XAException {
+        xaResource.rollback(xid);
+    }
+
+    @Override
+    public void forget(Xid xid) throws XAException {
+        xaResource.forget(xid);
+    }
+
+    @Override
+    public Xid[] recover(int flag) throws XAException {
+        return xaResource.recover(flag);
+    }
+
+    @Override
+    public int getTransactionTimeout() throws XAException {
+        return xaResource.getTransactionTimeout();
+    }
+
+    @Override
+    public boolean setTransactionTimeout(int seconds) throws XAException {
+        return xaResource.setTransactionTimeout(seconds);
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceManagerXAResource[" + resourceManagerId + ", " + xaResource + "]";
+    }
+}
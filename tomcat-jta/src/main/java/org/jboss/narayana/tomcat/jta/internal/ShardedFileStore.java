@@ -0,0 +1,180 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.exceptions.ObjectStoreException;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+import com.arjuna.ats.arjuna.objectstore.StateType;
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.arjuna.state.OutputObjectState;
+import com.arjuna.ats.internal.arjuna.common.UidHelper;
+import com.arjuna.ats.internal.arjuna.objectstore.HashedActionStore;
+import com.arjuna.ats.internal.arjuna.objectstore.ShadowNoFileLockStore;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * File object store spreading the records of each type over {@code ObjectStoreEnvironmentBean.hashedDirectories}
+ * subdirectories, so that no directory grows with the number of records.
+ * <p>
+ * On creation, records left in the unsharded layout, by this store or by the default {@link ShadowNoFileLockStore} under
+ * the same object store directory, are moved to their hashed subdirectory. The recovery scans list the subdirectories of a
+ * type in parallel.
+ */
+public class ShardedFileStore extends HashedActionStore {
+
+    private static final Log log = LogFactory.getLog(ShardedFileStore.class);
+
+    private static final Pattern HASH_DIRECTORY = Pattern.compile("#\\d+#");
+
+    public ShardedFileStore(ObjectStoreEnvironmentBean environmentBean) throws ObjectStoreException {
+        super(environmentBean);
+
+        final File root = new File(getStoreName());
+        final File unshardedRoot = new File(new File(environmentBean.getObjectStoreDir(),
+                ShadowNoFileLockStore.class.getSimpleName()), environmentBean.getLocalOSRoot());
+        try {
+            final int migrated = migrate(root.toPath()) + migrate(unshardedRoot.toPath());
+            if (migrated > 0) {
+                log.info("Moved " + migrated + " object store records to the hashed directories of " + root);
+            }
+        } catch (IOException e) {
+            throw new ObjectStoreException("Cannot move the object store records to the hashed directories of " + root, e);
+        }
+    }
+
+    @Override
+    public boolean allObjUids(String typeName, InputObjectState state, int match) throws ObjectStoreException {
+        final Path typeDirectory = new File(genPathName(Uid.nullUid(), typeName, StateType.OS_ORIGINAL)).getParentFile()
+                .getParentFile().toPath();
+
+        final Set<Uid> uids;
+        try {
+            final List<Path> directories = new ArrayList<>();
+            directories.add(typeDirectory);
+            if (Files.isDirectory(typeDirectory)) {
+                try (DirectoryStream<Path> subdirectories = Files.newDirectoryStream(typeDirectory,
+                        path -> HASH_DIRECTORY.matcher(path.getFileName().toString()).matches())) {
+                    subdirectories.forEach(directories::add);
+                }
+            }
+            uids = directories.parallelStream().flatMap(this::listUids)
+                    .filter(uid -> match == StateStatus.OS_UNKNOWN || isTypeUnchecked(uid, typeName, match))
+                    .collect(Collectors.toSet());
+        } catch (IOException | UncheckedIOException e) {
+            throw new ObjectStoreException("Cannot list the records of " + typeName, e);
+        }
+
+        final OutputObjectState store = new OutputObjectState();
+        try {
+            for (Uid uid : uids) {
+                UidHelper.packInto(uid, store);
+            }
+            UidHelper.packInto(Uid.nullUid(), store);
+        } catch (IOException e) {
+            throw new ObjectStoreException("Cannot pack the Uids of " + typeName, e);
+        }
+        state.setBuffer(store.buffer());
+        return true;
+    }
+
+    /**
+     * @return the Uids of the records in the directory, not descending into subdirectories
+     */
+    private Stream<Uid> listUids(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return Stream.empty();
+        }
+        final List<Uid> uids = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (!Files.isRegularFile(entry) || (!scanZeroLengthFiles && Files.size(entry) == 0)) {
+                    continue;
+                }
+                final Uid uid = new Uid(revealedId(entry.getFileName().toString()), true);
+                if (uid.valid() && uid.notEquals(Uid.nullUid())) {
+                    uids.add(uid);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return uids.stream();
+    }
+
+    private boolean isTypeUnchecked(Uid uid, String typeName, int match) {
+        try {
+            return isType(uid, typeName, match);
+        } catch (ObjectStoreException e) {
+            log.warn("Cannot read the state of " + uid, e);
+            return false;
+        }
+    }
+
+    /**
+     * Move the records found outside of a hashed directory under {@code from} to their hashed directory under this store.
+     *
+     * @return number of records moved
+     */
+    private int migrate(Path from) throws IOException, ObjectStoreException {
+        if (!Files.isDirectory(from)) {
+            return 0;
+        }
+        final List<Path> records = new ArrayList<>();
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                return HASH_DIRECTORY.matcher(directory.getFileName().toString()).matches() ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && !file.getParent().equals(from)) {
+                    records.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        int moved = 0;
+        for (Path record : records) {
+            final Uid uid = new Uid(revealedId(stripShadow(record.getFileName().toString())), true);
+            if (!uid.valid() || uid.equals(Uid.nullUid())) {
+                continue;
+            }
+            final String typeName = from.relativize(record.getParent()).toString().replace(File.separatorChar, '/');
+            final Path target = new File(genPathName(uid, typeName, StateType.OS_ORIGINAL)).toPath().getParent()
+                    .resolve(record.getFileName());
+            Files.createDirectories(target.getParent());
+            Files.move(record, target, StandardCopyOption.ATOMIC_MOVE);
+            moved++;
+        }
+        return moved;
+    }
+
+    private static String stripShadow(String name) {
+        return name.charAt(name.length() - 1) == SHADOWCHAR ? name.substring(0, name.length() - 1) : name;
+    }
+}
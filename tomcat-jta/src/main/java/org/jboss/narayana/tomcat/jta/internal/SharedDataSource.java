@@ -0,0 +1,33 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+/**
+ * Pooled data source which several resources can share. It is really closed once each of its users has closed it.
+ */
+public interface SharedDataSource extends DataSource, AutoCloseable {
+
+    /**
+     * Add a user of the data source, which has then to be closed once more before it is really closed.
+     *
+     * @return {@code false} if the data source is already closed
+     */
+    boolean retain();
+
+    /**
+     * Run the given action once the data source is really closed.
+     */
+    void addCloseListener(Runnable listener);
+
+    /**
+     * Remove a user of the data source, and close it if it was the last one.
+     */
+    @Override
+    void close() throws SQLException;
+}
@@ -0,0 +1,55 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Counts the users of a {@link SharedDataSource} and runs its close listeners.
+ */
+final class SharedDataSourceSupport {
+
+    private static final Log log = LogFactory.getLog(SharedDataSourceSupport.class);
+
+    private final AtomicInteger users = new AtomicInteger(1);
+
+    private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
+
+    boolean retain() {
+        return users.getAndUpdate(count -> count > 0 ? count + 1 : count) > 0;
+    }
+
+    /**
+     * Remove a user of the data source.
+     *
+     * @return whether it was the last one, the data source has then to be closed
+     */
+    boolean release() {
+        return users.getAndUpdate(count -> count > 0 ? count - 1 : count) == 1;
+    }
+
+    void addCloseListener(Runnable listener) {
+        closeListeners.add(listener);
+    }
+
+    /**
+     * Run the close listeners, once the data source is closed.
+     */
+    void closed() {
+        for (Runnable listener : closeListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.warn("A close listener of a data source failed", e);
+            }
+        }
+        closeListeners.clear();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Records how long each step of the Narayana start up takes, including the creation of the transactional data sources, and
+ * publishes the timings as the {@value #OBJECT_NAME} MBean.
+ */
+public final class StartupProfile implements StartupProfileMXBean {
+
+    public static final String OBJECT_NAME = "org.jboss.narayana.tomcat:type=StartupProfile";
+
+    private static final Log log = LogFactory.getLog(StartupProfile.class);
+
+    private static final StartupProfile INSTANCE = new StartupProfile();
+
+    private final Map<String, Long> stepNanos = new LinkedHashMap<>();
+
+    private StartupProfile() {
+    }
+
+    public static StartupProfile getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Run the action and record its duration under the given step name.
+     *
+     * @param step name of the start up step
+     * @param action the step itself
+     */
+    public void time(String step, Runnable action) {
+        final long start = System.nanoTime();
+        try {
+            action.run();
+        } finally {
+            record(step, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Record the duration of a start up step. If a step of the same name was already recorded, a sequence number is
+     * appended to the name.
+     *
+     * @param step name of the start up step
+     * @param nanos duration of the step in nanoseconds
+     */
+    public synchronized void record(String step, long nanos) {
+        String key = step;
+        for (int i = 2; stepNanos.containsKey(key); i++) {
+            key = step + "#" + i;
+        }
+        stepNanos.put(key, nanos);
+    }
+
+    /**
+     * Forget the recorded steps, called when the transaction services are started again.
+     */
+    synchronized void reset() {
+        stepNanos.clear();
+    }
+
+    @Override
+    public synchronized Map<String, Long> getStepDurationsMillis() {
+        final Map<String, Long> durations = new LinkedHashMap<>();
+        stepNanos.forEach((step, nanos) -> durations.put(step, TimeUnit.NANOSECONDS.toMillis(nanos)));
+        return durations;
+    }
+
+    @Override
+    public synchronized long getTotalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stepNanos.values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    @Override
+    public boolean isRecoveryReady() {
+        return RecoveryHelperRegistry.isRecoveryReady();
+    }
+
+    @Override
+    public synchronized String getSummary() {
+        final StringBuilder summary = new StringBuilder();
+        stepNanos.forEach((step, nanos) -> {
+            summary.append(summary.length() == 0 ? "" : ", ");
+            summary.append(step).append('=').append(TimeUnit.NANOSECONDS.toMillis(nanos)).append("ms");
+        });
+        return summary.toString();
+    }
+
+    /**
+     * Log the recorded steps.
+     *
+     * @param what description of what was started
+     */
+    void logSummary(String what) {
+        log.info(what + " in " + getTotalMillis() + " ms: " + getSummary());
+    }
+
+    /**
+     * Register the MBean with the platform MBean server, unless it is registered already.
+     */
+    void register() {
+        MBeanSupport.register(OBJECT_NAME, this, StartupProfileMXBean.class);
+    }
+
+    /**
+     * Remove the MBean from the platform MBean server.
+     */
+    void unregister() {
+        MBeanSupport.unregister(OBJECT_NAME);
+    }
+}
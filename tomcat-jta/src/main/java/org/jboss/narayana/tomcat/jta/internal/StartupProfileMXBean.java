@@ -0,0 +1,33 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link StartupProfile}.
+ */
+public interface StartupProfileMXBean {
+
+    /**
+     * @return duration of each recorded start up step in milliseconds, in the order the steps were recorded
+     */
+    Map<String, Long> getStepDurationsMillis();
+
+    /**
+     * @return sum of the durations of the recorded start up steps in milliseconds
+     */
+    long getTotalMillis();
+
+    /**
+     * @return whether the recovery manager is running
+     */
+    boolean isRecoveryReady();
+
+    /**
+     * @return human readable summary of the recorded start up steps
+     */
+    String getSummary();
+}
@@ -0,0 +1,258 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import javax.sql.XAConnection;
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.transaction.xa.XAResource;
+
+import org.apache.tomcat.dbcp.dbcp2.managed.ManagedDataSource;
+import org.apache.tomcat.dbcp.dbcp2.managed.TransactionRegistry;
+import org.apache.tomcat.dbcp.pool2.ObjectPool;
+import org.apache.tomcat.jdbc.pool.PoolConfiguration;
+import org.apache.tomcat.jdbc.pool.PooledConnection;
+
+/**
+ * Transactional data source pooling its connections with the tomcat-jdbc pool.
+ * <p>
+ * The pool is given the XA data source, so its connections are XA connections, and the interceptors configured with
+ * {@code jdbcInterceptors} apply to them. The connections are enlisted in the transactions by the same DBCP classes as
+ * with a {@link org.apache.tomcat.dbcp.dbcp2.managed.BasicManagedDataSource}, so the connections of a transaction are
+ * shared the same way.
+ */
+public final class TomcatJdbcPoolingDataSource implements SharedDataSource {
+
+    private final SharedDataSourceSupport shared = new SharedDataSourceSupport();
+
+    private final org.apache.tomcat.jdbc.pool.DataSource pool;
+
+    private final ThreadLocal<Connection> asyncConnection = new ThreadLocal<>();
+
+    private final ManagedDataSource<Connection> dataSource;
+
+    /**
+     * @param transactionManager the transaction manager
+     * @param tsr the transaction synchronization registry
+     * @param configuration the pool settings, with the XA data source as {@code dataSource}
+     */
+    public TomcatJdbcPoolingDataSource(TransactionManager transactionManager, TransactionSynchronizationRegistry tsr,
+            PoolConfiguration configuration) {
+        pool = new org.apache.tomcat.jdbc.pool.DataSource(configuration);
+        dataSource = new ManagedDataSource<>(new ConnectionPool(), new XAConnectionRegistry(transactionManager, tsr));
+        dataSource.setAccessToUnderlyingConnectionAllowed(configuration.isAccessToUnderlyingConnectionAllowed());
+    }
+
+    /**
+     * @return the tomcat-jdbc pool
+     */
+    public org.apache.tomcat.jdbc.pool.DataSource getPool() {
+        return pool;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return dataSource.getConnection(username, password);
+    }
+
+    /**
+     * Borrow a pooled connection in the background, see
+     * {@link org.apache.tomcat.jdbc.pool.DataSource#getConnectionAsync()}. The pool must be configured with
+     * {@code fairQueue}.
+     * <p>
+     * The connection is enlisted in the transaction of the thread calling {@link Future#get()}, which should be the
+     * thread of the transaction. If the transaction already has a connection of this data source, that one is returned
+     * and the connection borrowed in the background is given back.
+     */
+    public Future<Connection> getConnectionAsync() throws SQLException {
+        final Future<Connection> future = pool.getConnectionAsync();
+        return new Future<Connection>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return future.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return future.isCancelled();
+            }
+
+            @Override
+            public boolean isDone() {
+                return future.isDone();
+            }
+
+            @Override
+            public Connection get() throws InterruptedException, ExecutionException {
+                return enlist(future.get());
+            }
+
+            @Override
+            public Connection get(long timeout, TimeUnit unit)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+                return enlist(future.get(timeout, unit));
+            }
+        };
+    }
+
+    private Connection enlist(Connection connection) throws ExecutionException {
+        asyncConnection.set(connection);
+        try {
+            return dataSource.getConnection();
+        } catch (SQLException e) {
+            throw new ExecutionException(e);
+        } finally {
+            if (asyncConnection.get() != null) {
+                asyncConnection.remove();
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    // given back to the pool, nothing to report
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean retain() {
+        return shared.retain();
+    }
+
+    @Override
+    public void addCloseListener(Runnable listener) {
+        shared.addCloseListener(listener);
+    }
+
+    /**
+     * Close the pool, and its connections once they are given back, once each user of the data source has closed it.
+     */
+    @Override
+    public void close() {
+        if (shared.release()) {
+            pool.close();
+            shared.closed();
+        }
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return pool.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        pool.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        pool.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return pool.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return pool.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> type) throws SQLException {
+        if (type.isInstance(this)) {
+            return type.cast(this);
+        }
+        return type.isInstance(pool) ? type.cast(pool) : dataSource.unwrap(type);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> type) throws SQLException {
+        return type.isInstance(this) || type.isInstance(pool) || dataSource.isWrapperFor(type);
+    }
+
+    /**
+     * The tomcat-jdbc pool seen as the pool of the DBCP managed data source.
+     */
+    private final class ConnectionPool implements ObjectPool<Connection> {
+
+        @Override
+        public Connection borrowObject() throws Exception {
+            final Connection connection = asyncConnection.get();
+            if (connection != null) {
+                asyncConnection.remove();
+                return connection;
+            }
+            return pool.getConnection();
+        }
+
+        @Override
+        public void returnObject(Connection connection) throws Exception {
+            connection.close();
+        }
+
+        @Override
+        public void invalidateObject(Connection connection) throws Exception {
+            connection.unwrap(PooledConnection.class).setDiscarded(true);
+            connection.close();
+        }
+
+        @Override
+        public void addObject() {
+            throw new UnsupportedOperationException("The tomcat-jdbc pool creates its connections itself");
+        }
+
+        @Override
+        public void clear() {
+            pool.purge();
+        }
+
+        @Override
+        public void close() {
+            pool.close();
+        }
+
+        @Override
+        public int getNumActive() {
+            return pool.getActive();
+        }
+
+        @Override
+        public int getNumIdle() {
+            return pool.getIdle();
+        }
+    }
+
+    /**
+     * Registry finding the XA resource of a connection through its pooled XA connection.
+     */
+    private static final class XAConnectionRegistry extends TransactionRegistry {
+
+        XAConnectionRegistry(TransactionManager transactionManager, TransactionSynchronizationRegistry tsr) {
+            super(transactionManager, tsr);
+        }
+
+        @Override
+        public XAResource getXAResource(Connection connection) throws SQLException {
+            return connection.unwrap(XAConnection.class).getXAResource();
+        }
+    }
+}
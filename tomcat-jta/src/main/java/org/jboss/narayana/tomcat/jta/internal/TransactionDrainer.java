@@ -0,0 +1,133 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import com.arjuna.ats.arjuna.common.CoordinatorEnvironmentBean;
+import com.arjuna.ats.arjuna.common.arjPropertyManager;
+import com.arjuna.ats.arjuna.coordinator.ActionManager;
+import com.arjuna.ats.arjuna.coordinator.TxControl;
+import com.arjuna.ats.arjuna.coordinator.TxStats;
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Lets the in-flight transactions finish before the transaction services are shut down.
+ * <p>
+ * New transactions are refused by disabling {@link TxControl} (the transaction status manager is kept running), then the
+ * drainer waits until no transaction is active or the deadline expires. Statistics are switched on for the duration of the
+ * drain so that the outcome of the drained transactions can be reported.
+ */
+final class TransactionDrainer {
+
+    private static final Log log = LogFactory.getLog(TransactionDrainer.class);
+
+    private static final long POLL_INTERVAL_MILLIS = 50;
+
+    private TransactionDrainer() {
+        throw new UnsupportedOperationException(TransactionDrainer.class.getSimpleName() + " should not be instantiated.");
+    }
+
+    /**
+     * Stop new transactions from being started and wait for the active ones to complete.
+     *
+     * @param timeoutMillis how long to wait for the active transactions
+     * @return outcome of the transactions which were active when the drain started
+     */
+    static Result drain(long timeoutMillis) {
+        final CoordinatorEnvironmentBean coordinatorEnvironmentBean = arjPropertyManager.getCoordinatorEnvironmentBean();
+        final boolean statisticsEnabled = coordinatorEnvironmentBean.isEnableStatistics();
+        coordinatorEnvironmentBean.setEnableStatistics(true);
+        try {
+            final TxStats stats = TxStats.getInstance();
+            final long committed = stats.getNumberOfCommittedTransactions();
+            final long rolledBack = stats.getNumberOfAbortedTransactions();
+            final long heuristics = stats.getNumberOfHeuristics();
+
+            TxControl.disable(false);
+            final int active = ActionManager.manager().getNumberOfInflightTransactions();
+            if (active > 0) {
+                log.info("Waiting up to " + timeoutMillis + " ms for " + active + " active transaction(s) to complete");
+                awaitCompletion(timeoutMillis);
+            }
+
+            return new Result(active,
+                    stats.getNumberOfCommittedTransactions() - committed,
+                    stats.getNumberOfAbortedTransactions() - rolledBack,
+                    stats.getNumberOfHeuristics() - heuristics
+                            + ActionManager.manager().getNumberOfInflightTransactions());
+        } finally {
+            coordinatorEnvironmentBean.setEnableStatistics(statisticsEnabled);
+        }
+    }
+
+    private static void awaitCompletion(long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (ActionManager.manager().getNumberOfInflightTransactions() > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting for active transactions to complete", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Outcome of a drain.
+     */
+    static final class Result {
+
+        private final int active;
+
+        private final long committed;
+
+        private final long rolledBack;
+
+        private final long inDoubt;
+
+        private Result(int active, long committed, long rolledBack, long inDoubt) {
+            this.active = active;
+            this.committed = committed;
+            this.rolledBack = rolledBack;
+            this.inDoubt = inDoubt;
+        }
+
+        /**
+         * @return number of transactions active when the drain started
+         */
+        int getActive() {
+            return active;
+        }
+
+        /**
+         * @return number of transactions committed during the drain
+         */
+        long getCommitted() {
+            return committed;
+        }
+
+        /**
+         * @return number of transactions rolled back during the drain
+         */
+        long getRolledBack() {
+            return rolledBack;
+        }
+
+        /**
+         * @return number of transactions which completed heuristically or were still active at the deadline
+         */
+        long getInDoubt() {
+            return inDoubt;
+        }
+
+        @Override
+        public String toString() {
+            return "active=" + active + ", committed=" + committed + ", rolledBack=" + rolledBack + ", inDoubt=" + inDoubt;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.apache.tomcat.dbcp.dbcp2.BasicDataSource;
+import org.apache.tomcat.dbcp.dbcp2.BasicDataSourceFactory;
+import org.apache.tomcat.dbcp.dbcp2.managed.BasicManagedDataSource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.narayana.tomcat.jta.internal.BootstrapConfiguration;
+import org.jboss.narayana.tomcat.jta.internal.NarayanaBootstrap;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.junit.Test;
+
+/**
+ * Measures the creation of 500 pooled data sources, as when a node provisions its resources at startup. Not part of the
+ * test suite, run it with {@code mvn test -Dtest=DataSourceStartupBenchmark}.
+ * <p>
+ * The configuration of the pools through a throwaway {@link BasicDataSource} whose fields are copied by reflection,
+ * which the factory used to do, is measured as well for comparison. No connection is opened.
+ */
+public class DataSourceStartupBenchmark {
+
+    private static final int DATA_SOURCES = 500;
+
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void benchmark() throws Exception {
+        final Object owner = new Object();
+        NarayanaBootstrap.acquire(owner, new BootstrapConfiguration());
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                report("reflective copy", copyFields());
+                report("factory", createDataSources());
+            }
+        } finally {
+            NarayanaBootstrap.release(owner);
+        }
+    }
+
+    private static long createDataSources() throws Exception {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:dataSourceStartupBenchmark;DB_CLOSE_DELAY=-1");
+        final List<DataSource> dataSources = new ArrayList<>(DATA_SOURCES);
+        final long start = System.nanoTime();
+        for (int i = 0; i < DATA_SOURCES; i++) {
+            dataSources.add(PoolingDataSourceFactory.createPoolingDataSource(
+                    jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), h2,
+                    jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties(i)));
+        }
+        final long elapsed = System.nanoTime() - start;
+        for (DataSource dataSource : dataSources) {
+            ((AutoCloseable) dataSource).close();
+        }
+        return elapsed;
+    }
+
+    private static long copyFields() throws Exception {
+        final long start = System.nanoTime();
+        for (int i = 0; i < DATA_SOURCES; i++) {
+            final BasicManagedDataSource mds = new BasicManagedDataSource();
+            final BasicDataSource ds = BasicDataSourceFactory.createDataSource(properties(i));
+            for (Field field : ds.getClass().getDeclaredFields()) {
+                field.setAccessible(true);
+                if (field.get(ds) == null || Modifier.isFinal(field.getModifiers())) {
+                    continue;
+                }
+                field.set(mds, field.get(ds));
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static Properties properties(int i) {
+        final Properties properties = new Properties();
+        properties.setProperty("uniqueName", "dataSourceStartupBenchmark" + i);
+        properties.setProperty("maxTotal", "20");
+        properties.setProperty("maxIdle", "10");
+        properties.setProperty("minIdle", "2");
+        properties.setProperty("maxWaitMillis", "500");
+        properties.setProperty("defaultTransactionIsolation", "READ_COMMITTED");
+        properties.setProperty("testOnBorrow", "true");
+        properties.setProperty("validationQuery", "SELECT 1");
+        properties.setProperty("validationQueryTimeout", "5");
+        properties.setProperty("connectionInitSqls", "SET SCHEMA PUBLIC");
+        properties.setProperty("timeBetweenEvictionRunsMillis", "30000");
+        properties.setProperty("minEvictableIdleTimeMillis", "60000");
+        properties.setProperty("removeAbandonedOnBorrow", "true");
+        properties.setProperty("removeAbandonedTimeout", "300");
+        properties.setProperty("poolPreparedStatements", "true");
+        return properties;
+    }
+
+    private static void report(String step, long nanos) {
+        System.out.printf("%-15s %d data sources in %5d ms, %4d us each%n", step, DATA_SOURCES,
+                TimeUnit.NANOSECONDS.toMillis(nanos), TimeUnit.NANOSECONDS.toMicros(nanos) / DATA_SOURCES);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.objectstore.ObjectStoreAPI;
+import com.arjuna.ats.internal.arjuna.objectstore.ShadowNoFileLockStore;
+import org.jboss.narayana.tomcat.jta.internal.GroupCommitObjectStore;
+import org.junit.Test;
+
+/**
+ * Compares the log write throughput of the {@link GroupCommitObjectStore} with the default file store, with the same write
+ * and remove pattern as a two phase commit. Not part of the test suite, run it with
+ * {@code mvn test -Dtest=GroupCommitStoreBenchmark}.
+ */
+public class GroupCommitStoreBenchmark {
+
+    private static final String TYPE_NAME = "/StateManager/BasicAction/TwoPhaseCoordinator/AtomicAction";
+
+    private static final int TRANSACTIONS_PER_THREAD = 500;
+
+    private static final int[] THREADS = {1, 8, 32};
+
+    @Test
+    public void benchmark() throws Exception {
+        for (int threads : THREADS) {
+            final ObjectStoreEnvironmentBean fileBean = TestGroupCommitObjectStore.createEnvironmentBean();
+            fileBean.setTransactionSync(true);
+            final ObjectStoreAPI fileStore = new ShadowNoFileLockStore(fileBean);
+            fileStore.start();
+            report("file store", threads, run(fileStore, threads));
+            fileStore.stop();
+
+            final GroupCommitObjectStore groupCommitStore = new GroupCommitObjectStore(
+                    TestGroupCommitObjectStore.createEnvironmentBean());
+            groupCommitStore.start();
+            report("group commit", threads, run(groupCommitStore, threads));
+            System.out.printf("    average batch %.1f, max batch %d, average fsync %d us, max fsync %d us%n",
+                    groupCommitStore.getAverageBatchSize(), groupCommitStore.getMaxBatchSize(),
+                    groupCommitStore.getAverageFsyncMicros(), groupCommitStore.getMaxFsyncMicros());
+            groupCommitStore.stop();
+        }
+    }
+
+    private static long run(ObjectStoreAPI store, int threads) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> workers = new ArrayList<>();
+            final long start = System.nanoTime();
+            for (int i = 0; i < threads; i++) {
+                workers.add(executor.submit(() -> {
+                    for (int j = 0; j < TRANSACTIONS_PER_THREAD; j++) {
+                        final Uid uid = new Uid();
+                        store.write_committed(uid, TYPE_NAME, TestGroupCommitObjectStore.state(j));
+                        store.remove_committed(uid, TYPE_NAME);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void report(String store, int threads, long nanos) {
+        final long transactions = (long) threads * TRANSACTIONS_PER_THREAD;
+        System.out.printf("%-12s %2d threads: %6d tx/s%n", store, threads,
+                transactions * TimeUnit.SECONDS.toNanos(1) / nanos);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+import javax.sql.XADataSource;
+import javax.transaction.TransactionManager;
+
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.apache.tomcat.dbcp.dbcp2.BasicDataSource;
+import org.jboss.narayana.tomcat.jta.internal.BootstrapConfiguration;
+import org.jboss.narayana.tomcat.jta.internal.NarayanaBootstrap;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.junit.Test;
+
+/**
+ * Compares single resource transactions on a data source enlisting XA branches with the local transaction fast path. Not
+ * part of the test suite, run it with {@code mvn test -Dtest=LocalTransactionFastPathBenchmark}.
+ * <p>
+ * An in-memory H2 database is used by default. Another database can be selected with the {@code benchmark.xaDataSource},
+ * {@code benchmark.url}, {@code benchmark.user} and {@code benchmark.password} system properties, for example
+ * {@code org.postgresql.xa.PGXADataSource} with the driver on the test class path.
+ */
+public class LocalTransactionFastPathBenchmark {
+
+    private static final int WARM_UP_TRANSACTIONS = 2000;
+
+    private static final int TRANSACTIONS = 10000;
+
+    @Test
+    public void benchmark() throws Exception {
+        final Object owner = new Object();
+        NarayanaBootstrap.acquire(owner, new BootstrapConfiguration());
+        try {
+            report("xa", run(false));
+            report("local", run(true));
+            report("xa", run(false));
+            report("local", run(true));
+        } finally {
+            NarayanaBootstrap.release(owner);
+        }
+    }
+
+    private static long run(boolean localTransactionFastPath) throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("localTransactionFastPath", Boolean.toString(localTransactionFastPath));
+        properties.setProperty("maxTotal", "1");
+        final BasicDataSource ds = (BasicDataSource) PoolingDataSourceFactory.createPoolingDataSource(
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), createXADataSource(),
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties);
+        try {
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS fast_path_benchmark");
+                statement.execute("CREATE TABLE fast_path_benchmark (id INT)");
+            }
+            execute(ds, WARM_UP_TRANSACTIONS);
+            final long start = System.nanoTime();
+            execute(ds, TRANSACTIONS);
+            return System.nanoTime() - start;
+        } finally {
+            ds.close();
+        }
+    }
+
+    private static void execute(DataSource ds, int transactions) throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        for (int i = 0; i < transactions; i++) {
+            tm.begin();
+            try (Connection connection = ds.getConnection();
+                    PreparedStatement statement = connection.prepareStatement("INSERT INTO fast_path_benchmark VALUES (?)")) {
+                statement.setInt(1, i);
+                statement.executeUpdate();
+            } catch (Exception e) {
+                tm.rollback();
+                throw e;
+            }
+            tm.commit();
+        }
+    }
+
+    private static XADataSource createXADataSource() throws Exception {
+        final XADataSource xaDataSource = (XADataSource) Class
+                .forName(System.getProperty("benchmark.xaDataSource", "org.h2.jdbcx.JdbcDataSource"))
+                .getDeclaredConstructor().newInstance();
+        final String url = System.getProperty("benchmark.url", "jdbc:h2:mem:fastPathBenchmark;DB_CLOSE_DELAY=-1");
+        for (Method method : xaDataSource.getClass().getMethods()) {
+            if (method.getName().equalsIgnoreCase("setUrl") && method.getParameterCount() == 1) {
+                method.invoke(xaDataSource, url);
+            } else if (method.getName().equals("setUser") && method.getParameterCount() == 1) {
+                method.invoke(xaDataSource, System.getProperty("benchmark.user", "sa"));
+            } else if (method.getName().equals("setPassword") && method.getParameterTypes()[0] == String.class) {
+                method.invoke(xaDataSource, System.getProperty("benchmark.password", ""));
+            }
+        }
+        return xaDataSource;
+    }
+
+    private static void report(String mode, long nanos) {
+        System.out.printf("%-6s %6d tx/s, %5d us/tx%n", mode, TRANSACTIONS * TimeUnit.SECONDS.toNanos(1) / nanos,
+                TimeUnit.NANOSECONDS.toMicros(nanos) / TRANSACTIONS);
+    }
+}
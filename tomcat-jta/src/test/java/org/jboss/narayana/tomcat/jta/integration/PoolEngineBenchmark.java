@@ -0,0 +1,109 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.narayana.tomcat.jta.internal.BootstrapConfiguration;
+import org.jboss.narayana.tomcat.jta.internal.NarayanaBootstrap;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.junit.Test;
+
+/**
+ * Compares the borrow and return throughput of the pool implementations, from 8 to 256 threads sharing a pool of 16
+ * connections. Not part of the test suite, run it with {@code mvn test -Dtest=PoolEngineBenchmark}.
+ * <p>
+ * The connections are borrowed outside of any transaction and given back without being used, so that the pools, rather
+ * than the database, are measured.
+ */
+public class PoolEngineBenchmark {
+
+    private static final int MAX_TOTAL = 16;
+
+    private static final int[] THREADS = {8, 16, 32, 64, 128, 256};
+
+    private static final long DURATION_MILLIS = 2000;
+
+    @Test
+    public void benchmark() throws Exception {
+        final Object owner = new Object();
+        NarayanaBootstrap.acquire(owner, new BootstrapConfiguration());
+        try {
+            for (String poolImplementation : new String[] {"dbcp", "bag", "dbcp", "bag"}) {
+                final DataSource ds = createDataSource(poolImplementation);
+                try {
+                    for (int threads : THREADS) {
+                        report(poolImplementation, threads, run(ds, threads));
+                    }
+                } finally {
+                    ((AutoCloseable) ds).close();
+                }
+            }
+        } finally {
+            NarayanaBootstrap.release(owner);
+        }
+    }
+
+    private static long run(DataSource ds, int threads) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DURATION_MILLIS);
+                    long count = 0;
+                    while (System.nanoTime() < end) {
+                        try (Connection connection = ds.getConnection()) {
+                            count++;
+                        }
+                    }
+                    return count;
+                }));
+            }
+            start.countDown();
+            long total = 0;
+            for (Future<Long> future : futures) {
+                total += future.get();
+            }
+            return total;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static DataSource createDataSource(String poolImplementation) {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:poolEngineBenchmark;DB_CLOSE_DELAY=-1");
+        h2.setUser("sa");
+        h2.setPassword("");
+        final Properties properties = new Properties();
+        properties.setProperty("poolImplementation", poolImplementation);
+        properties.setProperty("maxTotal", Integer.toString(MAX_TOTAL));
+        properties.setProperty("maxIdle", Integer.toString(MAX_TOTAL));
+        properties.setProperty("initialSize", Integer.toString(MAX_TOTAL));
+        return PoolingDataSourceFactory.createPoolingDataSource(
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), h2,
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties);
+    }
+
+    private static void report(String poolImplementation, int threads, long borrows) {
+        System.out.printf("%-5s %4d threads %9d borrows/s%n", poolImplementation, threads,
+                borrows * TimeUnit.SECONDS.toMillis(1) / DURATION_MILLIS);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.exceptions.ObjectStoreException;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.internal.arjuna.common.UidHelper;
+import com.arjuna.ats.internal.arjuna.objectstore.ShadowNoFileLockStore;
+import org.jboss.narayana.tomcat.jta.internal.AsyncRemovalObjectStore;
+import org.junit.Test;
+
+import static org.jboss.narayana.tomcat.jta.integration.TestGroupCommitObjectStore.createEnvironmentBean;
+import static org.jboss.narayana.tomcat.jta.integration.TestGroupCommitObjectStore.state;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestAsyncRemovalObjectStore {
+
+    private static final String TYPE_NAME = "/StateManager/BasicAction/TwoPhaseCoordinator/AtomicAction";
+
+    @Test
+    public void testRemovedRecordIsHiddenUntilDeleted() throws Exception {
+        final BlockingStore delegate = new BlockingStore(createEnvironmentBean());
+        final AsyncRemovalObjectStore store = new AsyncRemovalObjectStore(delegate);
+        store.start();
+        try {
+            final Uid removed = new Uid();
+            final Uid kept = new Uid();
+            assertTrue(store.write_committed(removed, TYPE_NAME, state(1)));
+            assertTrue(store.write_committed(kept, TYPE_NAME, state(2)));
+
+            assertTrue(store.remove_committed(removed, TYPE_NAME));
+            assertFalse(store.remove_committed(removed, TYPE_NAME));
+            assertTrue(delegate.removing.await(10, TimeUnit.SECONDS));
+
+            assertEquals(StateStatus.OS_COMMITTED, delegate.currentState(removed, TYPE_NAME));
+            assertEquals(StateStatus.OS_UNKNOWN, store.currentState(removed, TYPE_NAME));
+            assertNull(store.read_committed(removed, TYPE_NAME));
+            assertEquals(1, countUids(store, StateStatus.OS_COMMITTED));
+            assertEquals(2, store.read_committed(kept, TYPE_NAME).unpackInt());
+
+            delegate.release.countDown();
+            awaitRemoval(store);
+            assertEquals(StateStatus.OS_UNKNOWN, delegate.currentState(removed, TYPE_NAME));
+            assertEquals(1, store.getRemovedCount());
+            assertEquals(1, store.getMaxQueueDepth());
+        } finally {
+            delegate.release.countDown();
+            store.stop();
+        }
+    }
+
+    @Test
+    public void testWriteCancelsPendingRemoval() throws Exception {
+        final BlockingStore delegate = new BlockingStore(createEnvironmentBean());
+        final AsyncRemovalObjectStore store = new AsyncRemovalObjectStore(delegate);
+        store.start();
+        try {
+            final Uid blocking = new Uid();
+            final Uid rewritten = new Uid();
+            assertTrue(store.write_committed(blocking, TYPE_NAME, state(1)));
+            assertTrue(store.write_committed(rewritten, TYPE_NAME, state(2)));
+
+            // the first removal holds the background thread, the second one stays queued
+            assertTrue(store.remove_committed(blocking, TYPE_NAME));
+            assertTrue(delegate.removing.await(10, TimeUnit.SECONDS));
+            assertTrue(store.remove_committed(rewritten, TYPE_NAME));
+            assertTrue(store.write_committed(rewritten, TYPE_NAME, state(3)));
+
+            delegate.release.countDown();
+            awaitRemoval(store);
+            assertEquals(3, store.read_committed(rewritten, TYPE_NAME).unpackInt());
+            assertEquals(3, delegate.read_committed(rewritten, TYPE_NAME).unpackInt());
+            assertEquals(1, countUids(store, StateStatus.OS_UNKNOWN));
+        } finally {
+            delegate.release.countDown();
+            store.stop();
+        }
+    }
+
+    @Test
+    public void testStopRemovesQueuedRecords() throws Exception {
+        final ObjectStoreEnvironmentBean bean = createEnvironmentBean();
+        final AsyncRemovalObjectStore store = new AsyncRemovalObjectStore(new ShadowNoFileLockStore(bean));
+        store.start();
+        final Uid[] uids = new Uid[100];
+        for (int i = 0; i < uids.length; i++) {
+            uids[i] = new Uid();
+            assertTrue(store.write_committed(uids[i], TYPE_NAME, state(i)));
+            assertTrue(store.remove_committed(uids[i], TYPE_NAME));
+        }
+        store.stop();
+
+        assertEquals(0, store.getQueueDepth());
+        assertEquals(0, store.getFailedCount());
+        final ShadowNoFileLockStore files = new ShadowNoFileLockStore(bean);
+        for (Uid uid : uids) {
+            assertEquals(StateStatus.OS_UNKNOWN, files.currentState(uid, TYPE_NAME));
+        }
+    }
+
+    private static void awaitRemoval(AsyncRemovalObjectStore store) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ((store.getQueueDepth() > 0 || store.getRemovedCount() == 0) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static int countUids(AsyncRemovalObjectStore store, int match) throws Exception {
+        final InputObjectState uids = new InputObjectState();
+        assertTrue(store.allObjUids(TYPE_NAME, uids, match));
+        int count = 0;
+        for (Uid uid = UidHelper.unpackFrom(uids); uid.notEquals(Uid.nullUid()); uid = UidHelper.unpackFrom(uids)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * File store holding the first removal until it is released.
+     */
+    private static final class BlockingStore extends ShadowNoFileLockStore {
+
+        final CountDownLatch removing = new CountDownLatch(1);
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        BlockingStore(ObjectStoreEnvironmentBean environmentBean) throws ObjectStoreException {
+            super(environmentBean);
+        }
+
+        @Override
+        public boolean remove_committed(Uid uid, String typeName) throws ObjectStoreException {
+            removing.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.remove_committed(uid, typeName);
+        }
+    }
+}
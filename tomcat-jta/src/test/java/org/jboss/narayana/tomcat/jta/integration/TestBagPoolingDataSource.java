@@ -0,0 +1,164 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.sql.DataSource;
+import javax.transaction.TransactionManager;
+
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.narayana.tomcat.jta.internal.BagPoolingDataSource;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBagPoolingDataSource extends AbstractUnitCase {
+
+    @Test
+    public void testTransactions() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final BagPoolingDataSource ds = createDataSource("bagTransactions", 4, 1000);
+        try {
+            execute(ds, "CREATE TABLE test (id INT)");
+
+            tm.begin();
+            execute(ds, "INSERT INTO test VALUES (1)");
+            execute(ds, "INSERT INTO test VALUES (2)");
+            tm.commit();
+
+            tm.begin();
+            try (Connection first = ds.getConnection(); Connection second = ds.getConnection()) {
+                // the connections of a transaction share the pooled connection
+                assertEquals(1, ds.getNumActive());
+                try (Statement statement = first.createStatement()) {
+                    statement.execute("INSERT INTO test VALUES (3)");
+                }
+                try (Statement statement = second.createStatement()) {
+                    statement.execute("INSERT INTO test VALUES (4)");
+                }
+            }
+            tm.rollback();
+
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement();
+                    ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM test")) {
+                assertTrue(resultSet.next());
+                assertEquals(2, resultSet.getInt(1));
+            }
+            assertEquals(0, ds.getNumActive());
+        } finally {
+            ds.close();
+        }
+    }
+
+    @Test
+    public void testBorrowWaitsForFreeConnection() throws Exception {
+        final BagPoolingDataSource ds = createDataSource("bagWait", 2, 200);
+        try {
+            final Connection first = ds.getConnection();
+            final Connection second = ds.getConnection();
+            try {
+                ds.getConnection().close();
+                fail("The pool is full");
+            } catch (SQLException expected) {
+                // timed out waiting
+            }
+            first.close();
+            try (Connection third = ds.getConnection()) {
+                assertEquals(2, ds.getNumActive());
+            }
+            second.close();
+            assertEquals(0, ds.getNumActive());
+            assertEquals(2, ds.getNumIdle());
+        } finally {
+            ds.close();
+        }
+        assertTrue(ds.isClosed());
+        assertEquals(0, ds.getNumIdle());
+    }
+
+    @Test
+    public void testConcurrentBorrows() throws Exception {
+        final BagPoolingDataSource ds = createDataSource("bagConcurrent", 4, 10000);
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 200; j++) {
+                        execute(ds, "SELECT 1");
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertEquals(0, ds.getNumActive());
+            assertTrue(ds.getNumIdle() <= 4);
+        } finally {
+            executor.shutdownNow();
+            ds.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownPoolImplementation() {
+        final Properties properties = new Properties();
+        properties.setProperty("poolImplementation", "unknown");
+        PoolingDataSourceFactory.createPoolingDataSource(jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(),
+                new JdbcDataSource(), jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(),
+                properties);
+    }
+
+    @Test
+    public void testUnsupportedOption() {
+        final Properties properties = new Properties();
+        properties.setProperty("poolImplementation", "bag");
+        properties.setProperty("lazyEnlistment", "true");
+        properties.setProperty("transactionDeadline", "false");
+        try {
+            PoolingDataSourceFactory.createPoolingDataSource(
+                    jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), new JdbcDataSource(),
+                    jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties);
+            fail("An option the bag pool does not support must be refused");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("[lazyEnlistment]"));
+        }
+    }
+
+    private static BagPoolingDataSource createDataSource(String database, int maxTotal, long maxWaitMillis) {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1");
+        h2.setUser("sa");
+        h2.setPassword("");
+        final Properties properties = new Properties();
+        properties.setProperty("poolImplementation", "bag");
+        properties.setProperty("maxTotal", Integer.toString(maxTotal));
+        properties.setProperty("maxWaitMillis", Long.toString(maxWaitMillis));
+        return (BagPoolingDataSource) PoolingDataSourceFactory.createPoolingDataSource(
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), h2,
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties);
+    }
+
+    private static void execute(DataSource ds, String sql) throws SQLException {
+        try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+}
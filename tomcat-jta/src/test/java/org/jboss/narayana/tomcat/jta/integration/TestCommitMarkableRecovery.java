@@ -0,0 +1,160 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.coordinator.ActionManager;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+import com.arjuna.ats.arjuna.objectstore.StoreManager;
+import com.arjuna.ats.arjuna.recovery.RecoveryManager;
+import com.arjuna.ats.internal.jta.transaction.arjunacore.TransactionImple;
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+public class TestCommitMarkableRecovery extends AbstractUnitCase {
+
+    private static final String ATOMIC_ACTION_TYPE = "/StateManager/BasicAction/TwoPhaseCoordinator/AtomicAction";
+
+    private static final int MAX_SCANS = 10;
+
+    // the recovery module only holds the registered data source weakly, as the JNDI resource does in Tomcat
+    private DataSource dataSource;
+
+    @Test
+    public void testRecoveryCompletesCrashedCommit() throws Exception {
+        final TransactionManager transactionManager = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:commitMarkableCrash;DB_CLOSE_DELAY=-1");
+        h2.setUser("sa");
+        h2.setPassword("sa");
+        final Properties properties = new Properties();
+        properties.setProperty("jndiName", "commitMarkableDataSource");
+        dataSource = PoolingDataSourceFactory.createCommitMarkableDataSource(transactionManager, h2,
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties);
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE commit_markable_crash (id INT)");
+        }
+
+        transactionManager.begin();
+        final Uid uid = ((TransactionImple) transactionManager.getTransaction()).get_uid();
+        transactionManager.getTransaction().enlistResource(new CrashingXAResource());
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO commit_markable_crash VALUES (1)");
+        }
+        try {
+            transactionManager.commit();
+            fail("The XA resource did not crash the commit");
+        } catch (Crash expected) {
+            // The local resource and its commit record are committed, the XA resource is not
+        }
+        transactionManager.suspend();
+        ActionManager.manager().remove(uid);
+
+        assertEquals(1, count(h2, "commit_markable_crash"));
+        assertEquals(1, count(h2, "xids"));
+        assertNotEquals(StateStatus.OS_UNKNOWN, StoreManager.getRecoveryStore().currentState(uid, ATOMIC_ACTION_TYPE));
+
+        for (int i = 0; i < MAX_SCANS && (CrashingXAResource.COMMITS.get() < 2
+                || StoreManager.getRecoveryStore().currentState(uid, ATOMIC_ACTION_TYPE) != StateStatus.OS_UNKNOWN); i++) {
+            RecoveryManager.manager().scan();
+        }
+
+        assertEquals(2, CrashingXAResource.COMMITS.get());
+        assertEquals(0, CrashingXAResource.ROLLBACKS.get());
+        assertEquals(StateStatus.OS_UNKNOWN, StoreManager.getRecoveryStore().currentState(uid, ATOMIC_ACTION_TYPE));
+    }
+
+    private static int count(JdbcDataSource h2, String table) throws Exception {
+        try (Connection connection = h2.getConnection(); Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    private static final class Crash extends Error {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * XA resource crashing the first commit, recovery commits the copy restored from the transaction log.
+     */
+    public static final class CrashingXAResource implements XAResource, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        static final AtomicInteger COMMITS = new AtomicInteger();
+
+        static final AtomicInteger ROLLBACKS = new AtomicInteger();
+
+        @Override
+        public void commit(Xid xid, boolean onePhase) {
+            if (COMMITS.getAndIncrement() == 0) {
+                throw new Crash();
+            }
+        }
+
+        @Override
+        public void end(Xid xid, int flags) {
+        }
+
+        @Override
+        public void forget(Xid xid) {
+        }
+
+        @Override
+        public int getTransactionTimeout() {
+            return 0;
+        }
+
+        @Override
+        public boolean isSameRM(XAResource xaResource) {
+            return false;
+        }
+
+        @Override
+        public int prepare(Xid xid) {
+            return XA_OK;
+        }
+
+        @Override
+        public Xid[] recover(int flag) {
+            return new Xid[0];
+        }
+
+        @Override
+        public void rollback(Xid xid) {
+            ROLLBACKS.incrementAndGet();
+        }
+
+        @Override
+        public boolean setTransactionTimeout(int seconds) {
+            return false;
+        }
+
+        @Override
+        public void start(Xid xid, int flags) {
+        }
+    }
+}
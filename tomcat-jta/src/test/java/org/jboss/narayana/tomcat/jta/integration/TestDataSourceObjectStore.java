@@ -0,0 +1,191 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.arjuna.state.OutputObjectState;
+import com.arjuna.ats.internal.arjuna.common.UidHelper;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.narayana.tomcat.jta.internal.DataSourceObjectStore;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestDataSourceObjectStore {
+
+    private static final String DATA_SOURCE_NAME = "jdbc/objectStore";
+
+    private static final String NO_INFO_DATA_SOURCE_NAME = "jdbc/noInfoObjectStore";
+
+    private static final String TYPE_NAME = "/StateManager/BasicAction/TwoPhaseCoordinator/AtomicAction";
+
+    @BeforeClass
+    public static void registerDataSource() {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:objectstore;DB_CLOSE_DELAY=-1");
+        h2.setUser("sa");
+        h2.setPassword("sa");
+        DataSourceObjectStore.registerDataSource(DATA_SOURCE_NAME, h2);
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        final DataSourceObjectStore store = createStore("concurrent_");
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<Uid>> writes = new ArrayList<>();
+        try {
+            for (int i = 0; i < 200; i++) {
+                final int value = i;
+                writes.add(executor.submit(() -> {
+                    final Uid uid = new Uid();
+                    final OutputObjectState state = new OutputObjectState();
+                    state.packInt(value);
+                    assertTrue(store.write_committed(uid, TYPE_NAME, state));
+                    return uid;
+                }));
+            }
+            for (int i = 0; i < writes.size(); i++) {
+                final Uid uid = writes.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals(StateStatus.OS_COMMITTED, store.currentState(uid, TYPE_NAME));
+                assertEquals(i, store.read_committed(uid, TYPE_NAME).unpackInt());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(200, store.getUpdateCount());
+        assertTrue(store.getBatchCount() <= store.getUpdateCount());
+
+        final InputObjectState uids = new InputObjectState();
+        assertTrue(store.allObjUids(TYPE_NAME, uids));
+        int count = 0;
+        for (Uid uid = UidHelper.unpackFrom(uids); uid.notEquals(Uid.nullUid()); uid = UidHelper.unpackFrom(uids)) {
+            assertTrue(store.remove_committed(uid, TYPE_NAME));
+            count++;
+        }
+        assertEquals(200, count);
+        assertFalse(store.remove_committed(writes.get(0).get(), TYPE_NAME));
+    }
+
+    @Test
+    public void testStateTransitions() throws Exception {
+        final DataSourceObjectStore store = createStore("transitions_");
+        final Uid uid = new Uid();
+        final OutputObjectState state = new OutputObjectState();
+        state.packString("shadow");
+
+        assertEquals(StateStatus.OS_UNKNOWN, store.currentState(uid, TYPE_NAME));
+        assertTrue(store.write_uncommitted(uid, TYPE_NAME, state));
+        assertEquals(StateStatus.OS_UNCOMMITTED, store.currentState(uid, TYPE_NAME));
+        assertNull(store.read_committed(uid, TYPE_NAME));
+
+        assertTrue(store.commit_state(uid, TYPE_NAME));
+        assertEquals(StateStatus.OS_COMMITTED, store.currentState(uid, TYPE_NAME));
+        final InputObjectState committed = store.read_committed(uid, TYPE_NAME);
+        assertNotNull(committed);
+        assertEquals("shadow", committed.unpackString());
+
+        assertTrue(store.hide_state(uid, TYPE_NAME));
+        assertEquals(StateStatus.OS_COMMITTED_HIDDEN, store.currentState(uid, TYPE_NAME));
+        assertTrue(store.reveal_state(uid, TYPE_NAME));
+        assertEquals(StateStatus.OS_COMMITTED, store.currentState(uid, TYPE_NAME));
+
+        final InputObjectState types = new InputObjectState();
+        assertTrue(store.allTypes(types));
+        assertEquals(TYPE_NAME.substring(1), types.unpackString());
+        assertEquals("", types.unpackString());
+
+        assertTrue(store.remove_committed(uid, TYPE_NAME));
+        assertEquals(StateStatus.OS_UNKNOWN, store.currentState(uid, TYPE_NAME));
+    }
+
+    @Test
+    public void testBatchWithoutUpdateCounts() throws Exception {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:objectstore;DB_CLOSE_DELAY=-1");
+        h2.setUser("sa");
+        h2.setPassword("sa");
+        final DataSource dataSource = withoutUpdateCounts(h2, DataSource.class);
+        DataSourceObjectStore.registerDataSource(NO_INFO_DATA_SOURCE_NAME, dataSource);
+        final DataSourceObjectStore store = createStore(NO_INFO_DATA_SOURCE_NAME, "noinfo_");
+
+        final Uid uid = new Uid();
+        final OutputObjectState state = new OutputObjectState();
+        state.packInt(1);
+        assertTrue(store.write_committed(uid, TYPE_NAME, state));
+        assertFalse(store.remove_committed(new Uid(), TYPE_NAME));
+        assertTrue(store.remove_committed(uid, TYPE_NAME));
+        assertFalse(store.remove_committed(uid, TYPE_NAME));
+        assertEquals(StateStatus.OS_UNKNOWN, store.currentState(uid, TYPE_NAME));
+
+        store.stop();
+        try {
+            assertNotSame("The data source must be forgotten when the store stops", dataSource,
+                    DataSourceObjectStore.getDataSource(NO_INFO_DATA_SOURCE_NAME));
+        } catch (NamingException expected) {
+        }
+    }
+
+    /**
+     * Wrap the JDBC object so that the statements it creates answer batches with {@link Statement#SUCCESS_NO_INFO}, as
+     * some drivers do.
+     */
+    private static <T> T withoutUpdateCounts(Object delegate, Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(TestDataSourceObjectStore.class.getClassLoader(), new Class<?>[] {type},
+                (proxy, method, args) -> {
+                    final Object result;
+                    try {
+                        result = method.invoke(delegate, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if (method.getName().equals("executeBatch")) {
+                        final int[] counts = new int[((int[]) result).length];
+                        Arrays.fill(counts, Statement.SUCCESS_NO_INFO);
+                        return counts;
+                    }
+                    if (method.getReturnType() == Connection.class || method.getReturnType() == PreparedStatement.class) {
+                        return withoutUpdateCounts(result, method.getReturnType());
+                    }
+                    return result;
+                }));
+    }
+
+    private static DataSourceObjectStore createStore(String tablePrefix) throws Exception {
+        return createStore(DATA_SOURCE_NAME, tablePrefix);
+    }
+
+    private static DataSourceObjectStore createStore(String dataSourceName, String tablePrefix) throws Exception {
+        final ObjectStoreEnvironmentBean bean = new ObjectStoreEnvironmentBean();
+        bean.setJdbcAccess(dataSourceName);
+        bean.setTablePrefix(tablePrefix);
+        bean.setCreateTable(true);
+        return new DataSourceObjectStore(bean);
+    }
+}
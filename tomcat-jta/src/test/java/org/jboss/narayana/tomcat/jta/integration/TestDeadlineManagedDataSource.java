@@ -0,0 +1,119 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.TransactionManager;
+
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.narayana.tomcat.jta.internal.DeadlineManagedDataSource;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestDeadlineManagedDataSource extends AbstractUnitCase {
+
+    @Test
+    public void testBorrowWaitIsCappedByTransaction() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final DeadlineManagedDataSource ds = createDataSource("deadlineBorrow");
+        try (Connection busy = ds.getConnection()) {
+            tm.setTransactionTimeout(1);
+            tm.begin();
+            final long start = System.nanoTime();
+            try {
+                ds.getConnection().close();
+                fail("The pool has no connection left");
+            } catch (SQLException expected) {
+                // the transaction times out long before the pool gives up
+            } finally {
+                tm.rollback();
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        } finally {
+            tm.setTransactionTimeout(0);
+            ds.close();
+        }
+    }
+
+    @Test
+    public void testQueryTimeoutIsCappedByTransaction() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final DeadlineManagedDataSource ds = createDataSource("deadlineQuery");
+        try {
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                assertEquals(0, statement.getQueryTimeout());
+            }
+
+            tm.setTransactionTimeout(30);
+            tm.begin();
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                assertTrue(statement.getQueryTimeout() > 0);
+                assertTrue(statement.getQueryTimeout() <= 30);
+            } finally {
+                tm.rollback();
+            }
+        } finally {
+            tm.setTransactionTimeout(0);
+            ds.close();
+        }
+    }
+
+    @Test
+    public void testReaperAbortsConnection() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final DeadlineManagedDataSource ds = createDataSource("deadlineAbort");
+        ds.enableReaperAbort("deadlineAbort");
+        try {
+            tm.setTransactionTimeout(1);
+            tm.begin();
+            final Connection stuck = ds.getConnection();
+            try (Statement statement = stuck.createStatement()) {
+                statement.execute("SELECT 1");
+            }
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (ds.getAbortedConnectionCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, ds.getAbortedConnectionCount());
+            assertEquals(0, ds.getAbortFailureCount());
+            assertEquals(0, ds.getNumActive());
+            assertTrue(stuck.isClosed());
+            stuck.close();
+            tm.rollback();
+
+            // the slot of the aborted connection is available again
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("SELECT 1");
+            }
+        } finally {
+            tm.setTransactionTimeout(0);
+            ds.close();
+        }
+    }
+
+    private static DeadlineManagedDataSource createDataSource(String database) {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1");
+        h2.setUser("sa");
+        h2.setPassword("");
+        final Properties properties = new Properties();
+        properties.setProperty("transactionDeadline", "true");
+        properties.setProperty("maxTotal", "1");
+        properties.setProperty("maxWaitMillis", "30000");
+        return (DeadlineManagedDataSource) PoolingDataSourceFactory.createPoolingDataSource(
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), h2,
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties);
+    }
+}
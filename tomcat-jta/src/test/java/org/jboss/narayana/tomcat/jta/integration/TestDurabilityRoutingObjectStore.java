@@ -0,0 +1,126 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.internal.arjuna.common.UidHelper;
+import com.arjuna.ats.internal.arjuna.objectstore.ShadowNoFileLockStore;
+import com.arjuna.ats.internal.jta.transaction.arjunacore.TransactionSynchronizationRegistryImple;
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.jboss.narayana.tomcat.jta.TransactionDurability;
+import org.jboss.narayana.tomcat.jta.internal.BootstrapConfiguration;
+import org.jboss.narayana.tomcat.jta.internal.DurabilityRoutingObjectStore;
+import org.jboss.narayana.tomcat.jta.internal.NarayanaBootstrap;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.jboss.narayana.tomcat.jta.integration.TestGroupCommitObjectStore.createEnvironmentBean;
+import static org.jboss.narayana.tomcat.jta.integration.TestGroupCommitObjectStore.state;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestDurabilityRoutingObjectStore {
+
+    private static final String TYPE_NAME = "/StateManager/BasicAction/TwoPhaseCoordinator/AtomicAction";
+
+    @After
+    public void after() {
+        DurabilityRoutingObjectStore.setEnabled(false);
+    }
+
+    @Test
+    public void testRelaxedRecordsAreKeptApart() throws Exception {
+        final ObjectStoreEnvironmentBean durableBean = createEnvironmentBean();
+        final ObjectStoreEnvironmentBean relaxedBean = createEnvironmentBean();
+        final ShadowNoFileLockStore durable = new ShadowNoFileLockStore(durableBean);
+        final ShadowNoFileLockStore relaxed = new ShadowNoFileLockStore(relaxedBean);
+        final DurabilityRoutingObjectStore store = new DurabilityRoutingObjectStore(durable, relaxed);
+        store.start();
+        try {
+            final Uid durableUid = new Uid();
+            final Uid relaxedUid = new Uid();
+            assertFalse(DurabilityRoutingObjectStore.relax(relaxedUid));
+            DurabilityRoutingObjectStore.setEnabled(true);
+            assertTrue(DurabilityRoutingObjectStore.relax(relaxedUid));
+
+            assertTrue(store.write_committed(durableUid, TYPE_NAME, state(1)));
+            assertTrue(store.write_committed(relaxedUid, TYPE_NAME, state(2)));
+            assertEquals(StateStatus.OS_COMMITTED, durable.currentState(durableUid, TYPE_NAME));
+            assertEquals(StateStatus.OS_UNKNOWN, durable.currentState(relaxedUid, TYPE_NAME));
+            assertEquals(StateStatus.OS_COMMITTED, relaxed.currentState(relaxedUid, TYPE_NAME));
+            assertEquals(1, store.getDurableWriteCount());
+            assertEquals(1, store.getRelaxedWriteCount());
+            assertEquals(1, store.getActiveRelaxedTransactionCount());
+
+            // as seen by recovery, once the transaction is forgotten
+            DurabilityRoutingObjectStore.complete(relaxedUid);
+            assertEquals(0, store.getActiveRelaxedTransactionCount());
+            final Set<Uid> uids = uids(store);
+            assertEquals(2, uids.size());
+            assertTrue(uids.contains(durableUid));
+            assertTrue(uids.contains(relaxedUid));
+            assertEquals(2, store.read_committed(relaxedUid, TYPE_NAME).unpackInt());
+
+            assertTrue(store.remove_committed(relaxedUid, TYPE_NAME));
+            assertTrue(store.remove_committed(durableUid, TYPE_NAME));
+            assertNull(store.read_committed(relaxedUid, TYPE_NAME));
+            assertTrue(uids(store).isEmpty());
+        } finally {
+            store.stop();
+        }
+    }
+
+    @Test
+    public void testRelaxTransaction() throws Exception {
+        final Object owner = new Object();
+        NarayanaBootstrap.acquire(owner, new BootstrapConfiguration());
+        try {
+            final TransactionManager transactionManager = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+            final TransactionSynchronizationRegistry registry = jtaPropertyManager.getJTAEnvironmentBean()
+                    .getTransactionSynchronizationRegistry();
+            DurabilityRoutingObjectStore.setEnabled(true);
+
+            transactionManager.begin();
+            final Uid uid = (Uid) registry.getTransactionKey();
+            try {
+                assertEquals(TransactionDurability.Durability.DURABLE, TransactionDurability.getDurability(registry));
+                assertTrue(TransactionDurability.relax(registry));
+                assertEquals(TransactionDurability.Durability.RELAXED, TransactionDurability.getDurability(registry));
+                assertTrue(DurabilityRoutingObjectStore.isRelaxed(uid));
+            } finally {
+                transactionManager.commit();
+            }
+            assertFalse(DurabilityRoutingObjectStore.isRelaxed(uid));
+        } finally {
+            NarayanaBootstrap.release(owner);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testRelaxWithoutTransaction() {
+        TransactionDurability.relax(new TransactionSynchronizationRegistryImple());
+    }
+
+    private static Set<Uid> uids(DurabilityRoutingObjectStore store) throws Exception {
+        final InputObjectState state = new InputObjectState();
+        assertTrue(store.allObjUids(TYPE_NAME, state));
+        final Set<Uid> uids = new HashSet<>();
+        for (Uid uid = UidHelper.unpackFrom(state); uid.notEquals(Uid.nullUid()); uid = UidHelper.unpackFrom(state)) {
+            uids.add(uid);
+        }
+        return uids;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.exceptions.ObjectStoreException;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.arjuna.state.OutputObjectState;
+import org.jboss.narayana.tomcat.jta.internal.GroupCommitObjectStore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestGroupCommitObjectStore {
+
+    private static final String TYPE_NAME = "/StateManager/BasicAction/TwoPhaseCoordinator/AtomicAction";
+
+    @Test
+    public void testConcurrentWritesAndReplay() throws Exception {
+        final ObjectStoreEnvironmentBean bean = createEnvironmentBean();
+        final GroupCommitObjectStore store = new GroupCommitObjectStore(bean);
+        store.start();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        final List<Future<Uid>> writes = new ArrayList<>();
+        try {
+            for (int i = 0; i < 400; i++) {
+                final int value = i;
+                writes.add(executor.submit(() -> {
+                    final Uid uid = new Uid();
+                    assertTrue(store.write_committed(uid, TYPE_NAME, state(value)));
+                    return uid;
+                }));
+            }
+            for (Future<Uid> write : writes) {
+                write.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(400, store.getRecordCount());
+        assertTrue(store.getBatchCount() <= 400);
+        assertTrue(store.getMaxBatchSize() >= 1);
+
+        final Uid removed = writes.get(0).get();
+        assertTrue(store.remove_committed(removed, TYPE_NAME));
+        assertFalse(store.remove_committed(removed, TYPE_NAME));
+        store.stop();
+
+        final GroupCommitObjectStore replayed = new GroupCommitObjectStore(bean);
+        replayed.start();
+        try {
+            assertEquals(399, replayed.getLiveRecordCount());
+            assertEquals(StateStatus.OS_UNKNOWN, replayed.currentState(removed, TYPE_NAME));
+            for (int i = 1; i < writes.size(); i++) {
+                assertEquals(i, replayed.read_committed(writes.get(i).get(), TYPE_NAME).unpackInt());
+            }
+        } finally {
+            replayed.stop();
+        }
+    }
+
+    @Test
+    public void testRollOver() throws Exception {
+        final ObjectStoreEnvironmentBean bean = createEnvironmentBean();
+        final GroupCommitObjectStore store = new GroupCommitObjectStore(bean, 4096);
+        store.start();
+        final Uid kept = new Uid();
+        try {
+            assertTrue(store.write_uncommitted(kept, TYPE_NAME, state(-1)));
+            assertTrue(store.commit_state(kept, TYPE_NAME));
+            assertTrue(store.hide_state(kept, TYPE_NAME));
+            for (int i = 0; i < 200; i++) {
+                final Uid uid = new Uid();
+                assertTrue(store.write_committed(uid, TYPE_NAME, state(i)));
+                assertTrue(store.remove_committed(uid, TYPE_NAME));
+            }
+        } finally {
+            store.stop();
+        }
+
+        final GroupCommitObjectStore replayed = new GroupCommitObjectStore(bean, 4096);
+        replayed.start();
+        try {
+            assertEquals(1, replayed.getLiveRecordCount());
+            assertEquals(StateStatus.OS_COMMITTED_HIDDEN, replayed.currentState(kept, TYPE_NAME));
+            assertNull(replayed.read_uncommitted(kept, TYPE_NAME));
+            final InputObjectState committed = replayed.read_committed(kept, TYPE_NAME);
+            assertEquals(-1, committed.unpackInt());
+        } finally {
+            replayed.stop();
+        }
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        final GroupCommitObjectStore store = new GroupCommitObjectStore(createEnvironmentBean());
+        final Uid before = new Uid();
+        final Uid after = new Uid();
+        store.start();
+        try {
+            assertTrue(store.write_committed(before, TYPE_NAME, state(1)));
+            store.stop();
+            store.start();
+            assertTrue(store.write_committed(after, TYPE_NAME, state(2)));
+            assertEquals(1, store.read_committed(before, TYPE_NAME).unpackInt());
+            assertTrue(store.remove_committed(before, TYPE_NAME));
+        } finally {
+            store.stop();
+        }
+    }
+
+    @Test
+    public void testStopWithConcurrentWrites() throws Exception {
+        final GroupCommitObjectStore store = new GroupCommitObjectStore(createEnvironmentBean());
+        store.start();
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<Integer>> writers = new ArrayList<>();
+        try {
+            for (int i = 0; i < 8; i++) {
+                writers.add(executor.submit(() -> {
+                    int written = 0;
+                    try {
+                        while (true) {
+                            store.write_committed(new Uid(), TYPE_NAME, state(0));
+                            written++;
+                        }
+                    } catch (ObjectStoreException e) {
+                        return written;
+                    }
+                }));
+            }
+            Thread.sleep(200);
+            store.stop();
+            for (Future<Integer> writer : writers) {
+                writer.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static ObjectStoreEnvironmentBean createEnvironmentBean() throws Exception {
+        final ObjectStoreEnvironmentBean bean = new ObjectStoreEnvironmentBean();
+        bean.setObjectStoreDir(Files.createTempDirectory("group-commit").toString());
+        return bean;
+    }
+
+    static OutputObjectState state(int value) throws Exception {
+        final OutputObjectState state = new OutputObjectState();
+        state.packInt(value);
+        return state;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import javax.transaction.TransactionManager;
+
+import com.arjuna.ats.internal.jta.transaction.arjunacore.TransactionImple;
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.narayana.tomcat.jta.internal.LazyEnlistmentDataSource;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestLazyEnlistmentDataSource extends AbstractUnitCase {
+
+    @Test
+    public void testUnusedHandleIsNotEnlisted() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final LazyEnlistmentDataSource ds = createDataSource("lazyUnused");
+        try {
+            tm.begin();
+            try {
+                final Connection connection = ds.getConnection();
+                connection.setReadOnly(true);
+                assertFalse(connection.isClosed());
+                connection.close();
+                assertTrue(connection.isClosed());
+                assertTrue(((TransactionImple) tm.getTransaction()).getResources().isEmpty());
+                assertEquals(0, ds.getDataSource().getNumActive());
+            } finally {
+                tm.commit();
+            }
+            // the table was created through one more handle
+            assertEquals(2, ds.getHandleCount());
+            assertEquals(1, ds.getAcquiredCount());
+            assertEquals(1, ds.getAvoidedCount());
+        } finally {
+            ds.close();
+        }
+    }
+
+    @Test
+    public void testGettersDoNotEnlist() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final LazyEnlistmentDataSource ds = createDataSource("lazyGetters");
+        try {
+            tm.begin();
+            try (Connection connection = ds.getConnection()) {
+                connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+                assertFalse(connection.getAutoCommit());
+                assertFalse(connection.isReadOnly());
+                assertEquals(Connection.TRANSACTION_SERIALIZABLE, connection.getTransactionIsolation());
+                assertNull(connection.getWarnings());
+                connection.clearWarnings();
+                final DatabaseMetaData metaData = connection.getMetaData();
+                assertSame(connection, metaData.getConnection());
+                assertTrue(((TransactionImple) tm.getTransaction()).getResources().isEmpty());
+                assertEquals(0, ds.getDataSource().getNumActive());
+
+                assertEquals("H2", metaData.getDatabaseProductName());
+                assertEquals(1, ((TransactionImple) tm.getTransaction()).getResources().size());
+            } finally {
+                tm.commit();
+            }
+        } finally {
+            ds.close();
+        }
+    }
+
+    @Test
+    public void testCommitAndRollbackOfUnusedHandle() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final LazyEnlistmentDataSource ds = createDataSource("lazyCommit");
+        try {
+            final long acquired = ds.getAcquiredCount();
+            try (Connection connection = ds.getConnection()) {
+                connection.setAutoCommit(false);
+                connection.commit();
+                connection.rollback();
+            }
+            tm.begin();
+            try (Connection connection = ds.getConnection()) {
+                try {
+                    connection.commit();
+                    fail("A connection enlisted in a transaction cannot be committed");
+                } catch (SQLException expected) {
+                    assertEquals("Commit can not be set while enrolled in a transaction", expected.getMessage());
+                }
+                assertTrue(((TransactionImple) tm.getTransaction()).getResources().isEmpty());
+            } finally {
+                tm.commit();
+            }
+            assertEquals(acquired, ds.getAcquiredCount());
+            assertEquals(0, ds.getDataSource().getNumActive());
+        } finally {
+            ds.close();
+        }
+    }
+
+    @Test
+    public void testHandleIsEnlistedOnFirstStatement() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final LazyEnlistmentDataSource ds = createDataSource("lazyUsed");
+        try {
+            tm.begin();
+            try (Connection connection = ds.getConnection()) {
+                connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+                assertTrue(((TransactionImple) tm.getTransaction()).getResources().isEmpty());
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("INSERT INTO test VALUES (1)");
+                }
+                assertEquals(Connection.TRANSACTION_SERIALIZABLE, connection.getTransactionIsolation());
+                assertEquals(1, ((TransactionImple) tm.getTransaction()).getResources().size());
+            }
+            tm.commit();
+
+            tm.begin();
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("INSERT INTO test VALUES (2)");
+            }
+            tm.rollback();
+
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement();
+                    ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM test")) {
+                assertTrue(resultSet.next());
+                assertEquals(1, resultSet.getInt(1));
+            }
+            assertEquals(0, ds.getAvoidedCount());
+            assertEquals(ds.getHandleCount(), ds.getAcquiredCount());
+        } finally {
+            ds.close();
+        }
+    }
+
+    private static LazyEnlistmentDataSource createDataSource(String database) throws Exception {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1");
+        h2.setUser("sa");
+        h2.setPassword("");
+        final Properties properties = new Properties();
+        properties.setProperty("lazyEnlistment", "true");
+        properties.setProperty("uniqueName", database);
+        final LazyEnlistmentDataSource ds = (LazyEnlistmentDataSource) PoolingDataSourceFactory.createPoolingDataSource(
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), h2,
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties);
+        try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE test (id INT)");
+        }
+        return ds;
+    }
+}
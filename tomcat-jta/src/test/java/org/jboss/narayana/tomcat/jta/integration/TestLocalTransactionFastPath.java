@@ -0,0 +1,169 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import javax.sql.DataSource;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.narayana.tomcat.jta.internal.LocalTransactionManagedDataSource;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestLocalTransactionFastPath extends AbstractUnitCase {
+
+    @Test
+    public void testSingleResource() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final LocalTransactionManagedDataSource ds = createDataSource("fastPathSingle");
+        try {
+            tm.begin();
+            execute(ds, "INSERT INTO test VALUES (1)");
+            tm.commit();
+
+            tm.begin();
+            execute(ds, "INSERT INTO test VALUES (2)");
+            tm.rollback();
+
+            assertEquals(1, count(ds));
+            assertEquals(2, ds.getLocalTransactionCount());
+            assertEquals(0, ds.getXaTransactionCount());
+        } finally {
+            ds.close();
+        }
+    }
+
+    @Test
+    public void testSecondResourceIsRefused() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final LocalTransactionManagedDataSource first = createDataSource("fastPathRefusedFirst");
+        final LocalTransactionManagedDataSource second = createDataSource("fastPathRefusedSecond");
+        try {
+            tm.begin();
+            execute(first, "INSERT INTO test VALUES (1)");
+            try {
+                execute(second, "INSERT INTO test VALUES (1)");
+                fail("A second resource must not join the local transaction");
+            } catch (SQLException expected) {
+                assertEquals(Status.STATUS_MARKED_ROLLBACK, tm.getStatus());
+            }
+            try {
+                tm.commit();
+                fail("The transaction must be rolled back");
+            } catch (RollbackException expected) {
+            }
+
+            assertEquals(0, count(first));
+            assertEquals(0, count(second));
+            assertEquals(0, second.getXaTransactionCount());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testOtherResourceRollsBack() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final LocalTransactionManagedDataSource first = createDataSource("fastPathOtherFirst");
+        final DataSource other = createDataSource("fastPathOtherXA", new Properties());
+        try {
+            tm.begin();
+            execute(first, "INSERT INTO test VALUES (1)");
+            execute(other, "INSERT INTO test VALUES (1)");
+            try {
+                tm.commit();
+                fail("The transaction must be rolled back");
+            } catch (RollbackException expected) {
+            }
+
+            assertEquals(0, count(first));
+            assertEquals(0, count(other));
+        } finally {
+            first.close();
+            ((AutoCloseable) other).close();
+        }
+    }
+
+    @Test
+    public void testSecondResourceWithLastResource() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final LocalTransactionManagedDataSource first = createLastResourceDataSource("fastPathLastResourceFirst");
+        final LocalTransactionManagedDataSource second = createLastResourceDataSource("fastPathLastResourceSecond");
+        try {
+            tm.begin();
+            execute(first, "INSERT INTO test VALUES (1)");
+            execute(second, "INSERT INTO test VALUES (1)");
+            tm.commit();
+
+            tm.begin();
+            execute(first, "INSERT INTO test VALUES (2)");
+            execute(second, "INSERT INTO test VALUES (2)");
+            tm.rollback();
+
+            assertEquals(1, count(first));
+            assertEquals(1, count(second));
+            assertEquals(2, first.getLocalTransactionCount());
+            assertEquals(0, first.getXaTransactionCount());
+            assertEquals(0, second.getLocalTransactionCount());
+            assertEquals(2, second.getXaTransactionCount());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    static LocalTransactionManagedDataSource createDataSource(String database) throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("localTransactionFastPath", "true");
+        return (LocalTransactionManagedDataSource) createDataSource(database, properties);
+    }
+
+    private static LocalTransactionManagedDataSource createLastResourceDataSource(String database) throws Exception {
+        final Properties properties = new Properties();
+        properties.setProperty("localTransactionFastPath", "true");
+        properties.setProperty("localTransactionLastResource", "true");
+        return (LocalTransactionManagedDataSource) createDataSource(database, properties);
+    }
+
+    private static DataSource createDataSource(String database, Properties properties) throws Exception {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1");
+        h2.setUser("sa");
+        h2.setPassword("");
+        properties.setProperty("maxTotal", "4");
+        final DataSource ds = PoolingDataSourceFactory.createPoolingDataSource(
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), h2,
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties);
+        execute(ds, "CREATE TABLE IF NOT EXISTS test (id INT)");
+        return ds;
+    }
+
+    static void execute(DataSource ds, String sql) throws Exception {
+        try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private static int count(DataSource ds) throws Exception {
+        try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM test")) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+}
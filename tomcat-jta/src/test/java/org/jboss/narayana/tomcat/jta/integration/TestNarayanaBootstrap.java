@@ -0,0 +1,251 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+
+import com.arjuna.ats.arjuna.common.arjPropertyManager;
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.recoveryPropertyManager;
+import com.arjuna.ats.arjuna.coordinator.TxControl;
+import com.arjuna.ats.arjuna.recovery.RecoveryModule;
+import com.arjuna.ats.internal.arjuna.objectstore.ShadowNoFileLockStore;
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import com.arjuna.common.internal.util.propertyservice.BeanPopulator;
+import org.jboss.narayana.tomcat.jta.NarayanaJtaServletContextListener;
+import org.jboss.narayana.tomcat.jta.RecoveryStatus;
+import org.jboss.narayana.tomcat.jta.integration.utils.TrackingXADataSource;
+import org.jboss.narayana.tomcat.jta.internal.BootstrapConfiguration;
+import org.jboss.narayana.tomcat.jta.internal.DataSourceRecoveryHelper;
+import org.jboss.narayana.tomcat.jta.internal.NarayanaBootstrap;
+import org.jboss.narayana.tomcat.jta.internal.PidProcessId;
+import org.jboss.narayana.tomcat.jta.internal.RecoveryHelperRegistry;
+import org.jboss.narayana.tomcat.jta.internal.StartupProfile;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestNarayanaBootstrap {
+
+    @Test
+    public void testSharedBetweenContexts() {
+        final NarayanaJtaServletContextListener first = new NarayanaJtaServletContextListener();
+        final NarayanaJtaServletContextListener second = new NarayanaJtaServletContextListener();
+
+        first.contextInitialized(null);
+        second.contextInitialized(null);
+        second.contextInitialized(null);
+        assertEquals(2, NarayanaBootstrap.getOwnerCount());
+
+        first.contextDestroyed(null);
+        assertEquals(1, NarayanaBootstrap.getOwnerCount());
+        assertTrue(TxControl.isEnabled());
+        assertTrue(RecoveryStatus.isRecoveryReady());
+
+        second.contextDestroyed(null);
+        assertEquals(0, NarayanaBootstrap.getOwnerCount());
+        assertFalse(TxControl.isEnabled());
+        assertFalse(RecoveryStatus.isRecoveryReady());
+    }
+
+    @Test
+    public void testShutdownDrain() throws Exception {
+        final Object owner = new Object();
+        NarayanaBootstrap.acquire(owner, new BootstrapConfiguration());
+
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final CountDownLatch begun = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Integer> outcome = executor.submit(() -> {
+                tm.begin();
+                begun.countDown();
+                Thread.sleep(500);
+                tm.commit();
+                return tm.getStatus();
+            });
+            assertTrue(begun.await(10, TimeUnit.SECONDS));
+
+            final Future<?> release = executor.submit(() -> NarayanaBootstrap.release(owner, 10000));
+            final long start = System.nanoTime();
+            Thread.sleep(100);
+            tm.begin();
+            assertEquals("New transactions must be refused while draining", Status.STATUS_NO_TRANSACTION, tm.getStatus());
+
+            assertEquals(Status.STATUS_NO_TRANSACTION, (int) outcome.get(10, TimeUnit.SECONDS));
+            release.get(10, TimeUnit.SECONDS);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 300);
+            assertFalse(TxControl.isEnabled());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testShutdownDrainOfAnEarlierOwner() throws Exception {
+        final Object server = new Object();
+        final Object context = new Object();
+        NarayanaBootstrap.acquire(server, new BootstrapConfiguration());
+        NarayanaBootstrap.acquire(context, new BootstrapConfiguration());
+
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final CountDownLatch begun = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Integer> outcome = executor.submit(() -> {
+                tm.begin();
+                begun.countDown();
+                Thread.sleep(500);
+                tm.commit();
+                return tm.getStatus();
+            });
+            assertTrue(begun.await(10, TimeUnit.SECONDS));
+
+            assertFalse(NarayanaBootstrap.release(server, 10000));
+            assertTrue(TxControl.isEnabled());
+            assertTrue(NarayanaBootstrap.release(context, 0));
+            assertTrue("The drain timeout of the first owner must apply", outcome.isDone());
+            assertEquals(Status.STATUS_NO_TRANSACTION, (int) outcome.get());
+            assertFalse(TxControl.isEnabled());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStartupProfile() throws Exception {
+        final Object owner = new Object();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(StartupProfile.OBJECT_NAME);
+
+        NarayanaBootstrap.acquire(owner, new BootstrapConfiguration());
+        try {
+            assertTrue(server.isRegistered(name));
+            final TabularData steps = (TabularData) server.getAttribute(name, "StepDurationsMillis");
+            assertTrue(steps.containsKey(new Object[] {"loadProperties"}));
+            assertTrue(steps.containsKey(new Object[] {"recoveryManager"}));
+            assertTrue(steps.containsKey(new Object[] {"transactionReaper"}));
+            assertTrue((Boolean) server.getAttribute(name, "RecoveryReady"));
+        } finally {
+            NarayanaBootstrap.release(owner);
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testFailedBackgroundRecoveryStart() throws Exception {
+        final List<String> modules = recoveryPropertyManager.getRecoveryEnvironmentBean().getRecoveryModuleClassNames();
+        final List<String> failing = new ArrayList<>(modules);
+        failing.add(FailingRecoveryModule.class.getName());
+        recoveryPropertyManager.getRecoveryEnvironmentBean().setRecoveryModuleClassNames(failing);
+        final Object owner = new Object();
+        final BootstrapConfiguration configuration = new BootstrapConfiguration();
+        configuration.setAsyncRecoveryStart(true);
+        NarayanaBootstrap.acquire(owner, configuration);
+        try {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!RecoveryStatus.isRecoveryFailed() && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            assertTrue(RecoveryStatus.isRecoveryFailed());
+            assertFalse(RecoveryStatus.isRecoveryReady());
+            try {
+                RecoveryHelperRegistry.register(new DataSourceRecoveryHelper("failedRecoveryStart",
+                        new TrackingXADataSource("failedRecoveryStart", 0, 0), null, null, 1000, 1000));
+                fail("A recovery helper must be refused once the recovery manager failed to start");
+            } catch (IllegalStateException expected) {
+                assertEquals("XARecoveryModule is not registered with recovery manager", expected.getMessage());
+            }
+        } finally {
+            NarayanaBootstrap.release(owner);
+            recoveryPropertyManager.getRecoveryEnvironmentBean().setRecoveryModuleClassNames(modules);
+        }
+        assertFalse(RecoveryStatus.isRecoveryFailed());
+    }
+
+    @Test
+    public void testPidProcessIdentity() {
+        final Object owner = new Object();
+        final BootstrapConfiguration configuration = new BootstrapConfiguration();
+        configuration.setProcessIdentity(BootstrapConfiguration.ProcessIdentity.fromString("pid"));
+        configuration.setRecoveryListener(false);
+
+        NarayanaBootstrap.acquire(owner, configuration);
+        try {
+            assertTrue(arjPropertyManager.getCoreEnvironmentBean().getProcessImplementation() instanceof PidProcessId);
+            assertFalse(recoveryPropertyManager.getRecoveryEnvironmentBean().isRecoveryListener());
+
+            final String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+            final int pid = Integer.parseInt(runtimeName.substring(0, runtimeName.indexOf('@')));
+            assertEquals(pid & ((1 << 22) - 1), new PidProcessId().getpid() & ((1 << 22) - 1));
+        } finally {
+            NarayanaBootstrap.release(owner);
+        }
+    }
+
+    @Test
+    public void testFileObjectStore() {
+        final Object owner = new Object();
+        final BootstrapConfiguration configuration = new BootstrapConfiguration();
+        configuration.setObjectStoreType(BootstrapConfiguration.ObjectStoreType.fromString("file"));
+
+        NarayanaBootstrap.acquire(owner, configuration);
+        try {
+            final ObjectStoreEnvironmentBean bean = BeanPopulator.getDefaultInstance(ObjectStoreEnvironmentBean.class);
+            assertEquals(ShadowNoFileLockStore.class.getName(), bean.getObjectStoreType());
+            assertTrue(bean.isTransactionSync());
+        } finally {
+            NarayanaBootstrap.release(owner);
+        }
+    }
+
+    @Test
+    public void testInvalidObjectStore() {
+        final Object owner = new Object();
+        final BootstrapConfiguration configuration = new BootstrapConfiguration();
+        configuration.setObjectStoreType(BootstrapConfiguration.ObjectStoreType.JDBC);
+
+        try {
+            NarayanaBootstrap.acquire(owner, configuration);
+            fail("The JDBC object store without JDBC access must be refused");
+        } catch (IllegalStateException e) {
+            assertEquals(0, NarayanaBootstrap.getOwnerCount());
+        }
+    }
+
+    /**
+     * Recovery module which cannot be created, so that the recovery manager fails to start.
+     */
+    public static class FailingRecoveryModule implements RecoveryModule {
+
+        public FailingRecoveryModule() {
+            throw new IllegalStateException("Failing on purpose");
+        }
+
+        @Override
+        public void periodicWorkFirstPass() {
+        }
+
+        @Override
+        public void periodicWorkSecondPass() {
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.XADataSource;
+
+import com.arjuna.ats.arjuna.common.recoveryPropertyManager;
+import com.arjuna.ats.arjuna.recovery.RecoveryManager;
+import com.arjuna.ats.internal.jta.recovery.arjunacore.XARecoveryModule;
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.jboss.narayana.tomcat.jta.integration.utils.TrackingXADataSource;
+import org.jboss.narayana.tomcat.jta.internal.BootstrapConfiguration;
+import org.jboss.narayana.tomcat.jta.internal.NarayanaBootstrap;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.jboss.narayana.tomcat.jta.internal.RecoveryScanModule;
+import org.jboss.narayana.tomcat.jta.internal.RecoveryStatistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestParallelRecovery {
+
+    private static final long RECOVER_MILLIS = 1000;
+
+    private static final long SCAN_TIMEOUT_MILLIS = 2 * RECOVER_MILLIS;
+
+    private final Object owner = new Object();
+
+    private final List<AutoCloseable> dataSources = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        final BootstrapConfiguration configuration = new BootstrapConfiguration();
+        configuration.setParallelRecoveryThreads(4);
+        configuration.setParallelRecoveryTimeoutMillis(SCAN_TIMEOUT_MILLIS);
+        NarayanaBootstrap.acquire(owner, configuration);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (AutoCloseable dataSource : dataSources) {
+            dataSource.close();
+        }
+        NarayanaBootstrap.release(owner);
+    }
+
+    @Test
+    public void testScanModuleRunsBeforeXARecoveryModule() {
+        final List<String> modules = recoveryPropertyManager.getRecoveryEnvironmentBean().getRecoveryModuleClassNames();
+        assertEquals(modules.indexOf(XARecoveryModule.class.getName()) - 1,
+                modules.indexOf(RecoveryScanModule.class.getName()));
+    }
+
+    @Test
+    public void testDataSourcesAreScannedConcurrently() throws Exception {
+        final List<TrackingXADataSource> xaDataSources = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            xaDataSources.add(new TrackingXADataSource("parallelRecovery" + i, 0, RECOVER_MILLIS));
+        }
+        final TrackingXADataSource unreachable = new TrackingXADataSource("parallelRecoveryUnreachable",
+                SCAN_TIMEOUT_MILLIS * 5, 0);
+        for (int i = 0; i < xaDataSources.size(); i++) {
+            createDataSource("parallelRecovery" + i, xaDataSources.get(i));
+        }
+        createDataSource("parallelRecoveryUnreachable", unreachable);
+
+        // A scan requested while a periodic pass is running only waits for that pass
+        RecoveryManager.manager().scan();
+        RecoveryManager.manager().scan();
+
+        final RecoveryStatistics statistics = RecoveryStatistics.getInstance();
+        assertEquals(4, statistics.getLastScannedCount());
+        assertEquals(1, statistics.getLastFailedCount());
+        assertTrue(statistics.getLastScanDurationMillis() < 3 * RECOVER_MILLIS + SCAN_TIMEOUT_MILLIS);
+        assertTrue(statistics.getLastPassDurationMillis() >= statistics.getLastScanDurationMillis());
+        for (TrackingXADataSource xaDataSource : xaDataSources) {
+            assertEquals(0, xaDataSource.getOpenCount());
+        }
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue((Long) server.getAttribute(new ObjectName(RecoveryStatistics.OBJECT_NAME), "PassCount") > 0);
+    }
+
+    private void createDataSource(String name, XADataSource xaDataSource) {
+        final Properties properties = new Properties();
+        properties.setProperty("uniqueName", name);
+        properties.setProperty("recoveryConnectTimeoutMillis", Long.toString(SCAN_TIMEOUT_MILLIS * 10));
+        dataSources.add((AutoCloseable) PoolingDataSourceFactory.createPoolingDataSource(
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), xaDataSource,
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties));
+    }
+}
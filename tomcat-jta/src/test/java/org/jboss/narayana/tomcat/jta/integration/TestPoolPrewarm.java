@@ -0,0 +1,164 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.narayana.tomcat.jta.internal.DeadlineManagedDataSource;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.jboss.narayana.tomcat.jta.internal.StartupProfile;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPoolPrewarm extends AbstractUnitCase {
+
+    private static final long CONNECT_MILLIS = 200;
+
+    @Test
+    public void testConnectionsAreOpenedInParallel() throws Exception {
+        final SlowXADataSource xaDataSource = new SlowXADataSource("prewarmParallel");
+        final DeadlineManagedDataSource ds = createDataSource(xaDataSource, "prewarmParallel", 8, "4", null, false);
+        try {
+            assertTrue(StartupProfile.getInstance().getStepDurationsMillis()
+                    .get("dataSource[prewarmParallel].initialFill") < 8 * CONNECT_MILLIS);
+            assertEquals(8, ds.getNumIdle());
+            assertEquals(4, xaDataSource.maxConnecting.get());
+            assertTrue(ds.getPrewarm().isReady());
+            assertTrue(ds.getPrewarm().isComplete());
+        } finally {
+            ds.close();
+        }
+    }
+
+    @Test
+    public void testAsyncReadiness() throws Exception {
+        final DeadlineManagedDataSource ds = createDataSource(new SlowXADataSource("prewarmAsync"), "prewarmAsync", 4,
+                "2", null, true);
+        final ObjectName objectName = new ObjectName("org.jboss.narayana.tomcat:type=PoolPrewarm,name="
+                + ObjectName.quote("prewarmAsync"));
+        try {
+            assertFalse(ds.getPrewarm().isComplete());
+            assertFalse((Boolean) ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "Ready"));
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!ds.getPrewarm().isComplete() && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            assertTrue((Boolean) ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "Ready"));
+            assertEquals(4, ds.getNumIdle());
+        } finally {
+            ds.close();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+    }
+
+    @Test
+    public void testNoConnectionIsOpenedPastTheDeadline() throws Exception {
+        final DeadlineManagedDataSource ds = createDataSource(new SlowXADataSource("prewarmDeadline"), "prewarmDeadline",
+                10, "2", Long.toString(CONNECT_MILLIS * 2 + CONNECT_MILLIS / 2), false);
+        try {
+            ds.getPrewarm().await(10, TimeUnit.SECONDS);
+            assertFalse(ds.getPrewarm().isReady());
+            assertTrue(ds.getPrewarm().getOpenedCount() < 10);
+            assertEquals(ds.getPrewarm().getOpenedCount(), ds.getNumIdle());
+        } finally {
+            ds.close();
+        }
+    }
+
+    private static DeadlineManagedDataSource createDataSource(XADataSource xaDataSource, String name, int initialSize,
+            String concurrency, String timeoutMillis, boolean async) {
+        final Properties properties = new Properties();
+        properties.setProperty("uniqueName", name);
+        properties.setProperty("maxTotal", "16");
+        properties.setProperty("maxIdle", "16");
+        properties.setProperty("initialSize", Integer.toString(initialSize));
+        properties.setProperty("prewarmConcurrency", concurrency);
+        if (timeoutMillis != null) {
+            properties.setProperty("prewarmTimeoutMillis", timeoutMillis);
+        }
+        properties.setProperty("prewarmAsync", Boolean.toString(async));
+        return (DeadlineManagedDataSource) PoolingDataSourceFactory.createPoolingDataSource(
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), xaDataSource,
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties);
+    }
+
+    /**
+     * H2 data source taking a while to open each connection, as a remote database does.
+     */
+    private static final class SlowXADataSource implements XADataSource {
+
+        private final JdbcDataSource h2 = new JdbcDataSource();
+
+        private final AtomicInteger connecting = new AtomicInteger();
+
+        private final AtomicInteger maxConnecting = new AtomicInteger();
+
+        SlowXADataSource(String database) {
+            h2.setURL("jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1");
+            h2.setUser("sa");
+            h2.setPassword("");
+        }
+
+        @Override
+        public XAConnection getXAConnection() throws SQLException {
+            maxConnecting.accumulateAndGet(connecting.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(CONNECT_MILLIS);
+                return h2.getXAConnection();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(e);
+            } finally {
+                connecting.decrementAndGet();
+            }
+        }
+
+        @Override
+        public XAConnection getXAConnection(String user, String password) throws SQLException {
+            return getXAConnection();
+        }
+
+        @Override
+        public PrintWriter getLogWriter() throws SQLException {
+            return h2.getLogWriter();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) throws SQLException {
+            h2.setLogWriter(out);
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) throws SQLException {
+            h2.setLoginTimeout(seconds);
+        }
+
+        @Override
+        public int getLoginTimeout() throws SQLException {
+            return h2.getLoginTimeout();
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            return h2.getParentLogger();
+        }
+    }
+}
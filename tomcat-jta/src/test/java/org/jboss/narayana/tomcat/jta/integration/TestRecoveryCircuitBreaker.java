@@ -0,0 +1,95 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.transaction.xa.XAResource;
+
+import org.jboss.narayana.tomcat.jta.integration.utils.TrackingXADataSource;
+import org.jboss.narayana.tomcat.jta.internal.DataSourceRecoveryHelper;
+import org.jboss.narayana.tomcat.jta.internal.RecoveryCircuitBreaker;
+import org.jboss.narayana.tomcat.jta.internal.RecoveryPassModule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestRecoveryCircuitBreaker extends AbstractUnitCase {
+
+    private static final long BACKOFF_MILLIS = 200;
+
+    @Test
+    public void testUnreachableDatabaseIsSkippedUntilItIsBack() throws Exception {
+        final TrackingXADataSource xaDataSource = new TrackingXADataSource("breakerSkip", 0, 0);
+        final RecoveryCircuitBreaker breaker = new RecoveryCircuitBreaker("breakerSkip", 2, BACKOFF_MILLIS,
+                BACKOFF_MILLIS * 10, 2000);
+        final DataSourceRecoveryHelper helper = new DataSourceRecoveryHelper("breakerSkip", xaDataSource, null, null,
+                1000, 1000, breaker);
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName objectName = new ObjectName("org.jboss.narayana.tomcat:type=RecoveryCircuitBreaker,name="
+                + ObjectName.quote("breakerSkip"));
+        breaker.register();
+        try {
+            xaDataSource.setAvailable(false);
+            assertEquals(0, recoveryPass(helper));
+            assertEquals("CLOSED", breaker.getState());
+            assertEquals(0, recoveryPass(helper));
+            assertEquals("OPEN", server.getAttribute(objectName, "State"));
+            assertTrue(breaker.getRemainingBackoffMillis() > 0);
+
+            assertEquals(0, recoveryPass(helper));
+            assertEquals(1L, server.getAttribute(objectName, "SkipCount"));
+            assertEquals(2L, breaker.getFailureCount());
+
+            Thread.sleep(BACKOFF_MILLIS + BACKOFF_MILLIS / 2);
+            xaDataSource.setAvailable(true);
+            assertEquals(1, recoveryPass(helper));
+            assertEquals("CLOSED", breaker.getState());
+            assertEquals(0, breaker.getConsecutiveFailures());
+            assertFalse(helper.isConnected());
+        } finally {
+            breaker.unregister();
+        }
+        assertFalse(server.isRegistered(objectName));
+    }
+
+    @Test
+    public void testBackoffDoublesAfterAFailedProbe() throws Exception {
+        final TrackingXADataSource xaDataSource = new TrackingXADataSource("breakerBackoff", 0, 0);
+        final RecoveryCircuitBreaker breaker = new RecoveryCircuitBreaker("breakerBackoff", 1, BACKOFF_MILLIS,
+                BACKOFF_MILLIS * 10, 2000);
+        final DataSourceRecoveryHelper helper = new DataSourceRecoveryHelper("breakerBackoff", xaDataSource, null, null,
+                1000, 1000, breaker);
+        xaDataSource.setAvailable(false);
+        assertEquals(0, recoveryPass(helper));
+        assertEquals("OPEN", breaker.getState());
+        assertTrue(breaker.getRemainingBackoffMillis() <= BACKOFF_MILLIS);
+
+        Thread.sleep(BACKOFF_MILLIS + BACKOFF_MILLIS / 2);
+        assertEquals(0, recoveryPass(helper));
+        assertEquals("OPEN", breaker.getState());
+        assertTrue(breaker.getRemainingBackoffMillis() > BACKOFF_MILLIS);
+        assertEquals(0, breaker.getSkipCount());
+    }
+
+    /**
+     * Run the part of a recovery pass the {@code XARecoveryModule} runs with the helper, then end the pass.
+     *
+     * @return number of resources handed over by the helper
+     */
+    private static int recoveryPass(DataSourceRecoveryHelper helper) throws Exception {
+        final XAResource[] resources = helper.getXAResources();
+        for (XAResource resource : resources) {
+            resource.recover(XAResource.TMSTARTRSCAN);
+            resource.recover(XAResource.TMENDRSCAN);
+        }
+        RecoveryPassModule.endPass();
+        return resources.length;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.xa.XAException;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.common.recoveryPropertyManager;
+import com.arjuna.ats.arjuna.recovery.RecoveryManager;
+import com.arjuna.ats.internal.jta.recovery.arjunacore.RecoveryXids;
+import com.arjuna.ats.jta.xa.XidImple;
+import org.jboss.narayana.tomcat.jta.integration.utils.TrackingXADataSource;
+import org.jboss.narayana.tomcat.jta.internal.DataSourceRecoveryHelper;
+import org.jboss.narayana.tomcat.jta.internal.RecoveryHelperRegistry;
+import org.jboss.narayana.tomcat.jta.internal.RecoveryPassModule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestRecoveryConnections extends AbstractUnitCase {
+
+    @Test
+    public void testConnectionIsOnlyHeldDuringAPass() throws Exception {
+        final TrackingXADataSource xaDataSource = new TrackingXADataSource("recoveryPass", 0, 0);
+        final DataSourceRecoveryHelper helper = new DataSourceRecoveryHelper("recoveryPass", xaDataSource, null, null,
+                1000, 1000);
+        XAResource previous = null;
+        for (int pass = 0; pass < 2; pass++) {
+            final XAResource[] resources = helper.getXAResources();
+            assertEquals(1, resources.length);
+            if (previous != null) {
+                assertSame(previous, resources[0]);
+                assertTrue(resources[0].isSameRM(previous));
+            }
+            previous = resources[0];
+            assertEquals(0, resources[0].recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN).length);
+            assertEquals(1, helper.getXAResources().length);
+            assertEquals(1, xaDataSource.getOpenCount());
+            RecoveryPassModule.endPass();
+            assertFalse(helper.isConnected());
+            assertEquals(0, xaDataSource.getOpenCount());
+        }
+        assertEquals(2, xaDataSource.getOpenedCount());
+    }
+
+    @Test
+    public void testConnectTimeout() throws Exception {
+        final TrackingXADataSource xaDataSource = new TrackingXADataSource("recoveryConnectTimeout", 500, 0);
+        final DataSourceRecoveryHelper helper = new DataSourceRecoveryHelper("recoveryConnectTimeout", xaDataSource,
+                null, null, 100, 1000);
+        final long start = System.nanoTime();
+        assertEquals(0, helper.getXAResources().length);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(1, helper.getCircuitBreaker().getFailureCount());
+        assertFalse(helper.isConnected());
+        RecoveryPassModule.endPass();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (xaDataSource.getOpenedCount() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(100);
+        assertEquals(1, xaDataSource.getOpenedCount());
+        assertEquals(0, xaDataSource.getOpenCount());
+    }
+
+    @Test
+    public void testRecoverTimeout() throws Exception {
+        final TrackingXADataSource xaDataSource = new TrackingXADataSource("recoveryRecoverTimeout", 0, 500);
+        final DataSourceRecoveryHelper helper = new DataSourceRecoveryHelper("recoveryRecoverTimeout", xaDataSource,
+                null, null, 1000, 100);
+        final XAResource resource = helper.getXAResources()[0];
+        try {
+            resource.recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN);
+            fail("Scanning the resource should have timed out");
+        } catch (XAException expected) {
+            assertEquals(XAException.XAER_RMFAIL, expected.errorCode);
+        }
+        assertFalse(helper.isConnected());
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (xaDataSource.getOpenCount() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, xaDataSource.getOpenCount());
+    }
+
+    @Test
+    public void testOrphanIsRolledBackOnceSeenForTheSafetyInterval() throws Exception {
+        final InDoubtXADataSource xaDataSource = new InDoubtXADataSource();
+        final Xid orphan = new XidImple(new Uid());
+        xaDataSource.inDoubt.add(orphan);
+        final DataSourceRecoveryHelper helper = new DataSourceRecoveryHelper("recoveryOrphan", xaDataSource, null,
+                null, 1000, 1000);
+        final Field safetyInterval = RecoveryXids.class.getDeclaredField("safetyIntervalMillis");
+        safetyInterval.setAccessible(true);
+        final int defaultSafetyInterval = safetyInterval.getInt(null);
+        safetyInterval.setInt(null, 200);
+        RecoveryHelperRegistry.register(helper);
+        try {
+            RecoveryManager.manager().scan();
+            assertTrue(xaDataSource.rolledBack.isEmpty());
+            Thread.sleep(400);
+            RecoveryManager.manager().scan();
+            assertEquals(1, xaDataSource.rolledBack.size());
+            assertTrue(xaDataSource.inDoubt.isEmpty());
+            assertFalse(helper.isConnected());
+        } finally {
+            RecoveryHelperRegistry.deregister(helper);
+            safetyInterval.setInt(null, defaultSafetyInterval);
+        }
+    }
+
+    @Test
+    public void testRecoveryPassModuleRunsLast() {
+        final List<String> modules = recoveryPropertyManager.getRecoveryEnvironmentBean()
+                .getRecoveryModuleClassNames();
+        assertEquals(RecoveryPassModule.class.getName(), modules.get(modules.size() - 1));
+    }
+
+    /**
+     * Data source of a database holding in-doubt branches. Its resources are the same resource manager as themselves only,
+     * as with most drivers, and fail once their connection is closed.
+     */
+    private static final class InDoubtXADataSource implements XADataSource {
+
+        final List<Xid> inDoubt = new CopyOnWriteArrayList<>();
+
+        final List<Xid> rolledBack = new CopyOnWriteArrayList<>();
+
+        @Override
+        public XAConnection getXAConnection() {
+            final InDoubtXAResource resource = new InDoubtXAResource();
+            return (XAConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {XAConnection.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "getXAResource":
+                                return resource;
+                            case "close":
+                                resource.closed = true;
+                                return null;
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        @Override
+        public XAConnection getXAConnection(String user, String password) {
+            return getXAConnection();
+        }
+
+        @Override
+        public PrintWriter getLogWriter() {
+            return null;
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) {
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) {
+        }
+
+        @Override
+        public int getLoginTimeout() {
+            return 0;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        private final class InDoubtXAResource implements XAResource {
+
+            volatile boolean closed;
+
+            @Override
+            public Xid[] recover(int flag) throws XAException {
+                checkOpen();
+                return (flag & TMSTARTRSCAN) != 0 ? inDoubt.toArray(new Xid[0]) : new Xid[0];
+            }
+
+            @Override
+            public void rollback(Xid xid) throws XAException {
+                checkOpen();
+                for (Xid branch : inDoubt) {
+                    if (Arrays.equals(branch.getGlobalTransactionId(), xid.getGlobalTransactionId())
+                            && Arrays.equals(branch.getBranchQualifier(), xid.getBranchQualifier())) {
+                        inDoubt.remove(branch);
+                        rolledBack.add(branch);
+                        return;
+                    }
+                }
+                throw new XAException(XAException.XAER_NOTA);
+            }
+
+            @Override
+            public boolean isSameRM(XAResource xaResource) throws XAException {
+                checkOpen();
+                return xaResource == this;
+            }
+
+            @Override
+            public void commit(Xid xid, boolean onePhase) throws XAException {
+                throw new XAException(XAException.XAER_NOTA);
+            }
+
+            @Override
+            public void forget(Xid xid) throws XAException {
+                throw new XAException(XAException.XAER_NOTA);
+            }
+
+            @Override
+            public void start(Xid xid, int flags) throws XAException {
+                throw new XAException(XAException.XAER_PROTO);
+            }
+
+            @Override
+            public void end(Xid xid, int flags) throws XAException {
+                throw new XAException(XAException.XAER_PROTO);
+            }
+
+            @Override
+            public int prepare(Xid xid) throws XAException {
+                throw new XAException(XAException.XAER_PROTO);
+            }
+
+            @Override
+            public int getTransactionTimeout() {
+                return 0;
+            }
+
+            @Override
+            public boolean setTransactionTimeout(int seconds) {
+                return false;
+            }
+
+            private void checkOpen() throws XAException {
+                if (closed) {
+                    throw new XAException(XAException.XAER_RMFAIL);
+                }
+            }
+        }
+    }
+}
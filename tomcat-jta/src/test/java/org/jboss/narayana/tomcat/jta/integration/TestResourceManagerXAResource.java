@@ -0,0 +1,280 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.jboss.narayana.tomcat.jta.internal.ResourceManagerXAResource;
+import org.jboss.narayana.tomcat.jta.internal.SharedDataSource;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestResourceManagerXAResource extends AbstractUnitCase {
+
+    @Test
+    public void testSameResourceManagerJoinsBranch() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final RecordingXAResource first = new RecordingXAResource();
+        final RecordingXAResource second = new RecordingXAResource();
+
+        tm.begin();
+        tm.getTransaction().enlistResource(new ResourceManagerXAResource("orders", first));
+        tm.getTransaction().enlistResource(new ResourceManagerXAResource("orders", second));
+        tm.commit();
+
+        assertEquals("[start " + XAResource.TMNOFLAGS + ", end, commit true]", first.calls.toString());
+        assertEquals("[start " + XAResource.TMJOIN + ", end]", second.calls.toString());
+    }
+
+    @Test
+    public void testOtherResourceManagerHasItsOwnBranch() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final RecordingXAResource first = new RecordingXAResource();
+        final RecordingXAResource second = new RecordingXAResource();
+
+        tm.begin();
+        tm.getTransaction().enlistResource(new ResourceManagerXAResource("orders", first));
+        tm.getTransaction().enlistResource(new ResourceManagerXAResource("billing", second));
+        tm.commit();
+
+        assertEquals("[start " + XAResource.TMNOFLAGS + ", end, prepare, commit false]", first.calls.toString());
+        assertEquals("[start " + XAResource.TMNOFLAGS + ", end, prepare, commit false]", second.calls.toString());
+    }
+
+    @Test
+    public void testDriverResultIsCached() throws Exception {
+        final RecordingXAResource driver = new RecordingXAResource();
+        final XAResource other = new RecordingXAResource();
+        final ResourceManagerXAResource resource = new ResourceManagerXAResource(null, driver);
+
+        assertFalse(resource.isSameRM(other));
+        assertFalse(resource.isSameRM(new ResourceManagerXAResource("orders", other)));
+        assertTrue(resource.isSameRM(resource));
+        assertEquals(1, driver.isSameRMCount);
+    }
+
+    @Test
+    public void testDataSourcesWithSameResourceManagerIdJoinBranch() throws Exception {
+        final RecordingXADataSource orders = new RecordingXADataSource("rmFactorySame");
+        final RecordingXADataSource invoices = new RecordingXADataSource("rmFactorySame");
+        useInOneTransaction(orders, "rmSameOrders", "orders", invoices, "rmSameInvoices", "orders");
+
+        assertEquals("[start " + XAResource.TMNOFLAGS + ", end, commit true]", orders.getResource().calls.toString());
+        assertEquals("[start " + XAResource.TMJOIN + ", end]", invoices.getResource().calls.toString());
+    }
+
+    @Test
+    public void testDataSourcesWithOtherResourceManagerIdsHaveTheirOwnBranches() throws Exception {
+        final RecordingXADataSource orders = new RecordingXADataSource("rmFactoryOther");
+        final RecordingXADataSource billing = new RecordingXADataSource("rmFactoryOther");
+        useInOneTransaction(orders, "rmOtherOrders", "orders", billing, "rmOtherBilling", "billing");
+
+        assertEquals("[start " + XAResource.TMNOFLAGS + ", end, prepare, commit false]",
+                orders.getResource().calls.toString());
+        assertEquals("[start " + XAResource.TMNOFLAGS + ", end, prepare, commit false]",
+                billing.getResource().calls.toString());
+    }
+
+    @Test
+    public void testDataSourcesWithoutResourceManagerIdAskTheDriver() throws Exception {
+        final RecordingXADataSource orders = new RecordingXADataSource("rmFactoryUnset");
+        final RecordingXADataSource billing = new RecordingXADataSource("rmFactoryUnset");
+        useInOneTransaction(orders, "rmUnsetOrders", null, billing, "rmUnsetBilling", null);
+
+        assertEquals("[start " + XAResource.TMNOFLAGS + ", end, prepare, commit false]",
+                orders.getResource().calls.toString());
+        assertEquals("[start " + XAResource.TMNOFLAGS + ", end, prepare, commit false]",
+                billing.getResource().calls.toString());
+        assertTrue(orders.getResource().isSameRMCount + billing.getResource().isSameRMCount > 0);
+    }
+
+    /**
+     * Create a pooled data source over each XA data source, get a connection from both in one transaction and commit it.
+     */
+    private static void useInOneTransaction(XADataSource first, String firstName, String firstResourceManagerId,
+            XADataSource second, String secondName, String secondResourceManagerId) throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        try (SharedDataSource firstDs = createDataSource(first, firstName, firstResourceManagerId);
+                SharedDataSource secondDs = createDataSource(second, secondName, secondResourceManagerId)) {
+            tm.begin();
+            try (Connection firstConnection = firstDs.getConnection();
+                    Connection secondConnection = secondDs.getConnection()) {
+                assertFalse(firstConnection.isClosed());
+                assertFalse(secondConnection.isClosed());
+            } finally {
+                tm.commit();
+            }
+        }
+    }
+
+    private static SharedDataSource createDataSource(XADataSource xaDataSource, String name, String resourceManagerId) {
+        final Properties properties = new Properties();
+        properties.setProperty("uniqueName", name);
+        if (resourceManagerId != null) {
+            properties.setProperty("resourceManagerId", resourceManagerId);
+        }
+        return (SharedDataSource) PoolingDataSourceFactory.createPoolingDataSource(
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), xaDataSource,
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties);
+    }
+
+    /**
+     * H2 data source whose connections record the calls made on their XA resource instead of passing them to H2.
+     */
+    private static final class RecordingXADataSource implements XADataSource {
+
+        private final JdbcDataSource h2 = new JdbcDataSource();
+
+        private final List<RecordingXAResource> resources = new CopyOnWriteArrayList<>();
+
+        RecordingXADataSource(String database) {
+            h2.setURL("jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1");
+            h2.setUser("sa");
+            h2.setPassword("");
+        }
+
+        /**
+         * @return the XA resource of the only connection enlisted in a transaction
+         */
+        RecordingXAResource getResource() {
+            final List<RecordingXAResource> enlisted = new ArrayList<>();
+            for (RecordingXAResource resource : resources) {
+                if (!resource.calls.isEmpty()) {
+                    enlisted.add(resource);
+                }
+            }
+            assertEquals(1, enlisted.size());
+            return enlisted.get(0);
+        }
+
+        @Override
+        public XAConnection getXAConnection() throws SQLException {
+            final XAConnection connection = h2.getXAConnection();
+            final RecordingXAResource resource = new RecordingXAResource();
+            resources.add(resource);
+            return (XAConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {XAConnection.class}, (proxy, method, args) -> {
+                        if (method.getName().equals("getXAResource")) {
+                            return resource;
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+
+        @Override
+        public XAConnection getXAConnection(String user, String password) throws SQLException {
+            return getXAConnection();
+        }
+
+        @Override
+        public PrintWriter getLogWriter() throws SQLException {
+            return h2.getLogWriter();
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) throws SQLException {
+            h2.setLogWriter(out);
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) throws SQLException {
+            h2.setLoginTimeout(seconds);
+        }
+
+        @Override
+        public int getLoginTimeout() throws SQLException {
+            return h2.getLoginTimeout();
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            return h2.getParentLogger();
+        }
+    }
+
+    private static final class RecordingXAResource implements XAResource {
+
+        final List<String> calls = new ArrayList<>();
+
+        int isSameRMCount;
+
+        @Override
+        public void start(Xid xid, int flags) {
+            calls.add("start " + flags);
+        }
+
+        @Override
+        public void end(Xid xid, int flags) {
+            calls.add("end");
+        }
+
+        @Override
+        public int prepare(Xid xid) {
+            calls.add("prepare");
+            return XA_OK;
+        }
+
+        @Override
+        public void commit(Xid xid, boolean onePhase) {
+            calls.add("commit " + onePhase);
+        }
+
+        @Override
+        public void rollback(Xid xid) {
+            calls.add("rollback");
+        }
+
+        @Override
+        public void forget(Xid xid) {
+        }
+
+        @Override
+        public Xid[] recover(int flag) {
+            return new Xid[0];
+        }
+
+        @Override
+        public boolean isSameRM(XAResource resource) {
+            isSameRMCount++;
+            return resource == this;
+        }
+
+        @Override
+        public int getTransactionTimeout() {
+            return 0;
+        }
+
+        @Override
+        public boolean setTransactionTimeout(int seconds) {
+            return false;
+        }
+    }
+}
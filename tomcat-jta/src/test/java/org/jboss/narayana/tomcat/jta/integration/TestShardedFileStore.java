@@ -0,0 +1,79 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import com.arjuna.ats.arjuna.common.ObjectStoreEnvironmentBean;
+import com.arjuna.ats.arjuna.common.Uid;
+import com.arjuna.ats.arjuna.objectstore.ObjectStoreAPI;
+import com.arjuna.ats.arjuna.objectstore.StateStatus;
+import com.arjuna.ats.arjuna.state.InputObjectState;
+import com.arjuna.ats.internal.arjuna.common.UidHelper;
+import com.arjuna.ats.internal.arjuna.objectstore.ShadowNoFileLockStore;
+import org.jboss.narayana.tomcat.jta.internal.ShardedFileStore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestShardedFileStore {
+
+    private static final String TYPE_NAME = "/StateManager/BasicAction/TwoPhaseCoordinator/AtomicAction";
+
+    @Test
+    public void testMigrationAndScan() throws Exception {
+        final ObjectStoreEnvironmentBean bean = TestGroupCommitObjectStore.createEnvironmentBean();
+        final Set<Uid> written = new HashSet<>();
+
+        final ObjectStoreAPI unsharded = new ShadowNoFileLockStore(bean);
+        for (int i = 0; i < 50; i++) {
+            final Uid uid = new Uid();
+            unsharded.write_committed(uid, TYPE_NAME, TestGroupCommitObjectStore.state(i));
+            written.add(uid);
+        }
+        final Uid hidden = written.iterator().next();
+        unsharded.hide_state(hidden, TYPE_NAME);
+
+        final ShardedFileStore store = new ShardedFileStore(bean);
+        assertEquals(0, countFiles(Paths.get(bean.getObjectStoreDir(), ShadowNoFileLockStore.class.getSimpleName())));
+        for (int i = 0; i < 50; i++) {
+            final Uid uid = new Uid();
+            store.write_committed(uid, TYPE_NAME, TestGroupCommitObjectStore.state(i));
+            written.add(uid);
+        }
+
+        assertEquals(written, allObjUids(store, StateStatus.OS_UNKNOWN));
+        assertEquals(StateStatus.OS_COMMITTED_HIDDEN, store.currentState(hidden, TYPE_NAME));
+        store.reveal_state(hidden, TYPE_NAME);
+        for (Uid uid : written) {
+            assertTrue(store.read_committed(uid, TYPE_NAME) != null);
+            assertTrue(store.remove_committed(uid, TYPE_NAME));
+        }
+        assertTrue(allObjUids(store, StateStatus.OS_UNKNOWN).isEmpty());
+    }
+
+    private static Set<Uid> allObjUids(ObjectStoreAPI store, int match) throws Exception {
+        final InputObjectState state = new InputObjectState();
+        assertTrue(store.allObjUids(TYPE_NAME, state, match));
+        final Set<Uid> uids = new HashSet<>();
+        for (Uid uid = UidHelper.unpackFrom(state); uid.notEquals(Uid.nullUid()); uid = UidHelper.unpackFrom(state)) {
+            uids.add(uid);
+        }
+        return uids;
+    }
+
+    private static long countFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+}
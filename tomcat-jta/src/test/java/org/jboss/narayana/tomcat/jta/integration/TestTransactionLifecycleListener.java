@@ -0,0 +1,69 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.TransactionManager;
+
+import com.arjuna.ats.arjuna.coordinator.TxControl;
+import com.arjuna.ats.jta.common.jtaPropertyManager;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.core.StandardServer;
+import org.apache.tomcat.dbcp.dbcp2.managed.BasicManagedDataSource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.jboss.narayana.tomcat.jta.RecoveryStatus;
+import org.jboss.narayana.tomcat.jta.TransactionLifecycleListener;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestTransactionLifecycleListener {
+
+    private final StandardServer server = new StandardServer();
+
+    private final TransactionLifecycleListener listener = new TransactionLifecycleListener();
+
+    @Before
+    public void setUp() {
+        listener.setAsyncRecoveryStart(true);
+        listener.lifecycleEvent(new LifecycleEvent(server, Lifecycle.BEFORE_START_EVENT, null));
+    }
+
+    @After
+    public void tearDown() {
+        listener.lifecycleEvent(new LifecycleEvent(server, Lifecycle.BEFORE_STOP_EVENT, null));
+        assertFalse(RecoveryStatus.isRecoveryReady());
+    }
+
+    @Test
+    public void testAsyncRecoveryStart() throws Exception {
+        assertTrue(TxControl.isEnabled());
+
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:lifecycle");
+        h2.setUser("sa");
+        h2.setPassword("sa");
+
+        final BasicManagedDataSource ds = (BasicManagedDataSource) PoolingDataSourceFactory.createPoolingDataSource(tm, h2,
+                jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), new Properties());
+        assertNotNull(ds);
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!RecoveryStatus.isRecoveryReady() && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(RecoveryStatus.isRecoveryReady());
+        ds.close();
+    }
+}
@@ -4,24 +4,41 @@ package org.jboss.narayana.tomcat.jta.integration;
    SPDX-License-Identifier: Apache-2.0
  */
 import com.arjuna.ats.internal.jta.transaction.arjunacore.TransactionManagerImple;
+import com.arjuna.ats.jta.common.jtaPropertyManager;
 import org.apache.naming.NamingContext;
 import org.apache.tomcat.dbcp.dbcp2.managed.BasicManagedDataSource;
 import org.h2.jdbcx.JdbcDataSource;
 import org.jboss.narayana.tomcat.jta.TransactionalDataSourceFactory;
+import org.jboss.narayana.tomcat.jta.internal.BootstrapConfiguration;
+import org.jboss.narayana.tomcat.jta.internal.CommitMarkableDataSource;
+import org.jboss.narayana.tomcat.jta.internal.NarayanaBootstrap;
+import org.jboss.narayana.tomcat.jta.internal.PoolingDataSourceFactory;
+import org.jboss.narayana.tomcat.jta.internal.TomcatJdbcPoolingDataSource;
 import org.junit.Test;
 
 import javax.naming.Context;
 import javax.naming.Reference;
 import javax.naming.StringRefAddr;
+import javax.sql.DataSource;
 import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.Map;
 import java.util.Properties;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author <a href="mailto:zfeng@redhat.com>Zheng Feng</a>
@@ -53,6 +70,271 @@ public class TestTransactionalDataSourceFactory extends AbstractUnitCase {
         checkConnectionPoolProperties(ds);
     }
 
+    @Test
+    public void testPooledDataSourceIsShared() throws Exception {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:shared;DB_CLOSE_DELAY=-1");
+        final Context context = new NamingContext(null, "test");
+        context.bind("transactionManager", jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager());
+        context.bind("h2", h2);
+        context.bind("otherH2", new JdbcDataSource());
+
+        final TransactionalDataSourceFactory factory = new TransactionalDataSourceFactory();
+        final BasicManagedDataSource ds = (BasicManagedDataSource) factory.getObjectInstance(
+                sharedReference("transactionManager", "h2"), null, context, null);
+        final Reference reordered = new Reference("javax.sql.XADataSource", TransactionalDataSourceFactory.class.getName(),
+                null);
+        reordered.add(new StringRefAddr("maxTotal", "4"));
+        reordered.add(new StringRefAddr("xaDataSource", "h2"));
+        reordered.add(new StringRefAddr("transactionManager", "transactionManager"));
+        assertSame(ds, factory.getObjectInstance(reordered, null, context, null));
+        final DataSource other = (DataSource) factory.getObjectInstance(sharedReference("transactionManager", "otherH2"),
+                null, context, null);
+        assertNotSame(ds, other);
+        ((AutoCloseable) other).close();
+
+        ds.close();
+        assertFalse(ds.isClosed());
+        try (Connection connection = ds.getConnection()) {
+            assertTrue(connection.isValid(1));
+        }
+        ds.close();
+        assertTrue(ds.isClosed());
+        final BasicManagedDataSource recreated = (BasicManagedDataSource) factory.getObjectInstance(
+                sharedReference("transactionManager", "h2"), null, context, null);
+        assertNotSame(ds, recreated);
+        recreated.close();
+    }
+
+    @Test
+    public void testSameReferenceInOtherContextIsNotShared() throws Exception {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:sharedContext;DB_CLOSE_DELAY=-1");
+        final JdbcDataSource otherH2 = new JdbcDataSource();
+        otherH2.setURL("jdbc:h2:mem:otherSharedContext;DB_CLOSE_DELAY=-1");
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final Context context = new NamingContext(null, "first");
+        context.bind("transactionManager", tm);
+        context.bind("h2", h2);
+        final Context otherContext = new NamingContext(null, "second");
+        otherContext.bind("transactionManager", tm);
+        otherContext.bind("h2", otherH2);
+
+        final TransactionalDataSourceFactory factory = new TransactionalDataSourceFactory();
+        final BasicManagedDataSource ds = (BasicManagedDataSource) factory.getObjectInstance(
+                sharedReference("transactionManager", "h2"), null, context, null);
+        final BasicManagedDataSource other = (BasicManagedDataSource) factory.getObjectInstance(
+                sharedReference("transactionManager", "h2"), null, otherContext, null);
+        try {
+            assertNotSame(ds, other);
+            assertSame(ds, factory.getObjectInstance(sharedReference("transactionManager", "h2"), null, context, null));
+            ds.close();
+            try (Connection connection = other.getConnection()) {
+                assertEquals("jdbc:h2:mem:otherSharedContext", connection.getMetaData().getURL());
+            }
+        } finally {
+            ds.close();
+            other.close();
+        }
+    }
+
+    @Test
+    public void testContextIsNotRetained() throws Exception {
+        final TransactionalDataSourceFactory factory = new TransactionalDataSourceFactory();
+        final WeakReference<Context> context = new WeakReference<>(new NamingContext(null, "retained"));
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:retainedContext;DB_CLOSE_DELAY=-1");
+        context.get().bind("transactionManager", jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager());
+        context.get().bind("h2", h2);
+        final BasicManagedDataSource ds = (BasicManagedDataSource) factory.getObjectInstance(
+                sharedReference("transactionManager", "h2"), null, context.get(), null);
+        try {
+            for (int i = 0; i < 50 && context.get() != null; i++) {
+                System.gc();
+                Thread.sleep(20);
+            }
+            assertNull("The pool of a context must not keep the context", context.get());
+        } finally {
+            ds.close();
+        }
+    }
+
+    private static Reference sharedReference(String transactionManager, String xaDataSource) {
+        final Reference ref = new Reference("javax.sql.XADataSource", TransactionalDataSourceFactory.class.getName(), null);
+        ref.add(new StringRefAddr("transactionManager", transactionManager));
+        ref.add(new StringRefAddr("xaDataSource", xaDataSource));
+        ref.add(new StringRefAddr("maxTotal", "4"));
+        return ref;
+    }
+
+    @Test
+    public void testPropertyConversions() throws Exception {
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:propertyConversions");
+        final Properties properties = new Properties();
+        properties.setProperty("defaultTransactionIsolation", "8");
+        properties.setProperty("defaultQueryTimeout", "5");
+        properties.setProperty("maxConnLifetimeMillis", "60000");
+        properties.setProperty("enableAutoCommitOnReturn", "false");
+        properties.setProperty("connectionInitSqls", "SELECT 1;;SELECT 2;");
+        properties.setProperty("unknownSetting", "ignored");
+        final BasicManagedDataSource ds = (BasicManagedDataSource) PoolingDataSourceFactory.createPoolingDataSource(
+                new TransactionManagerImple(), h2, null, properties);
+        try {
+            assertEquals(Connection.TRANSACTION_SERIALIZABLE, ds.getDefaultTransactionIsolation());
+            assertEquals(Integer.valueOf(5), ds.getDefaultQueryTimeout());
+            assertEquals(60000, ds.getMaxConnLifetimeMillis());
+            assertFalse(ds.getAutoCommitOnReturn());
+            assertEquals(2, ds.getConnectionInitSqls().size());
+        } finally {
+            ds.close();
+        }
+
+        properties.setProperty("maxTotal", "ten");
+        try {
+            PoolingDataSourceFactory.createPoolingDataSource(new TransactionManagerImple(), h2, null, properties);
+            fail("maxTotal is not a number");
+        } catch (RuntimeException expected) {
+            assertTrue(expected.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void testCommitMarkableDataSource() throws Exception {
+        final Object owner = new Object();
+        NarayanaBootstrap.acquire(owner, new BootstrapConfiguration());
+        try {
+            final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+            final TransactionSynchronizationRegistry tsr = jtaPropertyManager.getJTAEnvironmentBean()
+                    .getTransactionSynchronizationRegistry();
+            final JdbcDataSource h2 = new JdbcDataSource();
+            h2.setURL("jdbc:h2:mem:cmr;DB_CLOSE_DELAY=-1");
+            h2.setUser("sa");
+            h2.setPassword("sa");
+
+            final Reference ref = new Reference("javax.sql.DataSource", TransactionalDataSourceFactory.class.getName(),
+                    null);
+            ref.add(new StringRefAddr("transactionManager", "transactionManager"));
+            ref.add(new StringRefAddr("transactionSynchronizationRegistry", "transactionSynchronizationRegistry"));
+            ref.add(new StringRefAddr("dataSource", "h2"));
+            ref.add(new StringRefAddr("jndiName", "commitMarkableDataSource"));
+            final Context context = new NamingContext(null, "test");
+            context.bind("transactionManager", tm);
+            context.bind("transactionSynchronizationRegistry", tsr);
+            context.bind("h2", h2);
+
+            final DataSource ds = (DataSource) new TransactionalDataSourceFactory().getObjectInstance(ref, null, context,
+                    null);
+            assertTrue(ds instanceof CommitMarkableDataSource);
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE cmr_test (id INT)");
+            }
+
+            tm.begin();
+            tm.getTransaction().enlistResource(new DummyXAResource());
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("INSERT INTO cmr_test VALUES (1)");
+            }
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("INSERT INTO cmr_test VALUES (2)");
+            }
+            tm.commit();
+
+            tm.begin();
+            tm.getTransaction().enlistResource(new DummyXAResource());
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("INSERT INTO cmr_test VALUES (3)");
+            }
+            tm.rollback();
+
+            assertEquals(2, count(ds, "cmr_test"));
+            // the commit record stays until the recovery module removes it
+            assertEquals(1, count(ds, "xids"));
+        } finally {
+            NarayanaBootstrap.release(owner);
+        }
+    }
+
+    @Test
+    public void testTomcatJdbcUnsupportedOption() {
+        final Properties properties = new Properties();
+        properties.setProperty("poolImplementation", "tomcat-jdbc");
+        properties.setProperty("reaperAbort", "true");
+        properties.setProperty("prewarmAsync", "true");
+        try {
+            PoolingDataSourceFactory.createPoolingDataSource(
+                    jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager(), new JdbcDataSource(),
+                    jtaPropertyManager.getJTAEnvironmentBean().getTransactionSynchronizationRegistry(), properties);
+            fail("An option the tomcat-jdbc pool does not support must be refused");
+        } catch (IllegalArgumentException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("[reaperAbort, prewarmAsync]"));
+        }
+    }
+
+    @Test
+    public void testTomcatJdbcDataSource() throws Exception {
+        final TransactionManager tm = jtaPropertyManager.getJTAEnvironmentBean().getTransactionManager();
+        final TransactionSynchronizationRegistry tsr = jtaPropertyManager.getJTAEnvironmentBean()
+                .getTransactionSynchronizationRegistry();
+        final JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:tomcatJdbc;DB_CLOSE_DELAY=-1");
+        h2.setUser("sa");
+        h2.setPassword("sa");
+
+        final Reference ref = new Reference("javax.sql.XADataSource", TransactionalDataSourceFactory.class.getName(),
+                null);
+        ref.add(new StringRefAddr("transactionManager", "transactionManager"));
+        ref.add(new StringRefAddr("transactionSynchronizationRegistry", "transactionSynchronizationRegistry"));
+        ref.add(new StringRefAddr("xaDataSource", "h2"));
+        ref.add(new StringRefAddr("poolImplementation", "tomcat-jdbc"));
+        ref.add(new StringRefAddr("initialSize", "1"));
+        ref.add(new StringRefAddr("maxActive", "4"));
+        ref.add(new StringRefAddr("fairQueue", "true"));
+        ref.add(new StringRefAddr("jdbcInterceptors", "ConnectionState;StatementFinalizer"));
+        final Context context = new NamingContext(null, "test");
+        context.bind("transactionManager", tm);
+        context.bind("transactionSynchronizationRegistry", tsr);
+        context.bind("h2", h2);
+
+        final TomcatJdbcPoolingDataSource ds = (TomcatJdbcPoolingDataSource) new TransactionalDataSourceFactory()
+                .getObjectInstance(ref, null, context, null);
+        try {
+            assertEquals(4, ds.getPool().getMaxActive());
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE tomcat_jdbc_test (id INT)");
+            }
+
+            tm.begin();
+            try (Connection connection = ds.getConnectionAsync().get(); Statement statement = connection.createStatement()) {
+                statement.execute("INSERT INTO tomcat_jdbc_test VALUES (1)");
+            }
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("INSERT INTO tomcat_jdbc_test VALUES (2)");
+            }
+            assertEquals(1, ds.getPool().getActive());
+            tm.commit();
+
+            tm.begin();
+            try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement()) {
+                statement.execute("INSERT INTO tomcat_jdbc_test VALUES (3)");
+            }
+            tm.rollback();
+
+            assertEquals(2, count(ds, "tomcat_jdbc_test"));
+            assertEquals(0, ds.getPool().getActive());
+        } finally {
+            ds.close();
+        }
+    }
+
+    private static int count(DataSource ds, String table) throws Exception {
+        try (Connection connection = ds.getConnection(); Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            assertTrue(resultSet.next());
+            return resultSet.getInt(1);
+        }
+    }
+
     private Properties getTestProperties() {
         final Properties properties = new Properties();
         properties.setProperty("transactionManager", "transactionManager");
@@ -153,4 +435,52 @@ public class TestTransactionalDataSourceFactory extends AbstractUnitCase {
         assertTrue(ds.getLogAbandoned());
         assertTrue(ds.getLifo());
     }
+
+    private static final class DummyXAResource implements XAResource {
+
+        @Override
+        public void commit(Xid xid, boolean onePhase) {
+        }
+
+        @Override
+        public void end(Xid xid, int flags) {
+        }
+
+        @Override
+        public void forget(Xid xid) {
+        }
+
+        @Override
+        public int getTransactionTimeout() {
+            return 0;
+        }
+
+        @Override
+        public boolean isSameRM(XAResource xaResource) {
+            return false;
+        }
+
+        @Override
+        public int prepare(Xid xid) {
+            return XA_OK;
+        }
+
+        @Override
+        public Xid[] recover(int flag) {
+            return new Xid[0];
+        }
+
+        @Override
+        public void rollback(Xid xid) {
+        }
+
+        @Override
+        public boolean setTransactionTimeout(int seconds) {
+            return false;
+        }
+
+        @Override
+        public void start(Xid xid, int flags) {
+        }
+    }
 }
@@ -0,0 +1,145 @@
+/*
+   Copyright The Narayana Authors
+   SPDX-License-Identifier: Apache-2.0
+ */
+package org.jboss.narayana.tomcat.jta.integration.utils;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.xa.XAResource;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * H2 data source counting its open connections, and optionally slow to connect and to scan for in-doubt transactions.
+ */
+public final class TrackingXADataSource implements XADataSource {
+
+    private final JdbcDataSource h2 = new JdbcDataSource();
+
+    private final long connectMillis;
+
+    private final long recoverMillis;
+
+    private final AtomicInteger opened = new AtomicInteger();
+
+    private final AtomicInteger open = new AtomicInteger();
+
+    private volatile boolean available = true;
+
+    public TrackingXADataSource(String database, long connectMillis, long recoverMillis) {
+        h2.setURL("jdbc:h2:mem:" + database + ";DB_CLOSE_DELAY=-1");
+        h2.setUser("sa");
+        h2.setPassword("");
+        this.connectMillis = connectMillis;
+        this.recoverMillis = recoverMillis;
+    }
+
+    /**
+     * @return number of connections opened so far
+     */
+    public int getOpenedCount() {
+        return opened.get();
+    }
+
+    /**
+     * @return number of connections currently open
+     */
+    public int getOpenCount() {
+        return open.get();
+    }
+
+    /**
+     * @param available {@code false} to refuse the connections, as a database which is down does
+     */
+    public void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    @Override
+    public XAConnection getXAConnection() throws SQLException {
+        sleep(connectMillis);
+        if (!available) {
+            throw new SQLException("Connection refused");
+        }
+        final XAConnection connection = h2.getXAConnection();
+        opened.incrementAndGet();
+        open.incrementAndGet();
+        return (XAConnection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {XAConnection.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("close")) {
+                        open.decrementAndGet();
+                    }
+                    final Object result = invoke(connection, method, args);
+                    if (method.getName().equals("getXAResource")) {
+                        return slowRecovery((XAResource) result);
+                    }
+                    return result;
+                });
+    }
+
+    private XAResource slowRecovery(XAResource xaResource) {
+        return (XAResource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {XAResource.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("recover")) {
+                        sleep(recoverMillis);
+                    }
+                    return invoke(xaResource, method, args);
+                });
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public XAConnection getXAConnection(String user, String password) throws SQLException {
+        return getXAConnection();
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return h2.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        h2.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        h2.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return h2.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return h2.getParentLogger();
+    }
+}